@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.kmer;
+
+import edu.msu.cme.rdp.readseq.readers.Sequence;
+import edu.msu.cme.rdp.readseq.writers.FastaWriter;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Random sequences for the benchmarks, always generated from the same seed so
+ * runs can be compared
+ *
+ * @author fishjord
+ */
+public class BenchmarkSeqs {
+
+    public static final long SEED = 1234;
+    private static final char[] NUCL = "acgt".toCharArray();
+    private static final char[] PROT = "ACDEFGHIKLMNPQRSTVWY".toCharArray();
+
+    public static Random newRandom() {
+        return new Random(SEED);
+    }
+
+    public static String random(char[] alphabet, int length, Random rand) {
+        char[] ret = new char[length];
+        for (int index = 0; index < length; index++) {
+            ret[index] = alphabet[rand.nextInt(alphabet.length)];
+        }
+        return new String(ret);
+    }
+
+    public static String randomNucl(int length, Random rand) {
+        return random(NUCL, length, rand);
+    }
+
+    public static String randomProt(int length, Random rand) {
+        return random(PROT, length, rand);
+    }
+
+    /**
+     * Writes the sequences to a temporary fasta file that is removed when the
+     * jvm exits
+     */
+    public static File writeFasta(String prefix, List<Sequence> seqs) throws IOException {
+        File f = File.createTempFile(prefix, ".fasta");
+        f.deleteOnExit();
+
+        FastaWriter out = new FastaWriter(f);
+        for (Sequence seq : seqs) {
+            out.writeSeq(seq);
+        }
+        out.close();
+
+        return f;
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.kmer;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Packing kmers from characters and shifting a base on to them, k is the
+ * nucleotide kmer length, protein kmers are k / 3
+ *
+ * @author fishjord
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KmerBenchmark {
+
+    private static final int BASES = 4096;  // power of two so the index can wrap with a mask
+
+    @Param({"30", "60"})
+    public int k;
+    private char[] nuclChars;
+    private char[] protChars;
+    private char[] nuclBases;
+    private char[] protBases;
+    private Kmer nucl;
+    private Kmer prot;
+    private int index;
+
+    @Setup
+    public void setup() {
+        Random rand = BenchmarkSeqs.newRandom();
+        nuclChars = BenchmarkSeqs.randomNucl(k, rand).toCharArray();
+        protChars = BenchmarkSeqs.randomProt(k / 3, rand).toCharArray();
+        nuclBases = BenchmarkSeqs.randomNucl(BASES, rand).toCharArray();
+        protBases = BenchmarkSeqs.randomProt(BASES, rand).toCharArray();
+        nucl = new NuclKmer(nuclChars);
+        prot = new ProtKmer(protChars);
+    }
+
+    @Benchmark
+    public Kmer nuclConstruct() {
+        return new NuclKmer(nuclChars);
+    }
+
+    @Benchmark
+    public Kmer protConstruct() {
+        return new ProtKmer(protChars);
+    }
+
+    @Benchmark
+    public Kmer nuclShiftLeft() {
+        nucl = nucl.shiftLeft(nuclBases[index++ & (BASES - 1)]);
+        return nucl;
+    }
+
+    @Benchmark
+    public Kmer nuclShiftLeftInPlace() {
+        return nucl.shiftLeftInPlace(nuclBases[index++ & (BASES - 1)]);
+    }
+
+    @Benchmark
+    public Kmer protShiftLeft() {
+        prot = prot.shiftLeft(protBases[index++ & (BASES - 1)]);
+        return prot;
+    }
+
+    @Benchmark
+    public Kmer protShiftLeftInPlace() {
+        return prot.shiftLeftInPlace(protBases[index++ & (BASES - 1)]);
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.kmer.cli;
+
+import edu.msu.cme.rdp.kmer.BenchmarkSeqs;
+import edu.msu.cme.rdp.kmer.CodonTable;
+import edu.msu.cme.rdp.kmer.ReadGenerator;
+import edu.msu.cme.rdp.kmer.io.KmerStartsWriter.RecordBuffer;
+import edu.msu.cme.rdp.kmer.io.ReadRecord;
+import edu.msu.cme.rdp.readseq.SequenceType;
+import edu.msu.cme.rdp.readseq.readers.Sequence;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End to end FastKmerFilter search of one batch of reads against an in memory
+ * reference index, reported per read. Half the reads are sampled from the
+ * reference with ReadGenerator, the other half are random.
+ *
+ * @author fishjord
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FastKmerFilterBenchmark {
+
+    private static final int READS = 1000;
+    private static final int READ_LENGTH = 150;
+    private static final int REF_CODONS = 50000;
+    private static final int TRANSL_TABLE = 11;
+    private static final int MINIMIZER_LENGTH = 11;
+    private static final String[] CODONS;
+
+    static {
+        List<String> codons = new ArrayList();
+        for (char a : "acgt".toCharArray()) {
+            for (char b : "acgt".toCharArray()) {
+                for (char c : "acgt".toCharArray()) {
+                    String codon = "" + a + b + c;
+                    if (!codon.equals("taa") && !codon.equals("tag") && !codon.equals("tga")) {
+                        codons.add(codon);
+                    }
+                }
+            }
+        }
+        CODONS = codons.toArray(new String[codons.size()]);
+    }
+
+    // nucl_minimizer is the nucleotide index partitioned by minimizer
+    @Param({"nucl", "nucl_minimizer", "prot"})
+    public String refType;
+    private int wordSize;
+    private List<String> refLabels;
+    private FastKmerFilter.RefKmerIndex index;
+    private List<Sequence> reads;
+    private List<ReadRecord> records;
+
+    /**
+     * A random open reading frame so the protein reference translates
+     * without stop codons
+     */
+    private static String randomOrf(int codons, Random rand) {
+        StringBuilder ret = new StringBuilder(codons * 3);
+        for (int codon = 0; codon < codons; codon++) {
+            ret.append(CODONS[rand.nextInt(CODONS.length)]);
+        }
+        return ret.toString();
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        Random rand = BenchmarkSeqs.newRandom();
+        Sequence nuclRef = new Sequence("ref", "", randomOrf(REF_CODONS, rand));
+        boolean prot = refType.equals("prot");
+        Sequence ref = nuclRef;
+        if (prot) {
+            ref = new Sequence("ref", "", CodonTable.getInstance(TRANSL_TABLE).translate(nuclRef.getSeqString()));
+        }
+
+        wordSize = prot ? 45 : 30;
+        refLabels = new ArrayList();
+        File refFile = BenchmarkSeqs.writeFasta("bench_ref", Arrays.asList(ref));
+        index = FastKmerFilter.loadIndex(new String[]{refFile.getAbsolutePath()}, 0, prot ? SequenceType.Protein : SequenceType.Nucleotide,
+                prot ? wordSize / 3 : wordSize, false, refLabels, 1, refType.equals("nucl_minimizer") ? MINIMIZER_LENGTH : 0);
+
+        reads = ReadGenerator.generateReads(nuclRef, READ_LENGTH, READS / 2, rand);
+        for (int read = 0; reads.size() < READS; read++) {
+            reads.add(new Sequence("random_read_" + read, "", BenchmarkSeqs.randomNucl(READ_LENGTH, rand)));
+        }
+
+        records = new ArrayList();
+        for (Sequence read : reads) {
+            records.add(ReadRecord.wrap(read));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(READS)
+    public int processReads() {
+        RecordBuffer hits = new RecordBuffer();
+        if (refType.equals("prot")) {
+            for (Sequence read : reads) {
+                FastKmerFilter.processProtSeq(read, refLabels, index, hits, wordSize, TRANSL_TABLE);
+            }
+        } else {
+            for (ReadRecord record : records) {
+                FastKmerFilter.processNuclSeq(record, refLabels, index, hits, wordSize);
+            }
+        }
+        return hits.size();
+    }
+}
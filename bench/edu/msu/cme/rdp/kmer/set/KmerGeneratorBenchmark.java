@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.kmer.set;
+
+import edu.msu.cme.rdp.kmer.BenchmarkSeqs;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Kmer generator throughput, each invocation walks a whole sequence of
+ * SEQ_LENGTH residues so the reported time is per base
+ *
+ * @author fishjord
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KmerGeneratorBenchmark {
+
+    private static final int SEQ_LENGTH = 10000;
+
+    @Param({"30", "60"})
+    public int k;
+    private String nuclSeq;
+    private String protSeq;
+
+    @Setup
+    public void setup() {
+        Random rand = BenchmarkSeqs.newRandom();
+        nuclSeq = BenchmarkSeqs.randomNucl(SEQ_LENGTH, rand);
+        protSeq = BenchmarkSeqs.randomProt(SEQ_LENGTH, rand);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SEQ_LENGTH)
+    public void nuclIterator(Blackhole bh) {
+        NuclKmerGenerator gen = new NuclKmerGenerator(nuclSeq, k);
+        while (gen.hasNext()) {
+            bh.consume(gen.next());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SEQ_LENGTH)
+    public void nuclCursor(Blackhole bh) {
+        NuclKmerGenerator gen = new NuclKmerGenerator(nuclSeq, k);
+        while (gen.advance()) {
+            bh.consume(gen.word0());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SEQ_LENGTH)
+    public void nuclCanonicalCursor(Blackhole bh) {
+        NuclKmerGenerator gen = new NuclKmerGenerator(nuclSeq, k, false, true);
+        while (gen.advance()) {
+            bh.consume(gen.word0());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SEQ_LENGTH)
+    public void protIterator(Blackhole bh) {
+        ProtKmerGenerator gen = new ProtKmerGenerator(protSeq, k / 3);
+        while (gen.hasNext()) {
+            bh.consume(gen.next());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SEQ_LENGTH)
+    public void protCursor(Blackhole bh) {
+        ProtKmerGenerator gen = new ProtKmerGenerator(protSeq, k / 3);
+        while (gen.advance()) {
+            bh.consume(gen.word0());
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.kmer.set;
+
+import edu.msu.cme.rdp.kmer.BenchmarkSeqs;
+import edu.msu.cme.rdp.kmer.Kmer;
+import edu.msu.cme.rdp.kmer.NuclKmer;
+import edu.msu.cme.rdp.kmer.trie.FrozenKmerTrie;
+import edu.msu.cme.rdp.kmer.trie.KmerTrie;
+import edu.msu.cme.rdp.readseq.readers.Sequence;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Single kmer lookups in a KmerSet, a KmerTrie and a FrozenKmerTrie built from
+ * the same reference, half of the query kmers are in the reference
+ *
+ * @author fishjord
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KmerLookupBenchmark {
+
+    private static final int QUERIES = 1 << 16;
+
+    @Param({"30", "60"})
+    public int k;
+    @Param({"1000000"})
+    public int refLength;
+    private KmerSet<Boolean> kmerSet;
+    private KmerTrie trie;
+    private FrozenKmerTrie frozenTrie;
+    private char[][] queryChars;
+    private long[][] queryKmers;
+    private int index;
+
+    @Setup
+    public void setup() {
+        Random rand = BenchmarkSeqs.newRandom();
+        Sequence ref = new Sequence("ref", "", BenchmarkSeqs.randomNucl(refLength, rand));
+
+        kmerSet = new KmerSet<Boolean>(k > Kmer.max_nucl_kmer_size / 2 ? 2 : 1);
+        NuclKmerGenerator gen = new NuclKmerGenerator(ref.getSeqString(), k);
+        while (gen.hasNext()) {
+            kmerSet.add(gen.next().getLongKmers(), Boolean.TRUE);
+        }
+
+        trie = new KmerTrie(k, false);
+        trie.addSequence(ref);
+        frozenTrie = trie.freeze();
+
+        String hits = ref.getSeqString();
+        String misses = BenchmarkSeqs.randomNucl(refLength, rand);
+        queryChars = new char[QUERIES][];
+        queryKmers = new long[QUERIES][];
+        for (int query = 0; query < QUERIES; query++) {
+            String from = (query % 2 == 0) ? hits : misses;
+            int start = rand.nextInt(from.length() - k);
+            queryChars[query] = from.substring(start, start + k).toCharArray();
+            queryKmers[query] = new NuclKmer(queryChars[query]).getLongKmers();
+        }
+    }
+
+    @Benchmark
+    public Object kmerSetGet() {
+        long[] kmer = queryKmers[index++ & (QUERIES - 1)];
+        return kmerSet.get(kmer);
+    }
+
+    @Benchmark
+    public Object kmerTrieContains() {
+        return trie.contains(queryChars[index++ & (QUERIES - 1)]);
+    }
+
+    @Benchmark
+    public Object frozenTrieContains() {
+        return frozenTrie.contains(queryChars[index++ & (QUERIES - 1)]);
+    }
+}
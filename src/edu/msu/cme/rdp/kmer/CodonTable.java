@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.kmer;
+
+import edu.msu.cme.rdp.readseq.utils.ProtBinMapping;
+import edu.msu.cme.rdp.readseq.utils.ProteinUtils;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Codon to amino acid lookup for one translation table, so translating a
+ * sequence is a table lookup per codon.
+ *
+ * The table is filled once per translation table by handing ProteinUtils
+ * every codon made of the IUPAC nucleotide codes, including the ambiguous
+ * ones, so a lookup gives exactly what ProteinUtils.translateToProtein (with
+ * initiators not allowed) would. Codons with any other character still go
+ * through ProteinUtils. Tables are immutable and shared by every thread,
+ * use getInstance to get one.
+ *
+ * @author fishjord
+ */
+public class CodonTable {
+
+    private static final String NUCL_SYMBOLS = "acgturykmswbdhvn";
+    private static final byte[] symbolIndex = new byte[128];
+    private static final ConcurrentMap<Integer, CodonTable> tables = new ConcurrentHashMap<Integer, CodonTable>();
+
+    static {
+        for (int c = 0; c < symbolIndex.length; c++) {
+            symbolIndex[c] = -1;
+        }
+        for (int index = 0; index < NUCL_SYMBOLS.length(); index++) {
+            char c = NUCL_SYMBOLS.charAt(index);
+            symbolIndex[c] = symbolIndex[Character.toUpperCase(c)] = (byte) index;
+        }
+    }
+    private final int translTable;
+    private final char[] aminoAcids;   // indexed by the symbol index of each base, 4 bits per base
+    private final byte[] codes = new byte[64];
+
+    private CodonTable(int translTable) {
+        int numSymbols = NUCL_SYMBOLS.length();
+        StringBuilder codons = new StringBuilder(numSymbols * numSymbols * numSymbols * 3);
+        for (int index = 0; index < 1 << 12; index++) {
+            codons.append(NUCL_SYMBOLS.charAt(index >> 8)).append(NUCL_SYMBOLS.charAt((index >> 4) & 0xf)).append(NUCL_SYMBOLS.charAt(index & 0xf));
+        }
+
+        String prot = ProteinUtils.getInstance().translateToProtein(codons.toString(), true, translTable);
+        if (prot.length() != 1 << 12) {
+            throw new IllegalStateException("Expected one amino acid per codon translating with table " + translTable + " but got " + prot.length() + " for " + (1 << 12) + " codons");
+        }
+
+        this.translTable = translTable;
+        this.aminoAcids = prot.toCharArray();
+        // a, c, g and t are the first four symbols so their 2 bit codes are also their symbol indexes
+        for (int codon = 0; codon < 64; codon++) {
+            char aa = aminoAcids[((codon >> 4) << 8) | (((codon >> 2) & 0x3) << 4) | (codon & 0x3)];
+            codes[codon] = (aa < ProtBinMapping.asciiMap.length) ? ProtBinMapping.asciiMap[aa] : -1;
+        }
+    }
+
+    public static CodonTable getInstance(int translTable) {
+        CodonTable ret = tables.get(translTable);
+        if (ret == null) {
+            CodonTable table = new CodonTable(translTable);
+            ret = tables.putIfAbsent(translTable, table);
+            if (ret == null) {
+                ret = table;
+            }
+        }
+        return ret;
+    }
+
+    public int getTranslTable() {
+        return translTable;
+    }
+
+    /**
+     * ProtBinMapping code of the amino acid for a codon of three 2 bit
+     * (acgt) bases, first base in the high bits, -1 if the amino acid isn't
+     * in the protein alphabet
+     */
+    public byte getCode(int codon) {
+        return codes[codon];
+    }
+
+    private static int symbolOf(char base) {
+        return (base < symbolIndex.length) ? symbolIndex[base] : -1;
+    }
+
+    /**
+     * Amino acid for the codon, which may have ambiguous bases
+     */
+    public char translate(char b1, char b2, char b3) {
+        int s1 = symbolOf(b1);
+        int s2 = symbolOf(b2);
+        int s3 = symbolOf(b3);
+
+        if (s1 == -1 || s2 == -1 || s3 == -1) {
+            String codon = new String(new char[]{b1, b2, b3});
+            String aa = ProteinUtils.getInstance().translateToProtein(codon, true, translTable);
+            if (aa.length() != 1) {
+                throw new IllegalArgumentException("Can't translate codon " + codon);
+            }
+            return aa.charAt(0);
+        }
+
+        return aminoAcids[(s1 << 8) | (s2 << 4) | s3];
+    }
+
+    /**
+     * Translates seq from start to the last full codon, the same as
+     * ProteinUtils.translateToProtein(seq.substring(start), true, table)
+     */
+    public String translate(String seq, int start) {
+        char[] ret = new char[Math.max(0, (seq.length() - start) / 3)];
+        for (int index = 0; index < ret.length; index++) {
+            int codon = start + index * 3;
+            ret[index] = translate(seq.charAt(codon), seq.charAt(codon + 1), seq.charAt(codon + 2));
+        }
+        return new String(ret);
+    }
+
+    public String translate(String seq) {
+        return translate(seq, 0);
+    }
+}
@@ -43,6 +43,26 @@ public abstract class Kmer {
     public abstract Kmer shiftLeft(char c);
     public abstract Kmer shiftRight(byte b);
     public abstract Kmer shiftLeft(byte b);
+
+    /**
+     * Same as shiftLeft(char) but modifies this kmer rather than returning a
+     * new one
+     */
+    public Kmer shiftLeftInPlace(char c) {
+        return shiftLeft(charToByte(c), this);
+    }
+
+    public Kmer shiftLeftInPlace(byte b) {
+        return shiftLeft(b, this);
+    }
+
+    public Kmer shiftRightInPlace(char c) {
+        return shiftRight(charToByte(c), this);
+    }
+
+    public Kmer shiftRightInPlace(byte b) {
+        return shiftRight(b, this);
+    }
      
     public int length() {
         return k;
@@ -106,6 +126,9 @@ public abstract class Kmer {
             ret.kmers[1] = (kmers[1] << bitsToshift ) | ((long) b & charMask);
             ret.kmers[1] &= lastMask;
             ret.kmers[0] = (kmers[0] << bitsToshift ) | (overflow);
+            if (itemsPerBucket * bitsToshift < 64) {  // clear the bits shifted past a full protein bucket
+                ret.kmers[0] &= (1L << (itemsPerBucket * bitsToshift)) - 1;
+            }
         } else {
             ret.kmers[0] = (kmers[0] << bitsToshift) | ((long) b & charMask);
             ret.kmers[0] &= lastMask;
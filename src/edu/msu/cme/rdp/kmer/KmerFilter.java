@@ -16,9 +16,13 @@
  */
 package edu.msu.cme.rdp.kmer;
 
+import edu.msu.cme.rdp.kmer.cli.ReadPipeline;
 import edu.msu.cme.rdp.kmer.io.KmerStart;
 import edu.msu.cme.rdp.kmer.io.KmerStartsWriter;
+import edu.msu.cme.rdp.kmer.io.KmerStartsWriter.RecordBuffer;
+import edu.msu.cme.rdp.kmer.set.SixFrameKmerGenerator;
 import edu.msu.cme.rdp.kmer.trie.KmerGenerator;
+import edu.msu.cme.rdp.kmer.trie.FrozenKmerTrie;
 import edu.msu.cme.rdp.kmer.trie.KmerTrie;
 import edu.msu.cme.rdp.kmer.trie.KmerTrie.RefPos;
 import edu.msu.cme.rdp.kmer.trie.KmerTrie.TrieLeaf;
@@ -26,15 +30,12 @@ import edu.msu.cme.rdp.readseq.SequenceType;
 import edu.msu.cme.rdp.readseq.readers.SequenceReader;
 import edu.msu.cme.rdp.readseq.readers.SeqReader;
 import edu.msu.cme.rdp.readseq.utils.IUBUtilities;
-import edu.msu.cme.rdp.readseq.utils.ProteinUtils;
 import edu.msu.cme.rdp.readseq.utils.SeqUtils;
 import java.io.File;
 import java.util.Date;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicLong;
 import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.PosixParser;
 import org.apache.commons.cli.Options;
@@ -42,7 +43,6 @@ import edu.msu.cme.rdp.readseq.readers.Sequence;
 import java.io.IOException;
 import java.util.ArrayList;
 import org.apache.commons.cli.CommandLine;
-import java.util.concurrent.TimeUnit;
 
 /**
  *
@@ -51,6 +51,7 @@ import java.util.concurrent.TimeUnit;
 public class KmerFilter {
 
     private static final Options options = new Options();
+    private static final int MAX_SKIP_MESSAGES = 10;   // skipped sequences reported one by one, the rest are only counted
 
     static {
         options.addOption("o", "out", true, "Redirect output to file");
@@ -58,9 +59,7 @@ public class KmerFilter {
         options.addOption("T", "transl-table", true, "Translation table to use when translating nucleotide to protein sequences");
         options.addOption("t", "threads", true, "#Threads to use");
     }
-    private static final ReentrantLock outputLock = new ReentrantLock();
-
-    private static void processSeq(Sequence querySeq, List<String> refLabels, KmerTrie kmerTrie, KmerStartsWriter out, int wordSize, boolean translQuery, int translTable, boolean reverse) throws IOException {
+    private static void processSeq(Sequence querySeq, List<String> refLabels, FrozenKmerTrie kmerTrie, RecordBuffer hits, int wordSize, boolean reverse) {
 
         String seqString = querySeq.getSeqString();
 
@@ -70,70 +69,167 @@ public class KmerFilter {
 
         List<char[]> tmpKmerList = KmerGenerator.getKmers(seqString, wordSize);
         char[][] kmers = tmpKmerList.toArray(new char[tmpKmerList.size()][]);
-        char[][][] protKmers = null;
-
-        if (translQuery) {
-            protKmers = new char[3][][];
-            for (int i = 0; i < 3; i++) {
-                String frameSeq = seqString.substring(i);
-                //System.out.println(frameSeq);
-                frameSeq = ProteinUtils.getInstance().translateToProtein(frameSeq, true, translTable);
-                //System.out.println(frameSeq);
-
-                tmpKmerList = KmerGenerator.getKmers(frameSeq, wordSize / 3);
-                protKmers[i] = tmpKmerList.toArray(new char[tmpKmerList.size()][]);
-            }
-        }
 
         int frame = 0;
         char[] kmer = null;
-        char[] protKmer = null;
         TrieLeaf leaf = null;
 
         for (int kmerIndex = 0; kmerIndex < kmers.length; kmerIndex++) {
             kmer = kmers[kmerIndex];
+            leaf = kmerTrie.contains(kmer);
 
-            if (translQuery) {
-                protKmer = null;
-                if (protKmers[frame].length > kmerIndex / 3) {
-                    protKmer = protKmers[frame][kmerIndex / 3];
-                }
-                if (protKmer == null) {
-                    System.err.println("Skipping null prot kmer " + kmerIndex + " " + querySeq.getSeqName() + ((kmer != null) ? " " + new String(kmer) : ""));
-                    continue;
+            if (leaf != null) {
+                for (Integer refId : leaf.getRefSets()) {
+                    for (RefPos refPos : leaf.getModelStarts(refId)) {
+
+                        hits.add(new KmerStart(refLabels.get(refId),
+                                querySeq.getSeqName(),
+                                refPos.seqid,
+                                new String(kmer),
+                                (reverse ? -(frame + 1) : (frame + 1)),
+                                refPos.modelPos,
+                                false,
+                                null));
+                    }
                 }
-                leaf = kmerTrie.contains(protKmer);
+            }
+
+            frame = ((frame + 1) >= 3) ? 0 : frame + 1;
+        }
+    }
+
+    /**
+     * Searches the six translated frames of the query against a protein trie
+     * in one pass over the read, see SixFrameKmerGenerator.
+     *
+     * The kmers are searched in the same order as translating each strand
+     * would give, since the trie throws on kmers it can't map (ex. with an x)
+     * and the rest of the read is skipped. The reverse frame kmers come out
+     * of the generator last to first so they are held until the read is done.
+     */
+    private static void processTranslatedSeq(Sequence querySeq, List<String> refLabels, FrozenKmerTrie kmerTrie, RecordBuffer hits, int wordSize, int translTable) {
+        String seqString = querySeq.getSeqString();
+        int protWordSize = wordSize / 3;
+        SixFrameKmerGenerator kmerGen = new SixFrameKmerGenerator(seqString, protWordSize, translTable);
+        String[] strands = new String[2];  // the read and its reverse complement, lower case, built on the first hit
+        long[] rev0 = new long[seqString.length()];
+        long[] rev1 = new long[seqString.length()];
+        int[] revPositions = new int[seqString.length()];
+        int[] revFrames = new int[seqString.length()];
+        int numRev = 0;
+
+        while (kmerGen.advance()) {
+            if (kmerGen.isReverse()) {
+                rev0[numRev] = kmerGen.word0();
+                rev1[numRev] = kmerGen.word1();
+                revPositions[numRev] = kmerGen.getNuclPosition();
+                revFrames[numRev] = kmerGen.getFrame();
+                numRev++;
             } else {
-                leaf = kmerTrie.contains(kmer);
+                searchProtKmer(querySeq, refLabels, kmerTrie, hits, wordSize, kmerGen.getProtKmer(), kmerGen.getFrame(), kmerGen.getNuclPosition(), strands);
             }
+        }
 
-            if (leaf != null) {
-                outputLock.lock();
-                try {
-                    for (Integer refId : leaf.getRefSets()) {
-                        for (RefPos refPos : leaf.getModelStarts(refId)) {
-
-                            out.write(new KmerStart(refLabels.get(refId),
-                                    querySeq.getSeqName(),
-                                    refPos.seqid,
-                                    new String(kmer),
-                                    (reverse ? -(frame + 1) : (frame + 1)),
-                                    refPos.modelPos,
-                                    translQuery,
-                                    (translQuery ? new String(protKmer) : null)));
-                        }
-                    }
-                } finally {
-                    outputLock.unlock();
+        for (int index = numRev - 1; index >= 0; index--) {
+            searchProtKmer(querySeq, refLabels, kmerTrie, hits, wordSize, SixFrameKmerGenerator.decode(rev0[index], rev1[index], protWordSize), revFrames[index], revPositions[index], strands);
+        }
+    }
+
+    private static void searchProtKmer(Sequence querySeq, List<String> refLabels, FrozenKmerTrie kmerTrie, RecordBuffer hits, int wordSize, char[] protKmer, int frame, int nuclPos, String[] strands) {
+        TrieLeaf leaf = kmerTrie.contains(protKmer);
+        if (leaf == null) {
+            return;
+        }
+
+        int strand = (frame < 0) ? 1 : 0;
+        if (strands[strand] == null) {
+            strands[strand] = ((frame < 0) ? IUBUtilities.reverseComplement(querySeq.getSeqString()) : querySeq.getSeqString()).toLowerCase();
+        }
+        String kmer = strands[strand].substring(nuclPos, nuclPos + wordSize);
+        String protKmerStr = new String(protKmer).toLowerCase();
+
+        for (Integer refId : leaf.getRefSets()) {
+            for (RefPos refPos : leaf.getModelStarts(refId)) {
+
+                hits.add(new KmerStart(refLabels.get(refId),
+                        querySeq.getSeqName(),
+                        refPos.seqid,
+                        kmer,
+                        frame,
+                        refPos.modelPos,
+                        true,
+                        protKmerStr));
+            }
+        }
+    }
+
+    /**
+     * Builds a trie of the reference files args[startIndex] onwards, each
+     * given as [name=]ref_file, every file is a ref set labeled with its name
+     * (the file name without the extension if no name is given). Protein
+     * references are stored as wordSize / 3 kmers.
+     */
+    public static KmerTrie buildRefTrie(String[] args, int startIndex, int wordSize, boolean alignedSeqs, int maxThreads) throws Exception {
+        SequenceType refSeqType = SeqUtils.guessSequenceType(new File(args[startIndex].contains("=") ? args[startIndex].split("=")[1] : args[startIndex]));
+
+        boolean translQuery = refSeqType == SequenceType.Protein;
+
+        if (translQuery && wordSize % 3 != 0) {
+            throw new Exception("Word size must be a multiple of 3 for nucl ref seqs");
+        }
+
+        int trieWordSize;
+        if (translQuery) {
+            trieWordSize = wordSize / 3;
+        } else {
+            trieWordSize = wordSize;
+        }
+        KmerTrie trieBuilder = new KmerTrie(trieWordSize, translQuery);
+
+        for (int index = startIndex; index < args.length; index++) {
+            String refName;
+            String refFileName = args[index];
+            if (refFileName.contains("=")) {
+                String[] lexemes = refFileName.split("=");
+                refName = lexemes[0];
+                refFileName = lexemes[1];
+            } else {
+                String tmpName = new File(refFileName).getName();
+                if (tmpName.contains(".")) {
+                    refName = tmpName.substring(0, tmpName.lastIndexOf("."));
+                } else {
+                    refName = tmpName;
                 }
             }
 
-            frame = ((frame + 1) >= 3) ? 0 : frame + 1;
+            File refFile = new File(refFileName);
+
+            if (refSeqType != SeqUtils.guessSequenceType(refFile)) {
+                throw new Exception("Reference file " + refFile + " contains " + SeqUtils.guessFileFormat(refFile) + " sequences but expected " + refSeqType + " sequences");
+            }
+
+            SequenceReader seqReader = new SequenceReader(refFile);
+            List<Sequence> refSeqs = new ArrayList();
+            Sequence seq;
+
+            while ((seq = seqReader.readNextSequence()) != null) {
+                if (seq.getSeqName().startsWith("#")) {
+                    continue;
+                }
+                refSeqs.add(seq);
+            }
+            seqReader.close();
+
+            trieBuilder.addSequences(refSeqs, trieBuilder.getRefSetLabels().size(), alignedSeqs, maxThreads);
+
+            trieBuilder.addRefSetLabel(refName);
         }
+
+        return trieBuilder;
     }
 
     public static void main(String[] args) throws Exception {
-        final KmerTrie kmerTrie;
+        final FrozenKmerTrie kmerTrie;
         final SeqReader queryReader;
         final SequenceType querySeqType;
         final File queryFile;
@@ -180,7 +276,6 @@ public class KmerFilter {
 
             queryFile = new File(args[1]);
             wordSize = Integer.valueOf(args[0]);
-            SequenceType refSeqType = null;
 
             querySeqType = SeqUtils.guessSequenceType(queryFile);
             queryReader = new SequenceReader(queryFile);
@@ -189,80 +284,30 @@ public class KmerFilter {
                 throw new Exception("Expected nucl query sequences");
             }
 
-
-            refSeqType = SeqUtils.guessSequenceType(new File(args[2].contains("=") ? args[2].split("=")[1] : args[2]));
-
-            translQuery = refSeqType == SequenceType.Protein;
-
-            if (translQuery && wordSize % 3 != 0) {
-                throw new Exception("Word size must be a multiple of 3 for nucl ref seqs");
-            }
-
-            int trieWordSize;
-            if (translQuery) {
-                trieWordSize = wordSize / 3;
+            KmerTrie trieBuilder;
+            if (args.length == 3 && KmerTrie.isTrieFile(new File(args[2]))) {
+                trieBuilder = KmerTrie.load(new File(args[2]));
+                int trieWordSize = trieBuilder.getWordSize() * (trieBuilder.getTreeSeqType() == SequenceType.Protein ? 3 : 1);
+                if (trieWordSize != wordSize) {
+                    throw new Exception("Trie file " + args[2] + " was built with word size " + trieWordSize + " but word size is " + wordSize);
+                }
             } else {
-                trieWordSize = wordSize;
+                trieBuilder = buildRefTrie(args, 2, wordSize, alignedSeqs, maxThreads);
             }
-            kmerTrie = new KmerTrie(trieWordSize, translQuery);
-
-            for (int index = 2; index < args.length; index++) {
-                String refName;
-                String refFileName = args[index];
-                if (refFileName.contains("=")) {
-                    String[] lexemes = refFileName.split("=");
-                    refName = lexemes[0];
-                    refFileName = lexemes[1];
-                } else {
-                    String tmpName = new File(refFileName).getName();
-                    if (tmpName.contains(".")) {
-                        refName = tmpName.substring(0, tmpName.lastIndexOf("."));
-                    } else {
-                        refName = tmpName;
-                    }
-                }
-
-                File refFile = new File(refFileName);
-
-                if (refSeqType != SeqUtils.guessSequenceType(refFile)) {
-                    throw new Exception("Reference file " + refFile + " contains " + SeqUtils.guessFileFormat(refFile) + " sequences but expected " + refSeqType + " sequences");
-                }
-
-                SequenceReader seqReader = new SequenceReader(refFile);
-                Sequence seq;
-
-                while ((seq = seqReader.readNextSequence()) != null) {
-                    if (seq.getSeqName().startsWith("#")) {
-                        continue;
-                    }
-                    if (alignedSeqs) {
-                        kmerTrie.addModelSequence(seq, refLabels.size());
-                    } else {
-                        kmerTrie.addSequence(seq, refLabels.size());
-                    }
-                }
-                seqReader.close();
 
-                refLabels.add(refName);
-            }
+            translQuery = trieBuilder.getTreeSeqType() == SequenceType.Protein;
+            refLabels.addAll(trieBuilder.getRefSetLabels());
+            kmerTrie = trieBuilder.freeze();
 
         } catch (Exception e) {
-            new HelpFormatter().printHelp("KmerSearch <word_size> <query_file> [name=]<ref_file> ...", options);
+            new HelpFormatter().printHelp("KmerSearch <word_size> <query_file> [name=]<ref_file> ... | <trie_file>", options);
             System.err.println(e.getMessage());
             e.printStackTrace();
             System.exit(1);
             throw new RuntimeException("Stupid jvm");  //While this will never get thrown it is required to make sure javac doesn't get confused about uninitialized variables
         }
 
-        long startTime = System.currentTimeMillis();
-        long seqCount = 0;
-        final int maxTasks = 25000;
-
-        /*
-         * if (args.length == 4) { maxThreads = Integer.valueOf(args[3]); } else {
-         */
-
-        //}
+        final long startTime = System.currentTimeMillis();
 
         System.err.println("Starting kmer mapping at " + new Date());
         System.err.println("*  Number of threads:       " + maxThreads);
@@ -271,53 +316,50 @@ public class KmerFilter {
         System.err.println("*  Kmer length:             " + kmerTrie.getWordSize());
 
         final AtomicInteger processed = new AtomicInteger();
-        final AtomicInteger outstandingTasks = new AtomicInteger();
-
-        ExecutorService service = Executors.newFixedThreadPool(maxThreads);
-
-        Sequence querySeq;
+        final AtomicLong skipped = new AtomicLong();
 
-        while ((querySeq = queryReader.readNextSequence()) != null) {
-            seqCount++;
+        new ReadPipeline<RecordBuffer>(maxThreads).run(queryReader, new ReadPipeline.Worker<RecordBuffer>() {
 
-            String seqString = querySeq.getSeqString();
-
-            if (seqString.length() < 3) {
-                System.err.println("Sequence " + querySeq.getSeqName() + "'s length is less than 3");
-                continue;
-            }
-
-            final Sequence threadSeq = querySeq;
-
-            Runnable r = new Runnable() {
+            public RecordBuffer process(List<Sequence> batch) {
+                RecordBuffer hits = new RecordBuffer();
+                for (Sequence querySeq : batch) {
+                    if (querySeq.getSeqString().length() < 3) {
+                        System.err.println("Sequence " + querySeq.getSeqName() + "'s length is less than 3");
+                        continue;
+                    }
 
-                public void run() {
                     try {
-                        processSeq(threadSeq, refLabels, kmerTrie, out, wordSize, translQuery, translTable, false);
-                        processSeq(threadSeq, refLabels, kmerTrie, out, wordSize, translQuery, translTable, true);
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
+                        if (translQuery) {
+                            processTranslatedSeq(querySeq, refLabels, kmerTrie, hits, wordSize, translTable);
+                        } else {
+                            processSeq(querySeq, refLabels, kmerTrie, hits, wordSize, false);
+                            processSeq(querySeq, refLabels, kmerTrie, hits, wordSize, true);
+                        }
+                    } catch (RuntimeException e) {
+                        if (skipped.incrementAndGet() <= MAX_SKIP_MESSAGES) {
+                            System.err.println("Skipping rest of sequence " + querySeq.getSeqName() + ": " + e);
+                        }
+                        continue;
                     }
 
-                    processed.incrementAndGet();
-                    outstandingTasks.decrementAndGet();
+                    if (processed.incrementAndGet() % 1000000 == 0) {
+                        System.err.println("Processed " + processed + " sequences in " + (System.currentTimeMillis() - startTime) + " ms");
+                    }
                 }
-            };
-
-            outstandingTasks.incrementAndGet();
-            service.submit(r);
-
-            while (outstandingTasks.get() >= maxTasks);
-
-            if ((processed.get() + 1) % 1000000 == 0) {
-                System.err.println("Processed " + processed + " sequences in " + (System.currentTimeMillis() - startTime) + " ms");
+                return hits;
             }
-        }
+        }, new ReadPipeline.Writer<RecordBuffer>() {
 
-        service.shutdown();
-        service.awaitTermination(1, TimeUnit.DAYS);
+            public void write(RecordBuffer hits) throws IOException {
+                out.write(hits);
+            }
+        });
+        queryReader.close();
 
         System.err.println("Finished Processed " + processed + " sequences in " + (System.currentTimeMillis() - startTime) + " ms");
+        if (skipped.get() > 0) {
+            System.err.println("Skipped the rest of " + skipped + " sequences that couldn't be searched (first " + Math.min(skipped.get(), MAX_SKIP_MESSAGES) + " listed above)");
+        }
 
         out.close();
     }
@@ -16,6 +16,8 @@
  */
 package edu.msu.cme.rdp.kmer;
 
+import edu.msu.cme.rdp.kmer.set.BlockedBloomFilter;
+import edu.msu.cme.rdp.kmer.trie.FrozenKmerTrie;
 import edu.msu.cme.rdp.kmer.trie.KmerTrie;
 import edu.msu.cme.rdp.kmer.trie.KmerGenerator;
 import edu.msu.cme.rdp.readseq.SequenceType;
@@ -23,11 +25,11 @@ import edu.msu.cme.rdp.readseq.readers.SequenceReader;
 import edu.msu.cme.rdp.readseq.readers.SeqReader;
 import edu.msu.cme.rdp.readseq.readers.Sequence;
 import edu.msu.cme.rdp.readseq.utils.IUBUtilities;
-import edu.msu.cme.rdp.readseq.utils.ProteinUtils;
 import edu.msu.cme.rdp.readseq.utils.SeqUtils;
 import edu.msu.cme.rdp.readseq.writers.FastaWriter;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import org.apache.commons.cli.CommandLine;
@@ -47,10 +49,27 @@ public class KmerSearch {
         options.addOption("o", "out", true, "Redirect output to file");
         options.addOption("t", "transl-table", true, "Translation table to use when translating nucleotide to protein sequences");
         options.addOption("c", "correct", false, "Assert sequences are in the correct orientation and reading frame");
+        options.addOption("p", "prefilter", true, "Check kmers against a bloom filter of the reference kmers with this false positive rate (ex 0.01) before searching the trie");
+    }
+
+    /**
+     * The three frames of the sequence and its reverse complement translated
+     * with the codon table, in the same order as ProteinUtils.allTranslate
+     */
+    private static List<Sequence> allTranslate(Sequence seq, CodonTable codonTable) {
+        String seqString = seq.getSeqString();
+        String rcSeqString = IUBUtilities.reverseComplement(seqString);
+        List<Sequence> ret = new ArrayList();
+
+        for (int frame = 0; frame < 3; frame++) {
+            ret.add(new Sequence(seq.getSeqName(), "", codonTable.translate(seqString, frame)));
+            ret.add(new Sequence(seq.getSeqName(), "", codonTable.translate(rcSeqString, frame)));
+        }
+        return ret;
     }
 
     public static void main(String[] args) throws IOException {
-        KmerTrie kmerTrie = null;
+        FrozenKmerTrie kmerTrie = null;
         SeqReader queryReader = null;
         SequenceType querySeqType = SequenceType.Unknown;
         FastaWriter out = null;
@@ -90,7 +109,18 @@ public class KmerSearch {
             querySeqType = SeqUtils.guessSequenceType(queryFile);
             queryReader = new SequenceReader(new File(args[2]));
 
-            kmerTrie = KmerTrie.buildTrie(new SequenceReader(trainingFile), wordSize);
+            if (KmerTrie.isTrieFile(trainingFile)) {
+                KmerTrie loaded = KmerTrie.load(trainingFile);
+                if (loaded.getWordSize() != wordSize) {
+                    throw new Exception("Trie file " + trainingFile + " was built with word size " + loaded.getWordSize() + " (in residues of the reference sequences) but word size is " + wordSize);
+                }
+                kmerTrie = loaded.freeze();
+            } else {
+                kmerTrie = KmerTrie.buildTrie(new SequenceReader(trainingFile), wordSize).freeze();
+            }
+            if (cmdLine.hasOption("prefilter")) {
+                kmerTrie.buildPrefilter(Double.valueOf(cmdLine.getOptionValue("prefilter")));
+            }
 
             if (querySeqType == SequenceType.Protein && kmerTrie.getTreeSeqType() == SequenceType.Nucleotide) {
                 throw new Exception("Trie is made of nucleotide sequences but the query sequences are protein");
@@ -107,13 +137,18 @@ public class KmerSearch {
             }
 
         } catch (Exception e) {
-            new HelpFormatter().printHelp("KmerSearch <ref_file> <word_size> <query_file>", options);
+            new HelpFormatter().printHelp("KmerSearch <ref_file | trie_file> <word_size> <query_file>", "", options,
+                    "word_size is in residues of the reference sequences, amino acids for protein references. "
+                    + "Build trie files for protein references with BuildKmerTrie -r <word_size> (or 3 * word_size without -r). "
+                    + "Reference sequences with names starting with # are skipped");
             System.err.println(e.getMessage());
             System.exit(1);
         }
 
+        CodonTable codonTable = CodonTable.getInstance(translTable);
         long startTime = System.currentTimeMillis();
         long seqCount = 0, passedCount = 0;
+        BlockedBloomFilter.Stats prefilterStats = new BlockedBloomFilter.Stats();
 
         Sequence querySeq;
 
@@ -124,13 +159,13 @@ public class KmerSearch {
 
             if (!exhaustive) {
                 if (translQuery) {
-                    testSequences = Arrays.asList(new Sequence(querySeq.getSeqName(), "", ProteinUtils.getInstance().translateToProtein(querySeq.getSeqString(), true, translTable)));
+                    testSequences = Arrays.asList(new Sequence(querySeq.getSeqName(), "", codonTable.translate(querySeq.getSeqString())));
                 } else {
                     testSequences = Arrays.asList(querySeq);
                 }
             } else {
                 if (translQuery) {
-                    testSequences = ProteinUtils.getInstance().allTranslate(querySeq);
+                    testSequences = allTranslate(querySeq, codonTable);
                 } else {
                     testSequences = Arrays.asList(querySeq,
                             new Sequence(querySeq.getSeqName(), "", IUBUtilities.reverseComplement(querySeq.getSeqString())));
@@ -140,7 +175,7 @@ public class KmerSearch {
             boolean passed = false;
             for (Sequence seq : testSequences) {
                 for (char[] kmer : KmerGenerator.getKmers(seq.getSeqString(), wordSize)) {
-                    if (kmerTrie.contains(kmer) != null) {
+                    if (kmerTrie.contains(kmer, 0, prefilterStats) != null) {
                         passed = true;
                         break;
                     }
@@ -157,5 +192,9 @@ public class KmerSearch {
         System.err.println("Passed: " + passedCount);
         System.err.println("Failed: " + (seqCount - passedCount));
         System.err.println("Time: " + (System.currentTimeMillis() - startTime) + " ms");
+        if (kmerTrie.getPrefilter() != null) {
+            kmerTrie.getPrefilter().addStats(prefilterStats);
+            kmerTrie.getPrefilter().printStats();
+        }
     }
 }
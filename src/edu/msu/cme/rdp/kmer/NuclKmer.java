@@ -25,7 +25,7 @@ import java.util.Random;
  *
  * @author wangqion
  */
-public class NuclKmer extends Kmer{
+public class NuclKmer extends Kmer implements Comparable<NuclKmer> {
    
     /**
      *
@@ -95,6 +95,32 @@ public class NuclKmer extends Kmer{
        return shiftLeft(b, ret); 
     }
     
+    /**
+     * Returns a new kmer holding the reverse complement of this kmer
+     */
+    public NuclKmer reverseComplement() {
+        char[] bases = toString().toCharArray();
+        char[] rc = new char[k];
+        for (int index = 0; index < k; index++) {
+            rc[k - index - 1] = intToChar(3 - charToByte(bases[index]));
+        }
+        return new NuclKmer(rc);
+    }
+
+    /**
+     * Orders kmers the same way their strings would sort, the smaller of a
+     * kmer and its reverse complement is the canonical kmer
+     */
+    public int compareTo(NuclKmer o) {
+        if (kmers[0] != o.kmers[0]) {
+            return ((kmers[0] ^ Long.MIN_VALUE) < (o.kmers[0] ^ Long.MIN_VALUE)) ? -1 : 1;
+        }
+        if (kmers[1] != o.kmers[1]) {
+            return ((kmers[1] ^ Long.MIN_VALUE) < (o.kmers[1] ^ Long.MIN_VALUE)) ? -1 : 1;
+        }
+        return 0;
+    }
+
     public byte charToByte(char c) {
         return NuclBinMapping.validateLookup[c];
     }
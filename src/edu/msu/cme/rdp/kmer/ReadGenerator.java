@@ -28,6 +28,7 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 
@@ -65,6 +66,25 @@ public class ReadGenerator {
         return regionMap;
     }
 
+    /**
+     * Samples numReads reads of readSize bases from random positions in seq,
+     * reads are named the same way as the ones main writes out
+     */
+    public static List<Sequence> generateReads(Sequence seq, int readSize, int numReads, Random rand) {
+        String seqString = seq.getSeqString();
+        if (seqString.length() <= readSize) {
+            throw new IllegalArgumentException(seq.getSeqName() + " is too short to generate reads of length " + readSize);
+        }
+
+        List<Sequence> ret = new ArrayList();
+        for (int read = 0; read < numReads; read++) {
+            int readStart = rand.nextInt(seqString.length() - readSize);
+            ret.add(new Sequence(seq.getSeqName() + "_read_" + read, "", seqString.substring(readStart, readStart + readSize)));
+        }
+
+        return ret;
+    }
+
     public static void main(String[] args) throws Exception {
         if (args.length < 3) {
             System.err.println("USAGE: ReadGenerator <read_size> <coverage> <region_mapping> infiles...");
@@ -30,18 +30,30 @@ public class TrieInfo {
 
     public static void main(String[] args) throws Exception {
         if(args.length != 2 && args.length != 3) {
-            System.err.println("USAGE: TrieInfo <ref_file> <word_size> [word histogram]");
+            System.err.println("USAGE: TrieInfo <ref_file | trie_file> <word_size> [word histogram]");
             System.exit(1);
         }
 
         int k = Integer.valueOf(args[1]);
         System.err.println("Word size is " + k);
 
-        System.err.println("Building trie...");
+        File refFile = new File(args[0]);
+        boolean trieFile = KmerTrie.isTrieFile(refFile);
+        KmerTrie kmerTrie;
         long startTime = System.currentTimeMillis();
-        KmerTrie kmerTrie = KmerTrie.buildTrie(new SequenceReader(new File(args[0])), k);
+        if (trieFile) {
+            System.err.println("Loading trie...");
+            kmerTrie = KmerTrie.load(refFile);
+            if (kmerTrie.getWordSize() != k) {
+                System.err.println("Trie file was built with word size " + kmerTrie.getWordSize());
+                System.exit(1);
+            }
+        } else {
+            System.err.println("Building trie...");
+            kmerTrie = KmerTrie.buildTrie(new SequenceReader(refFile), k);
+        }
         long stop = System.currentTimeMillis();
-        System.err.println("Trie built in " + (System.currentTimeMillis() - startTime) + " ms");
+        System.err.println("Trie " + (trieFile ? "loaded" : "built") + " in " + (stop - startTime) + " ms");
 
         System.err.println("Trie contains " + kmerTrie.getTreeSeqType() + " kmers");
         System.err.println("Trie contains " + kmerTrie.countNodes() + " nodes");
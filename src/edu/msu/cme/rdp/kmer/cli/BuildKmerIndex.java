@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.kmer.cli;
+
+import edu.msu.cme.rdp.kmer.Kmer;
+import edu.msu.cme.rdp.kmer.set.MappedKmerIndex;
+import edu.msu.cme.rdp.readseq.SequenceType;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.PosixParser;
+
+/**
+ * Writes the reference kmers used by FastKmerFilter to a file that can be
+ * memory mapped with the --index option, so the references only have to be
+ * processed once
+ *
+ * @author fishjord
+ */
+public class BuildKmerIndex {
+
+    private static final Options options = new Options();
+
+    static {
+        options.addOption("a", "aligned", false, "Build index from aligned sequences");
+    }
+
+    public static void main(String[] args) throws Exception {
+        final MappedKmerIndex.Builder builder;
+        final List<String> refLabels = new ArrayList();
+        final File indexFile;
+        final int trieWordSize;
+
+        try {
+            CommandLine cmdLine = new PosixParser().parse(options, args);
+            args = cmdLine.getArgs();
+
+            if (args.length < 3) {
+                throw new Exception("Unexpected number of arguments");
+            }
+
+            int wordSize = Integer.valueOf(args[0]);
+            indexFile = new File(args[1]);
+            SequenceType refSeqType = FastKmerFilter.guessRefSeqType(args[2]);
+            boolean translQuery = refSeqType == SequenceType.Protein;
+
+            if (translQuery && wordSize % 3 != 0) {
+                throw new Exception("Word size must be a multiple of 3 for nucl ref seqs");
+            }
+
+            trieWordSize = translQuery ? wordSize / 3 : wordSize;
+            builder = new MappedKmerIndex.Builder(trieWordSize, translQuery);
+
+            long startTime = System.currentTimeMillis();
+            FastKmerFilter.loadReferences(args, 2, refSeqType, trieWordSize, cmdLine.hasOption("aligned"), refLabels, new FastKmerFilter.RefKmerHandler() {
+
+                public void addKmer(Kmer kmer, boolean reverse, int refFileIndex, int modelPos, String seqid) {
+                    builder.add(kmer.getLongKmers(), reverse, refFileIndex, modelPos, seqid);
+                }
+            });
+            System.err.println("References loaded in " + (System.currentTimeMillis() - startTime) + " ms");
+        } catch (Exception e) {
+            new HelpFormatter().printHelp("BuildKmerIndex <kmerSize> <index_file> [name=]<ref_file> ...", options);
+            e.printStackTrace();
+            System.exit(1);
+            throw new RuntimeException("Stupid jvm");  //While this will never get thrown it is required to make sure javac doesn't get confused about uninitialized variables
+        }
+
+        for (String label : refLabels) {
+            builder.addRefLabel(label);
+        }
+
+        long startTime = System.currentTimeMillis();
+        builder.write(indexFile);
+        System.err.println("Wrote " + trieWordSize + "-mer index of " + refLabels + " to " + indexFile + " in " + (System.currentTimeMillis() - startTime) + " ms");
+    }
+}
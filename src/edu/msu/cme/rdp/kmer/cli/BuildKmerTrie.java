@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.kmer.cli;
+
+import edu.msu.cme.rdp.kmer.KmerFilter;
+import edu.msu.cme.rdp.kmer.trie.KmerTrie;
+import edu.msu.cme.rdp.readseq.SequenceType;
+import edu.msu.cme.rdp.readseq.utils.SeqUtils;
+import java.io.File;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.PosixParser;
+
+/**
+ * Writes the reference trie used by KmerFilter and KmerSearch to a file that
+ * can be given to them in place of the reference sequences, so the references
+ * only have to be processed once
+ *
+ * @author fishjord
+ */
+public class BuildKmerTrie {
+
+    private static final Options options = new Options();
+    private static final String USAGE_FOOTER = "Sequences with names starting with # are skipped. "
+            + "For protein references word_size is in nucleotides and must be a multiple of 3, "
+            + "the same as KmerFilter, unless --ref_units is given. "
+            + "KmerSearch takes the word size in amino acids, so a trie for KmerSearch <trie_file> 10 is built with 30 or with -r 10";
+
+    static {
+        options.addOption("a", "aligned", false, "Build trie from aligned sequences");
+        options.addOption("t", "threads", true, "#Threads to use");
+        options.addOption("r", "ref_units", false, "Word size is in residues of the reference sequences (amino acids for protein references) as KmerSearch takes it, instead of nucleotides as KmerFilter takes it");
+    }
+
+    public static void main(String[] args) throws Exception {
+        final KmerTrie trie;
+        final File trieFile;
+
+        try {
+            CommandLine cmdLine = new PosixParser().parse(options, args);
+            args = cmdLine.getArgs();
+
+            if (args.length < 3) {
+                throw new Exception("Unexpected number of arguments");
+            }
+
+            int maxThreads = Runtime.getRuntime().availableProcessors();
+            if (cmdLine.hasOption("threads")) {
+                maxThreads = Integer.valueOf(cmdLine.getOptionValue("threads"));
+            }
+
+            int wordSize = Integer.valueOf(args[0]);
+            trieFile = new File(args[1]);
+
+            if (cmdLine.hasOption("ref_units")) {
+                File firstRef = new File(args[2].contains("=") ? args[2].split("=")[1] : args[2]);
+                if (SeqUtils.guessSequenceType(firstRef) == SequenceType.Protein) {
+                    wordSize *= 3;
+                }
+            }
+
+            long startTime = System.currentTimeMillis();
+            trie = KmerFilter.buildRefTrie(args, 2, wordSize, cmdLine.hasOption("aligned"), maxThreads);
+            System.err.println("References loaded in " + (System.currentTimeMillis() - startTime) + " ms");
+        } catch (Exception e) {
+            new HelpFormatter().printHelp("BuildKmerTrie <word_size> <trie_file> [name=]<ref_file> ...", "", options, USAGE_FOOTER);
+            e.printStackTrace();
+            System.exit(1);
+            throw new RuntimeException("Stupid jvm");  //While this will never get thrown it is required to make sure javac doesn't get confused about uninitialized variables
+        }
+
+        long startTime = System.currentTimeMillis();
+        trie.save(trieFile);
+        System.err.println("Wrote " + trie.getWordSize() + "-mer trie of " + trie.getRefSetLabels() + " to " + trieFile + " in " + (System.currentTimeMillis() - startTime) + " ms");
+    }
+}
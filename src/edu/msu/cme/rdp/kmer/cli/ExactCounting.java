@@ -2,68 +2,313 @@ package edu.msu.cme.rdp.kmer.cli;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import edu.msu.cme.rdp.readseq.readers.*;
+import edu.msu.cme.rdp.kmer.Kmer;
+import edu.msu.cme.rdp.kmer.io.BinaryKmerCountWriter;
+import edu.msu.cme.rdp.kmer.io.KmerCountWriter;
+import edu.msu.cme.rdp.kmer.io.MappedSeqReader;
+import edu.msu.cme.rdp.kmer.io.ReadRecord;
 import edu.msu.cme.rdp.kmer.set.*;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.PosixParser;
 
 public class ExactCounting {
-    public static void main(String[] args) throws Exception {
-	if(args.length != 2) {
-	    System.err.println("USAGE: ExactCounting <seq_file> <k>");
-	    System.exit(1);
+    private static final Options options = new Options();
+    private static final int MAX_BUCKETS = 1024;
+
+    static {
+	options.addOption("t", "threads", true, "#Threads to count with (default 1)");
+	options.addOption("m", "memory", true, "Count out of core, spilling kmers to temporary bucket files sized so the count tables fit in this many MB");
+	options.addOption("d", "tmp_dir", true, "Directory for the out of core bucket files (default system temp directory)");
+	options.addOption("b", "binary_out", true, "Also write the counts as fixed size (packed kmer, count) records to this file");
+    }
+
+    /**
+     * Where a worker thread sends the kmers it generates
+     */
+    private static interface KmerSink {
+	void add(long k0, long k1) throws IOException;
+    }
+
+    private static void generate(NuclKmerGenerator kmerGen, KmerSink sink) throws IOException {
+	while(kmerGen.advance()) {
+	    sink.add(kmerGen.word0(), kmerGen.word1());
 	}
+    }
 
-	File inFile = new File(args[0]);
-	File outFile = new File(args[0] + "_kmer_count.txt");
-	int k = Integer.valueOf(args[1]);
+    /**
+     * Runs every kmer in the file through the calling thread's sink
+     *
+     * @return the number of sequences read
+     */
+    private static long generate(File inFile, final int k, int threads, final ThreadLocal<KmerSink> sinks) throws IOException, InterruptedException {
+	// the kmers are the only output, nothing is handed back to the writer
+	ReadPipeline<Object> pipeline = new ReadPipeline<Object>(threads);
+	ReadPipeline.Writer<Object> writer = new ReadPipeline.Writer<Object>() {
+	    public void write(Object result) {
+	    }
+	};
 
-	KmerSet<Integer> kmers = new KmerSet();
-	NuclKmerGenerator kmerGen = null;
-	
-	SeqReader reader = new SequenceReader(inFile);
-	Sequence seq;
-	long[] kmer;
-	Integer cnt;
+	long numSeqs;
+	if(MappedSeqReader.isSupported(inFile)) {
+	    MappedSeqReader reader = new MappedSeqReader(inFile);
+	    numSeqs = pipeline.runMapped(reader, new ReadPipeline.RecordWorker<Object>() {
+		public Object process(List<ReadRecord> batch) throws IOException {
+		    for(ReadRecord record : batch) {
+			if(record.getSeqLength() >= k) {
+			    generate(new NuclKmerGenerator(record.getBuffer(), record.getSeqStart(), record.getSeqEnd(), k, false), sinks.get());
+			}
+		    }
+		    return null;
+		}
+	    }, writer);
+	    reader.close();
+	} else {
+	    SeqReader reader = new SequenceReader(inFile);
+	    numSeqs = pipeline.run(reader, new ReadPipeline.Worker<Object>() {
+		public Object process(List<Sequence> batch) throws IOException {
+		    for(Sequence seq : batch) {
+			if(seq.getSeqString().length() >= k) {
+			    generate(new NuclKmerGenerator(seq.getSeqString(), k), sinks.get());
+			}
+		    }
+		    return null;
+		}
+	    }, writer);
+	    reader.close();
+	}
 
-	long startTime = System.currentTimeMillis();
-	while((seq = reader.readNextSequence()) != null) {
-	    kmerGen = new NuclKmerGenerator(seq.getSeqString(), k);
-	    while(kmerGen.hasNext()) {
-		kmer = kmerGen.next().getLongKmers();
-
-		cnt = kmers.get(kmer);
-		if(cnt == null) {
-		    cnt = 0;
+	return numSeqs;
+    }
+
+    /**
+     * The count outputs and occurrence histogram, counts are streamed straight
+     * off the count table slots
+     */
+    private static class CountOutput implements CountingKmerSet.CountVisitor {
+	private final KmerCountWriter out;
+	private final BinaryKmerCountWriter binaryOut;
+	private final Map<Integer, Integer> occurHist = new HashMap();
+	private IOException error;
+
+	CountOutput(KmerCountWriter out, BinaryKmerCountWriter binaryOut) {
+	    this.out = out;
+	    this.binaryOut = binaryOut;
+	}
+
+	public void visit(long k0, long k1, int cnt) {
+	    if(error != null) {
+		return;
+	    }
+
+	    try {
+		out.write(k0, k1, cnt);
+		if(binaryOut != null) {
+		    binaryOut.write(k0, k1, cnt);
 		}
+	    } catch(IOException e) {
+		error = e;
+	    }
+
+	    Integer occur = occurHist.get(cnt);
+	    occurHist.put(cnt, (occur == null) ? 1 : occur + 1);
+	}
+
+	synchronized void write(CountingKmerSet kmers) throws IOException {
+	    kmers.forEach(this);
+	    if(error != null) {
+		throw error;
+	    }
+	}
 
-		kmers.add(kmer, cnt + 1);
+	void close() throws IOException {
+	    out.close();
+	    if(binaryOut != null) {
+		binaryOut.close();
 	    }
 	}
+    }
+
+    private static long countInMemory(File inFile, int k, int keyLength, int threads, CountOutput out) throws IOException, InterruptedException {
+	final CountingKmerSet kmers = new CountingKmerSet(keyLength, threads * 16);
+	final KmerSink sink = new KmerSink() {
+	    public void add(long k0, long k1) {
+		kmers.increment(k0, k1);
+	    }
+	};
+
+	long startTime = System.currentTimeMillis();
+	long numSeqs = generate(inFile, k, threads, new ThreadLocal<KmerSink>() {
+	    @Override
+	    protected KmerSink initialValue() {
+		return sink;
+	    }
+	});
 	System.err.println("Kmers loaded in " + (System.currentTimeMillis() - startTime) / 1000.0 + "s");
 	kmers.printStats();
 
-	if(kmerGen == null) {
-	    System.err.println("No sequences in file");
-	    System.exit(1);
+	out.write(kmers);
+	return numSeqs;
+    }
+
+    /**
+     * Number of buckets needed for a thread's count table to stay in its
+     * share of the budget, assuming at worst every base starts a distinct
+     * kmer and the table has just doubled (and still holds its old arrays)
+     */
+    static int numBuckets(long inputSize, int keyLength, int threads, long memoryBytes) {
+	long bytesPerKmer = (8 * keyLength + 4) * 4;
+	long perThread = Math.max(memoryBytes / threads, 1);
+	long buckets = (inputSize * bytesPerKmer + perThread - 1) / perThread;
+	return (int) Math.max(1, Math.min(buckets, MAX_BUCKETS));
+    }
+
+    private static long countOutOfCore(File inFile, final int k, final int keyLength, int threads, long memoryBytes, File tmpDir, final CountOutput out) throws IOException, InterruptedException {
+	final KmerBucketFiles buckets = new KmerBucketFiles(tmpDir, keyLength, numBuckets(inFile.length(), keyLength, threads, memoryBytes));
+	System.err.println("Spilling kmers to " + buckets.getNumBuckets() + " buckets");
+
+	try {
+	    final List<KmerBucketFiles.BucketWriter> writers = Collections.synchronizedList(new ArrayList());
+	    long startTime = System.currentTimeMillis();
+	    long numSeqs = generate(inFile, k, threads, new ThreadLocal<KmerSink>() {
+		@Override
+		protected KmerSink initialValue() {
+		    final KmerBucketFiles.BucketWriter writer = buckets.newWriter();
+		    writers.add(writer);
+		    return new KmerSink() {
+			public void add(long k0, long k1) throws IOException {
+			    writer.add(k0, k1);
+			}
+		    };
+		}
+	    });
+	    for(KmerBucketFiles.BucketWriter writer : writers) {
+		writer.flush();
+	    }
+	    System.err.println("Kmers bucketed in " + (System.currentTimeMillis() - startTime) / 1000.0 + "s");
+
+	    // each bucket holds every copy of its kmers so they're counted independently
+	    startTime = System.currentTimeMillis();
+	    ExecutorService service = Executors.newFixedThreadPool(threads);
+	    List<Future<Object>> futures = new ArrayList();
+	    for(int index = 0; index < buckets.getNumBuckets(); index++) {
+		final int bucket = index;
+		futures.add(service.submit(new Callable<Object>() {
+		    public Object call() throws IOException {
+			final CountingKmerSet kmers = new CountingKmerSet(keyLength, 1);
+			buckets.readBucket(bucket, new KmerBucketFiles.KmerVisitor() {
+			    public void visit(long k0, long k1) {
+				kmers.increment(k0, k1);
+			    }
+			});
+			buckets.delete(bucket);
+
+			out.write(kmers);
+			return null;
+		    }
+		}));
+	    }
+
+	    try {
+		for(Future<Object> future : futures) {
+		    future.get();
+		}
+	    } catch(ExecutionException e) {
+		Throwable t = e.getCause();
+		if(t instanceof IOException) {
+		    throw (IOException) t;
+		} else if(t instanceof RuntimeException) {
+		    throw (RuntimeException) t;
+		} else if(t instanceof Error) {
+		    throw (Error) t;
+		}
+		throw new RuntimeException(t);
+	    } finally {
+		service.shutdownNow();
+	    }
+	    System.err.println("Buckets counted in " + (System.currentTimeMillis() - startTime) / 1000.0 + "s");
+
+	    return numSeqs;
+	} finally {
+	    buckets.delete();
 	}
+    }
 
-	Map<Integer, Integer> occurHist = new HashMap();
-	PrintStream out = new PrintStream(outFile);
-	for(long[] thisKmer : kmers.getKeys()) {
-	    cnt = kmers.get(thisKmer);
-	    out.println(thisKmer.toString() + "\t" + cnt);
+    public static void main(String[] args) throws Exception {
+	int k;
+	int threads = 1;
+	long memoryBytes = -1;
+	File tmpDir = null;
+	File binaryOutFile = null;
+	File inFile;
 
-	    if(!occurHist.containsKey(cnt)) {
-		occurHist.put(cnt, 0);
+	try {
+	    CommandLine line = new PosixParser().parse(options, args);
+	    if(line.hasOption("threads")) {
+		threads = Integer.valueOf(line.getOptionValue("threads"));
+		if(threads < 1) {
+		    throw new Exception("Number of threads must be positive");
+		}
+	    }
+	    if(line.hasOption("memory")) {
+		memoryBytes = Long.valueOf(line.getOptionValue("memory")) << 20;
+		if(memoryBytes <= 0) {
+		    throw new Exception("Memory budget must be positive");
+		}
+	    }
+	    if(line.hasOption("tmp_dir")) {
+		tmpDir = new File(line.getOptionValue("tmp_dir"));
+		if(!tmpDir.isDirectory()) {
+		    throw new Exception(tmpDir + " is not a directory");
+		}
+	    }
+
+	    if(line.hasOption("binary_out")) {
+		binaryOutFile = new File(line.getOptionValue("binary_out"));
 	    }
 
-	    occurHist.put(cnt, occurHist.get(cnt) + 1);
+	    args = line.getArgs();
+	    if(args.length != 2) {
+		throw new Exception("Unexpected number of arguments");
+	    }
+
+	    inFile = new File(args[0]);
+	    k = Integer.valueOf(args[1]);
+	    if(k > Kmer.max_nucl_kmer_size) {
+		throw new Exception("k should be less than " + Kmer.max_nucl_kmer_size);
+	    }
+	} catch(Exception e) {
+	    new HelpFormatter().printHelp("ExactCounting [options] <seq_file> <k>", options);
+	    System.err.println("Error: " + e.getMessage());
+	    System.exit(1);
+	    return;
+	}
+
+	File outFile = new File(args[0] + "_kmer_count.txt");
+	int keyLength = (k > Kmer.max_nucl_kmer_size / 2) ? 2 : 1;
+	CountOutput out = new CountOutput(new KmerCountWriter(outFile, k), (binaryOutFile == null) ? null : new BinaryKmerCountWriter(binaryOutFile, k, keyLength));
+
+	long numSeqs;
+	if(memoryBytes > 0) {
+	    numSeqs = countOutOfCore(inFile, k, keyLength, threads, memoryBytes, tmpDir, out);
+	} else {
+	    numSeqs = countInMemory(inFile, k, keyLength, threads, out);
+	}
+	out.close();
+
+	if(numSeqs == 0) {
+	    System.err.println("No sequences in file");
+	    System.exit(1);
 	}
 
-	List<Integer> counts = new ArrayList(occurHist.keySet());
+	List<Integer> counts = new ArrayList(out.occurHist.keySet());
 	Collections.sort(counts);
 
 	for(int c : counts) {
-	    System.out.println(c + "\t" + occurHist.get(c));
+	    System.out.println(c + "\t" + out.occurHist.get(c));
 	}
     }
 }
@@ -19,23 +19,28 @@ package edu.msu.cme.rdp.kmer.cli;
 import edu.msu.cme.rdp.kmer.Kmer;
 import edu.msu.cme.rdp.kmer.io.KmerStart;
 import edu.msu.cme.rdp.kmer.io.KmerStartsWriter;
+import edu.msu.cme.rdp.kmer.io.KmerStartsWriter.RecordBuffer;
+import edu.msu.cme.rdp.kmer.io.MappedSeqReader;
+import edu.msu.cme.rdp.kmer.io.ReadRecord;
+import edu.msu.cme.rdp.kmer.set.BlockedBloomFilter;
 import edu.msu.cme.rdp.kmer.set.KmerGenerator;
+import edu.msu.cme.rdp.kmer.set.KmerBatch;
 import edu.msu.cme.rdp.kmer.set.KmerSet;
+import edu.msu.cme.rdp.kmer.set.MappedKmerIndex;
+import edu.msu.cme.rdp.kmer.set.PartitionedKmerSet;
 import edu.msu.cme.rdp.kmer.set.NuclKmerGenerator;
 import edu.msu.cme.rdp.kmer.set.ProtKmerGenerator;
+import edu.msu.cme.rdp.kmer.set.SixFrameKmerGenerator;
+import edu.msu.cme.rdp.kmer.set.SuperKmerGenerator;
 import edu.msu.cme.rdp.readseq.SequenceType;
 import edu.msu.cme.rdp.readseq.readers.SequenceReader;
 import edu.msu.cme.rdp.readseq.readers.SeqReader;
 import edu.msu.cme.rdp.readseq.utils.IUBUtilities;
-import edu.msu.cme.rdp.readseq.utils.ProteinUtils;
 import edu.msu.cme.rdp.readseq.utils.SeqUtils;
 import java.io.File;
 import java.util.Date;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.ReentrantLock;
 import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.PosixParser;
 import org.apache.commons.cli.Options;
@@ -43,7 +48,6 @@ import edu.msu.cme.rdp.readseq.readers.Sequence;
 import java.io.IOException;
 import java.util.*;
 import org.apache.commons.cli.CommandLine;
-import java.util.concurrent.TimeUnit;
 
 /**
  *
@@ -51,11 +55,12 @@ import java.util.concurrent.TimeUnit;
  */
 public class FastKmerFilter {
 
-    private static class RefKmer {
+    static class RefKmer {
 
         int modelPos;
         int refFileIndex;
         String refSeqid;
+        boolean reverse;  // the reference kmer is the reverse complement of the canonical kmer
 
         @Override
         public boolean equals(Object obj) {
@@ -72,6 +77,9 @@ public class FastKmerFilter {
             if (this.refFileIndex != other.refFileIndex) {
                 return false;
             }
+            if (this.reverse != other.reverse) {
+                return false;
+            }
             return true;
         }
 
@@ -80,94 +88,567 @@ public class FastKmerFilter {
             int hash = 3;
             hash = 37 * hash + this.modelPos;
             hash = 37 * hash + this.refFileIndex;
+            hash = 37 * hash + (this.reverse ? 1 : 0);
             return hash;
         }
     }
+    /**
+     * Lookup from a packed kmer to the reference kmers it matches
+     */
+    static interface RefKmerIndex {
+
+        Collection<RefKmer> get(long k0, long k1);
+
+        /**
+         * Same as get(k0, k1) for a kmer whose minimizer is known, faster for
+         * indexes partitioned by minimizer
+         */
+        Collection<RefKmer> get(long k0, long k1, long minimizer);
+
+        /**
+         * Looks up every kmer in the batch together, see KmerBatch
+         */
+        void getAll(KmerBatch<Collection<RefKmer>> batch);
+
+        /**
+         * Same as getAll(batch) for a batch of kmers with the same minimizer
+         */
+        void getAll(KmerBatch<Collection<RefKmer>> batch, long minimizer);
+
+        long size();
+
+        int getKeyLength();
+
+        /**
+         * Length of the minimizers the index is partitioned by, 0 if it isn't
+         */
+        int getMinimizerLength();
+
+        void forEachKmer(KmerSet.KeyVisitor visitor);
+    }
+
+    /**
+     * Checks the prefilter before the index, the stats are for one batch of
+     * reads and are added to the filter's totals by finish()
+     */
+    static class PrefilteredIndex implements RefKmerIndex {
+
+        private final RefKmerIndex index;
+        private final BlockedBloomFilter filter;
+        private final BlockedBloomFilter.Stats stats = new BlockedBloomFilter.Stats();
+        private KmerBatch<Collection<RefKmer>> passed;
+        private int[] passedIndexes;
+
+        PrefilteredIndex(RefKmerIndex index, BlockedBloomFilter filter) {
+            this.index = index;
+            this.filter = filter;
+        }
+
+        public Collection<RefKmer> get(long k0, long k1) {
+            if (!mightContain(k0, k1)) {
+                return null;
+            }
+            return checkHit(index.get(k0, k1));
+        }
+
+        public Collection<RefKmer> get(long k0, long k1, long minimizer) {
+            if (!mightContain(k0, k1)) {
+                return null;
+            }
+            return checkHit(index.get(k0, k1, minimizer));
+        }
+
+        public void getAll(KmerBatch<Collection<RefKmer>> batch) {
+            getAll(batch, 0, false);
+        }
+
+        public void getAll(KmerBatch<Collection<RefKmer>> batch, long minimizer) {
+            getAll(batch, minimizer, true);
+        }
+
+        /**
+         * Only the kmers that pass the filter are looked up in the index
+         */
+        private void getAll(KmerBatch<Collection<RefKmer>> batch, long minimizer, boolean hasMinimizer) {
+            if (passed == null || passed.capacity() < batch.capacity()) {
+                passed = new KmerBatch<Collection<RefKmer>>(batch.capacity());
+                passedIndexes = new int[batch.capacity()];
+            }
+
+            passed.clear();
+            for (int kmer = 0; kmer < batch.size(); kmer++) {
+                batch.set(kmer, null);
+                if (mightContain(batch.getWord0(kmer), batch.getWord1(kmer))) {
+                    passedIndexes[passed.add(batch.getWord0(kmer), batch.getWord1(kmer))] = kmer;
+                }
+            }
+
+            if (passed.size() == 0) {
+                return;
+            }
+
+            if (hasMinimizer) {
+                index.getAll(passed, minimizer);
+            } else {
+                index.getAll(passed);
+            }
+            for (int kmer = 0; kmer < passed.size(); kmer++) {
+                batch.set(passedIndexes[kmer], checkHit(passed.get(kmer)));
+            }
+        }
+
+        private boolean mightContain(long k0, long k1) {
+            if (index.getKeyLength() == 1) {
+                k1 = 0;
+            }
+            return filter.mightContain(BlockedBloomFilter.hash(k0, k1), stats);
+        }
+
+        private Collection<RefKmer> checkHit(Collection<RefKmer> ret) {
+            if (ret == null) {
+                stats.falsePositive();
+            }
+            return ret;
+        }
+
+        public long size() {
+            return index.size();
+        }
+
+        public int getKeyLength() {
+            return index.getKeyLength();
+        }
+
+        public int getMinimizerLength() {
+            return index.getMinimizerLength();
+        }
+
+        public void forEachKmer(KmerSet.KeyVisitor visitor) {
+            index.forEachKmer(visitor);
+        }
+
+        void finish() {
+            filter.addStats(stats);
+        }
+    }
+
+    /**
+     * Builds a bloom filter holding every kmer in the index
+     */
+    static BlockedBloomFilter buildPrefilter(RefKmerIndex index, double fpRate) {
+        final BlockedBloomFilter filter = new BlockedBloomFilter(index.size(), fpRate);
+        index.forEachKmer(new KmerSet.KeyVisitor() {
+
+            public void visit(long k0, long k1) {
+                filter.add(k0, k1);
+            }
+        });
+        return filter;
+    }
+
+    /**
+     * Receives every kmer generated from the reference files, nucleotide
+     * kmers are canonical and reverse is set if the reference kmer is the
+     * reverse complement of the kmer passed
+     */
+    static interface RefKmerHandler {
+
+        void addKmer(Kmer kmer, boolean reverse, int refFileIndex, int modelPos, String seqid);
+    }
     private static final Options options = new Options();
+    // enough partitions that each one of a large reference set stays small
+    private static final int MINIMIZER_PARTITIONS = 4096;
 
     static {
         options.addOption("o", "out", true, "Redirect output to file");
         options.addOption("a", "aligned", false, "Build trie from aligned sequences");
         options.addOption("T", "transl-table", true, "Translation table to use when translating nucleotide to protein sequences");
         options.addOption("t", "threads", true, "#Threads to use");
+        options.addOption("i", "index", true, "Use a kmer index built with build_kmer_index in place of the reference files");
+        options.addOption("M", "minimizer", true, "Partition the in memory nucleotide index by minimizers of this length (ex 11) and look read kmers up a super kmer at a time");
+        options.addOption("p", "prefilter", true, "Check read kmers against a bloom filter of the reference kmers with this false positive rate (ex 0.01) before searching the index");
     }
-    private static final ReentrantLock outputLock = new ReentrantLock();
+    /**
+     * Searches the six translated frames of the query against protein
+     * references in a single pass over the read, hits are added to the hits
+     * list. The nucleotide kmer strings are only built for reads with a hit.
+     */
+    static void processProtSeq(Sequence querySeq, List<String> refLabels, RefKmerIndex kmerSet, RecordBuffer hits, int wordSize, int translTable) {
+        String seqString = querySeq.getSeqString();
+        int protWordSize = wordSize / 3;
+        SixFrameKmerGenerator kmerGen = new SixFrameKmerGenerator(seqString, protWordSize, translTable);
+        KmerBatch<Collection<RefKmer>> batch = new KmerBatch<Collection<RefKmer>>();
+        int[] positions = new int[batch.capacity()];
+        int[] frames = new int[batch.capacity()];
+        String[] strands = null;  // the read and its reverse complement, lower case
+        Collection<RefKmer> leaves;
+        boolean more = true;
+
+        while (more) {
+            batch.clear();
+            while (!batch.isFull() && (more = kmerGen.advance())) {
+                int index = batch.add(kmerGen.word0(), kmerGen.word1());
+                positions[index] = kmerGen.getNuclPosition();
+                frames[index] = kmerGen.getFrame();
+            }
 
-    private static void processSeq(Sequence querySeq, List<String> refLabels, KmerSet<Set<RefKmer>> kmerSet, KmerStartsWriter out, int wordSize, boolean translQuery, int translTable, boolean reverse) throws IOException {
+            kmerSet.getAll(batch);
+            for (int index = 0; index < batch.size(); index++) {
+                leaves = batch.get(index);
+                if (leaves == null) {
+                    continue;
+                }
 
-        String seqString = querySeq.getSeqString();
+                if (strands == null) {
+                    strands = new String[]{seqString.toLowerCase(), IUBUtilities.reverseComplement(seqString).toLowerCase()};
+                }
+
+                String nuclKmer = strands[(frames[index] < 0) ? 1 : 0].substring(positions[index], positions[index] + wordSize);
+                String protKmer = new String(SixFrameKmerGenerator.decode(batch.getWord0(index), batch.getWord1(index), protWordSize));
+                for (RefKmer refKmer : leaves) {
+                    hits.add(new KmerStart(refLabels.get(refKmer.refFileIndex),
+                            querySeq.getSeqName(),
+                            refKmer.refSeqid,
+                            nuclKmer,
+                            frames[index],
+                            refKmer.modelPos,
+                            true,
+                            protKmer));
+                }
+            }
+        }
+    }
 
-        if (reverse) {
-            seqString = IUBUtilities.reverseComplement(seqString);
+    /**
+     * Turns the reference kmers matched by one query kmer in to hits, the
+     * read name and kmer strings are only built for reads with a hit
+     */
+    private static class NuclHits {
+
+        private final ReadRecord querySeq;
+        private final List<String> refLabels;
+        private final RecordBuffer hits;
+        private final int wordSize;
+        private List<char[]> nuclKmers = null;
+        private String queryId = null;
+
+        NuclHits(ReadRecord querySeq, List<String> refLabels, RecordBuffer hits, int wordSize) {
+            this.querySeq = querySeq;
+            this.refLabels = refLabels;
+            this.hits = hits;
+            this.wordSize = wordSize;
         }
 
-        KmerGenerator[] kmerGens;
+        void add(Collection<RefKmer> leaves, int position, boolean isReverse, boolean isPalindrome) {
+            if (nuclKmers == null) {
+                nuclKmers = edu.msu.cme.rdp.kmer.trie.KmerGenerator.getKmers(querySeq.getSeqString(), wordSize);
+                queryId = querySeq.getName();
+            }
 
-        if (translQuery) {
-            kmerGens = new KmerGenerator[3];
-            for (int i = 0; i < 3; i++) {
-                String frameSeq = seqString.substring(i);
-                frameSeq = ProteinUtils.getInstance().translateToProtein(frameSeq, true, translTable);
+            String nuclKmer = new String(nuclKmers.get(position - 1));
+            String rcKmer = null;
+            for (RefKmer refKmer : leaves) {
+                boolean reverse = isReverse != refKmer.reverse;
+
+                if (!reverse || isPalindrome) {
+                    hits.add(new KmerStart(refLabels.get(refKmer.refFileIndex),
+                            queryId,
+                            refKmer.refSeqid,
+                            nuclKmer,
+                            1,
+                            refKmer.modelPos,
+                            false,
+                            null));
+                }
 
-                kmerGens[i] = new ProtKmerGenerator(frameSeq, wordSize / 3);
+                if (reverse || isPalindrome) {
+                    if (rcKmer == null) {
+                        rcKmer = IUBUtilities.reverseComplement(nuclKmer);
+                    }
+                    hits.add(new KmerStart(refLabels.get(refKmer.refFileIndex),
+                            queryId,
+                            refKmer.refSeqid,
+                            rcKmer,
+                            -1,
+                            refKmer.modelPos,
+                            false,
+                            null));
+                }
             }
-        } else {
-            kmerGens = new KmerGenerator[1];
-            kmerGens[0] = new NuclKmerGenerator(seqString, wordSize);
         }
+    }
 
-        int frame = 0;
-        Kmer kmer;
-        Set<RefKmer> leaves = null;
-        List<char[]> nuclKmers = null;
-        String nuclKmer;
-        String protKmer = null;
-        int nuclPos;
-
-        for (int gen = 0; gen < kmerGens.length; gen++) {
-            while (kmerGens[gen].hasNext()) {
-                kmer = kmerGens[gen].next();
-                leaves = kmerSet.get(kmer.getLongKmers());
-
-                if (leaves != null) {
-                    outputLock.lock();
-                    try {
-                        if (nuclKmers == null) {
-                            nuclKmers = edu.msu.cme.rdp.kmer.trie.KmerGenerator.getKmers(seqString, wordSize);
+    /**
+     * Nucleotide references are indexed by canonical kmer, so both strands of
+     * the query are searched in a single pass. A hit is on the reverse strand
+     * when the query and reference kmers came from opposite strands,
+     * palindromic kmers hit on both.
+     *
+     * The kmers are hashed straight from the record's bytes, the read name and
+     * sequence string are only built once the read has a hit. Kmers are looked
+     * up a KmerBatch at a time so the index reads overlap. If the index is
+     * partitioned by minimizer the read is walked a super kmer at a time so
+     * each batch is looked up in a single partition.
+     */
+    static void processNuclSeq(ReadRecord querySeq, List<String> refLabels, RefKmerIndex kmerSet, RecordBuffer hits, int wordSize) {
+        NuclKmerGenerator kmerGen = new NuclKmerGenerator(querySeq.getBuffer(), querySeq.getSeqStart(), querySeq.getSeqEnd(), wordSize, true);
+        NuclHits readHits = new NuclHits(querySeq, refLabels, hits, wordSize);
+        KmerBatch<Collection<RefKmer>> batch = new KmerBatch<Collection<RefKmer>>(Math.max(1, Math.min(KmerBatch.DEFAULT_CAPACITY, querySeq.getSeqLength() - wordSize + 1)));
+        Collection<RefKmer> leaves;
+
+        if (kmerSet.getMinimizerLength() > 0) {
+            SuperKmerGenerator superKmers = new SuperKmerGenerator(kmerGen, wordSize, kmerSet.getMinimizerLength());
+            SuperKmerGenerator.SuperKmer superKmer = new SuperKmerGenerator.SuperKmer();
+
+            while (superKmers.nextSuperKmer(superKmer)) {
+                for (int start = 0; start < superKmer.size(); start += batch.capacity()) {
+                    int end = Math.min(superKmer.size(), start + batch.capacity());
+                    batch.clear();
+                    for (int index = start; index < end; index++) {
+                        batch.add(superKmer.getWord0(index), superKmer.getWord1(index));
+                    }
+
+                    kmerSet.getAll(batch, superKmer.getMinimizer());
+                    for (int index = start; index < end; index++) {
+                        leaves = batch.get(index - start);
+                        if (leaves != null) {
+                            readHits.add(leaves, superKmer.getPosition(index), superKmer.isReverse(index), superKmer.isPalindrome(index));
                         }
+                    }
+                }
+            }
+        } else {
+            int[] positions = new int[batch.capacity()];
+            boolean[] reverse = new boolean[batch.capacity()];
+            boolean[] palindrome = new boolean[batch.capacity()];
+            boolean more = true;
+
+            while (more) {
+                batch.clear();
+                while (!batch.isFull() && (more = kmerGen.advance())) {
+                    int index = batch.add(kmerGen.word0(), kmerGen.word1());
+                    positions[index] = kmerGen.getPosition();
+                    reverse[index] = kmerGen.isReverse();
+                    palindrome[index] = kmerGen.isPalindrome();
+                }
 
-                        if (translQuery) {
+                kmerSet.getAll(batch);
+                for (int index = 0; index < batch.size(); index++) {
+                    leaves = batch.get(index);
+                    if (leaves != null) {
+                        readHits.add(leaves, positions[index], reverse[index], palindrome[index]);
+                    }
+                }
+            }
+        }
+    }
 
-                            nuclPos = (kmerGens[gen].getPosition() - 1) * 3 + gen;
-                            nuclKmer = new String(nuclKmers.get(nuclPos));
-                            protKmer = kmer.toString();
-                        } else {
-                            nuclPos = kmerGens[gen].getPosition() - 1;
-                            nuclKmer = new String(nuclKmers.get(nuclPos));
+    /**
+     * Guesses the sequence type of the first reference file argument
+     */
+    static SequenceType guessRefSeqType(String refArg) throws IOException {
+        return SeqUtils.guessSequenceType(new File(refArg.contains("=") ? refArg.split("=")[1] : refArg));
+    }
 
+    /**
+     * Splits a [name=]ref_file argument in to the reference name and file
+     * name, without a name the file name minus its extension is used
+     */
+    private static String[] parseRefArg(String refArg) {
+        String refName;
+        String refFileName = refArg;
+        if (refFileName.contains("=")) {
+            String[] lexemes = refFileName.split("=");
+            refName = lexemes[0];
+            refFileName = lexemes[1];
+        } else {
+            String tmpName = new File(refFileName).getName();
+            if (tmpName.contains(".")) {
+                refName = tmpName.substring(0, tmpName.lastIndexOf("."));
+            } else {
+                refName = tmpName;
+            }
+        }
+
+        return new String[]{refName, refFileName};
+    }
+
+    private static File checkRefFile(String refFileName, SequenceType refSeqType) throws Exception {
+        File refFile = new File(refFileName);
+
+        if (refSeqType != SeqUtils.guessSequenceType(refFile)) {
+            throw new Exception("Reference file " + refFile + " contains " + SeqUtils.guessFileFormat(refFile) + " sequences but expected " + refSeqType + " sequences");
+        }
+
+        return refFile;
+    }
+
+    /**
+     * Passes every kmer in one reference sequence to the handler, sequences
+     * that can't be turned in to kmers are skipped
+     */
+    private static void addRefKmers(Sequence seq, int refFileIndex, boolean protRef, int trieWordSize, boolean alignedSeqs, RefKmerHandler handler) {
+        if (seq.getSeqName().startsWith("#")) {
+            return;
+        }
+
+        KmerGenerator kmers;
+        try {
+            if (protRef) {
+                kmers = new ProtKmerGenerator(seq.getSeqString(), trieWordSize, alignedSeqs);
+            } else {
+                kmers = new NuclKmerGenerator(seq.getSeqString(), trieWordSize, alignedSeqs, true);
+            }
+            while (kmers.hasNext()) {
+                Kmer temp = kmers.next();
+                boolean reverse = !protRef && ((NuclKmerGenerator) kmers).isReverse();
+                handler.addKmer(temp, reverse, refFileIndex, kmers.getPosition(), seq.getSeqName());
+            }
+        } catch (IllegalArgumentException ex) {
+            //System.err.println(seq.getSeqName()+ " " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Generates the kmers from each [name=]ref_file argument starting at
+     * startIndex, the names of the reference files are added to refLabels
+     */
+    static void loadReferences(String[] args, int startIndex, SequenceType refSeqType, int trieWordSize, boolean alignedSeqs, List<String> refLabels, RefKmerHandler handler) throws Exception {
+        boolean protRef = refSeqType == SequenceType.Protein;
+
+        for (int index = startIndex; index < args.length; index++) {
+            String[] refArg = parseRefArg(args[index]);
+            SequenceReader seqReader = new SequenceReader(checkRefFile(refArg[1], refSeqType));
+            Sequence seq;
+
+            while ((seq = seqReader.readNextSequence()) != null) {
+                addRefKmers(seq, refLabels.size(), protRef, trieWordSize, alignedSeqs, handler);
+            }
+            seqReader.close();
+
+            refLabels.add(refArg[0]);
+        }
+    }
+
+    /**
+     * Loads the kmers from the reference files in to an in memory kmer set.
+     *
+     * Batches of reference sequences are turned in to kmers on numThreads
+     * threads, each batch sorts its kmers in to the set's hash partitions,
+     * then each partition is filled from every batch by a single thread so no
+     * locking is needed.
+     */
+    static RefKmerIndex loadIndex(String[] args, int startIndex, SequenceType refSeqType, final int trieWordSize, final boolean alignedSeqs, List<String> refLabels, int numThreads) throws Exception {
+        return loadIndex(args, startIndex, refSeqType, trieWordSize, alignedSeqs, refLabels, numThreads, 0);
+    }
+
+    /**
+     * @param minimizerLength if more than 0 the nucleotide index is split in
+     * to many small partitions by kmer minimizer
+     */
+    static RefKmerIndex loadIndex(String[] args, int startIndex, SequenceType refSeqType, final int trieWordSize, final boolean alignedSeqs, List<String> refLabels, int numThreads, final int minimizerLength) throws Exception {
+        final boolean protRef = refSeqType == SequenceType.Protein;
+        int maxWordsPerLong = (protRef ? Kmer.max_prot_kmer_size : Kmer.max_nucl_kmer_size) / 2;
+        final int keyLength = (trieWordSize > maxWordsPerLong) ? 2 : 1;
+        final PartitionedKmerSet<Set<RefKmer>> refKmers;
+        if (minimizerLength > 0) {
+            if (protRef) {
+                throw new IllegalArgumentException("Minimizer partitioning is only supported for nucleotide references");
+            }
+            refKmers = new PartitionedKmerSet<Set<RefKmer>>(keyLength, MINIMIZER_PARTITIONS, trieWordSize, minimizerLength);
+        } else {
+            refKmers = new PartitionedKmerSet<Set<RefKmer>>(keyLength, numThreads * 4);
+        }
+        final List<PartitionedKmerSet.Buckets<RefKmer>> buckets = new ArrayList();
+        // small batches, reference files can hold a handful of long sequences
+        ReadPipeline<PartitionedKmerSet.Buckets<RefKmer>> pipeline = new ReadPipeline<PartitionedKmerSet.Buckets<RefKmer>>(numThreads, 64, numThreads * 4);
+
+        for (int index = startIndex; index < args.length; index++) {
+            String[] refArg = parseRefArg(args[index]);
+            SequenceReader seqReader = new SequenceReader(checkRefFile(refArg[1], refSeqType));
+            final int refFileIndex = refLabels.size();
+
+            pipeline.run(seqReader, new ReadPipeline.Worker<PartitionedKmerSet.Buckets<RefKmer>>() {
+
+                public PartitionedKmerSet.Buckets<RefKmer> process(List<Sequence> batch) {
+                    final PartitionedKmerSet.Buckets<RefKmer> batchKmers = refKmers.newBuckets();
+                    RefKmerHandler handler = new RefKmerHandler() {
+
+                        public void addKmer(Kmer kmer, boolean reverse, int refFileIndex, int modelPos, String seqid) {
+                            RefKmer kmerRef = new RefKmer();
+                            kmerRef.modelPos = modelPos;
+                            kmerRef.refFileIndex = refFileIndex;
+                            kmerRef.refSeqid = seqid;
+                            kmerRef.reverse = reverse;
+                            batchKmers.add(kmer.getLongKmers(), kmerRef);
                         }
-                        for (RefKmer refKmer : leaves) {
-
-                            out.write(new KmerStart(refLabels.get(refKmer.refFileIndex),
-                                    querySeq.getSeqName(),
-                                    refKmer.refSeqid,
-                                    nuclKmer,
-                                    (reverse ? -(frame + 1) : (frame + 1)),
-                                    refKmer.modelPos,
-                                    translQuery,
-                                    (translQuery? protKmer : null)));
-                        }
-                    } finally {
-                        outputLock.unlock();
+                    };
+
+                    for (Sequence seq : batch) {
+                        addRefKmers(seq, refFileIndex, protRef, trieWordSize, alignedSeqs, handler);
                     }
+                    return batchKmers;
                 }
-            }
-            frame++;
+            }, new ReadPipeline.Writer<PartitionedKmerSet.Buckets<RefKmer>>() {
+
+                public void write(PartitionedKmerSet.Buckets<RefKmer> batchKmers) {
+                    buckets.add(batchKmers);
+                }
+            });
+            seqReader.close();
+
+            refLabels.add(refArg[0]);
         }
+
+        refKmers.addAll(buckets, new PartitionedKmerSet.Merger<RefKmer, Set<RefKmer>>() {
+
+            public Set<RefKmer> merge(Set<RefKmer> refs, RefKmer kmerRef) {
+                if (refs == null) {
+                    refs = new HashSet();
+                }
+                refs.add(kmerRef);
+                return refs;
+            }
+        }, numThreads);
+
+        return new RefKmerIndex() {
+
+            public Collection<RefKmer> get(long k0, long k1) {
+                return refKmers.get(k0, k1);
+            }
+
+            public Collection<RefKmer> get(long k0, long k1, long minimizer) {
+                return refKmers.get(k0, k1, minimizer);
+            }
+
+            public void getAll(KmerBatch<Collection<RefKmer>> batch) {
+                refKmers.getAll(batch);
+            }
+
+            public void getAll(KmerBatch<Collection<RefKmer>> batch, long minimizer) {
+                refKmers.getAll(batch, minimizer);
+            }
+
+            public long size() {
+                return refKmers.size();
+            }
+
+            public int getKeyLength() {
+                return keyLength;
+            }
+
+            public int getMinimizerLength() {
+                return minimizerLength;
+            }
+
+            public void forEachKmer(KmerSet.KeyVisitor visitor) {
+                refKmers.forEachKey(visitor);
+            }
+        };
     }
 
     public static void main(String[] args) throws Exception {
-        final KmerSet<Set<RefKmer>> kmerSet;
+        final RefKmerIndex kmerSet;
         final SeqReader queryReader;
         final SequenceType querySeqType;
         final File queryFile;
@@ -179,12 +660,14 @@ public class FastKmerFilter {
         final List<String> refLabels = new ArrayList();
         final int maxThreads;
         final int trieWordSize;
+        final BlockedBloomFilter prefilter;
+        final int minimizerLength;
 
         try {
             CommandLine cmdLine = new PosixParser().parse(options, args);
             args = cmdLine.getArgs();
 
-            if (args.length < 3) {
+            if (args.length < 3 && !(cmdLine.hasOption("index") && args.length == 2)) {
                 throw new Exception("Unexpected number of arguments");
             }
 
@@ -212,22 +695,35 @@ public class FastKmerFilter {
                 maxThreads = Runtime.getRuntime().availableProcessors();
             }
 
+            if (cmdLine.hasOption("minimizer")) {
+                minimizerLength = Integer.valueOf(cmdLine.getOptionValue("minimizer"));
+                if (cmdLine.hasOption("index")) {
+                    throw new Exception("Minimizer partitioning can't be used with a prebuilt kmer index");
+                }
+            } else {
+                minimizerLength = 0;
+            }
+
 
             queryFile = new File(args[1]);
             wordSize = Integer.valueOf(args[0]);
             SequenceType refSeqType = null;
 
             querySeqType = SeqUtils.guessSequenceType(queryFile);
-            queryReader = new SequenceReader(queryFile);
 
             if (querySeqType == SequenceType.Protein) {
                 throw new Exception("Expected nucl query sequences");
             }
 
-
-            refSeqType = SeqUtils.guessSequenceType(new File(args[2].contains("=") ? args[2].split("=")[1] : args[2]));
-
-            translQuery = refSeqType == SequenceType.Protein;
+            MappedKmerIndex mappedIndex = null;
+            if (cmdLine.hasOption("index")) {
+                mappedIndex = MappedKmerIndex.open(new File(cmdLine.getOptionValue("index")));
+                translQuery = mappedIndex.isProtein();
+                refLabels.addAll(mappedIndex.getRefLabels());
+            } else {
+                refSeqType = guessRefSeqType(args[2]);
+                translQuery = refSeqType == SequenceType.Protein;
+            }
 
             if (translQuery && wordSize % 3 != 0) {
                 throw new Exception("Word size must be a multiple of 3 for nucl ref seqs");
@@ -238,67 +734,88 @@ public class FastKmerFilter {
             } else {
                 trieWordSize = wordSize;
             }
-            kmerSet = new KmerSet<Set<RefKmer>>();//new KmerTrie(trieWordSize, translQuery);
-
-            for (int index = 2; index < args.length; index++) {
-                String refName;
-                String refFileName = args[index];
-                if (refFileName.contains("=")) {
-                    String[] lexemes = refFileName.split("=");
-                    refName = lexemes[0];
-                    refFileName = lexemes[1];
-                } else {
-                    String tmpName = new File(refFileName).getName();
-                    if (tmpName.contains(".")) {
-                        refName = tmpName.substring(0, tmpName.lastIndexOf("."));
-                    } else {
-                        refName = tmpName;
-                    }
-                }
 
-                File refFile = new File(refFileName);
+            /*
+             * Nucleotide queries are read straight out of a mapping of the
+             * file when it is plain fasta or fastq, anything else (compressed
+             * files, sff, etc) goes through the sequence reader
+             */
+            if (!translQuery && MappedSeqReader.isSupported(queryFile)) {
+                queryReader = new MappedSeqReader(queryFile);
+            } else {
+                queryReader = new SequenceReader(queryFile);
+            }
 
-                if (refSeqType != SeqUtils.guessSequenceType(refFile)) {
-                    throw new Exception("Reference file " + refFile + " contains " + SeqUtils.guessFileFormat(refFile) + " sequences but expected " + refSeqType + " sequences");
+            if (mappedIndex != null) {
+                final MappedKmerIndex index = mappedIndex;
+                if (index.getK() != trieWordSize) {
+                    throw new Exception("Kmer index was built with a kmer length of " + index.getK() + " but expected " + trieWordSize);
                 }
+                if (!translQuery && !index.isCanonical()) {
+                    throw new Exception("Nucleotide kmer index doesn't contain canonical kmers, rebuild it with build_kmer_index");
+                }
+
+                kmerSet = new RefKmerIndex() {
 
-                SequenceReader seqReader = new SequenceReader(refFile);
-                Sequence seq;
+                    public Collection<RefKmer> get(long k0, long k1) {
+                        long ordinal = index.find(k0, k1);
+                        if (ordinal == -1) {
+                            return null;
+                        }
 
-                while ((seq = seqReader.readNextSequence()) != null) {
-                    if (seq.getSeqName().startsWith("#")) {
-                        continue;
+                        long end = index.getPostingEnd(ordinal);
+                        List<RefKmer> ret = new ArrayList();
+                        for (long posting = index.getPostingStart(ordinal); posting < end; posting++) {
+                            RefKmer kmerRef = new RefKmer();
+                            kmerRef.modelPos = index.getModelPos(posting);
+                            kmerRef.refFileIndex = index.getRefIndex(posting);
+                            kmerRef.refSeqid = index.getSeqid(posting);
+                            kmerRef.reverse = index.isReverse(posting);
+                            ret.add(kmerRef);
+                        }
+                        return ret;
                     }
 
-                    KmerGenerator kmers;
-		try{
-                    if (translQuery) { //protein ref
-                        kmers = new ProtKmerGenerator(seq.getSeqString(), trieWordSize, alignedSeqs);
-                    } else {
-                        kmers = new NuclKmerGenerator(seq.getSeqString(), trieWordSize, alignedSeqs);
+                    public Collection<RefKmer> get(long k0, long k1, long minimizer) {
+                        return get(k0, k1);
                     }
-                    while (kmers.hasNext()) {
-                        Kmer temp = kmers.next();
-                        long[] next = temp.getLongKmers();
-                        Set<RefKmer> refKmers = kmerSet.get(next);
-                        if (refKmers == null) {
-                            refKmers = new HashSet();
-                            kmerSet.add(next, refKmers);
+
+                    public void getAll(KmerBatch<Collection<RefKmer>> batch) {
+                        for (int index = 0; index < batch.size(); index++) {
+                            batch.set(index, get(batch.getWord0(index), batch.getWord1(index)));
                         }
+                    }
 
-                        RefKmer kmerRef = new RefKmer();
-                        kmerRef.modelPos = kmers.getPosition();
-                        kmerRef.refFileIndex = refLabels.size();
-                        kmerRef.refSeqid = seq.getSeqName();
-                        refKmers.add(kmerRef);
+                    public void getAll(KmerBatch<Collection<RefKmer>> batch, long minimizer) {
+                        getAll(batch);
                     }
-		}catch(IllegalArgumentException ex){
-                        //System.err.println(seq.getSeqName()+ " " + ex.getMessage());
-                }
-		}
-                seqReader.close();
 
-                refLabels.add(refName);
+                    public long size() {
+                        return index.size();
+                    }
+
+                    public int getKeyLength() {
+                        return index.getKeyLength();
+                    }
+
+                    public int getMinimizerLength() {
+                        return 0;
+                    }
+
+                    public void forEachKmer(KmerSet.KeyVisitor visitor) {
+                        for (long kmer = 0; kmer < index.size(); kmer++) {
+                            visitor.visit(index.getWord(kmer, 0), index.getWord(kmer, 1));
+                        }
+                    }
+                };
+            } else {
+                kmerSet = loadIndex(args, 2, refSeqType, trieWordSize, alignedSeqs, refLabels, maxThreads, minimizerLength);
+            }
+
+            if (cmdLine.hasOption("prefilter")) {
+                prefilter = buildPrefilter(kmerSet, Double.valueOf(cmdLine.getOptionValue("prefilter")));
+            } else {
+                prefilter = null;
             }
 
         } catch (Exception e) {
@@ -308,9 +825,7 @@ public class FastKmerFilter {
             throw new RuntimeException("Stupid jvm");  //While this will never get thrown it is required to make sure javac doesn't get confused about uninitialized variables
         }
 
-        long startTime = System.currentTimeMillis();
-        long seqCount = 0;
-        final int maxTasks = 25000;
+        final long startTime = System.currentTimeMillis();
 
         System.err.println("Starting kmer mapping at " + new Date());
         System.err.println("*  Number of threads:       " + maxThreads);
@@ -318,55 +833,92 @@ public class FastKmerFilter {
         System.err.println("*  Reads file:              " + queryFile);
         System.err.println("*  Kmer length:             " + trieWordSize);
         System.err.println("*  Kmer Refset Size:        " + kmerSet.size());
+        if (prefilter != null) {
+            System.err.println("*  Prefilter Size:          " + prefilter.getSizeInBytes() + " bytes");
+        }
 
         final AtomicInteger processed = new AtomicInteger();
-        final AtomicInteger outstandingTasks = new AtomicInteger();
-
-        ExecutorService service = Executors.newFixedThreadPool(maxThreads);
-
-        Sequence querySeq;
 
-        while ((querySeq = queryReader.readNextSequence()) != null) {
-            seqCount++;
+        ReadPipeline<RecordBuffer> pipeline = new ReadPipeline<RecordBuffer>(maxThreads);
+        ReadPipeline.Writer<RecordBuffer> writer = new ReadPipeline.Writer<RecordBuffer>() {
 
-            String seqString = querySeq.getSeqString();
-
-            if ((!translQuery && seqString.length() < wordSize) || (translQuery && seqString.length() < wordSize + 2)) {
-                //System.err.println(querySeq.getSeqName() + "\t" + seqString.length());
-                continue;
+            public void write(RecordBuffer hits) throws IOException {
+                out.write(hits);
             }
+        };
+
+        if (queryReader instanceof MappedSeqReader) {
+            pipeline.runMapped((MappedSeqReader) queryReader, new ReadPipeline.RecordWorker<RecordBuffer>() {
 
-            final Sequence threadSeq = querySeq;
+                public RecordBuffer process(List<ReadRecord> batch) {
+                    RecordBuffer hits = new RecordBuffer();
+                    RefKmerIndex batchIndex = (prefilter == null) ? kmerSet : new PrefilteredIndex(kmerSet, prefilter);
+                    for (ReadRecord querySeq : batch) {
+                        if (querySeq.getSeqLength() < wordSize) {
+                            continue;
+                        }
 
-            Runnable r = new Runnable() {
+                        try {
+                            processNuclSeq(querySeq, refLabels, batchIndex, hits, wordSize);
+                        } catch (RuntimeException e) {
+                            e.printStackTrace();
+                            continue;
+                        }
 
-                public void run() {
-                    try {
-                        processSeq(threadSeq, refLabels, kmerSet, out, wordSize, translQuery, translTable, false);
-                        processSeq(threadSeq, refLabels, kmerSet, out, wordSize, translQuery, translTable, true);
+                        if (processed.incrementAndGet() % 1000000 == 0) {
+                            System.err.println("Processed " + processed + " sequences in " + (System.currentTimeMillis() - startTime) + " ms");
+                        }
+                    }
 
-                        processed.incrementAndGet();
-                        outstandingTasks.decrementAndGet();
-                    } catch (Exception e) {
-                        e.printStackTrace();
+                    if (batchIndex instanceof PrefilteredIndex) {
+                        ((PrefilteredIndex) batchIndex).finish();
                     }
+                    return hits;
                 }
-            };
+            }, writer);
+        } else {
+            pipeline.run(queryReader, new ReadPipeline.Worker<RecordBuffer>() {
 
-            outstandingTasks.incrementAndGet();
-            service.submit(r);
+                public RecordBuffer process(List<Sequence> batch) {
+                    RecordBuffer hits = new RecordBuffer();
+                    RefKmerIndex batchIndex = (prefilter == null) ? kmerSet : new PrefilteredIndex(kmerSet, prefilter);
+                    for (Sequence querySeq : batch) {
+                        String seqString = querySeq.getSeqString();
 
-            while (outstandingTasks.get() >= maxTasks);
+                        if ((!translQuery && seqString.length() < wordSize) || (translQuery && seqString.length() < wordSize + 2)) {
+                            //System.err.println(querySeq.getSeqName() + "\t" + seqString.length());
+                            continue;
+                        }
 
-            if ((processed.get() + 1) % 1000000 == 0) {
-                System.err.println("Processed " + processed + " sequences in " + (System.currentTimeMillis() - startTime) + " ms");
-            }
-        }
+                        try {
+                            if (translQuery) {
+                                processProtSeq(querySeq, refLabels, batchIndex, hits, wordSize, translTable);
+                            } else {
+                                processNuclSeq(ReadRecord.wrap(querySeq), refLabels, batchIndex, hits, wordSize);
+                            }
+                        } catch (RuntimeException e) {
+                            e.printStackTrace();
+                            continue;
+                        }
+
+                        if (processed.incrementAndGet() % 1000000 == 0) {
+                            System.err.println("Processed " + processed + " sequences in " + (System.currentTimeMillis() - startTime) + " ms");
+                        }
+                    }
 
-        service.shutdown();
-        service.awaitTermination(1, TimeUnit.DAYS);
+                    if (batchIndex instanceof PrefilteredIndex) {
+                        ((PrefilteredIndex) batchIndex).finish();
+                    }
+                    return hits;
+                }
+            }, writer);
+        }
+        queryReader.close();
 
         System.err.println("Finished Processed " + processed + " sequences in " + (System.currentTimeMillis() - startTime) + " ms");
+        if (prefilter != null) {
+            prefilter.printStats();
+        }
 
         out.close();
     }
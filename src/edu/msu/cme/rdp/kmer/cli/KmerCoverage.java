@@ -18,25 +18,33 @@
 package edu.msu.cme.rdp.kmer.cli;
 
 import edu.msu.cme.rdp.kmer.Kmer;
+import edu.msu.cme.rdp.kmer.io.MappedSeqReader;
+import edu.msu.cme.rdp.kmer.io.ReadRecord;
+import edu.msu.cme.rdp.kmer.set.KmerBatch;
+import edu.msu.cme.rdp.kmer.set.KmerIdSet;
 import edu.msu.cme.rdp.kmer.set.NuclKmerGenerator;
+import edu.msu.cme.rdp.kmer.set.SuperKmerGenerator;
 import edu.msu.cme.rdp.readseq.readers.Sequence;
 import edu.msu.cme.rdp.readseq.readers.SequenceReader;
 import edu.msu.cme.rdp.readseq.readers.core.SeqReaderCore;
-import edu.msu.cme.rdp.readseq.stat.StdevCal;
-import edu.msu.cme.rdp.readseq.utils.IUBUtilities;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Options;
@@ -55,15 +63,48 @@ public class KmerCoverage {
 	Locale.setDefault(Locale.ENGLISH);
         options.addOption("m", "match_reads_out", true, "output the reads containing matching kmers");
         options.addOption("t", "threads", true, "#Threads to use. (default 1)");
+        options.addOption("M", "minimizer", true, "Partition the contig kmers by minimizers of this length (ex 11) and look read kmers up a super kmer at a time");
+        options.addOption("s", "samples", false, "Count each reads file as a separate sample, the reads files are read concurrently, coverage_out gets a contig by sample matrix of mean coverage and abundance_out a column per sample");
     }
+    private static final int MINIMIZER_PARTITIONS = 4096;
  
     private static final String dformat = "%1$.3f";
     private final int kmerSize;
+    private final int minimizerLength;
          
     private ConcurrentHashMap<Integer, Contig> contigMap = new ConcurrentHashMap<Integer, Contig>();
-    private ConcurrentHashMap<Kmer, KmerAbund>[] kmerMaps = new ConcurrentHashMap[2];   // the number of times kmer occurred in the contigs
-    private AtomicInteger totalReads = new AtomicInteger();
-    private boolean adjustCount = false;
+    // ids of the canonical contig kmers, only read once the contigs are loaded
+    private final KmerIdSet kmerIds;
+    private final int numSamples;
+    // the number of times each canonical kmer occurred in the reads of each sample,
+    // one array per sample indexed by kmer id so no index is ever kmers * samples
+    private AtomicIntegerArray[] kmerCounts;
+    // the contig occurrences of kmer id i are kmerOffsets[i] to kmerOffsets[i + 1] - 1,
+    // occurrence o is contig kmerOccurs[2o] at position kmerOccurs[2o + 1] >> 1, the low bit
+    // is set if the contig kmer is the reverse complement of the canonical kmer
+    private int[] kmerOffsets;
+    private int[] kmerOccurs;
+    // the number of reads in each sample with a contig kmer
+    private final AtomicIntegerArray totalReads;
+    // the sample the contig coverage arrays hold, -1 until they're filled
+    private int coverageSample = -1;
+    // threads used to spread the counts over the contigs and summarize them
+    private int numThreads = 1;
+    // lookup buffers reused for every read a thread processes
+    private final ThreadLocal<ReadScratch> readScratch = new ThreadLocal<ReadScratch>() {
+
+        @Override
+        protected ReadScratch initialValue() {
+            return new ReadScratch();
+        }
+    };
+
+    private class ReadScratch{
+        final KmerBatch<Object> batch = new KmerBatch<Object>();
+        final boolean[] palindrome = new boolean[batch.capacity()];
+        final SuperKmerGenerator superKmers = ( minimizerLength > 0) ? new SuperKmerGenerator(kmerSize, minimizerLength) : null;
+        final SuperKmerGenerator.SuperKmer superKmer = new SuperKmerGenerator.SuperKmer();
+    }
     
     public class Contig{
         String name;
@@ -76,24 +117,7 @@ public class KmerCoverage {
         }
     }
     
-    public class ContigCoverage{
-        int contigIdx;
-        int startPos; // the starting position on the contig, offset is 0
-        
-        public ContigCoverage(int nameIdx, int p){
-            contigIdx = nameIdx;
-            startPos = p;
-        }
-    }
-    
-    
-    public class KmerAbund{
-        AtomicInteger count = new AtomicInteger(0);
-        ArrayList<ContigCoverage> contigList = new ArrayList<ContigCoverage>();
-        
-    }
-            
-            
+
     /**
      * 
      * @param kmerSize
@@ -101,10 +125,26 @@ public class KmerCoverage {
      * @throws IOException 
      */
     public KmerCoverage(int kmerSize, SequenceReader contigReader) throws IOException{
-        kmerMaps[0] = new ConcurrentHashMap<Kmer, KmerAbund>(); // kmer map for the forward direction
-        kmerMaps[1] = new ConcurrentHashMap<Kmer, KmerAbund>(); // kmer map for the reverse direction
-        
+        this(kmerSize, contigReader, 0);
+    }
+
+    /**
+     * @param minimizerLength if more than 0 the contig kmers are partitioned
+     * by minimizers of this length
+     */
+    public KmerCoverage(int kmerSize, SequenceReader contigReader, int minimizerLength) throws IOException{
+        this(kmerSize, contigReader, minimizerLength, 1);
+    }
+
+    /**
+     * @param numSamples number of samples reads are counted for separately
+     */
+    public KmerCoverage(int kmerSize, SequenceReader contigReader, int minimizerLength, int numSamples) throws IOException{
         this.kmerSize = kmerSize;
+        this.minimizerLength = minimizerLength;
+        this.numSamples = numSamples;
+        this.totalReads = new AtomicIntegerArray(numSamples);
+        this.kmerIds = newKmerIds(kmerSize, minimizerLength);
         processContigFile(contigReader);
        
     }
@@ -118,10 +158,11 @@ public class KmerCoverage {
      * @throws IOException 
      */
     public KmerCoverage(int kmerSize, SequenceReader contigReader, SeqReaderCore readsReader, PrintStream outStream) throws IOException{
-        kmerMaps[0] = new ConcurrentHashMap<Kmer, KmerAbund>(); // kmer map for the forward direction
-        kmerMaps[1] = new ConcurrentHashMap<Kmer, KmerAbund>(); // kmer map for the reverse direction
-        
         this.kmerSize = kmerSize;
+        this.minimizerLength = 0;
+        this.numSamples = 1;
+        this.totalReads = new AtomicIntegerArray(1);
+        this.kmerIds = newKmerIds(kmerSize, 0);
 
         processContigFile(contigReader);
         Sequence seq;
@@ -129,7 +170,9 @@ public class KmerCoverage {
             if ( seq.getSeqString().length() < kmerSize){
                 continue;
             }
-            processReads(seq, outStream);            
+            if ( processReads(seq, 0) && outStream != null){
+                outStream.println(">" + seq.getSeqName() + "\n" + seq.getSeqString());
+            }
         }
         readsReader.close();
         if ( outStream != null){
@@ -137,14 +180,83 @@ public class KmerCoverage {
         }
     }
     
+    private static KmerIdSet newKmerIds(int kmerSize, int minimizerLength){
+        int keyLength = (kmerSize > Kmer.max_nucl_kmer_size / 2) ? 2 : 1;
+        if ( minimizerLength > 0){
+            return new KmerIdSet(keyLength, MINIMIZER_PARTITIONS, kmerSize, minimizerLength);
+        }
+        return new KmerIdSet(keyLength);
+    }
+
+    /**
+     * The contigs with the coverage of the first sample
+     */
     public ConcurrentHashMap<Integer, Contig> getContigMap(){
-        adjustCount();
+        adjustCount(0);
         return contigMap;
     }
     
     public int getTotalContigs(){
         return contigMap.size();
     }
+
+    public int getNumSamples(){
+        return numSamples;
+    }
+
+    public void setNumThreads(int numThreads){
+        this.numThreads = Math.max(1, numThreads);
+    }
+
+    /**
+     * Work on the items from to to - 1
+     */
+    private static interface RangeTask{
+        void run(int from, int to);
+    }
+
+    /**
+     * Splits 0 to numItems - 1 in to chunks and runs the task on each chunk on
+     * a pool of numThreads threads
+     */
+    private static void runInParallel(int numItems, int numThreads, final RangeTask task){
+        if ( numThreads <= 1 || numItems < 2){
+            task.run(0, numItems);
+            return;
+        }
+        ExecutorService service = Executors.newFixedThreadPool(numThreads);
+        try {
+            int numChunks = Math.min(numItems, numThreads * 4);
+            List<Future<Object>> futures = new ArrayList<Future<Object>>();
+            for ( int chunk = 0; chunk < numChunks; chunk++){
+                final int from = (int)((long)chunk * numItems / numChunks);
+                final int to = (int)((long)(chunk + 1) * numItems / numChunks);
+                futures.add(service.submit(new Callable<Object>() {
+
+                    public Object call() {
+                        task.run(from, to);
+                        return null;
+                    }
+                }));
+            }
+            for ( Future<Object> future: futures){
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            Throwable t = e.getCause();
+            if (t instanceof RuntimeException) {
+                throw (RuntimeException) t;
+            } else if (t instanceof Error) {
+                throw (Error) t;
+            }
+            throw new RuntimeException(t);
+        } finally {
+            service.shutdownNow();
+        }
+    }
     /**
      * find the kmers in the contigs
      * @param reader
@@ -153,125 +265,301 @@ public class KmerCoverage {
     private void processContigFile(SequenceReader reader) throws IOException{
         Sequence seq;
         NuclKmerGenerator kmerGenerator;
-        Kmer kmer;
         int contigIdx = 0;
+        // kmer id, contig index and position of each contig kmer in the order they're found
+        int numOccurs = 0;
+        int[] occurIds = new int[1024];
+        int[] occurContigs = new int[1024];
+        int[] occurPos = new int[1024];
         while ( (seq = reader.readNextSequence()) !=null){
             if ( seq.getSeqString().length() < kmerSize){
                 continue;
             }
             // use int to represent seqname in case contig names are too long
             contigMap.put(contigIdx, new Contig(seq.getSeqName(), seq.getSeqString().length() - kmerSize +1));
-            //forward direction
-            kmerGenerator = new NuclKmerGenerator(seq.getSeqString(), kmerSize);
-            while ( kmerGenerator.hasNext()){
-                kmer = kmerGenerator.next();
-                KmerAbund kmerAbund = kmerMaps[0].get(kmer);
-
-                if ( kmerAbund == null) {
-                    kmerAbund = new KmerAbund();
-                    kmerMaps[0].put(kmer, kmerAbund);
-                }
-                kmerAbund.contigList.add(new ContigCoverage(contigIdx, kmerGenerator.getPosition() -1 ));
-            }  
-            
-            // reverse direction
-            kmerGenerator = new NuclKmerGenerator(IUBUtilities.reverseComplement(seq.getSeqString()), kmerSize);
-            while ( kmerGenerator.hasNext()){
-                kmer = kmerGenerator.next();
-                KmerAbund kmerAbund = kmerMaps[1].get(kmer);
-
-                if ( kmerAbund == null) {
-                    kmerAbund = new KmerAbund();
-                    kmerMaps[1].put(kmer, kmerAbund);
+            // canonical kmers cover both directions
+            kmerGenerator = new NuclKmerGenerator(seq.getSeqString(), kmerSize, false, true);
+            while ( kmerGenerator.advance()){
+                if ( numOccurs == occurIds.length){
+                    occurIds = Arrays.copyOf(occurIds, numOccurs << 1);
+                    occurContigs = Arrays.copyOf(occurContigs, numOccurs << 1);
+                    occurPos = Arrays.copyOf(occurPos, numOccurs << 1);
                 }
-                kmerAbund.contigList.add(new ContigCoverage(contigIdx, seq.getSeqString().length() - kmerGenerator.getPosition() -kmerSize +1));
+                occurIds[numOccurs] = kmerIds.add(kmerGenerator.word0(), kmerGenerator.word1());
+                occurContigs[numOccurs] = contigIdx;
+                occurPos[numOccurs] = ((kmerGenerator.getPosition() -1) << 1) | (kmerGenerator.isReverse() ? 1 : 0);
+                numOccurs++;
             }  
             contigIdx ++;
         }
         reader.close();
+
+        // group the occurrences by kmer id, keeping them in contig order
+        kmerOffsets = new int[kmerIds.size() + 1];
+        for ( int occur = 0; occur < numOccurs; occur++){
+            kmerOffsets[occurIds[occur] + 1]++;
+        }
+        for ( int id = 0; id < kmerIds.size(); id++){
+            kmerOffsets[id + 1] += kmerOffsets[id];
+        }
+        int[] next = Arrays.copyOf(kmerOffsets, kmerIds.size());
+        kmerOccurs = new int[numOccurs * 2];
+        for ( int occur = 0; occur < numOccurs; occur++){
+            int slot = next[occurIds[occur]]++;
+            kmerOccurs[slot << 1] = occurContigs[occur];
+            kmerOccurs[(slot << 1) + 1] = occurPos[occur];
+        }
+        kmerCounts = new AtomicIntegerArray[numSamples];
+        for ( int sample = 0; sample < numSamples; sample++){
+            kmerCounts[sample] = new AtomicIntegerArray(kmerIds.size());
+        }
     }
     
     /**
      * This need to be thread safe
      * @param seq
-     * @param outStream
-     * @throws IOException 
+     * @param sample the sample the read's kmers are counted towards
+     * @return true if the read contains any contig kmers
      */
-    private void processReads(Sequence seq, PrintStream outStream) throws IOException{
-        NuclKmerGenerator kmerGenerator;
-        Kmer kmer;
-        
+    boolean processReads(Sequence seq, int sample) {
+        return processReads(new NuclKmerGenerator(seq.getSeqString(), kmerSize, false, true), sample);
+    }
+
+    /**
+     * Same as above, the kmers are read straight from the record's bytes
+     */
+    private boolean processReads(ReadRecord record, int sample) {
+        return processReads(new NuclKmerGenerator(record.getBuffer(), record.getSeqStart(), record.getSeqEnd(), kmerSize, true), sample);
+    }
+
+    private boolean processReads(NuclKmerGenerator kmerGenerator, int sample) {
         boolean found = false;            
-        kmerGenerator = new NuclKmerGenerator(seq.getSeqString(), kmerSize);
-        while ( kmerGenerator.hasNext()){
-            
-            kmer = kmerGenerator.next();  
-            for ( int i = 0; i < kmerMaps.length; i ++){  // for forward and reverse direction
-                KmerAbund kmerAbund = kmerMaps[i].get(kmer);
-                if ( kmerAbund != null) {                   
-                    // increment the count
-                    kmerAbund.count.addAndGet(1); 
-                    found = true;
-                }     
-                
-            }              
-        }   
+        // kmers are looked up a batch at a time so the table reads overlap
+        ReadScratch scratch = readScratch.get();
+        KmerBatch<Object> batch = scratch.batch;
+        if ( minimizerLength > 0){
+            // each super kmer is looked up in a single partition
+            SuperKmerGenerator superKmers = scratch.superKmers;
+            superKmers.setKmerGenerator(kmerGenerator);
+            SuperKmerGenerator.SuperKmer superKmer = scratch.superKmer;
+            while ( superKmers.nextSuperKmer(superKmer)){
+                for ( int start = 0; start < superKmer.size(); start += batch.capacity()){
+                    int end = Math.min(superKmer.size(), start + batch.capacity());
+                    batch.clear();
+                    for ( int index = start; index < end; index++){
+                        batch.add(superKmer.getWord0(index), superKmer.getWord1(index));
+                    }
+                    kmerIds.getIds(batch, superKmer.getMinimizer());
+                    for ( int index = start; index < end; index++){
+                        int id = batch.getId(index - start);
+                        if ( id != -1) {
+                            kmerCounts[sample].addAndGet(id, superKmer.isPalindrome(index) ? 2 : 1);
+                            found = true;
+                        }
+                    }
+                }
+            }
+        } else {
+            boolean[] palindrome = scratch.palindrome;
+            boolean more = true;
+            while ( more){
+                batch.clear();
+                while ( !batch.isFull() && (more = kmerGenerator.advance())){
+                    palindrome[batch.add(kmerGenerator.word0(), kmerGenerator.word1())] = kmerGenerator.isPalindrome();
+                }
+                kmerIds.getIds(batch);
+                for ( int index = 0; index < batch.size(); index++){
+                    int id = batch.getId(index);
+                    if ( id != -1) {                   
+                        // increment the count, a palindromic kmer matches in both directions
+                        kmerCounts[sample].addAndGet(id, palindrome[index] ? 2 : 1); 
+                        found = true;
+                    }
+                }
+            }   
+        }
         if ( found ){
-            totalReads.incrementAndGet();
+            totalReads.incrementAndGet(sample);
         }
-        if ( outStream != null && found){
-            writeSeq(seq, outStream);
-        }        
-    }
-    
-    private synchronized void writeSeq(Sequence seq, PrintStream outStream){
-         outStream.println(">" + seq.getSeqName() + "\n" + seq.getSeqString());
+        return found;
     }
     
     /**
-     * This should be only called once.
+     * Fills the contig coverage arrays with the coverage of one sample.
+     * Each contig position holds exactly one kmer occurrence, so the kmers can be
+     * split among threads without any two threads writing the same position, and
+     * the coverage of a previous sample is simply overwritten
      */
-    private synchronized void adjustCount(){
-       if ( adjustCount ) return;
+    private synchronized void adjustCount(final int sample){
+       if ( coverageSample == sample ) return;
          // need to adjust the count
-       for ( int i = 0; i < kmerMaps.length; i ++){  // for forward and reverse direction
-            for ( Kmer kmer: kmerMaps[i].keySet()){
-                KmerAbund kmerAbund = kmerMaps[i].get(kmer);
-                // we assign an eqaul value to all the contigs containing the kmer.
-                double weightedCount = (double)kmerAbund.count.get()/ (double)kmerAbund.contigList.size();
-                for ( ContigCoverage contigCov: kmerAbund.contigList){
-                     Contig contig = contigMap.get(contigCov.contigIdx);
-                     contig.coverage[contigCov.startPos] += weightedCount ;
-                } 
-                
-            }              
-       }  
-       adjustCount = true;
+       final Contig[] contigs = new Contig[contigMap.size()];
+       for ( Integer contigIdx: contigMap.keySet()){
+           contigs[contigIdx] = contigMap.get(contigIdx);
+       }
+       runInParallel(kmerIds.size(), numThreads, new RangeTask() {
+
+           public void run(int from, int to) {
+               for ( int id = from; id < to; id++){
+                    // we assign an eqaul value to all the contigs containing the kmer,
+                    // the count is split separately among the occurrences on each strand
+                    int reverseOccurs = 0;
+                    for ( int occur = kmerOffsets[id]; occur < kmerOffsets[id + 1]; occur++){
+                        reverseOccurs += kmerOccurs[(occur << 1) + 1] & 1;
+                    }
+                    int count = kmerCounts[sample].get(id);
+                    double forwardCount = (double)count/ (double)(kmerOffsets[id + 1] - kmerOffsets[id] - reverseOccurs);
+                    double reverseCount = (double)count/ (double)reverseOccurs;
+                    for ( int occur = kmerOffsets[id]; occur < kmerOffsets[id + 1]; occur++){
+                         int pos = kmerOccurs[(occur << 1) + 1];
+                         contigs[kmerOccurs[occur << 1]].coverage[pos >> 1] = ((pos & 1) == 1) ? reverseCount : forwardCount;
+                    } 
+               }
+           }
+       });
+       coverageSample = sample;
+    }
+
+    /**
+     * Swaps values[i] and values[j]
+     */
+    private static void swap(double[] values, int i, int j){
+        double tmp = values[i];
+        values[i] = values[j];
+        values[j] = tmp;
+    }
+
+    /**
+     * Reorders values[0] to values[length - 1] so the value that would be at
+     * index k if they were sorted is at k, everything before it is no larger
+     * and everything after no smaller (quickselect)
+     */
+    static double select(double[] values, int length, int k){
+        int lo = 0;
+        int hi = length - 1;
+        while ( lo < hi){
+            // median of three pivot, the partition is three way since coverage
+            // arrays are mostly runs of equal values
+            double a = values[lo], b = values[(lo + hi) >>> 1], c = values[hi];
+            double pivot = Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+
+            int lt = lo, index = lo, gt = hi;
+            while ( index <= gt){
+                if ( values[index] < pivot){
+                    swap(values, lt++, index++);
+                } else if ( values[index] > pivot){
+                    swap(values, index, gt--);
+                } else {
+                    index++;
+                }
+            }
+
+            // values[lt] to values[gt] are all equal to the pivot
+            if ( k < lt){
+                hi = lt - 1;
+            } else if ( k > gt){
+                lo = gt + 1;
+            } else {
+                return values[k];
+            }
+        }
+        return values[k];
+    }
+
+    /**
+     * Median of values[0] to values[length - 1], the mean of the middle two
+     * for an even number of values, reorders the values
+     */
+    static double median(double[] values, int length){
+        int mid = length / 2;
+        double upper = select(values, length, mid);
+        if ( length % 2 == 1){
+            return upper;
+        }
+        // the lower middle value is the largest value before mid
+        double lower = values[0];
+        for ( int index = 1; index < mid; index++){
+            lower = Math.max(lower, values[index]);
+        }
+        return (lower + upper) / 2;
     }
   
     
+    /**
+     * Works out the mean, median (if medians isn't null) and number of covered
+     * positions of each contig's coverage, in parallel over the contigs
+     */
+    private void summarize(final List<Contig> contigs, final double[] means, final double[] medians, final int[] coveredCounts){
+        runInParallel(contigs.size(), numThreads, new RangeTask() {
+
+            public void run(int from, int to) {
+                double[] counts = new double[0];
+                for ( int index = from; index < to; index++){
+                    double[] coverage = contigs.get(index).coverage;
+                    double sum = 0;
+                    int coveredPos = 0;
+                    for ( int pos = 0; pos < coverage.length; pos++){
+                        if ( coverage[pos] > 0){
+                            coveredPos++;
+                        }
+                        sum += coverage[pos];
+                    }
+                    coveredCounts[index] = coveredPos;
+                    if ( coveredPos > 0){
+                        means[index] = sum / coverage.length;
+                        if ( medians != null){
+                            if ( counts.length < coverage.length){
+                                counts = new double[coverage.length];
+                            }
+                            System.arraycopy(coverage, 0, counts, 0, coverage.length);
+                            medians[index] = median(counts, coverage.length);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * The number of strands of the contigs kmer id occurs on, a canonical kmer
+     * found on both strands of the contigs is counted twice
+     */
+    private int strandsOf(int id){
+        boolean forward = false;
+        boolean reverse = false;
+        for ( int occur = kmerOffsets[id]; occur < kmerOffsets[id + 1]; occur++){
+            if ( (kmerOccurs[(occur << 1) + 1] & 1) == 1){
+                reverse = true;
+            } else {
+                forward = true;
+            }
+        }
+        return (forward ? 1 : 0) + (reverse ? 1 : 0);
+    }
+
    public void printCovereage(OutputStream coverage_out, OutputStream abundance_out) throws IOException{
-       adjustCount();
+       adjustCount(0);
         // print out the weighted kmer coverage
        // we found mean coverage matched the previous biological observation
         PrintStream coverage_outStream = new PrintStream(coverage_out);
-        coverage_outStream.println("#total reads: " + totalReads.intValue());
+        coverage_outStream.println("#total reads: " + totalReads.get(0));
         coverage_outStream.println("#use mean_cov to adjust the contig abundance, not median_cov ");
         coverage_outStream.println("#seqid\tmean_cov\tmedian_cov\ttotal_pos\tcovered_pos\tcovered_ratio");
         
-        for ( Contig contig: contigMap.values()){
-            ArrayList<Double> counts = new ArrayList<Double>();
-            int coveredPos = 0;
-            for ( int pos = 0; pos < contig.coverage.length; pos++){
-                if ( contig.coverage[pos] > 0){
-                    coveredPos++;
-                }
-                counts.add(contig.coverage[pos]);
-            }
+        // the mean, median and number of covered positions of each contig
+        List<Contig> contigs = new ArrayList<Contig>(contigMap.values());
+        double[] means = new double[contigs.size()];
+        double[] medians = new double[contigs.size()];
+        int[] coveredCounts = new int[contigs.size()];
+        summarize(contigs, means, medians, coveredCounts);
+
+        for ( int index = 0; index < contigs.size(); index++){
+            Contig contig = contigs.get(index);
+            int coveredPos = coveredCounts[index];
             if ( coveredPos > 0){
-                coverage_outStream.println(contig.name + "\t" + String.format(dformat, StdevCal.calMean(counts))
-                        +"\t" + String.format(dformat, (StdevCal.calMedian(counts)))      
-                + "\t" + counts.size() + "\t" + coveredPos
+                coverage_outStream.println(contig.name + "\t" + String.format(dformat, means[index])
+                        +"\t" + String.format(dformat, medians[index])      
+                + "\t" + contig.coverage.length + "\t" + coveredPos
                 + "\t" + String.format(dformat,(double)coveredPos / (double)contig.coverage.length));
             }else { // no coverage
                 coverage_outStream.println(contig.name +"\t" + 0 + "\t" + 0 + "\t" + contig.coverage.length + "\t" + 0 + "\t" + 0);
@@ -282,26 +570,16 @@ public class KmerCoverage {
        // print kmer abundance
         HashMap<Integer, Integer> abundanceCountMap = new HashMap<Integer, Integer>(); // the frequeny of the kmer abundance         
         PrintStream abundance_outStream = new PrintStream(abundance_out);        
-        // need to merge the counts from forward and reverse together.
-        HashSet<Kmer> kmerSet = new HashSet<Kmer>();
-        kmerSet.addAll(kmerMaps[0].keySet());
-        for ( Kmer kmer: kmerSet){
-            AtomicInteger abundance = kmerMaps[0].get(kmer).count;
-                  
-            String reverseKmerStr = IUBUtilities.reverseComplement(kmer.decodeLong(kmer.getLongKmers()));
-            Kmer reverseKmer = (new NuclKmerGenerator(reverseKmerStr, this.kmerSize)).next();            
-            KmerAbund kmerAbund = kmerMaps[1].get(reverseKmer);
-
-            if ( kmerAbund != null){
-                abundance.addAndGet(kmerAbund.count.get());
-            }
-             
-            Integer count = abundanceCountMap.get(abundance.get());
+        // the canonical count already merges forward and reverse, each contig kmer is
+        // counted once so a canonical kmer found on both strands of the contigs counts twice
+        for ( int id = 0; id < kmerIds.size(); id++){
+            int abundance = kmerCounts[0].get(id);
+            Integer count = abundanceCountMap.get(abundance);
             if ( count == null){
-                abundanceCountMap.put(abundance.get(), 1);
-            }else {
-                abundanceCountMap.put(abundance.get(), count + 1);
+                count = 0;
             }
+            count += strandsOf(id);
+            abundanceCountMap.put(abundance, count);
         }        
         
         abundance_outStream.println("kmer_abundance\tfrequency");
@@ -310,6 +588,132 @@ public class KmerCoverage {
         }
         abundance_outStream.close();
     }
+
+    /**
+     * Writes the mean coverage of each contig in each sample as a contig by
+     * sample matrix, and the frequency of each kmer abundance with a column per
+     * sample
+     */
+    public void printCoverageMatrix(OutputStream coverage_out, OutputStream abundance_out, List<String> sampleNames) throws IOException{
+        if ( sampleNames.size() != numSamples){
+            throw new IllegalArgumentException("Expected " + numSamples + " sample names, not " + sampleNames.size());
+        }
+        List<Contig> contigs = new ArrayList<Contig>(contigMap.values());
+        double[][] means = new double[numSamples][contigs.size()];
+        int[] coveredCounts = new int[contigs.size()];
+        for ( int sample = 0; sample < numSamples; sample++){
+            adjustCount(sample);
+            summarize(contigs, means[sample], null, coveredCounts);
+        }
+
+        PrintStream coverage_outStream = new PrintStream(coverage_out);
+        StringBuilder line = new StringBuilder("#total reads\t");
+        for ( int sample = 0; sample < numSamples; sample++){
+            line.append("\t").append(totalReads.get(sample));
+        }
+        coverage_outStream.println(line);
+        line = new StringBuilder("#seqid\ttotal_pos");
+        for ( String sampleName: sampleNames){
+            line.append("\t").append(sampleName);
+        }
+        coverage_outStream.println(line);
+
+        for ( int index = 0; index < contigs.size(); index++){
+            Contig contig = contigs.get(index);
+            line = new StringBuilder(contig.name).append("\t").append(contig.coverage.length);
+            for ( int sample = 0; sample < numSamples; sample++){
+                line.append("\t").append(String.format(dformat, means[sample][index]));
+            }
+            coverage_outStream.println(line);
+        }
+        coverage_outStream.close();
+
+        // the frequency of each kmer abundance in each sample
+        TreeMap<Integer, int[]> abundanceCountMap = new TreeMap<Integer, int[]>();
+        for ( int id = 0; id < kmerIds.size(); id++){
+            int strands = strandsOf(id);
+            for ( int sample = 0; sample < numSamples; sample++){
+                int abundance = kmerCounts[sample].get(id);
+                int[] counts = abundanceCountMap.get(abundance);
+                if ( counts == null){
+                    counts = new int[numSamples];
+                    abundanceCountMap.put(abundance, counts);
+                }
+                counts[sample] += strands;
+            }
+        }
+
+        PrintStream abundance_outStream = new PrintStream(abundance_out);
+        line = new StringBuilder("kmer_abundance");
+        for ( String sampleName: sampleNames){
+            line.append("\t").append(sampleName);
+        }
+        abundance_outStream.println(line);
+        for ( Map.Entry<Integer, int[]> entry: abundanceCountMap.entrySet()){
+            line = new StringBuilder().append(entry.getKey());
+            for ( int count: entry.getValue()){
+                line.append("\t").append(count);
+            }
+            abundance_outStream.println(line);
+        }
+        abundance_outStream.close();
+    }
+
+    /**
+     * Counts the kmers in one reads file towards a sample
+     */
+    private static void processReadsFile(final KmerCoverage kmerCoverage, File readsFile, final int sample, int numWorkers, final PrintStream match_reads_out) throws IOException, InterruptedException{
+        ReadPipeline<List<Sequence>> pipeline = new ReadPipeline<List<Sequence>>(numWorkers);
+        ReadPipeline.Writer<List<Sequence>> writer = new ReadPipeline.Writer<List<Sequence>>() {
+
+            public void write(List<Sequence> matched) {
+                if ( match_reads_out != null){
+                    for ( Sequence seq: matched){
+                        match_reads_out.println(">" + seq.getSeqName() + "\n" + seq.getSeqString());
+                    }
+                }
+            }
+        };
+
+        if ( MappedSeqReader.isSupported(readsFile)){
+            // plain fasta/fastq, only the matched reads are turned in to Sequences
+            MappedSeqReader reader = new MappedSeqReader(readsFile);
+            pipeline.runMapped(reader, new ReadPipeline.RecordWorker<List<Sequence>>() {
+
+                public List<Sequence> process(List<ReadRecord> batch) {
+                    List<Sequence> matched = new ArrayList<Sequence>();
+                    for ( ReadRecord record: batch){
+                        if ( record.getSeqLength() < kmerCoverage.kmerSize){
+                            continue;
+                        }
+                        if ( kmerCoverage.processReads(record, sample) && match_reads_out != null){
+                            matched.add(record.toSequence());
+                        }
+                    }
+                    return matched;
+                }
+            }, writer);
+            reader.close();
+        } else {
+            SequenceReader reader = new SequenceReader(readsFile);
+            pipeline.run(reader, new ReadPipeline.Worker<List<Sequence>>() {
+
+                public List<Sequence> process(List<Sequence> batch) {
+                    List<Sequence> matched = new ArrayList<Sequence>();
+                    for ( Sequence seq: batch){
+                        if ( seq.getSeqString().length() < kmerCoverage.kmerSize){
+                            continue;
+                        }
+                        if ( kmerCoverage.processReads(seq, sample)){
+                            matched.add(seq);
+                        }
+                    }
+                    return matched;
+                }
+            }, writer);
+            reader.close();
+        }
+    }
     
        
     /**
@@ -322,7 +726,7 @@ public class KmerCoverage {
     public static void main(String[] args) throws IOException, InterruptedException {
         int kmerSize = 45;
         final int maxThreads;
-        final int maxTasks = 1000;
+        int minimizerLength = 0;
         final PrintStream match_reads_out ;
         try {
             CommandLine cmdLine = new PosixParser().parse(options, args);
@@ -348,52 +752,58 @@ public class KmerCoverage {
             } else {
                 maxThreads = 1;
             }
+            if (cmdLine.hasOption("minimizer")) {
+                minimizerLength = Integer.parseInt(cmdLine.getOptionValue("minimizer"));
+            }
+                   
+            final boolean samples = cmdLine.hasOption("samples");
+            final int numFiles = args.length - 4;
                    
-            final KmerCoverage kmerCoverage = new KmerCoverage( kmerSize, new SequenceReader(new File(args[1])));
+            final KmerCoverage kmerCoverage = new KmerCoverage( kmerSize, new SequenceReader(new File(args[1])), minimizerLength, samples ? numFiles : 1);
+            kmerCoverage.setNumThreads(maxThreads);
             if ( kmerCoverage.getTotalContigs() == 0){
                 System.out.println("Found 0 contig with length >= kmer size " + kmerSize + " in input file " + args[1] + ". Exit program.");
                 return;
             }
-            final AtomicInteger outstandingTasks = new AtomicInteger();        
-            ExecutorService service = Executors.newFixedThreadPool(maxThreads);
-
-            Sequence seq;
-            
-            // parse one file at a time
-            for (int index = 4; index < args.length; index++) {
-
-                SequenceReader reader = new SequenceReader(new File(args[index]));
-                while ( (seq = reader.readNextSequence()) !=null){
-                    if ( seq.getSeqString().length() < kmerSize){
-                        continue;
-                    }
-                    final Sequence threadSeq = seq;
-                   
-                    Runnable r = new Runnable() {
-
-                        public void run() {
-                            try {
-                                kmerCoverage.processReads(threadSeq, match_reads_out);
-                                outstandingTasks.decrementAndGet();
-                            } catch (Exception e) {
-                                e.printStackTrace();
-                            }
-                        }
-                    };
 
-                    outstandingTasks.incrementAndGet();
-                    service.submit(r);
-                    
-                    while (outstandingTasks.get() >= maxTasks);                
+            if ( samples){
+                // each sample's reads are counted in their own slot so the files can be read concurrently
+                int numReaders = Math.min(numFiles, maxThreads);
+                final int workersPerReader = Math.max(1, maxThreads / numReaders);
+                List<String> sampleNames = new ArrayList<String>();
+                ExecutorService readers = Executors.newFixedThreadPool(numReaders);
+                try {
+                    List<Future<Object>> futures = new ArrayList<Future<Object>>();
+                    for (int index = 4; index < args.length; index++) {
+                        final File readsFile = new File(args[index]);
+                        final int sample = index - 4;
+                        String sampleName = readsFile.getName();
+                        sampleNames.add(sampleName.contains(".") ? sampleName.substring(0, sampleName.lastIndexOf(".")) : sampleName);
+
+                        futures.add(readers.submit(new Callable<Object>() {
 
+                            public Object call() throws Exception {
+                                processReadsFile(kmerCoverage, readsFile, sample, workersPerReader, match_reads_out);
+                                return null;
+                            }
+                        }));
+                    }
+                    for ( Future<Object> future: futures){
+                        future.get();
+                    }
+                } finally {
+                    readers.shutdownNow();
                 }
-                reader.close();
-            }
-            service.shutdown();
-            service.awaitTermination(1, TimeUnit.DAYS);        
 
-            
-            kmerCoverage.printCovereage(new FileOutputStream(new File(args[2])), new FileOutputStream(new File(args[3])));
+                kmerCoverage.printCoverageMatrix(new FileOutputStream(new File(args[2])), new FileOutputStream(new File(args[3])), sampleNames);
+            } else {
+                // parse one file at a time
+                for (int index = 4; index < args.length; index++) {
+                    processReadsFile(kmerCoverage, new File(args[index]), 0, maxThreads, match_reads_out);
+                }
+
+                kmerCoverage.printCovereage(new FileOutputStream(new File(args[2])), new FileOutputStream(new File(args[3])));
+            }
             if ( match_reads_out != null){
                 match_reads_out.close();
             }
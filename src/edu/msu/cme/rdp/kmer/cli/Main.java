@@ -21,6 +21,7 @@ import edu.msu.cme.rdp.kmer.KmerFilter;
 import edu.msu.cme.rdp.kmer.KmerSearch;
 import edu.msu.cme.rdp.kmer.ReadGenerator;
 import edu.msu.cme.rdp.kmer.TrieInfo;
+import edu.msu.cme.rdp.kmer.io.KmerStartsConverter;
 import java.util.Arrays;
 
 /**
@@ -29,7 +30,7 @@ import java.util.Arrays;
  */
 public class Main {
     public static void main(String[] args) throws Exception {
-        String usage = "Commands: kmer_search, kmer_filter, fast_kmer_filter, kmer_coverage, shared_kmer, read_generator, trie_info";
+        String usage = "Commands: kmer_search, kmer_filter, fast_kmer_filter, build_kmer_index, build_kmer_trie, kmer_coverage, shared_kmer, shared_kmer_matrix, read_generator, trie_info, convert_kmer_starts";
         if(args.length == 0) {
             System.err.println(usage);
             return;
@@ -44,6 +45,10 @@ public class Main {
             KmerFilter.main(newArgs);
         } else if(cmd.equals("fast_kmer_filter")) {
             FastKmerFilter.main(newArgs);
+        } else if(cmd.equals("build_kmer_index")) {
+            BuildKmerIndex.main(newArgs);
+        } else if(cmd.equals("build_kmer_trie")) {
+            BuildKmerTrie.main(newArgs);
         } else if(cmd.equals("kmer_coverage")) {
             KmerCoverage.main(newArgs);
         } else if(cmd.equals("read_generator")) {
@@ -52,6 +57,10 @@ public class Main {
             TrieInfo.main(newArgs);
         } else if(cmd.equals("shared_kmer")) {
             SharedKmers.main(newArgs);
+        } else if(cmd.equals("shared_kmer_matrix")) {
+            SharedKmerMatrix.main(newArgs);
+        } else if(cmd.equals("convert_kmer_starts")) {
+            KmerStartsConverter.main(newArgs);
         } else {
             System.err.println(usage);
         }
@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.kmer.cli;
+
+import edu.msu.cme.rdp.kmer.io.MappedSeqReader;
+import edu.msu.cme.rdp.kmer.io.ReadRecord;
+import edu.msu.cme.rdp.readseq.readers.SeqReader;
+import edu.msu.cme.rdp.readseq.readers.Sequence;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Reads sequences in batches on the calling thread, hands each batch to one
+ * of a fixed pool of workers and passes the workers' results to a single
+ * writer thread in the order the batches were read.
+ *
+ * At most queueSize batches are in flight (read but not yet written), once
+ * that many are outstanding the reader blocks until the writer catches up.
+ *
+ * @author fishjord
+ */
+public class ReadPipeline<R> {
+
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    /**
+     * Processes a batch of reads, called concurrently from the worker threads
+     */
+    public static interface BatchWorker<T, R> {
+
+        R process(List<T> batch) throws IOException;
+    }
+
+    public static interface Worker<R> extends BatchWorker<Sequence, R> {
+    }
+
+    /**
+     * Worker for reads from a MappedSeqReader, the records point in to the
+     * mapped file so they stay valid after the batch is handed off
+     */
+    public static interface RecordWorker<R> extends BatchWorker<ReadRecord, R> {
+    }
+
+    private static interface Source<T> {
+
+        T next() throws IOException;
+    }
+
+    /**
+     * Receives the result of each batch in read order, only ever called from
+     * the writer thread
+     */
+    public static interface Writer<R> {
+
+        void write(R result) throws IOException;
+    }
+
+    private static class Batch<R> {
+
+        private final List<?> items;
+        private R result;
+        private Throwable error;
+        private boolean done = false;
+
+        Batch(List<?> items) {
+            this.items = items;
+        }
+
+        synchronized void finish(R result, Throwable error) {
+            this.result = result;
+            this.error = error;
+            done = true;
+            notifyAll();
+        }
+
+        synchronized void await() throws InterruptedException {
+            while (!done) {
+                wait();
+            }
+        }
+    }
+
+    private final Batch<R> END = new Batch<R>(null);
+    private final int numWorkers;
+    private final int batchSize;
+    private final int queueSize;
+
+    public ReadPipeline(int numWorkers) {
+        this(numWorkers, DEFAULT_BATCH_SIZE, numWorkers * 4);
+    }
+
+    public ReadPipeline(int numWorkers, int batchSize, int queueSize) {
+        if (numWorkers < 1 || batchSize < 1 || queueSize < 1) {
+            throw new IllegalArgumentException("Number of workers, batch size and queue size must all be positive");
+        }
+
+        this.numWorkers = numWorkers;
+        this.batchSize = batchSize;
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * Runs every sequence from the reader through the pipeline, returns once
+     * all the results have been written. The first exception thrown by a
+     * worker or the writer stops the pipeline and is rethrown here.
+     *
+     * @return the number of sequences read
+     */
+    public long run(final SeqReader reader, Worker<R> worker, Writer<R> writer) throws IOException, InterruptedException {
+        return runSource(new Source<Sequence>() {
+
+            public Sequence next() throws IOException {
+                return reader.readNextSequence();
+            }
+        }, worker, writer);
+    }
+
+    /**
+     * Same as above but the workers get the reads as records in the mapped
+     * file instead of Sequence objects
+     */
+    public long runMapped(final MappedSeqReader reader, RecordWorker<R> worker, Writer<R> writer) throws IOException, InterruptedException {
+        return runSource(new Source<ReadRecord>() {
+
+            public ReadRecord next() throws IOException {
+                return reader.readNextRecord();
+            }
+        }, worker, writer);
+    }
+
+    private <T> long runSource(Source<T> source, final BatchWorker<T, R> worker, final Writer<R> writer) throws IOException, InterruptedException {
+        final BlockingQueue<Batch<R>> work = new LinkedBlockingQueue<Batch<R>>();
+        final BlockingQueue<Batch<R>> pending = new ArrayBlockingQueue<Batch<R>>(queueSize);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+
+        ExecutorService service = Executors.newFixedThreadPool(numWorkers);
+        for (int index = 0; index < numWorkers; index++) {
+            service.submit(new Runnable() {
+
+                @SuppressWarnings("unchecked")
+                public void run() {
+                    try {
+                        Batch<R> batch;
+                        while ((batch = work.take()) != END) {
+                            try {
+                                batch.finish(error.get() == null ? worker.process((List<T>) batch.items) : null, null);
+                            } catch (Throwable e) {
+                                batch.finish(null, e);
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+
+        /*
+         * The writer keeps draining after a failure so the reader can never
+         * block forever on a full queue
+         */
+        Thread writerThread = new Thread(new Runnable() {
+
+            public void run() {
+                try {
+                    Batch<R> batch;
+                    while ((batch = pending.take()) != END) {
+                        batch.await();
+                        if (error.get() != null) {
+                            continue;
+                        }
+
+                        if (batch.error != null) {
+                            error.compareAndSet(null, batch.error);
+                        } else {
+                            try {
+                                writer.write(batch.result);
+                            } catch (Throwable e) {
+                                error.compareAndSet(null, e);
+                            }
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    error.compareAndSet(null, e);
+                }
+            }
+        }, "read-pipeline-writer");
+        writerThread.start();
+
+        long count = 0;
+        try {
+            List<T> seqs = new ArrayList<T>(batchSize);
+            T seq;
+            while (error.get() == null && (seq = source.next()) != null) {
+                seqs.add(seq);
+                count++;
+
+                if (seqs.size() == batchSize) {
+                    submit(seqs, work, pending);
+                    seqs = new ArrayList<T>(batchSize);
+                }
+            }
+
+            if (!seqs.isEmpty()) {
+                submit(seqs, work, pending);
+            }
+        } finally {
+            for (int index = 0; index < numWorkers; index++) {
+                work.put(END);
+            }
+            pending.put(END);
+
+            service.shutdown();
+            service.awaitTermination(1, TimeUnit.DAYS);
+            writerThread.join();
+        }
+
+        Throwable t = error.get();
+        if (t instanceof IOException) {
+            throw (IOException) t;
+        } else if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        } else if (t != null) {
+            throw new IOException(t);
+        }
+
+        return count;
+    }
+
+    private void submit(List<?> seqs, BlockingQueue<Batch<R>> work, BlockingQueue<Batch<R>> pending) throws InterruptedException {
+        Batch<R> batch = new Batch<R>(seqs);
+        pending.put(batch);
+        work.put(batch);
+    }
+}
@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.kmer.cli;
+
+import edu.msu.cme.rdp.kmer.Kmer;
+import edu.msu.cme.rdp.kmer.set.KmerSketch;
+import edu.msu.cme.rdp.kmer.set.NuclKmerGenerator;
+import edu.msu.cme.rdp.kmer.set.SortedKmerRuns;
+import edu.msu.cme.rdp.readseq.readers.Sequence;
+import edu.msu.cme.rdp.readseq.readers.SequenceReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.PosixParser;
+
+/**
+ * Compares the forward kmers of every pair of a set of sequence files, like
+ * SharedKmers, without reading any file more than once.
+ *
+ * Each file is streamed once in to a bottom-k MinHash sketch, then the
+ * Jaccard similarity and containment of every pair are estimated from the
+ * sketches. Pairs that are similar enough can be counted exactly, each file
+ * taking part in one is sorted once in to kmer runs on disk and the runs are
+ * merged pair by pair as in SharedKmers' out of core mode.
+ *
+ * @author fishjord
+ */
+public class SharedKmerMatrix {
+
+    private static final Options options = new Options();
+    private static final int DEFAULT_SKETCH_SIZE = 1000;
+    private static final int DEFAULT_EXACT_MEMORY_MB = 256;
+
+    static {
+        options.addOption("s", "sketch_size", true, "Number of kmer hashes to keep per file (default " + DEFAULT_SKETCH_SIZE + ")");
+        options.addOption("t", "threads", true, "#Threads to sketch files and compare pairs with (default 1)");
+        options.addOption("e", "exact", true, "Count the shared kmers exactly for pairs with an estimated jaccard similarity of at least this much");
+        options.addOption("m", "memory", true, "MB of sort buffers to use per file when counting pairs exactly (default " + DEFAULT_EXACT_MEMORY_MB + ")");
+        options.addOption("d", "tmp_dir", true, "Directory for the sorted kmer runs made when counting pairs exactly (default system temp directory)");
+    }
+
+    /**
+     * Similarity of every pair of files, jaccard is symmetric, containment[i][j]
+     * is the fraction of the distinct kmers of file i that are in file j
+     */
+    public static class Matrix {
+
+        public final double[][] jaccard;
+        public final double[][] containment;
+        public final Map<String, SharedKmers.RunCounts> exactCounts = new HashMap();
+
+        private Matrix(int n) {
+            jaccard = new double[n][n];
+            containment = new double[n][n];
+        }
+    }
+
+    public static KmerSketch sketch(SequenceReader reader, int kmerSize, int sketchSize) throws IOException {
+        KmerSketch ret = new KmerSketch(sketchSize);
+        Sequence seq;
+        while ((seq = reader.readNextSequence()) != null) {
+            if (seq.getSeqString().length() < kmerSize) {
+                continue;
+            }
+
+            //only check forward direction
+            NuclKmerGenerator kmerGenerator = new NuclKmerGenerator(seq.getSeqString(), kmerSize);
+            while (kmerGenerator.advance()) {
+                ret.add(kmerGenerator.word0(), kmerGenerator.word1());
+            }
+        }
+        reader.close();
+        return ret;
+    }
+
+    private static void runAll(List<Callable<Object>> tasks, int threads) throws IOException {
+        ExecutorService service = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, tasks.size())));
+        try {
+            List<Future<Object>> futures = new ArrayList();
+            for (Callable<Object> task : tasks) {
+                futures.add(service.submit(task));
+            }
+            for (Future<Object> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted waiting for worker threads");
+        } catch (ExecutionException e) {
+            Throwable t = e.getCause();
+            if (t instanceof IOException) {
+                throw (IOException) t;
+            } else if (t instanceof RuntimeException) {
+                throw (RuntimeException) t;
+            } else if (t instanceof Error) {
+                throw (Error) t;
+            }
+            throw new RuntimeException(t);
+        } finally {
+            service.shutdownNow();
+        }
+    }
+
+    /**
+     * Sketches every file, reading up to threads files at once
+     */
+    public static KmerSketch[] sketchAll(final List<File> files, final int kmerSize, final int sketchSize, int threads) throws IOException {
+        final KmerSketch[] ret = new KmerSketch[files.size()];
+        List<Callable<Object>> tasks = new ArrayList();
+        for (int index = 0; index < files.size(); index++) {
+            final int i = index;
+            tasks.add(new Callable<Object>() {
+                public Object call() throws IOException {
+                    ret[i] = sketch(new SequenceReader(files.get(i)), kmerSize, sketchSize);
+                    return null;
+                }
+            });
+        }
+        runAll(tasks, threads);
+        return ret;
+    }
+
+    /**
+     * Estimates every cell of the matrix from the sketches, a row per task
+     */
+    public static Matrix compare(final KmerSketch[] sketches, int threads) throws IOException {
+        final Matrix ret = new Matrix(sketches.length);
+        List<Callable<Object>> tasks = new ArrayList();
+        for (int index = 0; index < sketches.length; index++) {
+            final int i = index;
+            tasks.add(new Callable<Object>() {
+                public Object call() {
+                    for (int j = 0; j < sketches.length; j++) {
+                        ret.jaccard[i][j] = KmerSketch.jaccard(sketches[i], sketches[j]);
+                        ret.containment[i][j] = KmerSketch.containment(sketches[i], sketches[j]);
+                    }
+                    return null;
+                }
+            });
+        }
+        runAll(tasks, threads);
+        return ret;
+    }
+
+    /**
+     * Replaces the estimates for every pair with an estimated jaccard of at
+     * least minJaccard with exact counts
+     */
+    public static void countExact(final Matrix matrix, List<File> files, int kmerSize, double minJaccard, File tmpDir, int bufferKmers, int threads) throws IOException {
+        final List<int[]> pairs = new ArrayList();
+        Map<Integer, SortedKmerRuns> runs = new HashMap();
+        for (int i = 0; i < files.size(); i++) {
+            for (int j = i + 1; j < files.size(); j++) {
+                if (matrix.jaccard[i][j] >= minJaccard) {
+                    pairs.add(new int[]{i, j});
+                    runs.put(i, null);
+                    runs.put(j, null);
+                }
+            }
+        }
+
+        try {
+            for (Integer i : new ArrayList<Integer>(runs.keySet())) {
+                runs.put(i, SharedKmers.sortKmers(new SequenceReader(files.get(i)), kmerSize, tmpDir, bufferKmers, threads));
+            }
+
+            final Map<Integer, SortedKmerRuns> sortedRuns = runs;
+            List<Callable<Object>> tasks = new ArrayList();
+            for (final int[] pair : pairs) {
+                tasks.add(new Callable<Object>() {
+                    public Object call() throws IOException {
+                        int i = pair[0], j = pair[1];
+                        SharedKmers.RunCounts counts = SharedKmers.mergeRuns(sortedRuns.get(i), sortedRuns.get(j));
+                        long union = counts.unique1 + counts.unique2 + counts.shared;
+
+                        synchronized (matrix) {
+                            matrix.jaccard[i][j] = matrix.jaccard[j][i] = (union == 0) ? 0 : (double) counts.shared / union;
+                            matrix.containment[i][j] = (counts.unique1 + counts.shared == 0) ? 0 : (double) counts.shared / (counts.unique1 + counts.shared);
+                            matrix.containment[j][i] = (counts.unique2 + counts.shared == 0) ? 0 : (double) counts.shared / (counts.unique2 + counts.shared);
+                            matrix.exactCounts.put(i + "\t" + j, counts);
+                        }
+                        return null;
+                    }
+                });
+            }
+            runAll(tasks, threads);
+        } finally {
+            for (SortedKmerRuns r : runs.values()) {
+                if (r != null) {
+                    r.delete();
+                }
+            }
+        }
+    }
+
+    private static void printMatrix(PrintStream out, String title, List<String> names, double[][] values) {
+        DecimalFormat format = new DecimalFormat("0.0000");
+        out.print("#" + title);
+        for (String name : names) {
+            out.print("\t" + name);
+        }
+        out.println();
+
+        for (int i = 0; i < names.size(); i++) {
+            out.print(names.get(i));
+            for (int j = 0; j < names.size(); j++) {
+                out.print("\t" + format.format(values[i][j]));
+            }
+            out.println();
+        }
+    }
+
+    public static void print(PrintStream out, Matrix matrix, List<String> names) {
+        printMatrix(out, "jaccard", names, matrix.jaccard);
+        out.println();
+        printMatrix(out, "containment", names, matrix.containment);
+
+        boolean header = false;
+        for (int i = 0; i < names.size(); i++) {
+            for (int j = i + 1; j < names.size(); j++) {
+                SharedKmers.RunCounts counts = matrix.exactCounts.get(i + "\t" + j);
+                if (counts == null) {
+                    continue;
+                }
+                if (!header) {
+                    out.println();
+                    out.println("#file1\tfile2\tshared\tunique1\tunique2");
+                    header = true;
+                }
+                out.println(names.get(i) + "\t" + names.get(j) + "\t" + counts.shared + "\t" + counts.unique1 + "\t" + counts.unique2);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int kmerSize;
+        int sketchSize = DEFAULT_SKETCH_SIZE;
+        int threads = 1;
+        double minJaccard = -1;
+        long memoryBytes = (long) DEFAULT_EXACT_MEMORY_MB << 20;
+        File tmpDir = null;
+        List<File> files = new ArrayList();
+
+        try {
+            CommandLine line = new PosixParser().parse(options, args);
+            if (line.hasOption("sketch_size")) {
+                sketchSize = Integer.valueOf(line.getOptionValue("sketch_size"));
+                if (sketchSize < 1) {
+                    throw new Exception("Sketch size must be positive");
+                }
+            }
+            if (line.hasOption("threads")) {
+                threads = Integer.valueOf(line.getOptionValue("threads"));
+                if (threads < 1) {
+                    throw new Exception("Number of threads must be positive");
+                }
+            }
+            if (line.hasOption("exact")) {
+                minJaccard = Double.valueOf(line.getOptionValue("exact"));
+            }
+            if (line.hasOption("memory")) {
+                memoryBytes = Long.valueOf(line.getOptionValue("memory")) << 20;
+                if (memoryBytes <= 0) {
+                    throw new Exception("Memory budget must be positive");
+                }
+            }
+            if (line.hasOption("tmp_dir")) {
+                tmpDir = new File(line.getOptionValue("tmp_dir"));
+                if (!tmpDir.isDirectory()) {
+                    throw new Exception(tmpDir + " is not a directory");
+                }
+            }
+
+            args = line.getArgs();
+            if (args.length < 3) {
+                throw new Exception("Expected a kmer size and at least two sequence files");
+            }
+            kmerSize = Integer.parseInt(args[0]);
+            if (kmerSize > Kmer.max_nucl_kmer_size) {
+                throw new Exception("kmerSize should be less than " + Kmer.max_nucl_kmer_size);
+            }
+            for (int index = 1; index < args.length; index++) {
+                files.add(new File(args[index]));
+            }
+        } catch (Exception e) {
+            new HelpFormatter().printHelp("SharedKmerMatrix [options] <k> <seq_file> <seq_file>...", options);
+            System.err.println("Error: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        long startTime = System.currentTimeMillis();
+        KmerSketch[] sketches = sketchAll(files, kmerSize, sketchSize, threads);
+        System.err.println("Sketched " + files.size() + " files in " + (System.currentTimeMillis() - startTime) / 1000.0 + "s");
+
+        Matrix matrix = compare(sketches, threads);
+        if (minJaccard >= 0) {
+            startTime = System.currentTimeMillis();
+            int keyLength = (kmerSize > Kmer.max_nucl_kmer_size / 2) ? 2 : 1;
+            long bufferKmers = Math.max(1, memoryBytes / (8L * keyLength * (threads + 1)));
+            countExact(matrix, files, kmerSize, minJaccard, tmpDir, (int) Math.min(Integer.MAX_VALUE / 2, bufferKmers), threads);
+            System.err.println("Counted " + matrix.exactCounts.size() + " pairs exactly in " + (System.currentTimeMillis() - startTime) / 1000.0 + "s");
+        }
+
+        List<String> names = new ArrayList();
+        for (int index = 1; index < args.length; index++) {
+            names.add(args[index]);
+        }
+        print(System.out, matrix, names);
+    }
+}
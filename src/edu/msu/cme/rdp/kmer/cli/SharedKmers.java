@@ -19,11 +19,16 @@ package edu.msu.cme.rdp.kmer.cli;
 
 import edu.msu.cme.rdp.kmer.Kmer;
 import edu.msu.cme.rdp.kmer.set.NuclKmerGenerator;
+import edu.msu.cme.rdp.kmer.set.SortedKmerRuns;
 import edu.msu.cme.rdp.readseq.readers.Sequence;
 import edu.msu.cme.rdp.readseq.readers.SequenceReader;
 import java.io.File;
 import java.io.IOException;
 import java.util.HashMap;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.PosixParser;
 
 
 /**
@@ -32,6 +37,24 @@ import java.util.HashMap;
  */
 public class SharedKmers {
     
+    private static final Options options = new Options();
+
+    static {
+        options.addOption("t", "threads", true, "#Threads to sort kmers with when comparing out of core (default 1)");
+        options.addOption("m", "memory", true, "Compare out of core, through sorted runs of kmers on disk made with sort buffers that fit in this many MB");
+        options.addOption("d", "tmp_dir", true, "Directory for the out of core sorted runs (default system temp directory)");
+    }
+
+    /**
+     * Counts from merging the sorted kmers of two files
+     */
+    public static class RunCounts {
+        public long total;      // same as the in memory total, distinct kmers in file 1 plus occurrences of the file 2 kmers not in file 1
+        public long shared;     // distinct kmers in both files
+        public long unique1;    // distinct kmers only in file 1
+        public long unique2;    // distinct kmers only in file 2
+    }
+
     private int kmerSize;
     private HashMap<Kmer, Integer> kmerMaps = new HashMap<Kmer, Integer>();  // contains kmer maps for forward and reverse direction
    
@@ -98,19 +121,156 @@ public class SharedKmers {
         System.out.println("total\t" + totalKmers + "\tshared\t" + (totalKmers -notFound) + "\tpct\t" +  (double)(totalKmers -notFound)/(double)totalKmers);
     }
     
+    /**
+     * Adds the forward kmers of every read in the file to sorted runs on disk
+     */
+    public static SortedKmerRuns sortKmers(SequenceReader reader, int kmerSize, File tmpDir, int bufferKmers, int threads) throws IOException{
+        int keyLength = (kmerSize > Kmer.max_nucl_kmer_size / 2) ? 2 : 1;
+        SortedKmerRuns runs = new SortedKmerRuns(tmpDir, keyLength, bufferKmers, threads);
+        try {
+            Sequence seq;
+            while ( (seq = reader.readNextSequence()) !=null){
+                if ( seq.getSeqString().length() < kmerSize){
+                    continue;
+                }
+
+                //only check forward direction
+                NuclKmerGenerator kmerGenerator = new NuclKmerGenerator(seq.getSeqString(), kmerSize);
+                while ( kmerGenerator.advance()){
+                    runs.add(kmerGenerator.word0(), kmerGenerator.word1());
+                }
+            }
+            reader.close();
+            runs.finish();
+        } catch (IOException e){
+            runs.delete();
+            throw e;
+        } catch (RuntimeException e){
+            runs.delete();
+            throw e;
+        }
+        return runs;
+    }
+
+    /**
+     * Walks the sorted distinct kmers of both files together, only one kmer
+     * from each file is in memory at a time
+     */
+    public static RunCounts mergeRuns(SortedKmerRuns runs1, SortedKmerRuns runs2) throws IOException{
+        RunCounts ret = new RunCounts();
+        long bOnly = 0;
+        SortedKmerRuns.Cursor c1 = runs1.open();
+        SortedKmerRuns.Cursor c2 = runs2.open();
+        try {
+            boolean has1 = c1.next();
+            boolean has2 = c2.next();
+            while ( has1 || has2){
+                int cmp;
+                if ( !has1){
+                    cmp = 1;
+                } else if ( !has2){
+                    cmp = -1;
+                } else {
+                    cmp = SortedKmerRuns.compare(c1.word0(), c1.word1(), c2.word0(), c2.word1());
+                }
+
+                if ( cmp < 0){
+                    ret.unique1++;
+                    has1 = c1.next();
+                } else if ( cmp > 0){
+                    ret.unique2++;
+                    bOnly += c2.count();
+                    has2 = c2.next();
+                } else {
+                    ret.shared++;
+                    has1 = c1.next();
+                    has2 = c2.next();
+                }
+            }
+        } finally {
+            c1.close();
+            c2.close();
+        }
+
+        ret.total = ret.unique1 + ret.shared + bOnly;
+        return ret;
+    }
+
+    /**
+     * Same comparison as the constructor but through sorted runs of kmers on
+     * disk, so memory use is fixed no matter how big the files are
+     */
+    public static RunCounts compareOutOfCore(int kmerSize, SequenceReader reader1, SequenceReader reader2, File tmpDir, int bufferKmers, int threads) throws IOException{
+        SortedKmerRuns runs1 = sortKmers(reader1, kmerSize, tmpDir, bufferKmers, threads);
+        SortedKmerRuns runs2 = null;
+        try {
+            runs2 = sortKmers(reader2, kmerSize, tmpDir, bufferKmers, threads);
+            return mergeRuns(runs1, runs2);
+        } finally {
+            runs1.delete();
+            if ( runs2 != null){
+                runs2.delete();
+            }
+        }
+    }
+
     /**
      * This program takes two files (assuming reads are in correct direction) and compare how many kmers are shared between two files
      * @param args
      * @throws Exception 
      */
     public static void main(String[] args) throws Exception {
-        int kmerSize = Integer.parseInt(args[0]);
-        if ( kmerSize > Kmer.max_nucl_kmer_size ){
-            throw new Exception("kmerSize should be less than " + Kmer.max_nucl_kmer_size);
-        }        
+        int kmerSize;
+        int threads = 1;
+        long memoryBytes = -1;
+        File tmpDir = null;
+
+        try {
+            CommandLine line = new PosixParser().parse(options, args);
+            if ( line.hasOption("threads")){
+                threads = Integer.valueOf(line.getOptionValue("threads"));
+                if ( threads < 1){
+                    throw new Exception("Number of threads must be positive");
+                }
+            }
+            if ( line.hasOption("memory")){
+                memoryBytes = Long.valueOf(line.getOptionValue("memory")) << 20;
+                if ( memoryBytes <= 0){
+                    throw new Exception("Memory budget must be positive");
+                }
+            }
+            if ( line.hasOption("tmp_dir")){
+                tmpDir = new File(line.getOptionValue("tmp_dir"));
+                if ( !tmpDir.isDirectory()){
+                    throw new Exception(tmpDir + " is not a directory");
+                }
+            }
+
+            args = line.getArgs();
+            if ( args.length != 3){
+                throw new Exception("Unexpected number of arguments");
+            }
+            kmerSize = Integer.parseInt(args[0]);
+            if ( kmerSize > Kmer.max_nucl_kmer_size ){
+                throw new Exception("kmerSize should be less than " + Kmer.max_nucl_kmer_size);
+            }
+        } catch (Exception e){
+            new HelpFormatter().printHelp("SharedKmers [options] <k> <seq_file1> <seq_file2>", options);
+            System.err.println("Error: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
 
         System.out.print(args[1] + "\t" + args[2] + "\t");
-        SharedKmers theObj = new SharedKmers(kmerSize, new SequenceReader(new File(args[1])), new SequenceReader(new File(args[2])));
-       
+        if ( memoryBytes > 0){
+            // one sort buffer per thread plus the one being filled
+            int keyLength = (kmerSize > Kmer.max_nucl_kmer_size / 2) ? 2 : 1;
+            long bufferKmers = Math.max(1, memoryBytes / (8L * keyLength * (threads + 1)));
+            RunCounts counts = compareOutOfCore(kmerSize, new SequenceReader(new File(args[1])), new SequenceReader(new File(args[2])), tmpDir, (int) Math.min(Integer.MAX_VALUE / 2, bufferKmers), threads);
+            System.out.println("total\t" + counts.total + "\tshared\t" + counts.shared + "\tpct\t" +  (double)counts.shared/(double)counts.total
+                    + "\tunique1\t" + counts.unique1 + "\tunique2\t" + counts.unique2);
+        } else {
+            SharedKmers theObj = new SharedKmers(kmerSize, new SequenceReader(new File(args[1])), new SequenceReader(new File(args[2])));
+        }
     }
 }
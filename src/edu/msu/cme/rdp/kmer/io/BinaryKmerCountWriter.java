@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2013 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.kmer.io;
+
+import java.io.*;
+
+/**
+ * Writes packed kmers and their counts as fixed size binary records so the
+ * file can be memory mapped and read (or binary searched once sorted)
+ * without parsing.
+ *
+ * Layout (big endian):
+ * <pre>
+ * header   magic, version, k, key length (4 ints)
+ * records  key length longs (packed kmer, first base in the high bits of the
+ *          first word) followed by an int count
+ * </pre>
+ * The number of records is (file length - 16) / (key length * 8 + 4).
+ *
+ * @author Jordan Fish <fishjord at msu.edu>
+ */
+public class BinaryKmerCountWriter {
+
+    public static final int MAGIC = 0x4B434E54;  // KCNT
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 16;
+
+    private final DataOutputStream out;
+    private final int keyLength;
+
+    public BinaryKmerCountWriter(OutputStream os, int k, int keyLength) throws IOException {
+        if (keyLength != 1 && keyLength != 2) {
+            throw new IllegalArgumentException("Key length must be 1 or 2, not " + keyLength);
+        }
+
+        this.keyLength = keyLength;
+        out = new DataOutputStream(new BufferedOutputStream(os, 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(k);
+        out.writeInt(keyLength);
+    }
+
+    public BinaryKmerCountWriter(File f, int k, int keyLength) throws IOException {
+        this(new FileOutputStream(f), k, keyLength);
+    }
+
+    public static int getRecordSize(int keyLength) {
+        return keyLength * 8 + 4;
+    }
+
+    public void write(long k0, long k1, int count) throws IOException {
+        out.writeLong(k0);
+        if (keyLength == 2) {
+            out.writeLong(k1);
+        }
+        out.writeInt(count);
+    }
+
+    public void close() throws IOException {
+        out.close();
+    }
+}
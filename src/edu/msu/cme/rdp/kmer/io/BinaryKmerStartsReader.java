@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2013 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.kmer.io;
+
+import static edu.msu.cme.rdp.kmer.io.BinaryKmerStartsWriter.*;
+import edu.msu.cme.rdp.readseq.utils.NuclBinMapping;
+import edu.msu.cme.rdp.readseq.utils.ProtBinMapping;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streams kmer starts back out of a file written by BinaryKmerStartsWriter
+ *
+ * @author Jordan Fish <fishjord at msu.edu>
+ */
+public class BinaryKmerStartsReader {
+
+    private final DataInputStream in;
+    private final List<String> geneNames = new ArrayList();
+    private final List<String> refIds = new ArrayList();
+    private String lastQueryId = null;
+    private byte[] strBuf = new byte[256];
+    private char[] kmerBuf = new char[64];
+
+    public BinaryKmerStartsReader(InputStream is) throws IOException {
+        in = new DataInputStream(new BufferedInputStream(is, 1 << 16));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a binary kmer starts file");
+        }
+
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported binary kmer starts version " + version);
+        }
+    }
+
+    public BinaryKmerStartsReader(File f) throws IOException {
+        this(new FileInputStream(f));
+    }
+
+    public BinaryKmerStartsReader(String file) throws IOException {
+        this(new File(file));
+    }
+
+    /**
+     * Checks for the binary kmer starts magic number at the start of a file
+     */
+    public static boolean isBinary(File f) throws IOException {
+        DataInputStream is = new DataInputStream(new FileInputStream(f));
+        try {
+            return f.length() >= 8 && is.readInt() == MAGIC;
+        } finally {
+            is.close();
+        }
+    }
+
+    public KmerStart readNext() throws IOException {
+        int flags = in.read();
+        if (flags == -1) {
+            return null;
+        }
+
+        boolean prot = (flags & FLAG_PROT) != 0;
+
+        if ((flags & FLAG_NEW_QUERY) != 0) {
+            lastQueryId = readString();
+        } else if (lastQueryId == null) {
+            throw new IOException("Record refers to a previous query id but none has been read");
+        }
+
+        String geneName;
+        if ((flags & FLAG_NEW_GENE) != 0) {
+            geneName = readString();
+            geneNames.add(geneName);
+        } else {
+            geneName = lookup(geneNames, readVarint(), "gene");
+        }
+
+        String refId;
+        if ((flags & FLAG_NEW_REF) != 0) {
+            refId = readString();
+            refIds.add(refId);
+        } else {
+            refId = lookup(refIds, readVarint(), "ref");
+        }
+
+        String nuclKmer;
+        if ((flags & FLAG_NUCL_STRING) != 0) {
+            nuclKmer = readString();
+        } else {
+            nuclKmer = readPacked(NuclBinMapping.intToChar, 2);
+        }
+
+        int frame = unzigzag(readVarint());
+        int mpos = unzigzag(readVarint());
+
+        String protKmer = null;
+        if (prot) {
+            if ((flags & FLAG_PROT_STRING) != 0) {
+                protKmer = readString();
+            } else {
+                protKmer = readPacked(ProtBinMapping.intToChar, 5);
+            }
+        }
+
+        return new KmerStart(geneName, lastQueryId, refId, nuclKmer, frame, mpos, prot, protKmer);
+    }
+
+    private static String lookup(List<String> dict, int id, String type) throws IOException {
+        if (id < 0 || id >= dict.size()) {
+            throw new IOException("Undefined " + type + " id " + id);
+        }
+        return dict.get(id);
+    }
+
+    private static int unzigzag(int i) {
+        return (i >>> 1) ^ -(i & 1);
+    }
+
+    private int readVarint() throws IOException {
+        int ret = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            ret |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return ret;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private String readString() throws IOException {
+        int len = readVarint();
+        if (len > strBuf.length) {
+            strBuf = new byte[Math.max(len, strBuf.length * 2)];
+        }
+        in.readFully(strBuf, 0, len);
+        return new String(strBuf, 0, len, "UTF-8");
+    }
+
+    private String readPacked(char[] intToChar, int bitsPerChar) throws IOException {
+        int len = readVarint();
+        if (len > kmerBuf.length) {
+            kmerBuf = new char[Math.max(len, kmerBuf.length * 2)];
+        }
+
+        int mask = (1 << bitsPerChar) - 1;
+        long acc = 0;
+        int bits = 0;
+        for (int index = 0; index < len; index++) {
+            if (bits < bitsPerChar) {
+                acc = (acc << 8) | in.readUnsignedByte();
+                bits += 8;
+            }
+            bits -= bitsPerChar;
+            kmerBuf[index] = intToChar[(int) (acc >>> bits) & mask];
+        }
+
+        return new String(kmerBuf, 0, len);
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2013 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.kmer.io;
+
+import edu.msu.cme.rdp.readseq.utils.NuclBinMapping;
+import edu.msu.cme.rdp.readseq.utils.ProtBinMapping;
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes kmer starts in a compact binary format.
+ *
+ * The file starts with a magic number and version followed by one record per
+ * kmer start. Each record begins with a flag byte:
+ * <pre>
+ * 0x01  prot kmer present
+ * 0x02  new query id, the id follows as a string
+ * 0x04  new gene name, the name follows as a string and gets the next gene ordinal
+ * 0x08  new ref id, the id follows as a string and gets the next ref ordinal
+ * 0x10  nucl kmer stored as a string instead of 2 bit packed
+ * 0x20  prot kmer stored as a string instead of 5 bit packed
+ * </pre>
+ * then the gene and ref ordinals (varints, omitted when newly defined), the
+ * nucl kmer, the frame and model position (zigzag varints) and the prot kmer
+ * if present. Query ids are not dictionary encoded, a record only repeats the
+ * query id when it differs from the previous record's. Packed kmers are a
+ * varint length followed by the packed bits, first base in the high bits.
+ * Strings are a varint byte length followed by UTF-8 bytes.
+ *
+ * @author Jordan Fish <fishjord at msu.edu>
+ */
+public class BinaryKmerStartsWriter {
+
+    static final int MAGIC = 0x4B535442;  // KSTB
+    static final int VERSION = 1;
+    static final int FLAG_PROT = 0x01;
+    static final int FLAG_NEW_QUERY = 0x02;
+    static final int FLAG_NEW_GENE = 0x04;
+    static final int FLAG_NEW_REF = 0x08;
+    static final int FLAG_NUCL_STRING = 0x10;
+    static final int FLAG_PROT_STRING = 0x20;
+
+    private final DataOutputStream out;
+    private final Map<String, Integer> geneIds = new HashMap();
+    private final Map<String, Integer> refIds = new HashMap();
+    private String lastQueryId = null;
+
+    public BinaryKmerStartsWriter(OutputStream os) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(os, 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+    }
+
+    public BinaryKmerStartsWriter(File f) throws IOException {
+        this(new FileOutputStream(f));
+    }
+
+    public BinaryKmerStartsWriter(String file) throws IOException {
+        this(new File(file));
+    }
+
+    public void write(KmerStart start) throws IOException {
+        boolean prot = start.isProt() && start.getProtKmer() != null;
+        Integer geneId = geneIds.get(start.getGeneName());
+        Integer refId = refIds.get(start.getRefId());
+
+        int flags = 0;
+        if (prot) {
+            flags |= FLAG_PROT;
+            if (!isPackable(start.getProtKmer(), ProtBinMapping.asciiMap, ProtBinMapping.intToChar)) {
+                flags |= FLAG_PROT_STRING;
+            }
+        }
+        if (!start.getQueryId().equals(lastQueryId)) {
+            flags |= FLAG_NEW_QUERY;
+        }
+        if (geneId == null) {
+            flags |= FLAG_NEW_GENE;
+        }
+        if (refId == null) {
+            flags |= FLAG_NEW_REF;
+        }
+        if (!isPackable(start.getNuclKmer(), NuclBinMapping.validateLookup, NuclBinMapping.intToChar)) {
+            flags |= FLAG_NUCL_STRING;
+        }
+
+        out.writeByte(flags);
+
+        if ((flags & FLAG_NEW_QUERY) != 0) {
+            writeString(start.getQueryId());
+            lastQueryId = start.getQueryId();
+        }
+
+        if (geneId == null) {
+            geneIds.put(start.getGeneName(), geneIds.size());
+            writeString(start.getGeneName());
+        } else {
+            writeVarint(geneId);
+        }
+
+        if (refId == null) {
+            refIds.put(start.getRefId(), refIds.size());
+            writeString(start.getRefId());
+        } else {
+            writeVarint(refId);
+        }
+
+        if ((flags & FLAG_NUCL_STRING) != 0) {
+            writeString(start.getNuclKmer());
+        } else {
+            writePacked(start.getNuclKmer(), NuclBinMapping.validateLookup, 2);
+        }
+
+        writeVarint(zigzag(start.getFrame()));
+        writeVarint(zigzag(start.getMpos()));
+
+        if (prot) {
+            if ((flags & FLAG_PROT_STRING) != 0) {
+                writeString(start.getProtKmer());
+            } else {
+                writePacked(start.getProtKmer(), ProtBinMapping.asciiMap, 5);
+            }
+        }
+    }
+
+    /**
+     * A kmer can be packed if every character maps to a code that decodes
+     * back to the same character
+     */
+    private static boolean isPackable(String kmer, byte[] lookup, char[] intToChar) {
+        for (int index = 0; index < kmer.length(); index++) {
+            char c = kmer.charAt(index);
+            if (c >= lookup.length || lookup[c] < 0 || intToChar[lookup[c]] != c) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static int zigzag(int i) {
+        return (i << 1) ^ (i >> 31);
+    }
+
+    private void writeVarint(int i) throws IOException {
+        while ((i & ~0x7f) != 0) {
+            out.writeByte((i & 0x7f) | 0x80);
+            i >>>= 7;
+        }
+        out.writeByte(i);
+    }
+
+    private void writeString(String s) throws IOException {
+        byte[] bytes = s.getBytes("UTF-8");
+        writeVarint(bytes.length);
+        out.write(bytes);
+    }
+
+    private void writePacked(String kmer, byte[] lookup, int bitsPerChar) throws IOException {
+        writeVarint(kmer.length());
+
+        long acc = 0;
+        int bits = 0;
+        for (int index = 0; index < kmer.length(); index++) {
+            acc = (acc << bitsPerChar) | lookup[kmer.charAt(index)];
+            bits += bitsPerChar;
+            if (bits >= 8) {
+                bits -= 8;
+                out.writeByte((int) (acc >>> bits));
+            }
+        }
+
+        if (bits > 0) {
+            out.writeByte((int) (acc << (8 - bits)));
+        }
+    }
+
+    public void close() throws IOException {
+        out.close();
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2013 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.kmer.io;
+
+import edu.msu.cme.rdp.readseq.utils.NuclBinMapping;
+import java.io.*;
+
+/**
+ * Writes packed nucleotide kmers and their counts as "kmer\tcount" lines.
+ *
+ * Kmers are decoded straight from the packed words in to a reusable line
+ * buffer, a byte of packed bases (four bases) at a time through a lookup
+ * table, so no Kmer or String is created per line.
+ *
+ * @author Jordan Fish <fishjord at msu.edu>
+ */
+public class KmerCountWriter {
+
+    private static final int BASES_PER_WORD = 32;
+    // the four bases packed in to each byte value, first base in the high bits
+    private static final byte[] BYTE_TO_BASES = new byte[256 * 4];
+
+    static {
+        for (int b = 0; b < 256; b++) {
+            for (int index = 0; index < 4; index++) {
+                BYTE_TO_BASES[(b << 2) + index] = (byte) NuclBinMapping.intToChar[(b >>> (6 - 2 * index)) & 0x3];
+            }
+        }
+    }
+
+    private final OutputStream out;
+    private final int k;
+    private final byte[] line;
+
+    public KmerCountWriter(OutputStream os, int k) {
+        this.out = new BufferedOutputStream(os, 1 << 16);
+        this.k = k;
+        this.line = new byte[k + 12];
+    }
+
+    public KmerCountWriter(File f, int k) throws IOException {
+        this(new FileOutputStream(f), k);
+    }
+
+    /**
+     * Decodes the k bases packed in k0 (the first 32 bases) and k1 (the rest)
+     * in to buf at off
+     *
+     * @return the offset after the last base
+     */
+    public static int decode(long k0, long k1, int k, byte[] buf, int off) {
+        if (k <= BASES_PER_WORD) {
+            return decodeWord(k0, k, buf, off);
+        }
+        off = decodeWord(k0, BASES_PER_WORD, buf, off);
+        return decodeWord(k1, k - BASES_PER_WORD, buf, off);
+    }
+
+    /**
+     * Decodes the n bases packed in the low bits of word
+     */
+    private static int decodeWord(long word, int n, byte[] buf, int off) {
+        int shift = 2 * n;
+        while (shift >= 8) {
+            shift -= 8;
+            int b = ((int) (word >>> shift) & 0xff) << 2;
+            buf[off] = BYTE_TO_BASES[b];
+            buf[off + 1] = BYTE_TO_BASES[b + 1];
+            buf[off + 2] = BYTE_TO_BASES[b + 2];
+            buf[off + 3] = BYTE_TO_BASES[b + 3];
+            off += 4;
+        }
+        while (shift > 0) {
+            shift -= 2;
+            buf[off++] = (byte) NuclBinMapping.intToChar[(int) (word >>> shift) & 0x3];
+        }
+        return off;
+    }
+
+    public void write(long k0, long k1, int count) throws IOException {
+        int off = decode(k0, k1, k, line, 0);
+        line[off++] = '\t';
+
+        // count digits, written backwards from the end of the buffer
+        int end = line.length;
+        int digits = end;
+        do {
+            line[--digits] = (byte) ('0' + count % 10);
+            count /= 10;
+        } while (count > 0);
+
+        out.write(line, 0, off);
+        out.write(line, digits, end - digits);
+        out.write('\n');
+    }
+
+    public void close() throws IOException {
+        out.close();
+    }
+}
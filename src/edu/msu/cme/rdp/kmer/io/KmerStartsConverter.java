@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2013 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.kmer.io;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Converts kmer starts between the tab separated and binary formats, the
+ * direction is picked from the format of the input file
+ *
+ * @author Jordan Fish <fishjord at msu.edu>
+ */
+public class KmerStartsConverter {
+
+    public static long toBinary(File tsvFile, File binaryFile) throws IOException {
+        KmerStartsReader reader = new KmerStartsReader(tsvFile);
+        BinaryKmerStartsWriter writer = new BinaryKmerStartsWriter(binaryFile);
+        long count = 0;
+
+        try {
+            KmerStart start;
+            while ((start = reader.readNext()) != null) {
+                writer.write(start);
+                count++;
+            }
+        } finally {
+            reader.close();
+            writer.close();
+        }
+
+        return count;
+    }
+
+    public static long toTsv(File binaryFile, File tsvFile) throws IOException {
+        BinaryKmerStartsReader reader = new BinaryKmerStartsReader(binaryFile);
+        KmerStartsWriter writer = new KmerStartsWriter(tsvFile);
+        long count = 0;
+
+        try {
+            KmerStart start;
+            while ((start = reader.readNext()) != null) {
+                writer.write(start);
+                count++;
+            }
+        } finally {
+            reader.close();
+            writer.close();
+        }
+
+        return count;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("USAGE: KmerStartsConverter <kmer_starts_in> <kmer_starts_out>");
+            System.err.println("Tab separated input is converted to binary, binary input to tab separated");
+            System.exit(1);
+        }
+
+        File in = new File(args[0]);
+        File out = new File(args[1]);
+        long startTime = System.currentTimeMillis();
+        long count;
+
+        if (BinaryKmerStartsReader.isBinary(in)) {
+            count = toTsv(in, out);
+        } else {
+            count = toBinary(in, out);
+        }
+
+        System.err.println("Converted " + count + " kmer starts in " + (System.currentTimeMillis() - startTime) + " ms");
+    }
+}
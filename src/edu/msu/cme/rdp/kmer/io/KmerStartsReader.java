@@ -65,7 +65,7 @@ public class KmerStartsReader {
             protKmer = null;
         }
 
-        return new KmerStart(lexemes[0], lexemes[1], lexemes[2], lexemes[3], frame, Integer.valueOf(lexemes[7]), true, protKmer);
+        return new KmerStart(lexemes[0], lexemes[1], lexemes[2], lexemes[3], frame, Integer.valueOf(lexemes[7]), isprot, protKmer);
     }
 
     public void close() throws IOException {
@@ -17,18 +17,148 @@
 package edu.msu.cme.rdp.kmer.io;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
 
 /**
+ * Writes kmer starts as tab separated text.
+ *
+ * Worker threads can encode records in to their own RecordBuffer and hand
+ * the filled buffers to a single thread that writes them, so no lock is held
+ * while records are being formatted. Records are encoded straight to bytes
+ * and written through a channel in large chunks.
  *
  * @author Jordan Fish <fishjord at msu.edu>
  */
 public class KmerStartsWriter {
 
-    private PrintStream out;
+    private static final String HEADER = "#gene name\tquery id\trefid\tnucl kmer\tis prot?\tstarting_frame\tprot kmer\tmodel pos\n";
+    private static final int FLUSH_SIZE = 1 << 20;
+
+    /**
+     * Growable buffer of encoded kmer start records, not thread safe
+     */
+    public static class RecordBuffer {
+
+        private byte[] buf;
+        private int size = 0;
+
+        public RecordBuffer() {
+            this(8192);
+        }
+
+        public RecordBuffer(int initialCapacity) {
+            buf = new byte[Math.max(initialCapacity, 16)];
+        }
+
+        public void add(KmerStart start) {
+            append(start.getGeneName());
+            append('\t');
+            append(start.getQueryId());
+            append('\t');
+            append(start.getRefId());
+            append('\t');
+            append(start.getNuclKmer());
+            append('\t');
+            append(start.isProt() ? "true" : "false");
+            append('\t');
+
+            if (start.isProt()) {
+                append(start.getFrame());
+                append('\t');
+                append(start.getProtKmer());
+                append('\t');
+            } else {
+                append("-\t-\t");
+            }
+
+            append(start.getMpos());
+            append('\n');
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public void clear() {
+            size = 0;
+        }
+
+        private void ensureCapacity(int extra) {
+            if (size + extra > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + extra));
+            }
+        }
+
+        private void append(char c) {
+            ensureCapacity(1);
+            buf[size++] = (byte) c;
+        }
+
+        private void append(String s) {
+            if (s == null) {
+                s = "null";
+            }
+
+            int len = s.length();
+            ensureCapacity(len);
+            for (int index = 0; index < len; index++) {
+                char c = s.charAt(index);
+                if (c >= 0x80) {  // rare, fall back to the full encoder for the rest of the string
+                    appendUTF8(s.substring(index));
+                    return;
+                }
+                buf[size++] = (byte) c;
+            }
+        }
+
+        private void appendUTF8(String s) {
+            try {
+                byte[] bytes = s.getBytes("UTF-8");
+                ensureCapacity(bytes.length);
+                System.arraycopy(bytes, 0, buf, size, bytes.length);
+                size += bytes.length;
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private void append(int i) {
+            if (i == Integer.MIN_VALUE) {
+                append(Integer.toString(i));
+                return;
+            }
+
+            ensureCapacity(11);
+            if (i < 0) {
+                buf[size++] = '-';
+                i = -i;
+            }
+
+            int digits = 1;
+            for (int tmp = i; tmp >= 10; tmp /= 10) {
+                digits++;
+            }
+            for (int index = size + digits - 1; index >= size; index--) {
+                buf[index] = (byte) ('0' + i % 10);
+                i /= 10;
+            }
+            size += digits;
+        }
+    }
+
+    private final WritableByteChannel out;
+    private final RecordBuffer pending = new RecordBuffer(FLUSH_SIZE);
 
     public KmerStartsWriter(OutputStream os) throws IOException {
-        out = new PrintStream(new BufferedOutputStream(os));
-        out.println("#gene name\tquery id\trefid\tnucl kmer\tis prot?\tstarting_frame\tprot kmer\tmodel pos");
+        if (os instanceof FileOutputStream) {
+            out = ((FileOutputStream) os).getChannel();
+        } else {
+            out = Channels.newChannel(os);
+        }
+        writeFully(HEADER.getBytes("UTF-8"), HEADER.length());
     }
 
     public KmerStartsWriter(File f) throws IOException {
@@ -39,23 +169,41 @@ public class KmerStartsWriter {
         this(new File(file));
     }
 
-    public void write(KmerStart start) throws IOException {
-        out.print(start.getGeneName() + "\t"
-                + start.getQueryId() + "\t"
-                + start.getRefId() + "\t"
-                + start.getNuclKmer() + "\t"
-                + start.isProt() + "\t");
+    public synchronized void write(KmerStart start) throws IOException {
+        pending.add(start);
+        if (pending.size() >= FLUSH_SIZE) {
+            flush();
+        }
+    }
 
-        if(start.isProt()) {
-            out.print(start.getFrame() + "\t" + start.getProtKmer() + "\t");
+    /**
+     * Writes all the records in the buffer, the buffer is left unchanged
+     */
+    public synchronized void write(RecordBuffer records) throws IOException {
+        if (pending.size() + records.size() >= FLUSH_SIZE) {
+            flush();
+            writeFully(records.buf, records.size);
         } else {
-            out.print("-\t-\t");
+            pending.ensureCapacity(records.size);
+            System.arraycopy(records.buf, 0, pending.buf, pending.size, records.size);
+            pending.size += records.size;
         }
+    }
+
+    public synchronized void flush() throws IOException {
+        writeFully(pending.buf, pending.size);
+        pending.clear();
+    }
 
-        out.println(start.getMpos());
+    private void writeFully(byte[] bytes, int len) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(bytes, 0, len);
+        while (buf.hasRemaining()) {
+            out.write(buf);
+        }
     }
 
-    public void close() {
+    public synchronized void close() throws IOException {
+        flush();
         out.close();
     }
 }
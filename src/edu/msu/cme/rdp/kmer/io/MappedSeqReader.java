@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2013 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.kmer.io;
+
+import edu.msu.cme.rdp.readseq.readers.SeqReader;
+import edu.msu.cme.rdp.readseq.readers.Sequence;
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads an uncompressed fasta or fastq file through a memory mapping, each
+ * read is returned as a ReadRecord pointing in to the mapping so nothing is
+ * copied unless a string is asked for.
+ *
+ * Files are mapped in windows of up to 1GB, a record that runs off the end of
+ * a window is parsed again from the start of the next window.
+ *
+ * @author Jordan Fish <fishjord at msu.edu>
+ */
+public class MappedSeqReader implements SeqReader {
+
+    private static final long DEFAULT_WINDOW = 1L << 30;
+
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final long fileSize;
+    private final long windowSize;
+    private final boolean fastq;
+    private MappedByteBuffer buf;
+    private long bufStart;
+    private int pos;
+
+    public MappedSeqReader(File f) throws IOException {
+        this(f, DEFAULT_WINDOW);
+    }
+
+    MappedSeqReader(File f, long windowSize) throws IOException {
+        this.raf = new RandomAccessFile(f, "r");
+        this.channel = raf.getChannel();
+        this.fileSize = channel.size();
+        this.windowSize = windowSize;
+
+        map(0);
+        skipWhitespace();
+        if (pos < buf.limit() && buf.get(pos) == '@') {
+            fastq = true;
+        } else if (pos >= buf.limit() || buf.get(pos) == '>') {
+            fastq = false;
+        } else {
+            close();
+            throw new IOException(f + " is not an uncompressed fasta or fastq file");
+        }
+    }
+
+    /**
+     * True if the file looks like an uncompressed fasta or fastq file
+     */
+    public static boolean isSupported(File f) throws IOException {
+        InputStream is = new BufferedInputStream(new FileInputStream(f));
+        try {
+            int c;
+            while ((c = is.read()) != -1 && Character.isWhitespace(c));
+            return c == '>' || c == '@';
+        } finally {
+            is.close();
+        }
+    }
+
+    public boolean isFastq() {
+        return fastq;
+    }
+
+    private void map(long start) throws IOException {
+        bufStart = start;
+        buf = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(windowSize, fileSize - start));
+        pos = 0;
+    }
+
+    private boolean atEof() {
+        return bufStart + buf.limit() >= fileSize;
+    }
+
+    private void skipWhitespace() {
+        while (pos < buf.limit() && Character.isWhitespace(buf.get(pos))) {
+            pos++;
+        }
+    }
+
+    /**
+     * Returns the offset of the next newline at or after from, the end of the
+     * buffer at eof or -1 if the line isn't complete in this window
+     */
+    private int lineEnd(int from) {
+        int limit = buf.limit();
+        for (int index = from; index < limit; index++) {
+            if (buf.get(index) == '\n') {
+                return index;
+            }
+        }
+        return atEof() ? limit : -1;
+    }
+
+    private int trimCR(int start, int end) {
+        return (end > start && buf.get(end - 1) == '\r') ? end - 1 : end;
+    }
+
+    public ReadRecord readNextRecord() throws IOException {
+        while (true) {
+            skipWhitespace();
+            if (pos >= buf.limit()) {
+                if (atEof()) {
+                    return null;
+                }
+                map(bufStart + pos);
+                continue;
+            }
+
+            ReadRecord ret = fastq ? parseFastq() : parseFasta();
+            if (ret != null) {
+                return ret;
+            }
+
+            if (pos == 0) {
+                throw new IOException("Record at offset " + bufStart + " is longer than " + windowSize + " bytes");
+            }
+            map(bufStart + pos);
+        }
+    }
+
+    /**
+     * Parses the header line at pos in to name start, name end, description
+     * start, description end and line end
+     *
+     * @return false if the header line isn't complete in this window
+     */
+    private boolean parseHeader(char marker, int[] header) throws IOException {
+        if (buf.get(pos) != marker) {
+            throw new IOException("Expected '" + marker + "' at offset " + (bufStart + pos));
+        }
+
+        int end = lineEnd(pos + 1);
+        if (end == -1) {
+            return false;
+        }
+
+        int nameStart = pos + 1;
+        int lineEnd = trimCR(nameStart, end);
+        int nameEnd = nameStart;
+        while (nameEnd < lineEnd && !Character.isWhitespace(buf.get(nameEnd))) {
+            nameEnd++;
+        }
+        int descStart = nameEnd;
+        while (descStart < lineEnd && Character.isWhitespace(buf.get(descStart))) {
+            descStart++;
+        }
+
+        header[0] = nameStart;
+        header[1] = nameEnd;
+        header[2] = descStart;
+        header[3] = lineEnd;
+        header[4] = end;
+        return true;
+    }
+
+    private ReadRecord parseFasta() throws IOException {
+        int[] header = new int[5];
+        if (!parseHeader('>', header)) {
+            return null;
+        }
+
+        int seqStart = Math.min(header[4] + 1, buf.limit());
+        int limit = buf.limit();
+        int seqEnd = -1;
+        for (int index = seqStart; index < limit; index++) {
+            if (buf.get(index) == '>' && buf.get(index - 1) == '\n') {
+                seqEnd = index;
+                break;
+            }
+        }
+
+        if (seqEnd == -1) {
+            if (!atEof()) {
+                return null;
+            }
+            seqEnd = limit;
+        }
+
+        pos = seqEnd;
+        while (seqEnd > seqStart && Character.isWhitespace(buf.get(seqEnd - 1))) {
+            seqEnd--;
+        }
+
+        return new ReadRecord(buf, header[0], header[1], header[2], header[3], seqStart, seqEnd);
+    }
+
+    private ReadRecord parseFastq() throws IOException {
+        int[] header = new int[5];
+        if (!parseHeader('@', header)) {
+            return null;
+        }
+
+        int seqStart = header[4] + 1;
+        int seqLineEnd = lineEnd(seqStart);
+        if (seqLineEnd == -1) {
+            return null;
+        }
+        int plusLineEnd = lineEnd(seqLineEnd + 1);
+        if (plusLineEnd == -1) {
+            return null;
+        }
+        int qualLineEnd = lineEnd(plusLineEnd + 1);
+        if (qualLineEnd == -1) {
+            return null;
+        }
+
+        if (seqLineEnd + 1 >= buf.limit() || buf.get(seqLineEnd + 1) != '+') {
+            throw new IOException("Expected '+' line at offset " + (bufStart + seqLineEnd + 1));
+        }
+
+        pos = Math.min(qualLineEnd + 1, buf.limit());
+        return new ReadRecord(buf, header[0], header[1], header[2], header[3], seqStart, trimCR(seqStart, seqLineEnd));
+    }
+
+    public Sequence readNextSequence() throws IOException {
+        ReadRecord record = readNextRecord();
+        return (record == null) ? null : record.toSequence();
+    }
+
+    public void close() throws IOException {
+        raf.close();
+    }
+}
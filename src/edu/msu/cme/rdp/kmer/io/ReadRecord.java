@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2013 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.kmer.io;
+
+import edu.msu.cme.rdp.readseq.readers.Sequence;
+import java.nio.ByteBuffer;
+
+/**
+ * A read held as offsets in to a byte buffer (usually a mapped file). The
+ * sequence range may contain line breaks, the byte oriented kmer generators
+ * skip them. Strings are only built when one of the get methods is called.
+ *
+ * @author Jordan Fish <fishjord at msu.edu>
+ */
+public class ReadRecord {
+
+    private final ByteBuffer buf;
+    private final int nameStart;
+    private final int nameEnd;
+    private final int descStart;
+    private final int descEnd;
+    private final int seqStart;
+    private final int seqEnd;
+
+    public ReadRecord(ByteBuffer buf, int nameStart, int nameEnd, int descStart, int descEnd, int seqStart, int seqEnd) {
+        this.buf = buf;
+        this.nameStart = nameStart;
+        this.nameEnd = nameEnd;
+        this.descStart = descStart;
+        this.descEnd = descEnd;
+        this.seqStart = seqStart;
+        this.seqEnd = seqEnd;
+    }
+
+    /**
+     * Copies a sequence in to a record, for query sources that can't be
+     * mapped
+     */
+    public static ReadRecord wrap(Sequence seq) {
+        String name = seq.getSeqName();
+        String desc = (seq.getDesc() == null) ? "" : seq.getDesc();
+        String seqString = seq.getSeqString();
+        byte[] bytes = new byte[name.length() + desc.length() + seqString.length()];
+
+        int index = 0;
+        for (int i = 0; i < name.length(); i++) {
+            bytes[index++] = (byte) name.charAt(i);
+        }
+        for (int i = 0; i < desc.length(); i++) {
+            bytes[index++] = (byte) desc.charAt(i);
+        }
+        for (int i = 0; i < seqString.length(); i++) {
+            bytes[index++] = (byte) seqString.charAt(i);
+        }
+
+        int descStart = name.length();
+        int seqStart = descStart + desc.length();
+        return new ReadRecord(ByteBuffer.wrap(bytes), 0, descStart, descStart, seqStart, seqStart, bytes.length);
+    }
+
+    public ByteBuffer getBuffer() {
+        return buf;
+    }
+
+    public int getSeqStart() {
+        return seqStart;
+    }
+
+    public int getSeqEnd() {
+        return seqEnd;
+    }
+
+    /**
+     * Length of the sequence range, including any line breaks
+     */
+    public int getSeqLength() {
+        return seqEnd - seqStart;
+    }
+
+    public String getName() {
+        return getString(nameStart, nameEnd, false);
+    }
+
+    public String getDesc() {
+        return getString(descStart, descEnd, false);
+    }
+
+    public String getSeqString() {
+        return getString(seqStart, seqEnd, true);
+    }
+
+    public Sequence toSequence() {
+        return new Sequence(getName(), getDesc(), getSeqString());
+    }
+
+    private String getString(int start, int end, boolean skipLineBreaks) {
+        char[] chars = new char[end - start];
+        int len = 0;
+        for (int index = start; index < end; index++) {
+            char c = (char) (buf.get(index) & 0xff);
+            if (skipLineBreaks && (c == '\n' || c == '\r')) {
+                continue;
+            }
+            chars[len++] = c;
+        }
+        return new String(chars, 0, len);
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.kmer.set;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter used to turn away kmers that aren't in a reference set before
+ * the exact (and much slower to miss in) structure is searched.
+ *
+ * The bits are split in to 512 bit blocks, one cache line each. A key's hash
+ * picks the block and every probe bit for the key falls in that block, so a
+ * test touches a single cache line. Blocking makes the false positive rate a
+ * little higher than a plain bloom filter of the same size, the rate actually
+ * seen is reported in the stats.
+ *
+ * Keys are added and tested by 64 bit hash, hash(k0, k1) for packed kmers.
+ * Adding is thread safe so the filter can be filled while an index is built
+ * on several threads.
+ *
+ * @author fishjord
+ */
+public class BlockedBloomFilter {
+
+    private static final int BLOCK_BITS = 512;
+    private static final int BLOCK_LONGS = BLOCK_BITS / 64;
+    private static final int MAX_HASHES = 16;
+    private static final double LN2 = Math.log(2);
+
+    /**
+     * Lookup counts, not thread safe, each worker keeps its own and adds it
+     * to the filter's totals with addStats when done
+     */
+    public static class Stats {
+
+        private long queries;
+        private long rejected;
+        private long falsePositives;
+
+        /**
+         * Call when a key the filter passed wasn't found in the exact
+         * structure
+         */
+        public void falsePositive() {
+            falsePositives++;
+        }
+    }
+    private final AtomicLongArray bits;
+    private final long numBlocks;
+    private final int numHashes;
+    private final double targetFpRate;
+    private long queries;
+    private long rejected;
+    private long falsePositives;
+
+    /**
+     * @param expectedKeys number of distinct keys the filter is sized for
+     * @param fpRate target false positive rate
+     */
+    public BlockedBloomFilter(long expectedKeys, double fpRate) {
+        if (fpRate <= 0 || fpRate >= 1) {
+            throw new IllegalArgumentException("False positive rate must be between 0 and 1 (exclusive)");
+        }
+
+        double bitsPerKey = -Math.log(fpRate) / (LN2 * LN2);
+        long blocks = (long) Math.ceil(Math.max(expectedKeys, 1) * bitsPerKey / BLOCK_BITS);
+        if (blocks * BLOCK_LONGS > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Bloom filter for " + expectedKeys + " keys at a false positive rate of " + fpRate + " is too large");
+        }
+
+        this.targetFpRate = fpRate;
+        this.numBlocks = Math.max(blocks, 1);
+        this.numHashes = (int) Math.max(1, Math.min(MAX_HASHES, Math.round(bitsPerKey * LN2)));
+        this.bits = new AtomicLongArray((int) (numBlocks * BLOCK_LONGS));
+    }
+
+    /**
+     * Hash of a packed kmer, the key length 1 kmers should have k1 set to 0
+     */
+    public static long hash(long k0, long k1) {
+        return KmerSet.hash(k0, k1);
+    }
+
+    /**
+     * First long of the block for the hash, picked by the top 32 bits
+     */
+    private int blockStart(long h) {
+        return (int) (((h >>> 32) * numBlocks) >>> 32) * BLOCK_LONGS;
+    }
+
+    /**
+     * Probe bits are double hashed from the low 32 bits, each is the top 9
+     * bits of a + i * b
+     */
+    public void add(long h) {
+        int start = blockStart(h);
+        int a = (int) h;
+        int b = (int) ((h * 0x9E3779B97F4A7C15L) >>> 32) | 1;
+
+        for (int i = 0; i < numHashes; i++) {
+            int pos = (a + i * b) >>> 23;
+            int word = start + (pos >>> 6);
+            long mask = 1L << (pos & 63);
+
+            long old;
+            while (((old = bits.get(word)) & mask) == 0 && !bits.compareAndSet(word, old, old | mask));
+        }
+    }
+
+    public void add(long k0, long k1) {
+        add(hash(k0, k1));
+    }
+
+    public boolean mightContain(long h) {
+        int start = blockStart(h);
+        int a = (int) h;
+        int b = (int) ((h * 0x9E3779B97F4A7C15L) >>> 32) | 1;
+
+        for (int i = 0; i < numHashes; i++) {
+            int pos = (a + i * b) >>> 23;
+            if ((bits.get(start + (pos >>> 6)) & (1L << (pos & 63))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean mightContain(long k0, long k1) {
+        return mightContain(hash(k0, k1));
+    }
+
+    /**
+     * Same as mightContain but counts the lookup in stats
+     */
+    public boolean mightContain(long h, Stats stats) {
+        stats.queries++;
+        if (mightContain(h)) {
+            return true;
+        }
+        stats.rejected++;
+        return false;
+    }
+
+    public synchronized void addStats(Stats stats) {
+        queries += stats.queries;
+        rejected += stats.rejected;
+        falsePositives += stats.falsePositives;
+    }
+
+    public int getNumHashes() {
+        return numHashes;
+    }
+
+    public long getSizeInBytes() {
+        return numBlocks * BLOCK_LONGS * 8;
+    }
+
+    public synchronized long getQueries() {
+        return queries;
+    }
+
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    public synchronized long getFalsePositives() {
+        return falsePositives;
+    }
+
+    public synchronized void printStats() {
+        long passed = queries - rejected;
+        long negatives = rejected + falsePositives;
+
+        System.err.println("Prefilter size:        " + getSizeInBytes() + " bytes, " + numHashes + " hashes");
+        System.err.println("Prefilter lookups:     " + queries);
+        System.err.println("Prefilter rejected:    " + rejected);
+        System.err.println("Prefilter passed:      " + passed + " (" + (passed - falsePositives) + " hits, " + falsePositives + " false positives)");
+        System.err.println("Prefilter fp rate:     " + ((negatives == 0) ? 0 : (double) falsePositives / negatives) + " (target " + targetFpRate + ")");
+    }
+}
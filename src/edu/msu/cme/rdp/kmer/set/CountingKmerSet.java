@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.kmer.set;
+
+/**
+ * Thread safe kmer counter with primitive int counts.
+ *
+ * The table is split in to lock stripes by the top bits of the kmer hash,
+ * each stripe is its own open addressing table (probed on the low bits, like
+ * KmerSet) guarded by its own lock and grown independently, so threads
+ * counting different kmers rarely wait on each other. A count of 0 marks an
+ * empty slot, counts stop at Integer.MAX_VALUE.
+ *
+ * @author fishjord
+ */
+public class CountingKmerSet {
+
+    private static final int DEFAULT_STRIPES = 64;
+    private static final float LOAD_FACTOR = .75f;
+    private static final int MAX_STRIPE_CAPACITY = 1 << 30;   // longs in a key array, so half the slots for two word keys
+
+    /**
+     * Receives each kmer and its count from forEach
+     */
+    public static interface CountVisitor {
+
+        void visit(long k0, long k1, int count);
+    }
+
+    private class Stripe {
+
+        private long[] keys;
+        private int[] counts;
+        private int mask;
+        private int threshold;
+        private int elems = 0;
+
+        Stripe(int capacity) {
+            allocate(capacity);
+        }
+
+        private void allocate(int capacity) {
+            keys = new long[capacity * keyLength];
+            counts = new int[capacity];
+            mask = capacity - 1;
+            threshold = (int) (capacity * LOAD_FACTOR);
+        }
+
+        private int findSlot(long h, long k0, long k1) {
+            int slot = (int) h & mask;
+            while (counts[slot] != 0) {
+                if (keyLength == 1) {
+                    if (keys[slot] == k0) {
+                        break;
+                    }
+                } else if (keys[slot << 1] == k0 && keys[(slot << 1) + 1] == k1) {
+                    break;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        synchronized int increment(long h, long k0, long k1, int by) {
+            int slot = findSlot(h, k0, k1);
+            int count = counts[slot];
+            boolean added = count == 0;
+
+            if (added) {
+                if (keyLength == 1) {
+                    keys[slot] = k0;
+                } else {
+                    keys[slot << 1] = k0;
+                    keys[(slot << 1) + 1] = k1;
+                }
+            }
+
+            count = (count > Integer.MAX_VALUE - by) ? Integer.MAX_VALUE : count + by;
+            counts[slot] = count;
+
+            if (added && ++elems > threshold) {
+                rehash();
+            }
+            return count;
+        }
+
+        synchronized int get(long h, long k0, long k1) {
+            return counts[findSlot(h, k0, k1)];
+        }
+
+        private void rehash() {
+            if (counts.length >= MAX_STRIPE_CAPACITY / keyLength) {
+                throw new IllegalStateException("CountingKmerSet stripe can not hold more than " + threshold + " kmers");
+            }
+            int capacity = counts.length << 1;
+
+            long[] oldKeys = keys;
+            int[] oldCounts = counts;
+            allocate(capacity);
+
+            for (int index = 0; index < oldCounts.length; index++) {
+                if (oldCounts[index] == 0) {
+                    continue;
+                }
+
+                long k0 = (keyLength == 1) ? oldKeys[index] : oldKeys[index << 1];
+                long k1 = (keyLength == 1) ? 0 : oldKeys[(index << 1) + 1];
+                int slot = findSlot(hash(k0, k1), k0, k1);
+                if (keyLength == 1) {
+                    keys[slot] = k0;
+                } else {
+                    keys[slot << 1] = k0;
+                    keys[(slot << 1) + 1] = k1;
+                }
+                counts[slot] = oldCounts[index];
+            }
+        }
+
+        synchronized void forEach(CountVisitor visitor) {
+            for (int index = 0; index < counts.length; index++) {
+                if (counts[index] != 0) {
+                    if (keyLength == 1) {
+                        visitor.visit(keys[index], 0, counts[index]);
+                    } else {
+                        visitor.visit(keys[index << 1], keys[(index << 1) + 1], counts[index]);
+                    }
+                }
+            }
+        }
+    }
+    private final int keyLength;
+    private final int stripeBits;
+    private final Stripe[] stripes;
+
+    public CountingKmerSet(int keyLength) {
+        this(keyLength, DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param keyLength number of longs in each packed kmer (1 or 2)
+     * @param minStripes rounded up to the next power of two, a few times the
+     * number of counting threads keeps lock contention low
+     */
+    public CountingKmerSet(int keyLength, int minStripes) {
+        if (keyLength != 1 && keyLength != 2) {
+            throw new IllegalArgumentException("Key length must be 1 or 2, not " + keyLength);
+        }
+
+        int bits = 0;
+        while ((1 << bits) < minStripes && bits < 16) {
+            bits++;
+        }
+
+        this.keyLength = keyLength;
+        this.stripeBits = bits;
+        this.stripes = new Stripe[1 << bits];
+        for (int index = 0; index < stripes.length; index++) {
+            stripes[index] = new Stripe(16);
+        }
+    }
+
+    public int getKeyLength() {
+        return keyLength;
+    }
+
+    private static long hash(long k0, long k1) {
+        return KmerSet.hash(k0, k1);
+    }
+
+    private Stripe stripeOf(long h) {
+        return (stripeBits == 0) ? stripes[0] : stripes[(int) (h >>> (64 - stripeBits))];
+    }
+
+    /**
+     * Atomically adds one to the kmer's count
+     *
+     * @return the new count
+     */
+    public int increment(long[] key) {
+        return increment(key[0], (keyLength == 2) ? key[1] : 0);
+    }
+
+    public int increment(long k0, long k1) {
+        return add(k0, k1, 1);
+    }
+
+    /**
+     * Atomically adds by (which must be positive) to the kmer's count
+     *
+     * @return the new count
+     */
+    public int add(long k0, long k1, int by) {
+        if (by <= 0) {
+            throw new IllegalArgumentException("Counts can only be increased, not by " + by);
+        }
+        if (keyLength == 1) {
+            k1 = 0;
+        }
+
+        long h = hash(k0, k1);
+        return stripeOf(h).increment(h, k0, k1, by);
+    }
+
+    /**
+     * @return the kmer's count, 0 if it hasn't been seen
+     */
+    public int get(long[] key) {
+        return get(key[0], (keyLength == 2) ? key[1] : 0);
+    }
+
+    public int get(long k0, long k1) {
+        if (keyLength == 1) {
+            k1 = 0;
+        }
+
+        long h = hash(k0, k1);
+        return stripeOf(h).get(h, k0, k1);
+    }
+
+    /**
+     * Number of distinct kmers counted
+     */
+    public long size() {
+        long ret = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                ret += stripe.elems;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Visits every kmer, a stripe at a time. Each stripe is locked while it
+     * is visited so the visitor must not modify this set
+     */
+    public void forEach(CountVisitor visitor) {
+        for (Stripe stripe : stripes) {
+            stripe.forEach(visitor);
+        }
+    }
+
+    public void printStats() {
+        long capacity = 0;
+        int maxStripe = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                capacity += stripe.counts.length;
+                maxStripe = Math.max(maxStripe, stripe.elems);
+            }
+        }
+        long elems = size();
+
+        System.err.println("Stripes:    " + stripes.length);
+        System.err.println("Capacity:   " + capacity);
+        System.err.println("Load:       " + ((capacity == 0) ? 0 : (double) elems / capacity));
+        System.err.println("Largest stripe: " + maxStripe);
+    }
+}
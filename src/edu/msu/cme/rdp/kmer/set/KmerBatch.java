@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.kmer.set;
+
+/**
+ * A block of packed kmers to be looked up together with KmerSet.getAll,
+ * PartitionedKmerSet.getAll or KmerIdSet.getIds, along with the scratch space
+ * the lookup needs and the values (or ids) found.
+ *
+ * Looking kmers up one at a time means each table read has to wait for the
+ * last one to miss in the cache. A batch lookup hashes every kmer and works
+ * out its slot before probing any of them, so the probes don't depend on each
+ * other and the processor can have many cache misses outstanding at once.
+ *
+ * Not thread safe, a batch is meant to be reused by one thread.
+ *
+ * @author fishjord
+ */
+public class KmerBatch<E> {
+
+    public static final int DEFAULT_CAPACITY = 64;
+    final long[] k0s;
+    final long[] k1s;
+    final int[] slots;
+    final int[] partitions;
+    final Object[] results;
+    final int[] ids;
+    int size = 0;
+
+    public KmerBatch() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public KmerBatch(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Batch capacity must be at least 1, not " + capacity);
+        }
+
+        k0s = new long[capacity];
+        k1s = new long[capacity];
+        slots = new int[capacity];
+        partitions = new int[capacity];
+        results = new Object[capacity];
+        ids = new int[capacity];
+    }
+
+    /**
+     * @return the kmer's index in the batch
+     */
+    public int add(long k0, long k1) {
+        if (size == k0s.length) {
+            throw new IllegalStateException("Kmer batch is full");
+        }
+
+        k0s[size] = k0;
+        k1s[size] = k1;
+        results[size] = null;
+        ids[size] = -1;
+        return size++;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return k0s.length;
+    }
+
+    public boolean isFull() {
+        return size == k0s.length;
+    }
+
+    public long getWord0(int index) {
+        return k0s[index];
+    }
+
+    public long getWord1(int index) {
+        return k1s[index];
+    }
+
+    /**
+     * The value found for the kmer at index by the last lookup, null if the
+     * kmer wasn't in the set
+     */
+    public E get(int index) {
+        return (E) results[index];
+    }
+
+    /**
+     * Sets the value for the kmer at index, for lookups done outside of the
+     * set package (or to clear a result)
+     */
+    public void set(int index, E val) {
+        results[index] = val;
+    }
+
+    /**
+     * The id found for the kmer at index by the last KmerIdSet lookup, -1 if
+     * the kmer wasn't in the set
+     */
+    public int getId(int index) {
+        return ids[index];
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.kmer.set;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Spills packed kmers to temporary files split by a hash prefix, so that every
+ * copy of a kmer ends up in the same file and each file can be counted on its
+ * own with a fraction of the memory it would take to count everything.
+ *
+ * The bucket comes from the top bits of a hash of the swapped kmer words, a
+ * different function from the one KmerSet and CountingKmerSet index on, so
+ * the kmers in a bucket still spread over the whole table.
+ *
+ * Each thread adding kmers should use its own BucketWriter, which buffers a
+ * block of kmers per bucket and appends it to the bucket file when full.
+ *
+ * @author fishjord
+ */
+public class KmerBucketFiles {
+
+    private static final int BUFFER_KMERS = 512;
+    private static final int READ_BUFFER_BYTES = 1 << 20;
+
+    /**
+     * Receives each kmer read back from a bucket
+     */
+    public static interface KmerVisitor {
+
+        void visit(long k0, long k1);
+    }
+
+    /**
+     * Buffers kmers for every bucket, not thread safe
+     */
+    public class BucketWriter {
+
+        private final long[][] buffers;
+        private final int[] sizes;
+        private final ByteBuffer out;
+
+        private BucketWriter() {
+            buffers = new long[files.length][BUFFER_KMERS * keyLength];
+            sizes = new int[files.length];
+            out = ByteBuffer.allocate(BUFFER_KMERS * keyLength * 8);
+        }
+
+        public void add(long k0, long k1) throws IOException {
+            int bucket = bucketOf(k0, k1);
+            long[] buf = buffers[bucket];
+            int size = sizes[bucket];
+
+            buf[size++] = k0;
+            if (keyLength == 2) {
+                buf[size++] = k1;
+            }
+
+            if (size == buf.length) {
+                write(bucket, buf, size);
+                size = 0;
+            }
+            sizes[bucket] = size;
+        }
+
+        private void write(int bucket, long[] buf, int size) throws IOException {
+            out.clear();
+            out.asLongBuffer().put(buf, 0, size);
+            out.limit(size * 8);
+
+            FileChannel channel = channels[bucket];
+            synchronized (channel) {
+                while (out.hasRemaining()) {
+                    channel.write(out);
+                }
+                bucketSizes[bucket] += size / keyLength;
+            }
+        }
+
+        /**
+         * Writes out whatever is left in the buffers, must be called once the
+         * thread is done adding kmers
+         */
+        public void flush() throws IOException {
+            for (int bucket = 0; bucket < files.length; bucket++) {
+                if (sizes[bucket] > 0) {
+                    write(bucket, buffers[bucket], sizes[bucket]);
+                    sizes[bucket] = 0;
+                }
+            }
+        }
+    }
+    private final int keyLength;
+    private final int bucketBits;
+    private final File[] files;
+    private final RandomAccessFile[] rafs;
+    private final FileChannel[] channels;
+    private final long[] bucketSizes;
+
+    /**
+     * @param tmpDir directory to create the bucket files in, null for the
+     * system temp directory
+     * @param keyLength number of longs in each packed kmer (1 or 2)
+     * @param minBuckets rounded up to the next power of two
+     */
+    public KmerBucketFiles(File tmpDir, int keyLength, int minBuckets) throws IOException {
+        if (keyLength != 1 && keyLength != 2) {
+            throw new IllegalArgumentException("Key length must be 1 or 2, not " + keyLength);
+        }
+
+        int bits = 0;
+        while ((1 << bits) < minBuckets && bits < 16) {
+            bits++;
+        }
+
+        this.keyLength = keyLength;
+        this.bucketBits = bits;
+        files = new File[1 << bits];
+        rafs = new RandomAccessFile[files.length];
+        channels = new FileChannel[files.length];
+        bucketSizes = new long[files.length];
+
+        try {
+            for (int bucket = 0; bucket < files.length; bucket++) {
+                files[bucket] = File.createTempFile("kmer_bucket_" + bucket + "_", ".bin", tmpDir);
+                rafs[bucket] = new RandomAccessFile(files[bucket], "rw");
+                channels[bucket] = rafs[bucket].getChannel();
+            }
+        } catch (IOException e) {
+            delete();
+            throw e;
+        }
+    }
+
+    public int getKeyLength() {
+        return keyLength;
+    }
+
+    public int getNumBuckets() {
+        return files.length;
+    }
+
+    int bucketOf(long k0, long k1) {
+        if (bucketBits == 0) {
+            return 0;
+        }
+        if (keyLength == 1) {
+            k1 = 0;
+        }
+        return (int) (KmerSet.hash(k1, k0) >>> (64 - bucketBits));
+    }
+
+    public BucketWriter newWriter() {
+        return new BucketWriter();
+    }
+
+    /**
+     * Number of kmers written to the bucket so far, including repeats
+     */
+    public long getBucketSize(int bucket) {
+        synchronized (channels[bucket]) {
+            return bucketSizes[bucket];
+        }
+    }
+
+    /**
+     * Reads every kmer written to the bucket, in the order they were written.
+     * Different buckets can be read concurrently.
+     */
+    public void readBucket(int bucket, KmerVisitor visitor) throws IOException {
+        FileChannel channel = channels[bucket];
+        ByteBuffer buf = ByteBuffer.allocate(READ_BUFFER_BYTES);
+        long pos = 0;
+        long end;
+        synchronized (channel) {
+            end = bucketSizes[bucket] * keyLength * 8;
+        }
+
+        while (pos < end) {
+            buf.clear();
+            buf.limit((int) Math.min(buf.capacity(), end - pos));
+            while (buf.hasRemaining()) {
+                int read = channel.read(buf, pos + buf.position());
+                if (read < 0) {
+                    throw new IOException("Unexpected end of bucket file " + files[bucket]);
+                }
+            }
+            pos += buf.limit();
+
+            buf.flip();
+            LongBuffer longs = buf.asLongBuffer();
+            while (longs.hasRemaining()) {
+                long k0 = longs.get();
+                long k1 = (keyLength == 2) ? longs.get() : 0;
+                visitor.visit(k0, k1);
+            }
+        }
+    }
+
+    /**
+     * Closes and removes a single bucket once it has been counted
+     */
+    public void delete(int bucket) {
+        try {
+            if (rafs[bucket] != null) {
+                rafs[bucket].close();
+            }
+        } catch (IOException e) {
+            // nothing more to do with it
+        }
+        if (files[bucket] != null) {
+            files[bucket].delete();
+        }
+    }
+
+    public void delete() {
+        for (int bucket = 0; bucket < files.length; bucket++) {
+            delete(bucket);
+        }
+    }
+}
@@ -27,4 +27,12 @@ public interface KmerGenerator extends Iterator<Kmer> {
 
     public int getPosition();
 
+    public boolean advance();
+
+    public Kmer current();
+
+    public long word0();
+
+    public long word1();
+
 }
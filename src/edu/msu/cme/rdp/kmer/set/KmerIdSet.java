@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.kmer.set;
+
+import java.util.Arrays;
+
+/**
+ * Numbers packed kmers 0 to size() - 1 in the order they're added, so data
+ * about each kmer can be kept in primitive arrays indexed by its id instead of
+ * an object per kmer.
+ *
+ * Like PartitionedKmerSet the kmers are split in to open addressing tables by
+ * the top bits of their hash (or by minimizer), the keys are stored inline in
+ * a long array and the ids in a parallel int array with -1 marking empty
+ * slots. Adding isn't thread safe, lookups are once the set is filled.
+ *
+ * @author fishjord
+ */
+public class KmerIdSet {
+
+    private static final int DEFAULT_CAPACITY = 1024;
+    private static final float LOAD_FACTOR = .75f;
+    private static final int MAX_CAPACITY = 1 << 30;   // longs in a key array, so half the slots for two word keys
+
+    private static class Table {
+
+        private final int keyLength;
+        private long[] keys;
+        private int[] ids;
+        private int mask;
+        private int threshold;
+        private int size = 0;
+
+        Table(int keyLength, int capacity) {
+            this.keyLength = keyLength;
+            allocate(capacity);
+        }
+
+        private void allocate(int capacity) {
+            keys = new long[capacity * keyLength];
+            ids = new int[capacity];
+            Arrays.fill(ids, -1);
+            mask = capacity - 1;
+            threshold = (int) (capacity * LOAD_FACTOR);
+        }
+
+        int homeSlot(long h) {
+            return (int) h & mask;
+        }
+
+        private boolean keyEquals(int slot, long k0, long k1) {
+            if (keyLength == 1) {
+                return keys[slot] == k0;
+            }
+            return keys[slot << 1] == k0 && keys[(slot << 1) + 1] == k1;
+        }
+
+        int probe(int slot, long k0, long k1) {
+            while (ids[slot] != -1 && !keyEquals(slot, k0, k1)) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void put(int slot, long k0, long k1, int id) {
+            if (keyLength == 1) {
+                keys[slot] = k0;
+            } else {
+                keys[slot << 1] = k0;
+                keys[(slot << 1) + 1] = k1;
+            }
+            ids[slot] = id;
+        }
+
+        /**
+         * @return the kmer's id, or -1 if it was added with the given id
+         */
+        int addIfAbsent(long h, long k0, long k1, int id) {
+            int slot = probe(homeSlot(h), k0, k1);
+            if (ids[slot] != -1) {
+                return ids[slot];
+            }
+
+            put(slot, k0, k1, id);
+            if (++size > threshold) {
+                rehash();
+            }
+            return -1;
+        }
+
+        private void rehash() {
+            int maxCapacity = MAX_CAPACITY / keyLength;
+            if (ids.length >= maxCapacity) {
+                throw new IllegalStateException("KmerIdSet partition can not hold more than " + (int) (maxCapacity * LOAD_FACTOR) + " kmers");
+            }
+            int capacity = ids.length << 1;
+
+            long[] oldKeys = keys;
+            int[] oldIds = ids;
+            allocate(capacity);
+
+            for (int index = 0; index < oldIds.length; index++) {
+                if (oldIds[index] == -1) {
+                    continue;
+                }
+
+                long k0 = (keyLength == 1) ? oldKeys[index] : oldKeys[index << 1];
+                long k1 = (keyLength == 1) ? 0 : oldKeys[(index << 1) + 1];
+                put(probe(homeSlot(KmerSet.hash(k0, k1)), k0, k1), k0, k1, oldIds[index]);
+            }
+        }
+    }
+    private final int keyLength;
+    private final int partitionBits;
+    private final Table[] tables;
+    private final int k;
+    private final int minimizerLength;
+    private int size = 0;
+
+    /**
+     * @param keyLength number of longs in each packed kmer (1 or 2)
+     */
+    public KmerIdSet(int keyLength) {
+        this(keyLength, 1, 0, 0);
+    }
+
+    /**
+     * @param minPartitions rounded up to the next power of two
+     * @param k kmer length, only needed when partitioning by minimizer
+     * @param minimizerLength minimizer length, 0 to partition by hash
+     */
+    public KmerIdSet(int keyLength, int minPartitions, int k, int minimizerLength) {
+        if (keyLength != 1 && keyLength != 2) {
+            throw new IllegalArgumentException("Key length must be 1 or 2, not " + keyLength);
+        }
+        if (minimizerLength > 0) {
+            SuperKmerGenerator.checkMinimizerLength(k, minimizerLength);
+        }
+
+        int bits = 0;
+        while ((1 << bits) < minPartitions && bits < 16) {
+            bits++;
+        }
+
+        this.keyLength = keyLength;
+        this.k = k;
+        this.minimizerLength = minimizerLength;
+        this.partitionBits = bits;
+        this.tables = new Table[1 << bits];
+        int capacity = Math.max(16, Integer.highestOneBit(DEFAULT_CAPACITY >> bits));
+        for (int index = 0; index < tables.length; index++) {
+            tables[index] = new Table(keyLength, capacity);
+        }
+    }
+
+    public int getKeyLength() {
+        return keyLength;
+    }
+
+    public int getNumPartitions() {
+        return tables.length;
+    }
+
+    public int getMinimizerLength() {
+        return minimizerLength;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private int partitionOf(long k0, long k1, long h) {
+        if (partitionBits == 0) {
+            return 0;
+        }
+        if (minimizerLength > 0) {
+            return partitionOfMinimizer(SuperKmerGenerator.minimizer(k0, k1, k, minimizerLength));
+        }
+        return (int) (h >>> (64 - partitionBits));
+    }
+
+    private int partitionOfMinimizer(long minimizer) {
+        if (partitionBits == 0) {
+            return 0;
+        }
+        return (int) (minimizer >>> (64 - partitionBits));
+    }
+
+    /**
+     * Adds the kmer if it isn't already in the set
+     *
+     * @return the kmer's id
+     */
+    public int add(long k0, long k1) {
+        if (keyLength == 1) {
+            k1 = 0;
+        }
+
+        long h = KmerSet.hash(k0, k1);
+        int id = tables[partitionOf(k0, k1, h)].addIfAbsent(h, k0, k1, size);
+        if (id == -1) {
+            if (size == Integer.MAX_VALUE) {
+                throw new IllegalStateException("KmerIdSet is full");
+            }
+            id = size++;
+        }
+        return id;
+    }
+
+    /**
+     * @return the kmer's id, -1 if it isn't in the set
+     */
+    public int getId(long k0, long k1) {
+        if (keyLength == 1) {
+            k1 = 0;
+        }
+
+        long h = KmerSet.hash(k0, k1);
+        Table table = tables[partitionOf(k0, k1, h)];
+        return table.ids[table.probe(table.homeSlot(h), k0, k1)];
+    }
+
+    /**
+     * Looks up the id of every kmer in the batch, each kmer's partition and
+     * slot are worked out before any table is probed (see KmerBatch)
+     */
+    public void getIds(KmerBatch<?> batch) {
+        long[] k0s = batch.k0s;
+        long[] k1s = batch.k1s;
+        int[] slots = batch.slots;
+        int[] batchPartitions = batch.partitions;
+        int size = batch.size;
+
+        for (int index = 0; index < size; index++) {
+            long k0 = k0s[index];
+            long k1 = (keyLength == 1) ? 0 : k1s[index];
+            long h = KmerSet.hash(k0, k1);
+            int partition = partitionOf(k0, k1, h);
+
+            batchPartitions[index] = partition;
+            slots[index] = tables[partition].homeSlot(h);
+        }
+
+        for (int index = 0; index < size; index++) {
+            Table table = tables[batchPartitions[index]];
+            batch.ids[index] = table.ids[table.probe(slots[index], k0s[index], (keyLength == 1) ? 0 : k1s[index])];
+        }
+    }
+
+    /**
+     * Looks up a batch of kmers that all have the same minimizer, such as a
+     * super kmer, only for sets partitioned by minimizer
+     */
+    public void getIds(KmerBatch<?> batch, long minimizer) {
+        Table table = tables[partitionOfMinimizer(minimizer)];
+        long[] k0s = batch.k0s;
+        long[] k1s = batch.k1s;
+        int[] slots = batch.slots;
+        int size = batch.size;
+
+        for (int index = 0; index < size; index++) {
+            slots[index] = table.homeSlot(KmerSet.hash(k0s[index], (keyLength == 1) ? 0 : k1s[index]));
+        }
+
+        for (int index = 0; index < size; index++) {
+            batch.ids[index] = table.ids[table.probe(slots[index], k0s[index], (keyLength == 1) ? 0 : k1s[index])];
+        }
+    }
+}
@@ -17,129 +17,299 @@
 package edu.msu.cme.rdp.kmer.set;
 
 import java.io.Serializable;
-import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
 
 /**
+ * Open addressing hash table keyed on packed kmers.
+ *
+ * The packed kmer words are stored inline in a flat long array, one or two
+ * longs per slot depending on the key length, so there is no per kmer object
+ * overhead. Collisions are resolved by linear probing and the table doubles
+ * in size once the load factor is exceeded.
  *
  * @author fishjord
  */
 public class KmerSet<E> implements Serializable {
 
-    private static class Item<E> implements Serializable {
+    private static final int DEFAULT_CAPACITY = 1024;
+    private static final float DEFAULT_LOAD_FACTOR = .75f;
+    private static final int MAX_CAPACITY = 1 << 30;   // longs in the key array, so half the slots for two word keys
+
+    private final int keyLength;
+    private final float loadFactor;
+    private long[] keys;
+    private Object[] values;
+    private int mask;
+    private int threshold;
+    private int elems = 0;
+
+    public KmerSet() {
+        this(2);
+    }
+
+    /**
+     *
+     * @param keyLength number of longs in each packed kmer (1 or 2), keys
+     * with a length of 1 only use the first word of the key array
+     */
+    public KmerSet(int keyLength) {
+        this(keyLength, DEFAULT_CAPACITY, DEFAULT_LOAD_FACTOR);
+    }
 
-        private final long[] key;
-        private E value;
-        private Item<E> next;
+    public KmerSet(int keyLength, int initialCapacity, float loadFactor) {
+        if (keyLength != 1 && keyLength != 2) {
+            throw new IllegalArgumentException("Key length must be 1 or 2, not " + keyLength);
+        }
 
-        public Item(long[] key, E value) {
-            this.key = key;
-            this.value = value;
+        if (loadFactor <= 0 || loadFactor >= 1) {
+            throw new IllegalArgumentException("Load factor must be between 0 and 1 (exclusive)");
         }
+
+        this.keyLength = keyLength;
+        this.loadFactor = loadFactor;
+
+        int capacity = 16;
+        while (capacity < initialCapacity / loadFactor && capacity < maxCapacity()) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    /**
+     * Largest number of slots, keeps slot * keyLength in an int
+     */
+    private int maxCapacity() {
+        return MAX_CAPACITY / keyLength;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity * keyLength];
+        values = new Object[capacity];
+        mask = capacity - 1;
+        threshold = (int) (capacity * loadFactor);
+    }
+
+    /**
+     * Murmur3 finalizer applied over both words of the kmer
+     */
+    static long hash(long k0, long k1) {
+        return mix(k0 ^ mix(k1 + 0x9E3779B97F4A7C15L));
+    }
+
+    static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private boolean keyEquals(int slot, long k0, long k1) {
+        if (keyLength == 1) {
+            return keys[slot] == k0;
+        }
+        return keys[slot << 1] == k0 && keys[(slot << 1) + 1] == k1;
+    }
+
+    /**
+     * Returns the slot holding the kmer, or the empty slot it would be
+     * inserted in to
+     */
+    private int findSlot(long k0, long k1) {
+        return probe(homeSlot(hash(k0, k1)), k0, k1);
+    }
+
+    /**
+     * The slot a kmer with hash h would be in without collisions
+     */
+    int homeSlot(long h) {
+        return (int) h & mask;
+    }
+
+    private int probe(int slot, long k0, long k1) {
+        while (values[slot] != null && !keyEquals(slot, k0, k1)) {
+            slot = (slot + 1) & mask;
+        }
+
+        return slot;
+    }
+
+    /**
+     * Value of the kmer probing from its home slot, k1 must be 0 for key
+     * length 1 kmers
+     */
+    Object getFrom(int homeSlot, long k0, long k1) {
+        return values[probe(homeSlot, k0, k1)];
     }
-    private final int size = 1299827;
-    private Item<E>[] items = new Item[size];
-    private int elems = 0;
 
     public void add(long[] key, E val) {
-        int bucket = Math.abs( (int) (key[0] % size));
-
-        if (items[bucket] == null) {
-            items[bucket] = new Item<E>(key, val);
-            elems++;
-        } else {
-            Item<E> item = items[bucket];
-            Item<E> last = null;
-            boolean found = false;
-
-            while (item != null) {
-                if (Arrays.equals(item.key, key) ) {
-                    item.value = val;
-                    found = true;
-                    break;
-                }
+        add(key[0], (keyLength == 2) ? key[1] : 0, val);
+    }
+
+    public void add(long k0, long k1, E val) {
+        if (val == null) {
+            throw new IllegalArgumentException("Null values can not be stored in a KmerSet");
+        }
+        if (keyLength == 1) {
+            k1 = 0;
+        }
 
-                last = item;
-                item = item.next;
+        int slot = findSlot(k0, k1);
+        boolean found = values[slot] != null;
+
+        values[slot] = val;
+        if (!found) {
+            if (keyLength == 1) {
+                keys[slot] = k0;
+            } else {
+                keys[slot << 1] = k0;
+                keys[(slot << 1) + 1] = k1;
             }
 
-            if (!found) {
-                last.next = new Item<E>(key, val);
-                elems++;
+            if (++elems > threshold) {
+                rehash();
             }
         }
+    }
+
+    private void rehash() {
+        if (values.length >= maxCapacity()) {
+            throw new IllegalStateException("KmerSet can not hold more than " + (int) (maxCapacity() * loadFactor) + " kmers");
+        }
+        int capacity = values.length << 1;
+
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(capacity);
 
+        for (int index = 0; index < oldValues.length; index++) {
+            if (oldValues[index] == null) {
+                continue;
+            }
+
+            long k0, k1;
+            if (keyLength == 1) {
+                k0 = oldKeys[index];
+                k1 = 0;
+            } else {
+                k0 = oldKeys[index << 1];
+                k1 = oldKeys[(index << 1) + 1];
+            }
+
+            int slot = findSlot(k0, k1);
+            if (keyLength == 1) {
+                keys[slot] = k0;
+            } else {
+                keys[slot << 1] = k0;
+                keys[(slot << 1) + 1] = k1;
+            }
+            values[slot] = oldValues[index];
+        }
     }
-    
+
     public int size() {
         return elems;
     }
 
+    public int getKeyLength() {
+        return keyLength;
+    }
+
     public E get(long[] key) {
-        int bucket =  Math.abs( (int) (key[0] % size) );
-        Item<E> item = items[bucket];
+        return get(key[0], (keyLength == 2) ? key[1] : 0);
+    }
 
-        while (item != null) {
-            if (Arrays.equals(item.key, key)) {
-                return item.value;
-            }
-            item = item.next;
+    public E get(long k0, long k1) {
+        if (keyLength == 1) {
+            k1 = 0;
+        }
+        return (E) values[findSlot(k0, k1)];
+    }
+
+    /**
+     * Looks up every kmer in the batch. The home slots of all the kmers are
+     * worked out before any of them are probed, so the table reads are
+     * independent of each other (see KmerBatch)
+     */
+    public void getAll(KmerBatch<? super E> batch) {
+        long[] k0s = batch.k0s;
+        long[] k1s = batch.k1s;
+        int[] slots = batch.slots;
+        int size = batch.size;
+
+        for (int index = 0; index < size; index++) {
+            slots[index] = homeSlot(hash(k0s[index], (keyLength == 1) ? 0 : k1s[index]));
         }
 
-        return null;
+        for (int index = 0; index < size; index++) {
+            batch.results[index] = getFrom(slots[index], k0s[index], (keyLength == 1) ? 0 : k1s[index]);
+        }
     }
 
     public double getLoad() {
-        int load = 0;
-        for(int index = 0;index < size;index++) {
-            if(items[index] != null) {
-                load++;
-            }
-        }
-        
-        return (double)load / size;
+        return (double) elems / values.length;
     }
-    
+
     public void printStats() {
-        int collisions = 0;
-        int tail = 0;
-        int load = 0;
-        
-        for(int index = 0;index < size;index++) {
-            if(items[index] != null) {
-                load++;
-                
-                if(items[index].next != null) {
-                    collisions++;
-                    Item<E> item = items[index];
-                    
-                    while(item.next != null) {
-                        tail++;
-                        item = item.next;
-                    }
-                }
+        long totalProbe = 0;
+        int maxProbe = 0;
+
+        for (int index = 0; index < values.length; index++) {
+            if (values[index] != null) {
+                long k0 = (keyLength == 1) ? keys[index] : keys[index << 1];
+                long k1 = (keyLength == 1) ? 0 : keys[(index << 1) + 1];
+                int probe = (index - ((int) hash(k0, k1) & mask)) & mask;
+
+                totalProbe += probe;
+                maxProbe = Math.max(maxProbe, probe);
             }
         }
-        
-        System.err.println("Load:       " + ((double)load / size));
-        System.err.println("Collisions: " + collisions);
-        System.err.println("Average tail: " + ((double)tail / collisions));
+
+        System.err.println("Capacity:   " + values.length);
+        System.err.println("Load:       " + getLoad());
+        System.err.println("Average probe: " + ((elems == 0) ? 0 : (double) totalProbe / elems));
+        System.err.println("Max probe:  " + maxProbe);
     }
-    
+
     public boolean containsKey(long[] key) {
         return get(key) != null;
     }
 
+    /**
+     * Receives each key from forEachKey, key length 1 kmers have k1 set to 0
+     */
+    public static interface KeyVisitor {
+
+        void visit(long k0, long k1);
+    }
+
+    /**
+     * Visits every key without copying them out of the table
+     */
+    public void forEachKey(KeyVisitor visitor) {
+        for (int index = 0; index < values.length; index++) {
+            if (values[index] != null) {
+                if (keyLength == 1) {
+                    visitor.visit(keys[index], 0);
+                } else {
+                    visitor.visit(keys[index << 1], keys[(index << 1) + 1]);
+                }
+            }
+        }
+    }
+
     public Set<long[]> getKeys() {
         Set<long[]> keys = new HashSet();
-        Item<E> item = null;
 
-        for (int index = 0; index < items.length; index++) {
-            item = items[index];
-            while (item != null) {
-                keys.add(item.key);
-                item = item.next;
+        for (int index = 0; index < values.length; index++) {
+            if (values[index] != null) {
+                if (keyLength == 1) {
+                    keys.add(new long[]{this.keys[index], 0});
+                } else {
+                    keys.add(new long[]{this.keys[index << 1], this.keys[(index << 1) + 1]});
+                }
             }
         }
 
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.kmer.set;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Bottom-k MinHash sketch of a set of packed kmers, the size smallest hash
+ * values of the distinct kmers added.
+ *
+ * The hashes are kept in a max heap so a kmer hashing above the largest kept
+ * value, which is nearly all of them once the sketch fills up, costs one hash
+ * and one comparison. Repeats of a kmer hash the same so they're only kept
+ * once.
+ *
+ * Jaccard similarity is estimated from the size smallest hashes of the union
+ * of two sketches, containment from the hashes of one sketch below the
+ * largest value both sketches cover. If neither sketch is full they hold every
+ * distinct kmer and the estimates are exact.
+ *
+ * Not thread safe while adding, sketches can be compared from any number of
+ * threads once they're done.
+ *
+ * @author fishjord
+ */
+public class KmerSketch {
+
+    private final int size;
+    private final long[] heap;
+    private final Set<Long> members = new HashSet();
+    private int count = 0;
+    private long numKmers = 0;
+    private long[] sorted;
+
+    /**
+     * @param size number of hash values to keep
+     */
+    public KmerSketch(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Sketch size must be positive");
+        }
+        this.size = size;
+        this.heap = new long[size];
+    }
+
+    public static long hash(long k0, long k1) {
+        return KmerSet.hash(k0, k1);
+    }
+
+    public void add(long k0, long k1) {
+        numKmers++;
+        long h = hash(k0, k1);
+        if (count == size && h >= heap[0]) {
+            return;
+        }
+        if (!members.add(h)) {
+            return;
+        }
+        sorted = null;
+
+        if (count < size) {
+            int child = count++;
+            while (child > 0) {
+                int parent = (child - 1) / 2;
+                if (heap[parent] >= h) {
+                    break;
+                }
+                heap[child] = heap[parent];
+                child = parent;
+            }
+            heap[child] = h;
+        } else {
+            members.remove(heap[0]);
+            int parent = 0;
+            while (true) {
+                int child = parent * 2 + 1;
+                if (child >= count) {
+                    break;
+                }
+                if (child + 1 < count && heap[child + 1] > heap[child]) {
+                    child++;
+                }
+                if (heap[child] <= h) {
+                    break;
+                }
+                heap[parent] = heap[child];
+                parent = child;
+            }
+            heap[parent] = h;
+        }
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Number of kmers added, including repeats
+     */
+    public long getNumKmers() {
+        return numKmers;
+    }
+
+    /**
+     * True if more distinct kmers were added than the sketch keeps
+     */
+    public boolean isFull() {
+        return count == size;
+    }
+
+    /**
+     * The kept hash values in ascending order
+     */
+    public synchronized long[] getHashes() {
+        if (sorted == null) {
+            sorted = Arrays.copyOf(heap, count);
+            Arrays.sort(sorted);
+        }
+        return sorted;
+    }
+
+    /**
+     * Largest hash value that every kmer hashing at or below is in the sketch
+     */
+    private long coveredUpTo() {
+        return isFull() ? heap[0] : Long.MAX_VALUE;
+    }
+
+    /**
+     * Estimated |A n B| / |A u B|
+     */
+    public static double jaccard(KmerSketch a, KmerSketch b) {
+        long[] ha = a.getHashes();
+        long[] hb = b.getHashes();
+        int limit = Math.min(a.size, b.size);
+        int i = 0, j = 0, taken = 0, shared = 0;
+
+        while (taken < limit && (i < ha.length || j < hb.length)) {
+            if (j == hb.length || (i < ha.length && ha[i] < hb[j])) {
+                i++;
+            } else if (i == ha.length || hb[j] < ha[i]) {
+                j++;
+            } else {
+                shared++;
+                i++;
+                j++;
+            }
+            taken++;
+        }
+
+        return (taken == 0) ? 0 : (double) shared / taken;
+    }
+
+    /**
+     * Estimated fraction of the distinct kmers in a that are also in b,
+     * |A n B| / |A|
+     */
+    public static double containment(KmerSketch a, KmerSketch b) {
+        long[] ha = a.getHashes();
+        long[] hb = b.getHashes();
+        long threshold = Math.min(a.coveredUpTo(), b.coveredUpTo());
+        int j = 0, sampled = 0, shared = 0;
+
+        for (int i = 0; i < ha.length && ha[i] <= threshold; i++) {
+            sampled++;
+            while (j < hb.length && hb[j] < ha[i]) {
+                j++;
+            }
+            if (j < hb.length && hb[j] == ha[i]) {
+                shared++;
+            }
+        }
+
+        return (sampled == 0) ? 0 : (double) shared / sampled;
+    }
+}
@@ -0,0 +1,608 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.kmer.set;
+
+import edu.msu.cme.rdp.kmer.Kmer;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read only reference kmer index that lives in a memory mapped file.
+ *
+ * The file holds the distinct reference kmers sorted by their packed words,
+ * a table of posting offsets for each kmer and three posting columns (ref
+ * file index, model position and seqid ordinal). Nothing is copied on to the
+ * heap when the index is opened, so every process mapping the same file
+ * shares one copy in the page cache.
+ *
+ * Nucleotide indexes hold canonical kmers (the smaller of a kmer and its
+ * reverse complement), the high bit of the ref file index is set on postings
+ * whose reference kmer is the reverse complement of the stored kmer.
+ *
+ * Layout (big endian):
+ * <pre>
+ * header     magic, version, k, key length, flags, #ref labels, #kmers,
+ *            #postings, #seqids
+ * labels     ref labels (int length + UTF-8 bytes)
+ * buckets    (2^16 + 1) longs, first kmer with each 16 bit word prefix
+ * kmers      #kmers * key length longs, unsigned ascending
+ * offsets    #kmers + 1 ints, first posting of each kmer
+ * refIdx     #postings ints
+ * modelPos   #postings ints
+ * seqid      #postings ints
+ * seqOffsets #seqids + 1 ints, offset of each seqid in the string data
+ * seqData    UTF-8 bytes of the seqids
+ * </pre>
+ *
+ * @author fishjord
+ */
+public class MappedKmerIndex {
+
+    private static final int MAGIC = 0x4B4D4958;  // KMIX
+    private static final int VERSION = 1;
+    private static final int FLAG_PROTEIN = 0x1;
+    private static final int FLAG_CANONICAL = 0x2;
+    private static final int REVERSE_BIT = 0x80000000;
+    private static final int BUCKET_BITS = 16;
+    private static final int NUM_BUCKETS = 1 << BUCKET_BITS;
+
+    private final int k;
+    private final int keyLength;
+    private final boolean protein;
+    private final boolean canonical;
+    private final int bucketShift;
+    private final long numKmers;
+    private final long numPostings;
+    private final List<String> refLabels;
+    private final LongArray buckets;
+    private final LongArray kmers;
+    private final IntArray offsets;
+    private final IntArray refIndexes;
+    private final IntArray modelPositions;
+    private final IntArray seqids;
+    private final IntArray seqidOffsets;
+    private final ByteArray seqidData;
+
+    private MappedKmerIndex(File f) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), 48));
+
+            if (header.limit() < 48 || header.getInt() != MAGIC) {
+                throw new IOException(f + " is not a kmer index file");
+            }
+
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported kmer index version " + version + " in " + f);
+            }
+
+            k = header.getInt();
+            keyLength = header.getInt();
+            int flags = header.getInt();
+            protein = (flags & FLAG_PROTEIN) != 0;
+            canonical = (flags & FLAG_CANONICAL) != 0;
+            int numLabels = header.getInt();
+            numKmers = header.getLong();
+            numPostings = header.getLong();
+            int numSeqids = header.getInt();
+            bucketShift = getBucketShift(k, protein);
+
+            long offset = 48;
+            List<String> labels = new ArrayList();
+            for (int index = 0; index < numLabels; index++) {
+                ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, offset, 4);
+                int len = buf.getInt();
+                byte[] label = new byte[len];
+                channel.map(FileChannel.MapMode.READ_ONLY, offset + 4, len).get(label);
+                labels.add(new String(label, "UTF-8"));
+                offset += 4 + len;
+            }
+            refLabels = Collections.unmodifiableList(labels);
+            offset = align(offset);
+
+            buckets = new LongArray(channel, offset, NUM_BUCKETS + 1);
+            offset += (NUM_BUCKETS + 1) * 8L;
+            kmers = new LongArray(channel, offset, numKmers * keyLength);
+            offset += numKmers * keyLength * 8;
+            offsets = new IntArray(channel, offset, numKmers + 1);
+            offset += (numKmers + 1) * 4;
+            refIndexes = new IntArray(channel, offset, numPostings);
+            offset += numPostings * 4;
+            modelPositions = new IntArray(channel, offset, numPostings);
+            offset += numPostings * 4;
+            seqids = new IntArray(channel, offset, numPostings);
+            offset += numPostings * 4;
+            seqidOffsets = new IntArray(channel, offset, numSeqids + 1);
+            offset += (numSeqids + 1) * 4L;
+            seqidData = new ByteArray(channel, offset, seqidOffsets.get(numSeqids));
+        } finally {
+            raf.close();
+        }
+    }
+
+    public static MappedKmerIndex open(File f) throws IOException {
+        return new MappedKmerIndex(f);
+    }
+
+    private static long align(long offset) {
+        return (offset + 7) & ~7L;
+    }
+
+    /**
+     * Buckets are keyed on the top 16 bits actually used in the first word
+     */
+    private static int getBucketShift(int k, boolean protein) {
+        int usedBits = protein ? Math.min(k, 12) * 5 : Math.min(k, 32) * 2;
+        return Math.max(0, usedBits - BUCKET_BITS);
+    }
+
+    private static int bucket(long k0, int bucketShift) {
+        long b = k0 >>> bucketShift;
+        return (b >= NUM_BUCKETS || b < 0) ? NUM_BUCKETS - 1 : (int) b;
+    }
+
+    /**
+     * Orders packed kmers by their words as unsigned values, the order the
+     * index file and SortedKmerRuns keep kmers in
+     */
+    static int compare(long a0, long a1, long b0, long b1) {
+        if (a0 != b0) {
+            return ((a0 ^ Long.MIN_VALUE) < (b0 ^ Long.MIN_VALUE)) ? -1 : 1;
+        }
+        if (a1 != b1) {
+            return ((a1 ^ Long.MIN_VALUE) < (b1 ^ Long.MIN_VALUE)) ? -1 : 1;
+        }
+        return 0;
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    public boolean isProtein() {
+        return protein;
+    }
+
+    public boolean isCanonical() {
+        return canonical;
+    }
+
+    public int getKeyLength() {
+        return keyLength;
+    }
+
+    public List<String> getRefLabels() {
+        return refLabels;
+    }
+
+    public long size() {
+        return numKmers;
+    }
+
+    public long getNumPostings() {
+        return numPostings;
+    }
+
+    /**
+     * Looks up a packed kmer
+     *
+     * @return the kmer's ordinal in the index or -1 if it isn't present
+     */
+    public long find(long k0, long k1) {
+        if (keyLength == 1) {
+            k1 = 0;
+        }
+
+        int b = bucket(k0, bucketShift);
+        long lo = buckets.get(b);
+        long hi = buckets.get(b + 1) - 1;
+
+        while (lo <= hi) {
+            long mid = (lo + hi) >>> 1;
+            int cmp;
+            if (keyLength == 1) {
+                cmp = compare(kmers.get(mid), 0, k0, 0);
+            } else {
+                cmp = compare(kmers.get(mid * 2), kmers.get(mid * 2 + 1), k0, k1);
+            }
+
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * One word of the packed kmer with the given ordinal, word 1 of a key
+     * length 1 index is always 0
+     */
+    public long getWord(long kmer, int word) {
+        if (word >= keyLength) {
+            return 0;
+        }
+        return kmers.get(kmer * keyLength + word);
+    }
+
+    public long getPostingStart(long kmer) {
+        return offsets.get(kmer);
+    }
+
+    public long getPostingEnd(long kmer) {
+        return offsets.get(kmer + 1);
+    }
+
+    public int getRefIndex(long posting) {
+        return refIndexes.get(posting) & ~REVERSE_BIT;
+    }
+
+    /**
+     * True if the reference kmer for this posting is the reverse complement
+     * of the (canonical) kmer it is stored under
+     */
+    public boolean isReverse(long posting) {
+        return (refIndexes.get(posting) & REVERSE_BIT) != 0;
+    }
+
+    public int getModelPos(long posting) {
+        return modelPositions.get(posting);
+    }
+
+    public String getSeqid(long posting) {
+        int seqid = seqids.get(posting);
+        int start = seqidOffsets.get(seqid);
+        byte[] bytes = new byte[seqidOffsets.get(seqid + 1) - start];
+        seqidData.get(start, bytes);
+
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * The mapped sections are split in to pages so that indexes larger than
+     * 2GB (the limit of a single mapping) can be opened
+     */
+    private static class LongArray {
+
+        private static final int PAGE_BITS = 27;
+        private final LongBuffer[] pages;
+
+        LongArray(FileChannel channel, long offset, long length) throws IOException {
+            pages = new LongBuffer[(int) ((length + (1L << PAGE_BITS) - 1) >>> PAGE_BITS)];
+            for (int page = 0; page < pages.length; page++) {
+                long start = (long) page << PAGE_BITS;
+                long len = Math.min(1L << PAGE_BITS, length - start);
+                pages[page] = channel.map(FileChannel.MapMode.READ_ONLY, offset + start * 8, len * 8).asLongBuffer();
+            }
+        }
+
+        long get(long index) {
+            return pages[(int) (index >>> PAGE_BITS)].get((int) (index & ((1 << PAGE_BITS) - 1)));
+        }
+    }
+
+    private static class IntArray {
+
+        private static final int PAGE_BITS = 28;
+        private final IntBuffer[] pages;
+
+        IntArray(FileChannel channel, long offset, long length) throws IOException {
+            pages = new IntBuffer[(int) ((length + (1L << PAGE_BITS) - 1) >>> PAGE_BITS)];
+            for (int page = 0; page < pages.length; page++) {
+                long start = (long) page << PAGE_BITS;
+                long len = Math.min(1L << PAGE_BITS, length - start);
+                pages[page] = channel.map(FileChannel.MapMode.READ_ONLY, offset + start * 4, len * 4).asIntBuffer();
+            }
+        }
+
+        int get(long index) {
+            return pages[(int) (index >>> PAGE_BITS)].get((int) (index & ((1 << PAGE_BITS) - 1)));
+        }
+    }
+
+    private static class ByteArray {
+
+        private final ByteBuffer data;
+
+        ByteArray(FileChannel channel, long offset, int length) throws IOException {
+            data = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        }
+
+        void get(int offset, byte[] dest) {
+            ByteBuffer view = data.duplicate();
+            view.position(offset);
+            view.get(dest);
+        }
+    }
+
+    /**
+     * Collects reference kmers in memory and writes them out in the mapped
+     * index format. Postings for the same kmer, strand, ref file and model
+     * position are collapsed keeping the first seqid added. Nucleotide kmers
+     * are expected to be canonical.
+     */
+    public static class Builder {
+
+        private static final int MAX_ENTRIES = 1 << 30;
+
+        private final int k;
+        private final boolean protein;
+        private final int keyLength;
+        private final List<String> refLabels = new ArrayList();
+        private final Map<String, Integer> seqidMap = new HashMap();
+        private final List<String> seqidList = new ArrayList();
+        private long[] kmers = new long[2048];
+        private int[] refIndexes = new int[1024];
+        private int[] modelPositions = new int[1024];
+        private int[] seqidOrdinals = new int[1024];
+        private int size = 0;
+
+        public Builder(int k, boolean protein) {
+            this.k = k;
+            this.protein = protein;
+            this.keyLength = (k > (protein ? Kmer.max_prot_kmer_size : Kmer.max_nucl_kmer_size) / 2) ? 2 : 1;
+        }
+
+        public int getKeyLength() {
+            return keyLength;
+        }
+
+        public void addRefLabel(String label) {
+            refLabels.add(label);
+        }
+
+        public void add(long[] kmer, int refIndex, int modelPos, String seqid) {
+            add(kmer, false, refIndex, modelPos, seqid);
+        }
+
+        public void add(long[] kmer, boolean reverse, int refIndex, int modelPos, String seqid) {
+            if (size == refIndexes.length) {
+                if (size >= MAX_ENTRIES) {
+                    throw new IllegalStateException("Too many reference kmers for a single index");
+                }
+                int newSize = Math.min(MAX_ENTRIES, size * 2);
+                kmers = Arrays.copyOf(kmers, newSize * 2);
+                refIndexes = Arrays.copyOf(refIndexes, newSize);
+                modelPositions = Arrays.copyOf(modelPositions, newSize);
+                seqidOrdinals = Arrays.copyOf(seqidOrdinals, newSize);
+            }
+
+            Integer ordinal = seqidMap.get(seqid);
+            if (ordinal == null) {
+                ordinal = seqidList.size();
+                seqidMap.put(seqid, ordinal);
+                seqidList.add(seqid);
+            }
+
+            kmers[size * 2] = kmer[0];
+            kmers[size * 2 + 1] = (keyLength == 2) ? kmer[1] : 0;
+            refIndexes[size] = reverse ? (refIndex | REVERSE_BIT) : refIndex;
+            modelPositions[size] = modelPos;
+            seqidOrdinals[size] = ordinal;
+            size++;
+        }
+
+        private int compareEntries(int a, int b) {
+            int cmp = compare(kmers[a * 2], kmers[a * 2 + 1], kmers[b * 2], kmers[b * 2 + 1]);
+            if (cmp != 0) {
+                return cmp;
+            }
+            if (refIndexes[a] != refIndexes[b]) {
+                return (refIndexes[a] < refIndexes[b]) ? -1 : 1;
+            }
+            if (modelPositions[a] != modelPositions[b]) {
+                return (modelPositions[a] < modelPositions[b]) ? -1 : 1;
+            }
+            return (a < b) ? -1 : ((a == b) ? 0 : 1);
+        }
+
+        private void sort(int[] order, int lo, int hi) {
+            while (hi - lo > 16) {
+                int pivot = order[(lo + hi) >>> 1];
+                int i = lo, j = hi;
+                while (i <= j) {
+                    while (compareEntries(order[i], pivot) < 0) {
+                        i++;
+                    }
+                    while (compareEntries(order[j], pivot) > 0) {
+                        j--;
+                    }
+                    if (i <= j) {
+                        int tmp = order[i];
+                        order[i++] = order[j];
+                        order[j--] = tmp;
+                    }
+                }
+
+                if (j - lo < hi - i) {
+                    sort(order, lo, j);
+                    lo = i;
+                } else {
+                    sort(order, i, hi);
+                    hi = j;
+                }
+            }
+
+            for (int i = lo + 1; i <= hi; i++) {
+                int v = order[i];
+                int j = i - 1;
+                while (j >= lo && compareEntries(order[j], v) > 0) {
+                    order[j + 1] = order[j];
+                    j--;
+                }
+                order[j + 1] = v;
+            }
+        }
+
+        public void write(File f) throws IOException {
+            int[] order = new int[size];
+            for (int index = 0; index < size; index++) {
+                order[index] = index;
+            }
+            sort(order, 0, size - 1);
+
+            /*
+             * First pass drops the collapsed postings and counts the distinct
+             * kmers, marking kept entries by their position in order
+             */
+            int numPostings = 0;
+            int numKmers = 0;
+            int prev = -1;
+            for (int index = 0; index < size; index++) {
+                int e = order[index];
+                if (prev != -1 && compare(kmers[prev * 2], kmers[prev * 2 + 1], kmers[e * 2], kmers[e * 2 + 1]) == 0) {
+                    if (refIndexes[prev] == refIndexes[e] && modelPositions[prev] == modelPositions[e]) {
+                        order[index] = -1;
+                        continue;
+                    }
+                } else {
+                    numKmers++;
+                }
+                numPostings++;
+                prev = e;
+            }
+
+            int bucketShift = getBucketShift(k, protein);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1 << 20));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(k);
+                out.writeInt(keyLength);
+                out.writeInt(protein ? FLAG_PROTEIN : FLAG_CANONICAL);
+                out.writeInt(refLabels.size());
+                out.writeLong(numKmers);
+                out.writeLong(numPostings);
+                out.writeInt(seqidList.size());
+                out.writeInt(0);
+
+                long offset = 48;
+                for (String label : refLabels) {
+                    byte[] bytes = label.getBytes("UTF-8");
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                    offset += 4 + bytes.length;
+                }
+                for (; offset < align(offset); offset++) {
+                    out.write(0);
+                }
+
+                long[] bucketStarts = new long[NUM_BUCKETS + 1];
+                prev = -1;
+                for (int index = 0; index < size; index++) {
+                    int e = order[index];
+                    if (e == -1) {
+                        continue;
+                    }
+                    if (prev == -1 || compare(kmers[prev * 2], kmers[prev * 2 + 1], kmers[e * 2], kmers[e * 2 + 1]) != 0) {
+                        bucketStarts[bucket(kmers[e * 2], bucketShift) + 1]++;
+                    }
+                    prev = e;
+                }
+                for (int index = 0; index < NUM_BUCKETS; index++) {
+                    bucketStarts[index + 1] += bucketStarts[index];
+                }
+                for (long start : bucketStarts) {
+                    out.writeLong(start);
+                }
+
+                prev = -1;
+                for (int index = 0; index < size; index++) {
+                    int e = order[index];
+                    if (e == -1) {
+                        continue;
+                    }
+                    if (prev == -1 || compare(kmers[prev * 2], kmers[prev * 2 + 1], kmers[e * 2], kmers[e * 2 + 1]) != 0) {
+                        out.writeLong(kmers[e * 2]);
+                        if (keyLength == 2) {
+                            out.writeLong(kmers[e * 2 + 1]);
+                        }
+                    }
+                    prev = e;
+                }
+
+                int posting = 0;
+                prev = -1;
+                for (int index = 0; index < size; index++) {
+                    int e = order[index];
+                    if (e == -1) {
+                        continue;
+                    }
+                    if (prev == -1 || compare(kmers[prev * 2], kmers[prev * 2 + 1], kmers[e * 2], kmers[e * 2 + 1]) != 0) {
+                        out.writeInt(posting);
+                    }
+                    posting++;
+                    prev = e;
+                }
+                out.writeInt(posting);
+
+                int[][] columns = new int[][]{refIndexes, modelPositions, seqidOrdinals};
+                for (int[] column : columns) {
+                    for (int index = 0; index < size; index++) {
+                        if (order[index] != -1) {
+                            out.writeInt(column[order[index]]);
+                        }
+                    }
+                }
+
+                List<byte[]> seqidBytes = new ArrayList();
+                int dataOffset = 0;
+                for (String seqid : seqidList) {
+                    byte[] bytes = seqid.getBytes("UTF-8");
+                    seqidBytes.add(bytes);
+                    out.writeInt(dataOffset);
+                    dataOffset += bytes.length;
+                    if (dataOffset < 0) {
+                        throw new IOException("Seqids are too large to store in a single index");
+                    }
+                }
+                out.writeInt(dataOffset);
+
+                for (byte[] bytes : seqidBytes) {
+                    out.write(bytes);
+                }
+            } finally {
+                out.close();
+            }
+        }
+    }
+}
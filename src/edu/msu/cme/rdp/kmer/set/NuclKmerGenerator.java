@@ -20,6 +20,7 @@ import edu.msu.cme.rdp.kmer.Kmer;
 import edu.msu.cme.rdp.kmer.NuclKmer;
 import edu.msu.cme.rdp.readseq.utils.NuclBinMapping;
 import edu.msu.cme.rdp.readseq.utils.ProtBinMapping;
+import java.nio.ByteBuffer;
 
 /**
  *
@@ -28,12 +29,20 @@ import edu.msu.cme.rdp.readseq.utils.ProtBinMapping;
 public class NuclKmerGenerator implements KmerGenerator {
 
     private final char[] bases;
+    private final ByteBuffer byteBases;  // set instead of bases when reading straight from a buffer
+    private final int end;
     private final int k;
     private Kmer next;
+    private Kmer rcNext;   // reverse complement of next, only kept in canonical mode
+    private Kmer cur;      // the kmer the cursor is on
     private int index;     // index in the seqstring
     private int position;  // model position of the kmer found, may not be the kmer returned
     private int curModelPosition; // the model position of the current returning kmer
     private boolean modelOnly = false;
+    private boolean cursorStarted = false;
+    private final boolean canonical;
+    private boolean curReverse;
+    private boolean curPalindrome;
 
     public NuclKmerGenerator(String seq, int k) {
         this(seq, k, false);
@@ -41,20 +50,54 @@ public class NuclKmerGenerator implements KmerGenerator {
 
 
     public NuclKmerGenerator(String seq, int k, boolean modelOnly) {
+        this(seq, k, modelOnly, false);
+    }
+
+    /**
+     *
+     * @param canonical if true the generator returns the smaller of each kmer
+     * and its reverse complement, both are rolled along together so this
+     * costs one extra shift per base. isReverse() tells which strand the
+     * returned kmer came from
+     */
+    public NuclKmerGenerator(String seq, int k, boolean modelOnly, boolean canonical) {
+        this(seq.toCharArray(), null, 0, seq.length(), k, modelOnly, canonical);
+    }
+
+    /**
+     * Generates kmers from the bytes between start and end in the buffer
+     * without copying them, line breaks are skipped so a multi-line fasta
+     * record can be read in place
+     */
+    public NuclKmerGenerator(ByteBuffer buf, int start, int end, int k, boolean canonical) {
+        this(null, buf, start, end, k, false, canonical);
+    }
+
+    private NuclKmerGenerator(char[] bases, ByteBuffer byteBases, int start, int end, int k, boolean modelOnly, boolean canonical) {
         if (k > Kmer.max_nucl_kmer_size) {
             throw new IllegalArgumentException("K-mer size cannot be larger than " + Kmer.max_nucl_kmer_size);
         }
 
-        if (seq.length() < k) {
+        if (end - start < k) {
             throw new IllegalArgumentException("Sequence length is less than the kmer length");
         }
 
-        this.bases = seq.toCharArray();
+        this.bases = bases;
+        this.byteBases = byteBases;
+        this.end = end;
         this.k = k;
         this.modelOnly = modelOnly;
-        index = 0;
+        this.canonical = canonical;
+        index = start;
         position = 1;
         next = getFirstKmer(0);
+        if (canonical && next != null) {
+            rcNext = ((NuclKmer) next).reverseComplement();
+        }
+    }
+
+    private char baseAt(int i) {
+        return (bases != null) ? bases[i] : (char) (byteBases.get(i) & 0xff);
     }
 
     public boolean hasNext() {
@@ -63,16 +106,80 @@ public class NuclKmerGenerator implements KmerGenerator {
     }
 
     public Kmer next() {
-        Kmer ret = next;
+        Kmer ret = selectKmer();
         curModelPosition = position;
-        findNextKmer(k - 1);
+        findNextKmer(k - 1, false);
         return ret;
     }
 
+    /**
+     * Cursor style alternative to next(), moves to the next kmer by shifting
+     * the current kmer in place so nothing is allocated per base. The first
+     * call moves to the first kmer. Should not be mixed with next().
+     *
+     * @return false when there are no more kmers
+     */
+    public boolean advance() {
+        if (cursorStarted) {
+            findNextKmer(k - 1, true);
+        } else {
+            cursorStarted = true;
+        }
+
+        if (next == null) {
+            return false;
+        }
+        cur = selectKmer();
+        curModelPosition = position;
+        return true;
+    }
+
+    /**
+     * The kmer the cursor is on, this instance is modified by advance()
+     */
+    public Kmer current() {
+        return cur;
+    }
+
+    public long word0() {
+        return cur.getPart(0);
+    }
+
+    public long word1() {
+        return cur.getPart(1);
+    }
+
+    /**
+     * In canonical mode, true if the last kmer returned is the reverse
+     * complement of the kmer in the sequence
+     */
+    public boolean isReverse() {
+        return curReverse;
+    }
+
+    /**
+     * In canonical mode, true if the last kmer returned is its own reverse
+     * complement so it matches on both strands
+     */
+    public boolean isPalindrome() {
+        return curPalindrome;
+    }
+
+    private Kmer selectKmer() {
+        if (!canonical || next == null) {
+            return next;
+        }
+
+        int cmp = ((NuclKmer) next).compareTo((NuclKmer) rcNext);
+        curPalindrome = cmp == 0;
+        curReverse = cmp > 0;
+        return curReverse ? rcNext : next;
+    }
+
     private Kmer getFirstKmer(int klength) {
         char[] kmerStr = new char[k];
-        while (index < bases.length) {
-            char base = bases[index++];
+        while (index < end) {
+            char base = baseAt(index++);
 
 
             if (modelOnly && (Character.isLowerCase(base) || base == '-' )) {
@@ -84,7 +191,7 @@ public class NuclKmerGenerator implements KmerGenerator {
                 if (base == 'N' || base == 'n') {
                     klength = 0;
                     position++;
-                } else if (base != '.') {
+                } else if (base != '.' && base != '\n' && base != '\r') {
                     if (NuclBinMapping.validateLookup[base] == -1) {
                         throw new IllegalArgumentException("Only nucleotide bases excepted, not '" + base + "'");
                     }
@@ -104,13 +211,13 @@ public class NuclKmerGenerator implements KmerGenerator {
         return null;
     }
 
-    private void findNextKmer(int klength) {
+    private void findNextKmer(int klength, boolean inPlace) {
         if (next == null) {
             return;
         }
 
-        while (index < bases.length) {
-            char base = bases[index++];
+        while (index < end) {
+            char base = baseAt(index++);
 
             if (modelOnly && (Character.isLowerCase(base) || base == '-')) {
                 if (base == '-') {
@@ -121,12 +228,24 @@ public class NuclKmerGenerator implements KmerGenerator {
                 if (base == 'N' || base == 'n') {
                     klength = 0;
                     position++;
-                } else if (base != '.') {
+                } else if (base != '.' && base != '\n' && base != '\r') {
                     if (NuclBinMapping.validateLookup[base] == -1) {
                         throw new IllegalArgumentException("Only nucleotide bases excepted, not '" + base + "'");
                     }
 
-                    next = next.shiftLeft(base);
+                    if (inPlace) {
+                        next.shiftLeftInPlace(base);
+                    } else {
+                        next = next.shiftLeft(base);
+                    }
+                    if (canonical) {
+                        byte comp = (byte) (3 - NuclBinMapping.validateLookup[base]);
+                        if (inPlace) {
+                            rcNext.shiftRightInPlace(comp);
+                        } else {
+                            rcNext = rcNext.shiftRight(comp);
+                        }
+                    }
                     position++;
                     klength++;
 
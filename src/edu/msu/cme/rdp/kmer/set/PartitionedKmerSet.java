@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.kmer.set;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A kmer set split in to independent KmerSets by the top bits of the kmer
+ * hash (KmerSet itself indexes on the low bits), so each partition can be
+ * filled by a different thread without any locking.
+ *
+ * The usual way to fill one is in two passes: worker threads generate kmers
+ * in to their own Buckets, which sort the kmers by partition, then addAll
+ * builds each partition from every Buckets on a single thread.
+ *
+ * A nucleotide set can be partitioned by kmer minimizer instead (see
+ * SuperKmerGenerator), then all the kmers in a super kmer are in the same
+ * partition and can be looked up with get(k0, k1, minimizer).
+ *
+ * @author fishjord
+ */
+public class PartitionedKmerSet<E> {
+
+    /**
+     * Folds a value from the buckets in to the value already stored for the
+     * kmer (null if there isn't one yet) and returns the value to store
+     */
+    public static interface Merger<T, E> {
+
+        E merge(E existing, T val);
+    }
+
+    /**
+     * Kmers and values sorted by partition, not thread safe, each worker
+     * should fill its own
+     */
+    public static class Buckets<T> {
+
+        private final PartitionedKmerSet set;
+        private final int[] sizes;
+        private final long[][] k0s;
+        private final long[][] k1s;
+        private final Object[][] vals;
+
+        private Buckets(PartitionedKmerSet set) {
+            int numPartitions = set.getNumPartitions();
+            this.set = set;
+            sizes = new int[numPartitions];
+            k0s = new long[numPartitions][16];
+            k1s = new long[numPartitions][16];
+            vals = new Object[numPartitions][16];
+        }
+
+        public void add(long[] key, T val) {
+            add(key[0], (key.length > 1) ? key[1] : 0, val);
+        }
+
+        public void add(long k0, long k1, T val) {
+            if (set.getKeyLength() == 1) {
+                k1 = 0;
+            }
+
+            int partition = set.partitionOf(k0, k1);
+            int size = sizes[partition];
+            if (size == vals[partition].length) {
+                k0s[partition] = Arrays.copyOf(k0s[partition], size << 1);
+                k1s[partition] = Arrays.copyOf(k1s[partition], size << 1);
+                vals[partition] = Arrays.copyOf(vals[partition], size << 1);
+            }
+
+            k0s[partition][size] = k0;
+            k1s[partition][size] = k1;
+            vals[partition][size] = val;
+            sizes[partition] = size + 1;
+        }
+
+        public int size() {
+            int ret = 0;
+            for (int size : sizes) {
+                ret += size;
+            }
+            return ret;
+        }
+    }
+    private final int keyLength;
+    private final int partitionBits;
+    private final KmerSet<E>[] partitions;
+    private final int k;
+    private final int minimizerLength;
+
+    /**
+     * @param keyLength number of longs in each packed kmer (1 or 2)
+     * @param minPartitions rounded up to the next power of two
+     */
+    public PartitionedKmerSet(int keyLength, int minPartitions) {
+        this(keyLength, minPartitions, 0, 0);
+    }
+
+    /**
+     * Set of nucleotide kmers partitioned by minimizer
+     *
+     * @param k kmer length
+     * @param minimizerLength minimizer length, 0 to partition by hash
+     */
+    public PartitionedKmerSet(int keyLength, int minPartitions, int k, int minimizerLength) {
+        if (minimizerLength > 0) {
+            SuperKmerGenerator.checkMinimizerLength(k, minimizerLength);
+        }
+
+        int bits = 0;
+        while ((1 << bits) < minPartitions && bits < 16) {
+            bits++;
+        }
+
+        this.keyLength = keyLength;
+        this.k = k;
+        this.minimizerLength = minimizerLength;
+        this.partitionBits = bits;
+        this.partitions = new KmerSet[1 << bits];
+        for (int index = 0; index < partitions.length; index++) {
+            partitions[index] = new KmerSet<E>(keyLength);
+        }
+    }
+
+    public int getKeyLength() {
+        return keyLength;
+    }
+
+    public int getNumPartitions() {
+        return partitions.length;
+    }
+
+    public KmerSet<E> getPartition(int partition) {
+        return partitions[partition];
+    }
+
+    public int getMinimizerLength() {
+        return minimizerLength;
+    }
+
+    int partitionOf(long k0, long k1) {
+        if (partitionBits == 0) {
+            return 0;
+        }
+        if (minimizerLength > 0) {
+            return partitionOfMinimizer(SuperKmerGenerator.minimizer(k0, k1, k, minimizerLength));
+        }
+        return partitionOfHash(KmerSet.hash(k0, k1));
+    }
+
+    private int partitionOfHash(long h) {
+        if (partitionBits == 0) {
+            return 0;
+        }
+        return (int) (h >>> (64 - partitionBits));
+    }
+
+    /**
+     * The partition holding the kmers with this minimizer in a set
+     * partitioned by minimizer
+     */
+    public int partitionOfMinimizer(long minimizer) {
+        if (partitionBits == 0) {
+            return 0;
+        }
+        return (int) (minimizer >>> (64 - partitionBits));
+    }
+
+    public <T> Buckets<T> newBuckets() {
+        return new Buckets<T>(this);
+    }
+
+    /**
+     * Adds the contents of the buckets to the set, each partition is built by
+     * one task on a pool of numThreads threads. Values for a kmer are merged
+     * in the order the buckets are listed.
+     */
+    public <T> void addAll(final List<Buckets<T>> buckets, final Merger<T, E> merger, int numThreads) throws InterruptedException {
+        ExecutorService service = Executors.newFixedThreadPool(numThreads);
+        List<Future<Object>> futures = new ArrayList();
+
+        try {
+            for (int index = 0; index < partitions.length; index++) {
+                final int partition = index;
+                futures.add(service.submit(new Callable<Object>() {
+
+                    public Object call() {
+                        addAll(partition, buckets, merger);
+                        return null;
+                    }
+                }));
+            }
+
+            for (Future<Object> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            Throwable t = e.getCause();
+            if (t instanceof RuntimeException) {
+                throw (RuntimeException) t;
+            } else if (t instanceof Error) {
+                throw (Error) t;
+            }
+            throw new RuntimeException(t);
+        } finally {
+            service.shutdownNow();
+        }
+    }
+
+    private <T> void addAll(int partition, List<Buckets<T>> buckets, Merger<T, E> merger) {
+        KmerSet<E> set = partitions[partition];
+
+        for (Buckets<T> bucket : buckets) {
+            long[] k0s = bucket.k0s[partition];
+            long[] k1s = bucket.k1s[partition];
+            Object[] vals = bucket.vals[partition];
+
+            for (int index = 0; index < bucket.sizes[partition]; index++) {
+                E existing = set.get(k0s[index], k1s[index]);
+                E merged = merger.merge(existing, (T) vals[index]);
+                if (merged != existing) {
+                    set.add(k0s[index], k1s[index], merged);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a single kmer, only safe when no other thread is adding to the
+     * same set
+     */
+    public void add(long k0, long k1, E val) {
+        if (keyLength == 1) {
+            k1 = 0;
+        }
+        partitions[partitionOf(k0, k1)].add(k0, k1, val);
+    }
+
+    public E get(long[] key) {
+        return get(key[0], (keyLength == 2) ? key[1] : 0);
+    }
+
+    public E get(long k0, long k1) {
+        if (keyLength == 1) {
+            k1 = 0;
+        }
+        return partitions[partitionOf(k0, k1)].get(k0, k1);
+    }
+
+    public void forEachKey(KmerSet.KeyVisitor visitor) {
+        for (KmerSet<E> partition : partitions) {
+            partition.forEachKey(visitor);
+        }
+    }
+
+    /**
+     * Looks up a kmer whose minimizer is already known, only for sets
+     * partitioned by minimizer
+     */
+    public E get(long k0, long k1, long minimizer) {
+        if (keyLength == 1) {
+            k1 = 0;
+        }
+        return partitions[partitionOfMinimizer(minimizer)].get(k0, k1);
+    }
+
+    /**
+     * Looks up every kmer in the batch, each kmer's partition and slot are
+     * worked out before any partition is probed (see KmerBatch)
+     */
+    public void getAll(KmerBatch<? super E> batch) {
+        long[] k0s = batch.k0s;
+        long[] k1s = batch.k1s;
+        int[] slots = batch.slots;
+        int[] batchPartitions = batch.partitions;
+        int size = batch.size;
+
+        for (int index = 0; index < size; index++) {
+            long k0 = k0s[index];
+            long k1 = (keyLength == 1) ? 0 : k1s[index];
+            long h = KmerSet.hash(k0, k1);
+            int partition = (minimizerLength > 0) ? partitionOf(k0, k1) : partitionOfHash(h);
+
+            batchPartitions[index] = partition;
+            slots[index] = partitions[partition].homeSlot(h);
+        }
+
+        for (int index = 0; index < size; index++) {
+            batch.results[index] = partitions[batchPartitions[index]].getFrom(slots[index], k0s[index], (keyLength == 1) ? 0 : k1s[index]);
+        }
+    }
+
+    /**
+     * Looks up a batch of kmers that all have the same minimizer, such as a
+     * super kmer, only for sets partitioned by minimizer
+     */
+    public void getAll(KmerBatch<? super E> batch, long minimizer) {
+        partitions[partitionOfMinimizer(minimizer)].getAll(batch);
+    }
+
+    public int size() {
+        int ret = 0;
+        for (KmerSet<E> partition : partitions) {
+            ret += partition.size();
+        }
+        return ret;
+    }
+}
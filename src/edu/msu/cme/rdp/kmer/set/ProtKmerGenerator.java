@@ -35,6 +35,7 @@ public class ProtKmerGenerator implements KmerGenerator {
     private int position;  // model position of the kmer found, may not be the kmer returned
     private int curModelPosition; // the model position of the current returning kmer
     private boolean modelOnly = false;
+    private boolean cursorStarted = false;
    
 
     public ProtKmerGenerator(String seq, int k) {
@@ -67,10 +68,46 @@ public class ProtKmerGenerator implements KmerGenerator {
     public Kmer next() {
         Kmer ret = next;
         curModelPosition = position;
-        findNextKmer(k -1);
+        findNextKmer(k -1, false);
         return ret;
     }
 
+    /**
+     * Cursor style alternative to next(), moves to the next kmer by shifting
+     * the current kmer in place so nothing is allocated per base. The first
+     * call moves to the first kmer. Should not be mixed with next().
+     *
+     * @return false when there are no more kmers
+     */
+    public boolean advance() {
+        if (cursorStarted) {
+            findNextKmer(k - 1, true);
+        } else {
+            cursorStarted = true;
+        }
+
+        if (next == null) {
+            return false;
+        }
+        curModelPosition = position;
+        return true;
+    }
+
+    /**
+     * The kmer the cursor is on, this instance is modified by advance()
+     */
+    public Kmer current() {
+        return next;
+    }
+
+    public long word0() {
+        return next.getPart(0);
+    }
+
+    public long word1() {
+        return next.getPart(1);
+    }
+
     private Kmer getFirstKmer(int klength){         
         char[] kmerStr = new char[k];
         while (index < bases.length) {
@@ -102,7 +139,7 @@ public class ProtKmerGenerator implements KmerGenerator {
         return null;
     }
     
-    private void findNextKmer(int klength){  
+    private void findNextKmer(int klength, boolean inPlace){  
         if (next == null){
             return ;
         }
@@ -121,7 +158,11 @@ public class ProtKmerGenerator implements KmerGenerator {
                     if (ProtBinMapping.asciiMap[base] == -1) {
                         throw new IllegalArgumentException("Unknown prot base " + base);
                     }
-                    next = next.shiftLeft(base);
+                    if (inPlace) {
+                        next.shiftLeftInPlace(base);
+                    } else {
+                        next = next.shiftLeft(base);
+                    }
                     position++;
                     klength++;
                 }
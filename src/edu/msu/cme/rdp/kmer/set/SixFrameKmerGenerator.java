@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.kmer.set;
+
+import edu.msu.cme.rdp.kmer.CodonTable;
+import edu.msu.cme.rdp.kmer.Kmer;
+import edu.msu.cme.rdp.readseq.utils.IUBUtilities;
+import edu.msu.cme.rdp.readseq.utils.ProtBinMapping;
+
+/**
+ * Generates the packed protein kmers of all six reading frames of a
+ * nucleotide sequence in one pass over it, without building the reverse
+ * complement or any translated strings.
+ *
+ * The codon ending at each base is kept as a rolling 6 bit value for the read
+ * strand and its reverse complement, translated with the CodonTable and
+ * shifted in to the protein kmer of its frame (same packing as ProtKmer).
+ * Reverse strand amino acids come out last to first as the read is walked,
+ * so they are shifted in from the front of the kmer. Codons with anything
+ * other than a, c, g or t in them are translated a character at a time.
+ *
+ * Kmers from the different frames are interleaved in the order they are
+ * completed.
+ *
+ * @author fishjord
+ */
+public class SixFrameKmerGenerator {
+
+    private static final int BITS_PER_AA = 5;
+    private static final int AA_PER_WORD = 12;
+    private static final long AA_MASK = (1L << BITS_PER_AA) - 1;
+    private static final long WORD_MASK = (1L << (AA_PER_WORD * BITS_PER_AA)) - 1;
+    private static final byte[] BASE_CODES = new byte[128];
+
+    static {
+        for (int c = 0; c < BASE_CODES.length; c++) {
+            BASE_CODES[c] = -1;
+        }
+        BASE_CODES['a'] = BASE_CODES['A'] = 0;
+        BASE_CODES['c'] = BASE_CODES['C'] = 1;
+        BASE_CODES['g'] = BASE_CODES['G'] = 2;
+        BASE_CODES['t'] = BASE_CODES['T'] = 3;
+    }
+    private final char[] bases;
+    private final int k;
+    private final CodonTable codonTable;
+    private final int lastFill;
+    private final long lastMask;
+    // protein kmers being built in each frame of each strand
+    private final long[] fwd0 = new long[3];
+    private final long[] fwd1 = new long[3];
+    private final int[] fwdLength = new int[3];
+    private final long[] rev0 = new long[3];
+    private final long[] rev1 = new long[3];
+    private final int[] revLength = new int[3];
+    private int index = 0;
+    private int codon = 0;
+    private int rcCodon = 0;
+    private int lastAmbiguous = -3;
+    private boolean pendingReverse = false;  // a reverse kmer was completed by the same base as the current forward kmer
+    private int pendingFrame;
+    private int pendingPosition;
+    private long cur0;
+    private long cur1;
+    private int curFrame;
+    private int curPosition;
+
+    /**
+     * @param k protein kmer length
+     */
+    public SixFrameKmerGenerator(String seq, int k, int translTable) {
+        this(seq, k, CodonTable.getInstance(translTable));
+    }
+
+    public SixFrameKmerGenerator(String seq, int k, CodonTable codonTable) {
+        if (k > Kmer.max_prot_kmer_size) {
+            throw new IllegalArgumentException("K-mer size cannot be larger than " + Kmer.max_prot_kmer_size);
+        }
+        if (k < 1) {
+            throw new IllegalArgumentException("K-mer size must be at least 1");
+        }
+
+        this.bases = seq.toCharArray();
+        this.k = k;
+        this.codonTable = codonTable;
+        this.lastFill = (k > AA_PER_WORD) ? k - AA_PER_WORD : k;
+        this.lastMask = (1L << (lastFill * BITS_PER_AA)) - 1;
+    }
+
+    private static byte protCode(char aa) {
+        return (aa < ProtBinMapping.asciiMap.length) ? ProtBinMapping.asciiMap[aa] : -1;
+    }
+
+    private static byte checkCode(byte code, char[] bases, int start, boolean reverse) {
+        if (code == -1) {
+            String codonStr = new String(bases, start, 3);
+            throw new IllegalArgumentException("Unknown prot base translated from " + (reverse ? IUBUtilities.reverseComplement(codonStr) : codonStr));
+        }
+        return code;
+    }
+
+    /**
+     * Appends an amino acid to the end of a forward frame kmer
+     *
+     * @return true if the frame has a full kmer
+     */
+    private boolean pushForward(int frame, long aa) {
+        if (k <= AA_PER_WORD) {
+            fwd0[frame] = ((fwd0[frame] << BITS_PER_AA) | aa) & lastMask;
+        } else {
+            long overflow = fwd1[frame] >>> ((lastFill - 1) * BITS_PER_AA);
+            fwd1[frame] = ((fwd1[frame] << BITS_PER_AA) | aa) & lastMask;
+            fwd0[frame] = ((fwd0[frame] << BITS_PER_AA) | overflow) & WORD_MASK;
+        }
+
+        if (fwdLength[frame] < k) {
+            fwdLength[frame]++;
+        }
+        return fwdLength[frame] == k;
+    }
+
+    /**
+     * Prepends an amino acid to the front of a reverse frame kmer
+     *
+     * @return true if the frame has a full kmer
+     */
+    private boolean pushReverse(int frame, long aa) {
+        if (k <= AA_PER_WORD) {
+            rev0[frame] = (rev0[frame] >>> BITS_PER_AA) | (aa << ((k - 1) * BITS_PER_AA));
+        } else {
+            long overflow = rev0[frame] & AA_MASK;
+            rev0[frame] = (rev0[frame] >>> BITS_PER_AA) | (aa << ((AA_PER_WORD - 1) * BITS_PER_AA));
+            rev1[frame] = (rev1[frame] >>> BITS_PER_AA) | (overflow << ((lastFill - 1) * BITS_PER_AA));
+        }
+
+        if (revLength[frame] < k) {
+            revLength[frame]++;
+        }
+        return revLength[frame] == k;
+    }
+
+    /**
+     * Moves to the next protein kmer in any frame
+     *
+     * @return false when there are no more kmers
+     */
+    public boolean advance() {
+        if (pendingReverse) {
+            pendingReverse = false;
+            cur0 = rev0[pendingFrame];
+            cur1 = rev1[pendingFrame];
+            curFrame = -(pendingFrame + 1);
+            curPosition = pendingPosition;
+            return true;
+        }
+
+        while (index < bases.length) {
+            int i = index++;
+            char c = bases[i];
+            int base = (c < BASE_CODES.length) ? BASE_CODES[c] : -1;
+            if (base == -1) {
+                lastAmbiguous = i;
+                base = 0;
+            }
+
+            codon = ((codon << 2) | base) & 0x3f;
+            rcCodon = (rcCodon >>> 2) | ((3 - base) << 4);
+            if (i < 2) {
+                continue;
+            }
+
+            int start = i - 2;
+            int rcStart = bases.length - 1 - i;
+            byte aa, rcAa;
+            if (start <= lastAmbiguous) {
+                String rcCodonStr = IUBUtilities.reverseComplement(new String(bases, start, 3));
+                aa = protCode(codonTable.translate(bases[start], bases[start + 1], bases[i]));
+                rcAa = protCode(codonTable.translate(rcCodonStr.charAt(0), rcCodonStr.charAt(1), rcCodonStr.charAt(2)));
+            } else {
+                aa = codonTable.getCode(codon);
+                rcAa = codonTable.getCode(rcCodon);
+            }
+
+            int frame = start % 3;
+            int rcFrame = rcStart % 3;
+            boolean fwdDone = pushForward(frame, checkCode(aa, bases, start, false));
+            boolean revDone = pushReverse(rcFrame, checkCode(rcAa, bases, start, true));
+
+            if (fwdDone) {
+                cur0 = fwd0[frame];
+                cur1 = fwd1[frame];
+                curFrame = frame + 1;
+                curPosition = start - 3 * (k - 1);
+                if (revDone) {
+                    pendingReverse = true;
+                    pendingFrame = rcFrame;
+                    pendingPosition = rcStart;
+                }
+                return true;
+            } else if (revDone) {
+                cur0 = rev0[rcFrame];
+                cur1 = rev1[rcFrame];
+                curFrame = -(rcFrame + 1);
+                curPosition = rcStart;
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    public long word0() {
+        return cur0;
+    }
+
+    public long word1() {
+        return cur1;
+    }
+
+    /**
+     * Frame of the current kmer, 1 to 3 on the read strand and -1 to -3 on
+     * the reverse complement, the frame is the offset of its first codon (plus
+     * one) in the strand
+     */
+    public int getFrame() {
+        return curFrame;
+    }
+
+    public boolean isReverse() {
+        return curFrame < 0;
+    }
+
+    /**
+     * Index (0 based) in the strand the current kmer is on of the first base
+     * of its first codon, for the reverse frames this is an index in to the
+     * reverse complement of the sequence
+     */
+    public int getNuclPosition() {
+        return curPosition;
+    }
+
+    /**
+     * The current kmer's amino acids, the same as ProtKmer.toString()
+     */
+    public char[] getProtKmer() {
+        return decode(cur0, cur1, k);
+    }
+
+    /**
+     * Amino acids of a packed protein kmer of length k
+     */
+    public static char[] decode(long k0, long k1, int k) {
+        char[] ret = new char[k];
+        int word0Length = (k > AA_PER_WORD) ? AA_PER_WORD : k;
+        for (int i = 0; i < k; i++) {
+            long aa;
+            if (i < word0Length) {
+                aa = k0 >>> ((word0Length - 1 - i) * BITS_PER_AA);
+            } else {
+                aa = k1 >>> ((k - 1 - i) * BITS_PER_AA);
+            }
+            ret[i] = ProtBinMapping.intToChar[(int) (aa & AA_MASK)];
+        }
+        return ret;
+    }
+}
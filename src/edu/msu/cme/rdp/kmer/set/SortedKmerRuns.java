@@ -0,0 +1,531 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.kmer.set;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Turns a stream of packed kmers of any length in to sorted runs of distinct
+ * kmers and their counts on disk, using a fixed amount of memory.
+ *
+ * Kmers are added to an in memory buffer, when it fills up a worker thread
+ * sorts it (unsigned order of the words, the same as MappedKmerIndex),
+ * collapses the repeats and writes it to a temporary run file while the
+ * caller fills the next buffer. At most one buffer per thread plus the one
+ * being filled exist at a time. Once everything is added finish() merges the
+ * runs down to at most maxOpenRuns files, and open() merges those on the fly
+ * in to a single sorted stream of distinct kmers.
+ *
+ * Adding kmers isn't thread safe, use one SortedKmerRuns per producer.
+ *
+ * @author fishjord
+ */
+public class SortedKmerRuns {
+
+    public static final int DEFAULT_MAX_OPEN_RUNS = 64;
+    private static final int READ_BUFFER_BYTES = 1 << 16;
+
+    /**
+     * Walks the distinct kmers of a set of runs in sorted order, summing the
+     * counts of kmers that are in more than one run
+     */
+    public static class Cursor {
+
+        private final PriorityQueue<RunReader> readers;
+        private final List<RunReader> all = new ArrayList();
+        private long k0;
+        private long k1;
+        private long count;
+
+        private Cursor(List<File> files, int keyLength) throws IOException {
+            readers = new PriorityQueue<RunReader>(Math.max(1, files.size()), new Comparator<RunReader>() {
+                public int compare(RunReader a, RunReader b) {
+                    return MappedKmerIndex.compare(a.k0, a.k1, b.k0, b.k1);
+                }
+            });
+
+            try {
+                for (File f : files) {
+                    RunReader reader = new RunReader(f, keyLength);
+                    all.add(reader);
+                    if (reader.advance()) {
+                        readers.add(reader);
+                    }
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        /**
+         * Moves to the next distinct kmer
+         *
+         * @return false when there are no more kmers
+         */
+        public boolean next() throws IOException {
+            RunReader reader = readers.poll();
+            if (reader == null) {
+                return false;
+            }
+
+            k0 = reader.k0;
+            k1 = reader.k1;
+            count = reader.count;
+            if (reader.advance()) {
+                readers.add(reader);
+            }
+
+            while ((reader = readers.peek()) != null && reader.k0 == k0 && reader.k1 == k1) {
+                readers.poll();
+                count += reader.count;
+                if (reader.advance()) {
+                    readers.add(reader);
+                }
+            }
+
+            return true;
+        }
+
+        public long word0() {
+            return k0;
+        }
+
+        public long word1() {
+            return k1;
+        }
+
+        /**
+         * Number of times the current kmer was added
+         */
+        public long count() {
+            return count;
+        }
+
+        public void close() throws IOException {
+            for (RunReader reader : all) {
+                reader.in.close();
+            }
+            readers.clear();
+        }
+    }
+
+    private static class RunReader {
+
+        private final DataInputStream in;
+        private final int keyLength;
+        private long k0;
+        private long k1;
+        private long count;
+
+        RunReader(File f, int keyLength) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), READ_BUFFER_BYTES));
+            this.keyLength = keyLength;
+        }
+
+        boolean advance() throws IOException {
+            try {
+                k0 = in.readLong();
+            } catch (EOFException e) {
+                return false;
+            }
+            k1 = (keyLength == 2) ? in.readLong() : 0;
+            count = in.readLong();
+            return true;
+        }
+    }
+    private final File tmpDir;
+    private final int keyLength;
+    private final int bufferKmers;
+    private final int numThreads;
+    private final int maxOpenRuns;
+    private final ExecutorService service;
+    private final BlockingQueue<long[]> freeBuffers;
+    private final List<Future<File>> pending = new ArrayList();
+    private final List<File> runs = new ArrayList();
+    private int allocatedBuffers = 0;
+    private long[] buffer;
+    private int size = 0;
+    private long numKmers = 0;
+    private boolean finished = false;
+
+    /**
+     * @param tmpDir directory to write the runs to, null for the system temp
+     * directory
+     * @param keyLength number of longs in each packed kmer (1 or 2)
+     * @param bufferKmers kmers held in each sort buffer
+     * @param numThreads threads sorting and writing full buffers
+     */
+    public SortedKmerRuns(File tmpDir, int keyLength, int bufferKmers, int numThreads) {
+        this(tmpDir, keyLength, bufferKmers, numThreads, DEFAULT_MAX_OPEN_RUNS);
+    }
+
+    public SortedKmerRuns(File tmpDir, int keyLength, int bufferKmers, int numThreads, int maxOpenRuns) {
+        if (keyLength != 1 && keyLength != 2) {
+            throw new IllegalArgumentException("Key length must be 1 or 2, not " + keyLength);
+        }
+        if (bufferKmers < 1 || numThreads < 1) {
+            throw new IllegalArgumentException("Buffer size and number of threads must be positive");
+        }
+        if (maxOpenRuns < 2) {
+            throw new IllegalArgumentException("Must be able to merge at least two runs at a time");
+        }
+
+        this.tmpDir = tmpDir;
+        this.keyLength = keyLength;
+        this.bufferKmers = bufferKmers;
+        this.numThreads = numThreads;
+        this.maxOpenRuns = maxOpenRuns;
+        this.service = Executors.newFixedThreadPool(numThreads);
+        this.freeBuffers = new ArrayBlockingQueue<long[]>(numThreads + 1);
+    }
+
+    /**
+     * The order cursors return kmers in, unsigned order of the packed words
+     */
+    public static int compare(long a0, long a1, long b0, long b1) {
+        return MappedKmerIndex.compare(a0, a1, b0, b1);
+    }
+
+    public int getKeyLength() {
+        return keyLength;
+    }
+
+    /**
+     * Number of kmers added, including repeats
+     */
+    public long getNumKmers() {
+        return numKmers;
+    }
+
+    /**
+     * Number of run files written so far, after finish() this is the number
+     * of runs open() merges
+     */
+    public synchronized int getNumRuns() {
+        return runs.size();
+    }
+
+    public void add(long k0, long k1) throws IOException {
+        if (finished) {
+            throw new IllegalStateException("Kmers can't be added after finish()");
+        }
+        if (buffer == null) {
+            buffer = nextBuffer();
+        }
+
+        buffer[size * keyLength] = k0;
+        if (keyLength == 2) {
+            buffer[size * keyLength + 1] = k1;
+        }
+        size++;
+        numKmers++;
+
+        if (size == bufferKmers) {
+            submit(buffer, size);
+            buffer = null;
+            size = 0;
+        }
+    }
+
+    /**
+     * A new buffer until every thread has one, then waits for a worker to
+     * hand one back
+     */
+    private long[] nextBuffer() throws IOException {
+        long[] ret = freeBuffers.poll();
+        if (ret == null) {
+            if (allocatedBuffers <= numThreads) {
+                allocatedBuffers++;
+                return new long[bufferKmers * keyLength];
+            }
+
+            try {
+                ret = freeBuffers.take();
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted waiting for a sort buffer");
+            }
+        }
+        return ret;
+    }
+
+
+    private void submit(final long[] buf, final int n) {
+        pending.add(service.submit(new Callable<File>() {
+            public File call() throws IOException {
+                try {
+                    sort(buf, n);
+                    File f = writeRun(buf, n);
+                    synchronized (SortedKmerRuns.this) {
+                        runs.add(f);
+                    }
+                    return f;
+                } finally {
+                    freeBuffers.add(buf);
+                }
+            }
+        }));
+    }
+
+    private void sort(long[] buf, int n) {
+        if (keyLength == 1) {
+            // flipping the sign bit turns the signed sort in to an unsigned one
+            for (int index = 0; index < n; index++) {
+                buf[index] ^= Long.MIN_VALUE;
+            }
+            Arrays.sort(buf, 0, n);
+            for (int index = 0; index < n; index++) {
+                buf[index] ^= Long.MIN_VALUE;
+            }
+        } else {
+            sortPairs(buf, 0, n - 1);
+        }
+    }
+
+    private static int comparePairs(long[] buf, int a, int b) {
+        return MappedKmerIndex.compare(buf[a * 2], buf[a * 2 + 1], buf[b * 2], buf[b * 2 + 1]);
+    }
+
+    private static void swapPairs(long[] buf, int a, int b) {
+        long tmp = buf[a * 2];
+        buf[a * 2] = buf[b * 2];
+        buf[b * 2] = tmp;
+        tmp = buf[a * 2 + 1];
+        buf[a * 2 + 1] = buf[b * 2 + 1];
+        buf[b * 2 + 1] = tmp;
+    }
+
+    /**
+     * Quicksorts two word kmers in place, the pivot is copied to the end of
+     * the range so the partitions can't move it
+     */
+    private static void sortPairs(long[] buf, int lo, int hi) {
+        while (hi - lo > 16) {
+            swapPairs(buf, (lo + hi) >>> 1, hi);
+            int store = lo;
+            for (int index = lo; index < hi; index++) {
+                if (comparePairs(buf, index, hi) < 0) {
+                    swapPairs(buf, index, store++);
+                }
+            }
+            swapPairs(buf, store, hi);
+
+            // skip over the kmers equal to the pivot, runs of repeats are common
+            int eq = store + 1;
+            while (eq <= hi && comparePairs(buf, eq, store) == 0) {
+                eq++;
+            }
+            for (int index = eq; index <= hi; index++) {
+                if (comparePairs(buf, index, store) == 0) {
+                    swapPairs(buf, index, eq++);
+                }
+            }
+
+            if (store - lo < hi - eq) {
+                sortPairs(buf, lo, store - 1);
+                lo = eq;
+            } else {
+                sortPairs(buf, eq, hi);
+                hi = store - 1;
+            }
+        }
+
+        for (int i = lo + 1; i <= hi; i++) {
+            for (int j = i; j > lo && comparePairs(buf, j - 1, j) > 0; j--) {
+                swapPairs(buf, j - 1, j);
+            }
+        }
+    }
+
+    /**
+     * Writes each distinct kmer of a sorted buffer with the number of times it
+     * appears in the buffer
+     */
+    private File writeRun(long[] buf, int n) throws IOException {
+        File f = File.createTempFile("kmer_run_", ".bin", tmpDir);
+        DataOutputStream out = null;
+        boolean written = false;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), READ_BUFFER_BYTES));
+            int index = 0;
+            while (index < n) {
+                long k0 = buf[index * keyLength];
+                long k1 = (keyLength == 2) ? buf[index * keyLength + 1] : 0;
+                int next = index + 1;
+                while (next < n && buf[next * keyLength] == k0 && (keyLength == 1 || buf[next * keyLength + 1] == k1)) {
+                    next++;
+                }
+
+                out.writeLong(k0);
+                if (keyLength == 2) {
+                    out.writeLong(k1);
+                }
+                out.writeLong(next - index);
+                index = next;
+            }
+            out.close();
+            out = null;
+            written = true;
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+            if (!written) {
+                f.delete();
+            }
+        }
+        return f;
+    }
+
+    /**
+     * Sorts whatever is left in the buffer, waits for the workers and merges
+     * the runs until there are few enough to open at once
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+
+        Throwable t = null;
+        try {
+            if (size > 0) {
+                submit(buffer, size);
+            }
+            buffer = null;
+            size = 0;
+
+            // wait for every worker, even after one fails, so all the runs
+            // written are in the list for delete()
+            for (Future<File> future : pending) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (t == null) {
+                        t = e.getCause();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted waiting for the sort threads");
+        } finally {
+            pending.clear();
+            service.shutdownNow();
+            freeBuffers.clear();
+        }
+
+        if (t instanceof IOException) {
+            throw (IOException) t;
+        } else if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        } else if (t != null) {
+            throw new RuntimeException(t);
+        }
+
+        synchronized (this) {
+            while (runs.size() > maxOpenRuns) {
+                File merged = mergeRuns(new ArrayList(runs.subList(0, maxOpenRuns)));
+                runs.subList(0, maxOpenRuns).clear();
+                runs.add(merged);
+            }
+        }
+    }
+
+    private File mergeRuns(List<File> group) throws IOException {
+        File f = File.createTempFile("kmer_run_", ".bin", tmpDir);
+        Cursor cursor = null;
+        DataOutputStream out = null;
+        boolean written = false;
+        try {
+            cursor = new Cursor(group, keyLength);
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), READ_BUFFER_BYTES));
+            while (cursor.next()) {
+                out.writeLong(cursor.word0());
+                if (keyLength == 2) {
+                    out.writeLong(cursor.word1());
+                }
+                out.writeLong(cursor.count());
+            }
+            out.close();
+            out = null;
+            written = true;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+            if (out != null) {
+                out.close();
+            }
+            if (!written) {
+                f.delete();
+            }
+        }
+
+        for (File run : group) {
+            run.delete();
+        }
+        return f;
+    }
+
+    /**
+     * Opens a cursor over every kmer added, finish() must have been called.
+     * More than one cursor can be open at a time.
+     */
+    public Cursor open() throws IOException {
+        if (!finished) {
+            throw new IllegalStateException("finish() must be called before the runs can be read");
+        }
+        synchronized (this) {
+            return new Cursor(new ArrayList(runs), keyLength);
+        }
+    }
+
+    /**
+     * Removes the run files
+     */
+    public void delete() {
+        service.shutdownNow();
+        synchronized (this) {
+            for (File f : runs) {
+                f.delete();
+            }
+            runs.clear();
+        }
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.kmer.set;
+
+import java.util.Arrays;
+
+/**
+ * Groups the kmers from a canonical NuclKmerGenerator in to super kmers, runs
+ * of consecutive kmers with the same minimizer.
+ *
+ * A kmer's minimizer is the smallest hash of the canonical (smaller of the
+ * m-mer and its reverse complement) m-mers in it. Using canonical m-mers
+ * means a kmer and its reverse complement have the same minimizer, so it can
+ * be worked out from the canonical kmer stored in an index (minimizer()) or
+ * rolled along the read, where the window of m-mer hashes is shifted by one
+ * base per kmer instead of being recomputed.
+ *
+ * An index partitioned by minimizer (see PartitionedKmerSet) only needs one
+ * partition for all the kmers in a super kmer.
+ *
+ * @author fishjord
+ */
+public class SuperKmerGenerator {
+
+    public static final int MAX_MINIMIZER_LENGTH = 31;
+
+    /**
+     * The kmers of one super kmer, reused by nextSuperKmer
+     */
+    public static class SuperKmer {
+
+        private long minimizer;
+        private int size;
+        private long[] k0s = new long[16];
+        private long[] k1s = new long[16];
+        private int[] positions = new int[16];
+        private boolean[] reverse = new boolean[16];
+        private boolean[] palindrome = new boolean[16];
+
+        private void add(NuclKmerGenerator kmerGen) {
+            if (size == k0s.length) {
+                k0s = Arrays.copyOf(k0s, size << 1);
+                k1s = Arrays.copyOf(k1s, size << 1);
+                positions = Arrays.copyOf(positions, size << 1);
+                reverse = Arrays.copyOf(reverse, size << 1);
+                palindrome = Arrays.copyOf(palindrome, size << 1);
+            }
+
+            k0s[size] = kmerGen.word0();
+            k1s[size] = kmerGen.word1();
+            positions[size] = kmerGen.getPosition();
+            reverse[size] = kmerGen.isReverse();
+            palindrome[size] = kmerGen.isPalindrome();
+            size++;
+        }
+
+        public long getMinimizer() {
+            return minimizer;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public long getWord0(int index) {
+            return k0s[index];
+        }
+
+        public long getWord1(int index) {
+            return k1s[index];
+        }
+
+        /**
+         * Same as NuclKmerGenerator.getPosition for the kmer
+         */
+        public int getPosition(int index) {
+            return positions[index];
+        }
+
+        public boolean isReverse(int index) {
+            return reverse[index];
+        }
+
+        public boolean isPalindrome(int index) {
+            return palindrome[index];
+        }
+    }
+    private NuclKmerGenerator kmerGen;
+    private final int k;
+    private final int m;
+    private final int window;   // number of m-mers in a kmer
+    private final long mmerMask;
+    private long fwd;           // last m-mer on the read's strand
+    private long rc;            // and its reverse complement
+    private int mmerIndex;
+    // monotone queue of the m-mer hashes in the current window, smallest first
+    private final long[] queueVals;
+    private final int[] queueIndexes;
+    private int queueHead;
+    private int queueSize;
+    private int lastPosition;
+    private boolean started = false;
+    private boolean pending = false;  // the generator is on a kmer nextSuperKmer hasn't returned yet
+    private long curMinimizer;
+
+    /**
+     * @param kmerGen a canonical generator that hasn't been advanced yet
+     * @param m minimizer length, at most k and MAX_MINIMIZER_LENGTH
+     */
+    public SuperKmerGenerator(NuclKmerGenerator kmerGen, int k, int m) {
+        this(k, m);
+        this.kmerGen = kmerGen;
+    }
+
+    /**
+     * A generator that isn't on any read yet, call setKmerGenerator before
+     * using it
+     */
+    public SuperKmerGenerator(int k, int m) {
+        checkMinimizerLength(k, m);
+
+        this.k = k;
+        this.m = m;
+        this.window = k - m + 1;
+        this.mmerMask = (1L << (2 * m)) - 1;
+        queueVals = new long[window];
+        queueIndexes = new int[window];
+    }
+
+    /**
+     * Starts over on another read's kmers, so one generator (and its window)
+     * can be reused for every read a thread processes
+     *
+     * @param kmerGen a canonical generator that hasn't been advanced yet
+     */
+    public void setKmerGenerator(NuclKmerGenerator kmerGen) {
+        this.kmerGen = kmerGen;
+        started = false;
+        pending = false;
+    }
+
+    static void checkMinimizerLength(int k, int m) {
+        if (m < 1 || m > k || m > MAX_MINIMIZER_LENGTH) {
+            throw new IllegalArgumentException("Minimizer length must be between 1 and " + Math.min(k, MAX_MINIMIZER_LENGTH) + ", not " + m);
+        }
+    }
+
+    /**
+     * Base i (0 is the first base) of a packed nucleotide kmer
+     */
+    static int baseAt(long k0, long k1, int k, int i) {
+        if (k <= 32) {
+            return (int) (k0 >>> (2 * (k - 1 - i))) & 0x3;
+        } else if (i < 32) {
+            return (int) (k0 >>> (2 * (31 - i))) & 0x3;
+        }
+        return (int) (k1 >>> (2 * (k - 1 - i))) & 0x3;
+    }
+
+    /**
+     * The minimizer of a packed nucleotide kmer, the same for the kmer and
+     * its reverse complement
+     */
+    public static long minimizer(long k0, long k1, int k, int m) {
+        checkMinimizerLength(k, m);
+
+        long mask = (1L << (2 * m)) - 1;
+        int rcShift = 2 * (m - 1);
+        long f = 0;
+        long r = 0;
+        long min = Long.MAX_VALUE;
+
+        for (int i = 0; i < k; i++) {
+            int base = baseAt(k0, k1, k, i);
+            f = ((f << 2) | base) & mask;
+            r = (r >>> 2) | ((long) (3 - base) << rcShift);
+            if (i >= m - 1) {
+                min = Math.min(min, KmerSet.mix(Math.min(f, r)));
+            }
+        }
+
+        return min;
+    }
+
+    private void push(int base) {
+        fwd = ((fwd << 2) | base) & mmerMask;
+        rc = (rc >>> 2) | ((long) (3 - base) << (2 * (m - 1)));
+        long h = KmerSet.mix(Math.min(fwd, rc));
+        mmerIndex++;
+
+        // expire the m-mers leaving the window first, equal hashes aren't
+        // popped off the back so on a repeat the queue can be full
+        while (queueSize > 0 && queueIndexes[queueHead] <= mmerIndex - window) {
+            queueHead = (queueHead + 1) % window;
+            queueSize--;
+        }
+        while (queueSize > 0 && queueVals[(queueHead + queueSize - 1) % window] > h) {
+            queueSize--;
+        }
+        int tail = (queueHead + queueSize) % window;
+        queueVals[tail] = h;
+        queueIndexes[tail] = mmerIndex;
+        queueSize++;
+    }
+
+    /**
+     * Fills the window from the current kmer, after the first kmer or a break
+     * in the read
+     */
+    private void reset() {
+        long k0 = kmerGen.word0();
+        long k1 = kmerGen.word1();
+        boolean reverse = kmerGen.isReverse();
+
+        queueHead = 0;
+        queueSize = 0;
+        mmerIndex = 0;
+        for (int i = 0; i < k; i++) {
+            // bases of the kmer on the read's strand
+            int base = reverse ? 3 - baseAt(k0, k1, k, k - 1 - i) : baseAt(k0, k1, k, i);
+            if (i < m - 1) {
+                fwd = ((fwd << 2) | base) & mmerMask;
+                rc = (rc >>> 2) | ((long) (3 - base) << (2 * (m - 1)));
+            } else {
+                push(base);
+            }
+        }
+    }
+
+    /**
+     * Moves the kmer generator to its next kmer and updates the minimizer
+     */
+    public boolean advance() {
+        if (!kmerGen.advance()) {
+            return false;
+        }
+
+        int position = kmerGen.getPosition();
+        if (!started || position != lastPosition + 1) {
+            started = true;
+            reset();
+        } else {
+            // the new base on the read's strand is the last base of the kmer
+            int base = kmerGen.isReverse() ? 3 - baseAt(kmerGen.word0(), kmerGen.word1(), k, 0)
+                    : baseAt(kmerGen.word0(), kmerGen.word1(), k, k - 1);
+            push(base);
+        }
+        lastPosition = position;
+        curMinimizer = queueVals[queueHead];
+        return true;
+    }
+
+    /**
+     * Minimizer of the kmer the generator is on
+     */
+    public long minimizer() {
+        return curMinimizer;
+    }
+
+    /**
+     * Fills sk with the next run of kmers sharing a minimizer, runs aren't
+     * split at breaks in the read (N's) if the minimizer carries over
+     *
+     * @return false when there are no more kmers
+     */
+    public boolean nextSuperKmer(SuperKmer sk) {
+        sk.size = 0;
+        if (!pending && !advance()) {
+            return false;
+        }
+
+        pending = false;
+        sk.minimizer = curMinimizer;
+        sk.add(kmerGen);
+        while (advance()) {
+            if (curMinimizer != sk.minimizer) {
+                pending = true;
+                break;
+            }
+            sk.add(kmerGen);
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.kmer.trie;
+
+import edu.msu.cme.rdp.kmer.set.BlockedBloomFilter;
+import edu.msu.cme.rdp.kmer.trie.KmerTrie.RefPos;
+import edu.msu.cme.rdp.kmer.trie.KmerTrie.TrieInteriorNode;
+import edu.msu.cme.rdp.kmer.trie.KmerTrie.TrieLeaf;
+import edu.msu.cme.rdp.kmer.trie.KmerTrie.TrieNode;
+import edu.msu.cme.rdp.readseq.SequenceType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A read only copy of a KmerTrie packed in to flat arrays.
+ *
+ * Interior nodes are numbered level by level (root is 0) and each one stores
+ * a bit mask of the characters it has children for and the number of its
+ * first child, the child for character c is firstChild + the number of bits
+ * set in the mask below c. All leaves sit at depth k so they are numbered
+ * after the interior nodes, leaf i's reference positions are postings
+ * postingStart[i] to postingStart[i + 1] in the shared postings arrays.
+ *
+ * contains returns a small TrieLeaf view over the arrays, or null if the kmer
+ * isn't in the trie. An optional bloom filter of the trie's kmers
+ * (buildPrefilter) lets most misses skip the descent.
+ *
+ * @author fishjord
+ */
+public class FrozenKmerTrie {
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final int k;
+    private final boolean isProtein;
+    private final int seqCount;
+    private final int alphaSize;
+    private final long[] childMasks;
+    private final int[] firstChild;
+    private final int numInterior;
+    private final int numLeaves;
+    private final byte[] frames;
+    private final int[] counts;
+    private final AtomicIntegerArray queryCounts;
+    private final int[] postingStart;
+    private final int[] postingRefSets;
+    private final int[] postingModelPos;
+    private final int[] postingSeqids;
+    private final String[] seqids;
+    private BlockedBloomFilter prefilter;
+
+    private class FrozenLeaf extends TrieLeaf {
+
+        private final int leaf;
+
+        FrozenLeaf(int leaf) {
+            this.leaf = leaf;
+        }
+
+        @Override
+        public int getFrame() {
+            return frames[leaf];
+        }
+
+        @Override
+        public int getCount() {
+            return counts[leaf];
+        }
+
+        @Override
+        public Set<Integer> getRefSets() {
+            Set<Integer> ret = new LinkedHashSet();
+            for (int posting = postingStart[leaf]; posting < postingStart[leaf + 1]; posting++) {
+                ret.add(postingRefSets[posting]);
+            }
+            return Collections.unmodifiableSet(ret);
+        }
+
+        @Override
+        public Set<RefPos> getModelStarts(int refSet) {
+            Set<RefPos> ret = new HashSet();
+            for (int posting = postingStart[leaf]; posting < postingStart[leaf + 1]; posting++) {
+                if (postingRefSets[posting] == refSet) {
+                    RefPos pos = new RefPos();
+                    pos.modelPos = postingModelPos[posting];
+                    pos.seqid = seqids[postingSeqids[posting]];
+                    ret.add(pos);
+                }
+            }
+            return Collections.unmodifiableSet(ret);
+        }
+
+        @Override
+        public void incQueryCount() {
+            queryCounts.incrementAndGet(leaf);
+        }
+
+        @Override
+        public int getQueryCount() {
+            return queryCounts.get(leaf);
+        }
+    }
+
+    FrozenKmerTrie(KmerTrie trie) {
+        this.k = trie.getWordSize();
+        this.isProtein = trie.getTreeSeqType() == SequenceType.Protein;
+        this.seqCount = trie.getSeqCount();
+        this.alphaSize = isProtein ? KmerTrie.proteinAlphaSize : KmerTrie.rnaAlphaSize;
+
+        if (alphaSize > 64) {
+            throw new IllegalArgumentException("Alphabet of " + alphaSize + " characters doesn't fit in a child mask");
+        }
+
+        numLeaves = trie.uniqueWords();
+        numInterior = trie.countNodes() - numLeaves;
+        childMasks = new long[numInterior];
+        firstChild = new int[numInterior];
+
+        /*
+         * Walk the trie a level at a time, the interior nodes' numbers are
+         * their position in the walk so a node's children are numbered
+         * consecutively from the next free number
+         */
+        List<TrieNode> level = new ArrayList();
+        level.add(trie.getRoot());
+        int nodeId = 0;
+        int nextId = 1;
+        for (int depth = 0; depth < k; depth++) {
+            List<TrieNode> nextLevel = new ArrayList();
+            for (TrieNode node : level) {
+                TrieNode[] children = ((TrieInteriorNode) node).children;
+                long mask = 0;
+                for (int c = 0; c < children.length; c++) {
+                    if (children[c] != null) {
+                        mask |= 1L << c;
+                        nextLevel.add(children[c]);
+                    }
+                }
+
+                childMasks[nodeId] = mask;
+                firstChild[nodeId] = nextId;
+                nextId += Long.bitCount(mask);
+                nodeId++;
+            }
+            level = nextLevel;
+        }
+
+        // level now holds the leaves in the order they were numbered
+        frames = new byte[numLeaves];
+        counts = new int[numLeaves];
+        queryCounts = new AtomicIntegerArray(numLeaves);
+        postingStart = new int[numLeaves + 1];
+
+        int numPostings = 0;
+        for (int leaf = 0; leaf < numLeaves; leaf++) {
+            TrieLeaf trieLeaf = (TrieLeaf) level.get(leaf);
+            for (Integer refSet : trieLeaf.getRefSets()) {
+                numPostings += trieLeaf.getModelStarts(refSet).size();
+            }
+        }
+
+        postingRefSets = new int[numPostings];
+        postingModelPos = new int[numPostings];
+        postingSeqids = new int[numPostings];
+        Map<String, Integer> seqidMap = new HashMap();
+        List<String> seqidList = new ArrayList();
+
+        int posting = 0;
+        for (int leaf = 0; leaf < numLeaves; leaf++) {
+            TrieLeaf trieLeaf = (TrieLeaf) level.get(leaf);
+            frames[leaf] = (byte) trieLeaf.getFrame();
+            counts[leaf] = trieLeaf.getCount();
+            queryCounts.set(leaf, trieLeaf.getQueryCount());
+            postingStart[leaf] = posting;
+
+            for (Integer refSet : new TreeSet<Integer>(trieLeaf.getRefSets())) {
+                for (RefPos pos : trieLeaf.getModelStarts(refSet)) {
+                    Integer seqid = seqidMap.get(pos.seqid);
+                    if (seqid == null) {
+                        seqid = seqidList.size();
+                        seqidMap.put(pos.seqid, seqid);
+                        seqidList.add(pos.seqid);
+                    }
+
+                    postingRefSets[posting] = refSet;
+                    postingModelPos[posting] = pos.modelPos;
+                    postingSeqids[posting] = seqid;
+                    posting++;
+                }
+            }
+        }
+        postingStart[numLeaves] = posting;
+        seqids = seqidList.toArray(new String[seqidList.size()]);
+    }
+
+    public int getWordSize() {
+        return k;
+    }
+
+    public SequenceType getTreeSeqType() {
+        return isProtein ? SequenceType.Protein : SequenceType.Nucleotide;
+    }
+
+    public int getSeqCount() {
+        return seqCount;
+    }
+
+    public int uniqueWords() {
+        return numLeaves;
+    }
+
+    public int countNodes() {
+        return numInterior + numLeaves;
+    }
+
+    public TrieLeaf contains(char[] kmer) {
+        if (kmer.length != k) {
+            throw new IllegalArgumentException(new String(kmer) + "'s length doesn't match expected (" + k + ")");
+        }
+
+        return contains(kmer, 0);
+    }
+
+    /**
+     * Builds a bloom filter holding every kmer in the trie, contains checks
+     * it before searching the trie from then on
+     */
+    public BlockedBloomFilter buildPrefilter(double fpRate) {
+        BlockedBloomFilter filter = new BlockedBloomFilter(numLeaves, fpRate);
+        if (numLeaves > 0) {
+            addToPrefilter(filter, 0, 0, FNV_OFFSET);
+        }
+        prefilter = filter;
+        return filter;
+    }
+
+    public BlockedBloomFilter getPrefilter() {
+        return prefilter;
+    }
+
+    /**
+     * Adds the kmers under node (h is the hash of the characters leading to
+     * it) to the filter
+     */
+    private void addToPrefilter(BlockedBloomFilter filter, int node, int depth, long h) {
+        if (depth == k) {
+            filter.add(BlockedBloomFilter.hash(h, k));
+            return;
+        }
+
+        long mask = childMasks[node];
+        int child = firstChild[node];
+        for (int code = 0; code < alphaSize; code++) {
+            if ((mask & (1L << code)) != 0) {
+                addToPrefilter(filter, child++, depth + 1, (h ^ code) * FNV_PRIME);
+            }
+        }
+    }
+
+    private int code(char c) {
+        int code = (c < KmerTrie.alphaMap.length) ? KmerTrie.alphaMap[c] : -1;
+        if (code < 0 || code >= alphaSize) {
+            throw new IllegalArgumentException("kmer contains unmappable character " + c);
+        }
+        return code;
+    }
+
+    public TrieLeaf contains(char[] kmer, int offset) {
+        return contains(kmer, offset, null);
+    }
+
+    /**
+     * Same as contains(kmer, offset), prefilter lookups are counted in stats
+     * if it isn't null
+     */
+    public TrieLeaf contains(char[] kmer, int offset, BlockedBloomFilter.Stats stats) {
+        if (offset + k > kmer.length) {
+            throw new IllegalArgumentException("Array offset doesn't leave enough room for a full kmer " + offset + ", " + k + " " + kmer.length);
+        }
+
+        if (prefilter != null) {
+            long h = FNV_OFFSET;
+            for (int index = offset; index < offset + k; index++) {
+                h = (h ^ code(kmer[index])) * FNV_PRIME;
+            }
+            h = BlockedBloomFilter.hash(h, k);
+
+            if (!((stats == null) ? prefilter.mightContain(h) : prefilter.mightContain(h, stats))) {
+                return null;
+            }
+        }
+
+        TrieLeaf ret = search(kmer, offset);
+        if (ret == null && prefilter != null && stats != null) {
+            stats.falsePositive();
+        }
+        return ret;
+    }
+
+    private TrieLeaf search(char[] kmer, int offset) {
+        int node = 0;
+        for (int index = offset; index < offset + k; index++) {
+            int code = code(kmer[index]);
+
+            long mask = childMasks[node];
+            long bit = 1L << code;
+            if ((mask & bit) == 0) {
+                return null;
+            }
+            node = firstChild[node] + Long.bitCount(mask & (bit - 1));
+        }
+
+        return new FrozenLeaf(node - numInterior);
+    }
+}
@@ -20,25 +20,59 @@ import edu.msu.cme.rdp.readseq.SequenceType;
 import edu.msu.cme.rdp.readseq.readers.SeqReader;
 import edu.msu.cme.rdp.readseq.readers.Sequence;
 import edu.msu.cme.rdp.readseq.utils.SeqUtils;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
+ * Tries can be written to a file with save and read back with load, which is
+ * much faster than rebuilding them from the reference sequences.
+ *
+ * Layout (big endian, varints are 7 bits per byte low bits first):
+ * <pre>
+ * header     magic, version, k, alphabet size (ints), protein flag (byte),
+ *            #seqs (int)
+ * labels     #ref set labels, labels (varint length + UTF-8 bytes)
+ * nodes      depth first from the root
+ * </pre>
+ * Interior nodes are a bit mask of the characters they have children for
+ * ((alphabet size + 7) / 8 bytes, lowest bit first) followed by the children
+ * in character order. Every node at depth k is a leaf: frame (zigzag varint),
+ * count, #ref sets and for each ref set its id, #positions and the
+ * positions, a model position (zigzag varint) and seqid. Seqids are numbered
+ * in the order they're first written, a seqid is its number followed by the
+ * string the first time it's written.
  *
  * @author fishjord
  */
 public class KmerTrie implements Serializable {
 
-    private static final byte[] alphaMap = new byte[127];
-    private static final int rnaAlphaSize = 4;
-    private static final int proteinAlphaSize;
+    private static final int MAGIC = 0x4B545249;  // KTRI
+    private static final int VERSION = 1;
+
+    static final byte[] alphaMap = new byte[127];
+    static final int rnaAlphaSize = 4;
+    static final int proteinAlphaSize;
 
     static {
         Arrays.fill(alphaMap, (byte) -1);
@@ -63,10 +97,10 @@ public class KmerTrie implements Serializable {
         public String seqid;
     }
 
-    private abstract static class TrieNode {
+    abstract static class TrieNode {
     }
 
-    private static class TrieInteriorNode extends TrieNode {
+    static class TrieInteriorNode extends TrieNode {
 
         TrieNode[] children;
     }
@@ -76,11 +110,17 @@ public class KmerTrie implements Serializable {
         private int frame = 0;
         private int count = 0;
         private int queryCount = 0;
-        private Map<Integer, Set<RefPos>> refSetToModelStarts = new HashMap();
-        private Set<String> seqids = new HashSet();
+        private Map<Integer, Set<RefPos>> refSetToModelStarts;
 
         public TrieLeaf(int frame) {
             this.frame = frame;
+            this.refSetToModelStarts = new HashMap();
+        }
+
+        /**
+         * For leaves that keep their data elsewhere and override the getters
+         */
+        protected TrieLeaf() {
         }
 
         public int getFrame() {
@@ -115,6 +155,7 @@ public class KmerTrie implements Serializable {
     private final boolean isProtein;
     private final int k;
     private int seqCount;
+    private final List<String> refSetLabels = new ArrayList();
 
     public KmerTrie(int k, boolean isProtein) {
         this.k = k;
@@ -129,8 +170,35 @@ public class KmerTrie implements Serializable {
         return k;
     }
 
+    TrieNode getRoot() {
+        return root;
+    }
+
+    /**
+     * Names the next ref set, ref sets are expected to be numbered from 0 in
+     * the order they're labeled
+     */
+    public void addRefSetLabel(String label) {
+        refSetLabels.add(label);
+    }
+
+    public List<String> getRefSetLabels() {
+        return Collections.unmodifiableList(refSetLabels);
+    }
+
+    /**
+     * Packs this trie in to a read only FrozenKmerTrie, this trie isn't
+     * changed and can be discarded afterwards
+     */
+    public FrozenKmerTrie freeze() {
+        return new FrozenKmerTrie(this);
+    }
+
     public static KmerTrie buildTrie(SeqReader reader, int k) throws IOException {
         Sequence seq = reader.readNextSequence();
+        while (seq != null && seq.getSeqName().startsWith("#")) {
+            seq = reader.readNextSequence();
+        }
 
         if (seq == null) {
             throw new IOException("Sequence file contains no sequences");
@@ -138,6 +206,10 @@ public class KmerTrie implements Serializable {
         KmerTrie trie = new KmerTrie(k, SeqUtils.guessSequenceType(seq) == SequenceType.Protein);
 
         do {
+            if (seq.getSeqName().startsWith("#")) {
+                continue;
+            }
+
             trie.addSequence(seq);
         } while ((seq = reader.readNextSequence()) != null);
 
@@ -250,6 +322,134 @@ public class KmerTrie implements Serializable {
         seqCount++;
     }
 
+    /**
+     * Kmers waiting to be added, sorted by the root child they go under.
+     * Sequence kmers are stored as an offset in to the sequence's bases and
+     * model kmers as their own arrays (offset 0).
+     */
+    private static class KmerBuckets {
+
+        private final int[] sizes;
+        private final char[][][] chars;
+        private final int[][] offsets;
+        private final int[][] modelPos;
+        private final String[][] seqids;
+
+        KmerBuckets(int alphaSize) {
+            sizes = new int[alphaSize];
+            chars = new char[alphaSize][16][];
+            offsets = new int[alphaSize][16];
+            modelPos = new int[alphaSize][16];
+            seqids = new String[alphaSize][16];
+        }
+
+        void add(int bucket, char[] kmerChars, int offset, int pos, String seqid) {
+            int size = sizes[bucket];
+            if (size == chars[bucket].length) {
+                chars[bucket] = Arrays.copyOf(chars[bucket], size << 1);
+                offsets[bucket] = Arrays.copyOf(offsets[bucket], size << 1);
+                modelPos[bucket] = Arrays.copyOf(modelPos[bucket], size << 1);
+                seqids[bucket] = Arrays.copyOf(seqids[bucket], size << 1);
+            }
+
+            chars[bucket][size] = kmerChars;
+            offsets[bucket][size] = offset;
+            modelPos[bucket][size] = pos;
+            seqids[bucket][size] = seqid;
+            sizes[bucket] = size + 1;
+        }
+    }
+
+    private int rootChild(char c) {
+        int code = (c < alphaMap.length) ? alphaMap[c] : -1;
+        if (code < 0 || code >= ((TrieInteriorNode) root).children.length) {
+            throw new IllegalArgumentException("kmer contains unmappable character " + c);
+        }
+        return code;
+    }
+
+    private KmerBuckets bucketKmers(List<Sequence> seqs, boolean modelSeqs) {
+        KmerBuckets buckets = new KmerBuckets(((TrieInteriorNode) root).children.length);
+
+        for (Sequence seq : seqs) {
+            if (modelSeqs) {
+                ModelPositionKmerGenerator kmers = new ModelPositionKmerGenerator(seq.getSeqString(), k, getTreeSeqType());
+                for (char[] kmer : kmers) {
+                    buckets.add(rootChild(kmer[0]), kmer, 0, kmers.getModelPosition(), seq.getSeqName());
+                }
+            } else {
+                char[] bases = seq.getSeqString().toCharArray();
+                for (int index = 0; index <= bases.length - k; index++) {
+                    buckets.add(rootChild(bases[index]), bases, index, -1, seq.getSeqName());
+                }
+            }
+        }
+
+        return buckets;
+    }
+
+    /**
+     * Adds the sequences (or model sequences) on numThreads threads, the trie
+     * ends up the same as adding them one at a time. Kmers are generated in
+     * parallel and sorted by their first character, then each of the root's
+     * subtrees is built by a single thread so no locking is needed.
+     */
+    public void addSequences(List<Sequence> seqs, final int refSet, final boolean modelSeqs, int numThreads) throws InterruptedException {
+        ExecutorService service = Executors.newFixedThreadPool(numThreads);
+
+        try {
+            int numChunks = Math.min(seqs.size(), numThreads * 4);
+            List<Future<KmerBuckets>> chunks = new ArrayList();
+            for (int chunk = 0; chunk < numChunks; chunk++) {
+                final List<Sequence> chunkSeqs = seqs.subList(chunk * seqs.size() / numChunks, (chunk + 1) * seqs.size() / numChunks);
+                chunks.add(service.submit(new Callable<KmerBuckets>() {
+
+                    public KmerBuckets call() {
+                        return bucketKmers(chunkSeqs, modelSeqs);
+                    }
+                }));
+            }
+
+            final List<KmerBuckets> buckets = new ArrayList();
+            for (Future<KmerBuckets> chunk : chunks) {
+                buckets.add(chunk.get());
+            }
+
+            final int frame = (isProtein || modelSeqs) ? -1 : 0;
+            List<Future<Object>> subtrees = new ArrayList();
+            for (int child = 0; child < ((TrieInteriorNode) root).children.length; child++) {
+                final int bucket = child;
+                subtrees.add(service.submit(new Callable<Object>() {
+
+                    public Object call() {
+                        for (KmerBuckets chunk : buckets) {
+                            for (int index = 0; index < chunk.sizes[bucket]; index++) {
+                                addKmer(chunk.chars[bucket][index], chunk.offsets[bucket][index], frame, chunk.modelPos[bucket][index], refSet, chunk.seqids[bucket][index]);
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+
+            for (Future<Object> subtree : subtrees) {
+                subtree.get();
+            }
+        } catch (ExecutionException e) {
+            Throwable t = e.getCause();
+            if (t instanceof RuntimeException) {
+                throw (RuntimeException) t;
+            } else if (t instanceof Error) {
+                throw (Error) t;
+            }
+            throw new RuntimeException(t);
+        } finally {
+            service.shutdownNow();
+        }
+
+        seqCount += seqs.size();
+    }
+
     public TrieLeaf contains(char[] kmer) {
         if (kmer.length != k) {
             throw new IllegalArgumentException(new String(kmer) + "'s length doesn't match expected (" + k + ")");
@@ -282,6 +482,211 @@ public class KmerTrie implements Serializable {
         return ((TrieLeaf) curr);
     }
 
+    private int alphaSize() {
+        return isProtein ? proteinAlphaSize : rnaAlphaSize;
+    }
+
+    /**
+     * Checks for the trie file magic number at the start of a file
+     */
+    public static boolean isTrieFile(File f) throws IOException {
+        if (!f.isFile() || f.length() < 8) {
+            return false;
+        }
+
+        DataInputStream is = new DataInputStream(new FileInputStream(f));
+        try {
+            return is.readInt() == MAGIC;
+        } finally {
+            is.close();
+        }
+    }
+
+    public void save(File f) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1 << 16));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(k);
+            out.writeInt(alphaSize());
+            out.writeByte(isProtein ? 1 : 0);
+            out.writeInt(seqCount);
+
+            writeVarint(out, refSetLabels.size());
+            for (String label : refSetLabels) {
+                writeString(out, label);
+            }
+
+            writeNode(out, root, 0, new HashMap<String, Integer>());
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeNode(DataOutputStream out, TrieNode node, int depth, Map<String, Integer> seqids) throws IOException {
+        if (depth == k) {
+            TrieLeaf leaf = (TrieLeaf) node;
+            writeVarint(out, zigzag(leaf.frame));
+            writeVarint(out, leaf.count);
+            writeVarint(out, leaf.refSetToModelStarts.size());
+            for (Map.Entry<Integer, Set<RefPos>> refSet : leaf.refSetToModelStarts.entrySet()) {
+                writeVarint(out, refSet.getKey());
+                writeVarint(out, refSet.getValue().size());
+                for (RefPos pos : refSet.getValue()) {
+                    writeVarint(out, zigzag(pos.modelPos));
+                    Integer seqid = seqids.get(pos.seqid);
+                    if (seqid == null) {
+                        writeVarint(out, seqids.size());
+                        writeString(out, pos.seqid);
+                        seqids.put(pos.seqid, seqids.size());
+                    } else {
+                        writeVarint(out, seqid);
+                    }
+                }
+            }
+            return;
+        }
+
+        TrieNode[] children = ((TrieInteriorNode) node).children;
+        byte[] mask = new byte[(children.length + 7) / 8];
+        for (int index = 0; index < children.length; index++) {
+            if (children[index] != null) {
+                mask[index >> 3] |= 1 << (index & 7);
+            }
+        }
+        out.write(mask);
+
+        for (TrieNode child : children) {
+            if (child != null) {
+                writeNode(out, child, depth + 1, seqids);
+            }
+        }
+    }
+
+    /**
+     * Reads a trie written by save
+     */
+    public static KmerTrie load(File f) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1 << 16));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(f + " is not a kmer trie file");
+            }
+
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported kmer trie version " + version);
+            }
+
+            int k = in.readInt();
+            int alphaSize = in.readInt();
+            boolean isProtein = in.readByte() != 0;
+            KmerTrie trie = new KmerTrie(k, isProtein);
+            if (alphaSize != trie.alphaSize()) {
+                throw new IOException("Trie was written with an alphabet of " + alphaSize + " characters but the current alphabet has " + trie.alphaSize());
+            }
+            trie.seqCount = in.readInt();
+
+            int numLabels = readVarint(in);
+            for (int index = 0; index < numLabels; index++) {
+                trie.refSetLabels.add(readString(in));
+            }
+
+            trie.readChildren(in, (TrieInteriorNode) trie.root, 0, new ArrayList<String>());
+            return trie;
+        } finally {
+            in.close();
+        }
+    }
+
+    private void readChildren(DataInputStream in, TrieInteriorNode node, int depth, List<String> seqids) throws IOException {
+        byte[] mask = new byte[(node.children.length + 7) / 8];
+        in.readFully(mask);
+
+        for (int index = 0; index < node.children.length; index++) {
+            if ((mask[index >> 3] & (1 << (index & 7))) == 0) {
+                continue;
+            }
+
+            if (depth + 1 == k) {
+                node.children[index] = readLeaf(in, seqids);
+            } else {
+                TrieInteriorNode child = new TrieInteriorNode();
+                child.children = new TrieNode[node.children.length];
+                readChildren(in, child, depth + 1, seqids);
+                node.children[index] = child;
+            }
+        }
+    }
+
+    private static TrieLeaf readLeaf(DataInputStream in, List<String> seqids) throws IOException {
+        TrieLeaf leaf = new TrieLeaf(unzigzag(readVarint(in)));
+        leaf.count = readVarint(in);
+
+        int numRefSets = readVarint(in);
+        for (int refSet = 0; refSet < numRefSets; refSet++) {
+            Integer refSetId = readVarint(in);
+            int numPositions = readVarint(in);
+            Set<RefPos> positions = new HashSet(numPositions * 2);
+            for (int index = 0; index < numPositions; index++) {
+                RefPos pos = new RefPos();
+                pos.modelPos = unzigzag(readVarint(in));
+
+                int seqid = readVarint(in);
+                if (seqid == seqids.size()) {
+                    seqids.add(readString(in));
+                } else if (seqid > seqids.size()) {
+                    throw new IOException("Seqid " + seqid + " used before it was defined");
+                }
+                pos.seqid = seqids.get(seqid);
+                positions.add(pos);
+            }
+            leaf.refSetToModelStarts.put(refSetId, positions);
+        }
+
+        return leaf;
+    }
+
+    private static int zigzag(int i) {
+        return (i << 1) ^ (i >> 31);
+    }
+
+    private static int unzigzag(int i) {
+        return (i >>> 1) ^ -(i & 1);
+    }
+
+    private static void writeVarint(DataOutputStream out, int i) throws IOException {
+        while ((i & ~0x7f) != 0) {
+            out.writeByte((i & 0x7f) | 0x80);
+            i >>>= 7;
+        }
+        out.writeByte(i);
+    }
+
+    private static int readVarint(DataInputStream in) throws IOException {
+        int ret = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            ret |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return ret;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes("UTF-8");
+        writeVarint(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[readVarint(in)];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
     public SequenceType getTreeSeqType() {
         return isProtein ? SequenceType.Protein : SequenceType.Nucleotide;
     }
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.kmer;
+
+import edu.msu.cme.rdp.readseq.utils.ProtBinMapping;
+import edu.msu.cme.rdp.readseq.utils.ProteinUtils;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author fishjord
+ */
+public class CodonTableTest {
+
+    @Test
+    public void testMatchesProteinUtils() {
+        CodonTable table = CodonTable.getInstance(11);
+        Random rand = new Random(1);
+        char[] bases = "acgtACGTnNrykm-".toCharArray();
+
+        for (int trial = 0; trial < 100; trial++) {
+            char[] seq = new char[rand.nextInt(200)];
+            for (int index = 0; index < seq.length; index++) {
+                seq[index] = bases[rand.nextInt((trial % 2 == 0) ? 8 : bases.length)];
+            }
+
+            String seqString = new String(seq);
+            for (int frame = 0; frame < 3 && frame <= seq.length; frame++) {
+                assertEquals(ProteinUtils.getInstance().translateToProtein(seqString.substring(frame), true, 11), table.translate(seqString, frame));
+            }
+        }
+    }
+
+    @Test
+    public void testCodes() {
+        CodonTable table = CodonTable.getInstance(11);
+        char[] acgt = new char[]{'a', 'c', 'g', 't'};
+
+        for (int codon = 0; codon < 64; codon++) {
+            char aa = table.translate(acgt[codon >> 4], acgt[(codon >> 2) & 0x3], acgt[codon & 0x3]);
+            assertEquals(ProtBinMapping.asciiMap[aa], table.getCode(codon));
+        }
+    }
+
+    @Test
+    public void testShared() {
+        assertSame(CodonTable.getInstance(11), CodonTable.getInstance(11));
+        assertEquals(11, CodonTable.getInstance(11).getTranslTable());
+    }
+}
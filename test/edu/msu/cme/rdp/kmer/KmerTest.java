@@ -100,5 +100,23 @@ public class KmerTest {
         }
         
     }
+
+    @Test
+    public void testReverseComplement() {
+        NuclKmer kmer = new NuclKmer("aacgtttgcatggcaatgcatgccgtaaagctagcattgcaagtc".toCharArray());
+        NuclKmer rc = kmer.reverseComplement();
+        assertEquals("gacttgcaatgctagctttacggcatgcattgccatgcaaacgtt", rc.toString());
+        assertEquals(kmer, rc.reverseComplement());
+        assertTrue(kmer.compareTo(rc) < 0);
+        assertTrue(rc.compareTo(kmer) > 0);
+
+        NuclKmer palindrome = new NuclKmer("gaattc".toCharArray());
+        assertEquals(0, palindrome.compareTo(palindrome.reverseComplement()));
+
+        // the first word uses the sign bit for 32-mers, ordering must still follow the strings
+        NuclKmer low = new NuclKmer("aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa".toCharArray());
+        NuclKmer high = new NuclKmer("tttttttttttttttttttttttttttttttt".toCharArray());
+        assertTrue(low.compareTo(high) < 0);
+    }
     
 }
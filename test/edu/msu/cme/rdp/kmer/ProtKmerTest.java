@@ -66,5 +66,19 @@ public class ProtKmerTest {
         }
         
     }
+
+    @Test
+    public void testShiftInPlace() {
+        String seq = "tmamrqcalygkggigkstttqnlvaa";
+        int size = 20;
+        Kmer kmer = new ProtKmer(seq.substring(0, size).toCharArray());
+        for (int position = size; position < seq.length(); position++) {
+            assertSame(kmer, kmer.shiftLeftInPlace(seq.charAt(position)));
+            Kmer expected = new ProtKmer(seq.substring(position - size + 1, position + 1).toCharArray());
+            assertEquals(expected.toString(), kmer.toString());
+            assertArrayEquals(expected.getLongKmers(), kmer.getLongKmers());
+            assertEquals(expected, kmer);
+        }
+    }
     
 }
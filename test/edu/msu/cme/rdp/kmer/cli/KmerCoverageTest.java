@@ -18,12 +18,17 @@
 package edu.msu.cme.rdp.kmer.cli;
 
 import edu.msu.cme.rdp.kmer.cli.KmerCoverage.Contig;
+import edu.msu.cme.rdp.readseq.readers.Sequence;
 import edu.msu.cme.rdp.readseq.readers.SequenceReader;
 import edu.msu.cme.rdp.readseq.readers.core.SeqReaderCore;
 import edu.msu.cme.rdp.readseq.utils.SeqUtils;
 import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
 import org.junit.Test;
 import static org.junit.Assert.*;
@@ -108,5 +113,79 @@ public class KmerCoverageTest {
         
     }
 
-   
+    @Test
+    public void testMedian() {
+        Random rand = new Random(1);
+        for (int trial = 0; trial < 200; trial++) {
+            double[] values = new double[1 + rand.nextInt(300)];
+            for (int index = 0; index < values.length; index++) {
+                // mostly repeated values, like a coverage array
+                values[index] = (trial % 2 == 0) ? rand.nextInt(4) / 3.0 : rand.nextDouble();
+            }
+
+            double[] sorted = values.clone();
+            Arrays.sort(sorted);
+            int n = sorted.length;
+            double expected = (n % 2 == 1) ? sorted[n / 2] : (sorted[n / 2 - 1] + sorted[n / 2]) / 2;
+
+            double[] scratch = Arrays.copyOf(values, n + 5);
+            assertEquals(expected, KmerCoverage.median(scratch, n), 0);
+            assertEquals(sorted[n / 3], KmerCoverage.select(values.clone(), n, n / 3), 0);
+        }
+    }
+
+    @Test
+    public void testCoverageMatrix() throws Exception {
+        int kmer_size = 30;
+        String contigs = ">contig1\n" +
+        "ccccacgagcaggcgaccaagcaaggcccgaagatcatggaattccggctcacggttga\n" +
+        ">contig2\n" +
+        "caggcgaccaagcaaggcccgaagatcatggaattccggctcacggttgaggagaagcgaattgtcatcgacgacatgg\n";
+        String[][] samples = new String[][]{
+            {"ccccacgagcaggcgaccaagcaaggcccgaagatcatggaattccggctcacggttgaggagaagcgaattgtcatcgacgacatgg"},
+            {"CCATGTCGTCGATGACAATTCGCTTCTCCTCAACCGTGAGCCGGAATTCCATGATCTTCGGGCCTTGCTTGGTCGCCTGCTCGTGGGG", "ccccacgagcaggcgaccaagcaaggcccgNagatcatggaattccggctcacggttgaggC"}
+        };
+
+        KmerCoverage instance = new KmerCoverage(kmer_size, new SequenceReader(new BufferedInputStream(new ByteArrayInputStream(contigs.getBytes()))), 0, samples.length);
+        instance.setNumThreads(2);
+        assertEquals(2, instance.getNumSamples());
+        for (int sample = 0; sample < samples.length; sample++) {
+            for (String read : samples[sample]) {
+                instance.processReads(new Sequence("read", "", read), sample);
+            }
+        }
+        ByteArrayOutputStream coverage_out = new ByteArrayOutputStream();
+        ByteArrayOutputStream abundance_out = new ByteArrayOutputStream();
+        instance.printCoverageMatrix(coverage_out, abundance_out, Arrays.asList("s1", "s2"));
+        String[] matrix = coverage_out.toString().split("\n");
+        assertEquals("#total reads\t\t1\t2", matrix[0]);
+        assertEquals("#seqid\ttotal_pos\ts1\ts2", matrix[1]);
+        assertEquals(4, matrix.length);
+
+        // each column matches counting the sample on its own
+        for (int sample = 0; sample < samples.length; sample++) {
+            KmerCoverage single = new KmerCoverage(kmer_size, new SequenceReader(new BufferedInputStream(new ByteArrayInputStream(contigs.getBytes()))));
+            for (String read : samples[sample]) {
+                single.processReads(new Sequence("read", "", read), 0);
+            }
+            ByteArrayOutputStream single_out = new ByteArrayOutputStream();
+            single.printCovereage(single_out, new ByteArrayOutputStream());
+
+            Map<String, String> means = new HashMap();
+            for (String line : single_out.toString().split("\n")) {
+                if (!line.startsWith("#")) {
+                    String[] lexemes = line.split("\t");
+                    means.put(lexemes[0], String.format("%1$.3f", Double.valueOf(lexemes[1])));
+                }
+            }
+
+            for (int row = 2; row < matrix.length; row++) {
+                String[] lexemes = matrix[row].split("\t");
+                assertEquals(means.get(lexemes[0]), lexemes[2 + sample]);
+            }
+        }
+
+        String[] abundance = abundance_out.toString().split("\n");
+        assertEquals("kmer_abundance\ts1\ts2", abundance[0]);
+    }
 }
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.kmer.cli;
+
+import edu.msu.cme.rdp.readseq.readers.SeqReader;
+import edu.msu.cme.rdp.readseq.readers.Sequence;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author fishjord
+ */
+public class ReadPipelineTest {
+
+    private static SeqReader getReader(final int numSeqs) {
+        return new SeqReader() {
+
+            private int index = 0;
+
+            public Sequence readNextSequence() {
+                if (index == numSeqs) {
+                    return null;
+                }
+                index++;
+                return new Sequence("seq" + index, "", "acgt");
+            }
+
+            public void close() {
+            }
+        };
+    }
+
+    @Test
+    public void testOrderedOutput() throws Exception {
+        final List<String> written = new ArrayList();
+
+        long count = new ReadPipeline<List<String>>(4, 7, 3).run(getReader(1000), new ReadPipeline.Worker<List<String>>() {
+
+            public List<String> process(List<Sequence> batch) {
+                List<String> ret = new ArrayList();
+                for (Sequence seq : batch) {
+                    ret.add(seq.getSeqName());
+                }
+                return ret;
+            }
+        }, new ReadPipeline.Writer<List<String>>() {
+
+            public void write(List<String> result) {
+                written.addAll(result);
+            }
+        });
+
+        assertEquals(1000, count);
+        assertEquals(1000, written.size());
+        for (int index = 0; index < written.size(); index++) {
+            assertEquals("seq" + (index + 1), written.get(index));
+        }
+    }
+
+    @Test
+    public void testWorkerError() throws Exception {
+        try {
+            new ReadPipeline<Integer>(2, 10, 2).run(getReader(1000), new ReadPipeline.Worker<Integer>() {
+
+                public Integer process(List<Sequence> batch) throws IOException {
+                    if (batch.get(0).getSeqName().equals("seq51")) {
+                        throw new IOException("bad batch");
+                    }
+                    return batch.size();
+                }
+            }, new ReadPipeline.Writer<Integer>() {
+
+                public void write(Integer result) {
+                }
+            });
+            fail("Worker exception should have been rethrown");
+        } catch (IOException e) {
+            assertEquals("bad batch", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2013 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.kmer.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jordan Fish <fishjord at msu.edu>
+ */
+public class BinaryKmerStartsTest {
+
+    private static void assertStartEquals(KmerStart expected, KmerStart actual) {
+        assertEquals(expected.getGeneName(), actual.getGeneName());
+        assertEquals(expected.getQueryId(), actual.getQueryId());
+        assertEquals(expected.getRefId(), actual.getRefId());
+        assertEquals(expected.getNuclKmer(), actual.getNuclKmer());
+        assertEquals(expected.getFrame(), actual.getFrame());
+        assertEquals(expected.getMpos(), actual.getMpos());
+        assertEquals(expected.isProt(), actual.isProt());
+        assertEquals(expected.getProtKmer(), actual.getProtKmer());
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        List<KmerStart> starts = new ArrayList();
+        starts.add(new KmerStart("rplB", "read1", "ref1", "acgtacgtacgtacgtacgtacgtacgtacgtacgtacgtacgtacg", -3, 120, true, "kpdqlvmwgtyrhec"));
+        starts.add(new KmerStart("rplB", "read1", "ref2", "ttttacgtacgtacgtacgtacgtacgtacgtacgtacgtacgtaaa", 2, 0, true, "kpdqlvmwgtyrhe*"));
+        starts.add(new KmerStart("nifH", "read1", "ref1", "acgtnacgtacgtacgtacgtacgtacgtac", -1, -1, false, null));
+        starts.add(new KmerStart("nifH", "read2", "ref3", "ACGTacgtacgtacgtacgtacgtacgtacg", 1, 100000, false, null));
+        starts.add(new KmerStart("rplB", "read3", "ref1", "acgtacgtacgtacgtacgtacgtacgtacgtacgtacgtacgtacg", 3, 7, true, "kpdqlvmwgtyrhOc"));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinaryKmerStartsWriter writer = new BinaryKmerStartsWriter(bytes);
+        for (KmerStart start : starts) {
+            writer.write(start);
+        }
+        writer.close();
+
+        BinaryKmerStartsReader reader = new BinaryKmerStartsReader(new ByteArrayInputStream(bytes.toByteArray()));
+        for (KmerStart start : starts) {
+            assertStartEquals(start, reader.readNext());
+        }
+        assertNull(reader.readNext());
+        reader.close();
+    }
+
+    @Test
+    public void testTsvRoundTrip() throws Exception {
+        String tsv = "#gene name\tquery id\trefid\tnucl kmer\tis prot?\tstarting_frame\tprot kmer\tmodel pos\n"
+                + "rplB\tread1\tref1\tacgtacgtacgtacg\ttrue\t-3\ttytyt\t120\n"
+                + "nifH\tread2\tref2\tacgtacgtacgtacgtacgtacgtacgtac\tfalse\t-\t-\t-1\n";
+
+        KmerStartsReader tsvReader = new KmerStartsReader(new ByteArrayInputStream(tsv.getBytes("UTF-8")));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinaryKmerStartsWriter writer = new BinaryKmerStartsWriter(bytes);
+        KmerStart start;
+        while ((start = tsvReader.readNext()) != null) {
+            writer.write(start);
+        }
+        writer.close();
+
+        BinaryKmerStartsReader reader = new BinaryKmerStartsReader(new ByteArrayInputStream(bytes.toByteArray()));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        KmerStartsWriter tsvWriter = new KmerStartsWriter(out);
+        while ((start = reader.readNext()) != null) {
+            tsvWriter.write(start);
+        }
+        tsvWriter.close();
+
+        assertEquals(tsv, out.toString("UTF-8"));
+    }
+}
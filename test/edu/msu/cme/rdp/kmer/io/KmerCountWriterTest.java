@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2013 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.kmer.io;
+
+import edu.msu.cme.rdp.kmer.Kmer;
+import edu.msu.cme.rdp.kmer.NuclKmer;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.ByteArrayInputStream;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jordan Fish <fishjord at msu.edu>
+ */
+public class KmerCountWriterTest {
+
+    @Test
+    public void testDecode() {
+        byte[] buf = new byte[70];
+        for (int k : new int[]{1, 3, 4, 15, 31, 32, 33, 37, 60, 64}) {
+            for (int trial = 0; trial < 20; trial++) {
+                Kmer kmer = NuclKmer.randomKmer(k);
+                int end = KmerCountWriter.decode(kmer.getPart(0), kmer.getPart(1), k, buf, 1);
+                assertEquals(k + 1, end);
+                assertEquals(kmer.toString(), new String(buf, 1, k));
+            }
+        }
+    }
+
+    @Test
+    public void testWrite() throws Exception {
+        Kmer kmer1 = new NuclKmer("acgtacgtacgtacgtacgtacgtacgtacgtacg".toCharArray());
+        Kmer kmer2 = new NuclKmer("ttttttttttttttttttttttttttttttttttt".toCharArray());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        KmerCountWriter writer = new KmerCountWriter(bytes, 35);
+        writer.write(kmer1.getPart(0), kmer1.getPart(1), 0);
+        writer.write(kmer2.getPart(0), kmer2.getPart(1), Integer.MAX_VALUE);
+        writer.close();
+
+        assertEquals("acgtacgtacgtacgtacgtacgtacgtacgtacg\t0\nttttttttttttttttttttttttttttttttttt\t2147483647\n", bytes.toString());
+
+        bytes = new ByteArrayOutputStream();
+        BinaryKmerCountWriter binary = new BinaryKmerCountWriter(bytes, 35, 2);
+        binary.write(kmer1.getPart(0), kmer1.getPart(1), 12);
+        binary.close();
+
+        assertEquals(BinaryKmerCountWriter.HEADER_SIZE + BinaryKmerCountWriter.getRecordSize(2), bytes.size());
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(BinaryKmerCountWriter.MAGIC, in.readInt());
+        assertEquals(BinaryKmerCountWriter.VERSION, in.readInt());
+        assertEquals(35, in.readInt());
+        assertEquals(2, in.readInt());
+        assertEquals(kmer1.getPart(0), in.readLong());
+        assertEquals(kmer1.getPart(1), in.readLong());
+        assertEquals(12, in.readInt());
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2013 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.kmer.io;
+
+import java.io.ByteArrayOutputStream;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jordan Fish <fishjord at msu.edu>
+ */
+public class KmerStartsWriterTest {
+
+    @Test
+    public void testWrite() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        KmerStartsWriter out = new KmerStartsWriter(bytes);
+
+        KmerStartsWriter.RecordBuffer records = new KmerStartsWriter.RecordBuffer(16);
+        records.add(new KmerStart("rplB", "read1", "ref1", "acgtacgtacgtacg", -3, 120, true, "tytyt"));
+        records.add(new KmerStart("nifH", "read2", "refé2", "acgtacgtacgtacgtacgtacgtacgtac", 1, -1, false, null));
+
+        out.write(new KmerStart("rplB", "read0", "ref0", "ccgtacgtacgtacg", 2, 0, true, "pyaya"));
+        out.write(records);
+        out.close();
+
+        assertEquals("#gene name\tquery id\trefid\tnucl kmer\tis prot?\tstarting_frame\tprot kmer\tmodel pos\n"
+                + "rplB\tread0\tref0\tccgtacgtacgtacg\ttrue\t2\tpyaya\t0\n"
+                + "rplB\tread1\tref1\tacgtacgtacgtacg\ttrue\t-3\ttytyt\t120\n"
+                + "nifH\tread2\trefé2\tacgtacgtacgtacgtacgtacgtacgtac\tfalse\t-\t-\t-1\n", bytes.toString("UTF-8"));
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2013 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.kmer.io;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jordan Fish <fishjord at msu.edu>
+ */
+public class MappedSeqReaderTest {
+
+    private static File write(String contents) throws IOException {
+        File f = File.createTempFile("mapped_seqs", ".txt");
+        f.deleteOnExit();
+        OutputStream out = new FileOutputStream(f);
+        out.write(contents.getBytes("UTF-8"));
+        out.close();
+        return f;
+    }
+
+    private static void assertRecord(ReadRecord record, String name, String desc, String seq) {
+        assertNotNull(record);
+        assertEquals(name, record.getName());
+        assertEquals(desc, record.getDesc());
+        assertEquals(seq, record.getSeqString());
+    }
+
+    @Test
+    public void testFasta() throws IOException {
+        File f = write("\n>read1 first read\nacgtacgt\nacgt\n>read2\r\nggcc\r\naatt\r\n\n>read3 x\n");
+
+        for (long window : new long[]{1 << 20, 40, 34}) {
+            assertTrue(MappedSeqReader.isSupported(f));
+            MappedSeqReader reader = new MappedSeqReader(f, window);
+            assertFalse(reader.isFastq());
+
+            assertRecord(reader.readNextRecord(), "read1", "first read", "acgtacgtacgt");
+            ReadRecord record = reader.readNextRecord();
+            assertRecord(record, "read2", "", "ggccaatt");
+            assertEquals(10, record.getSeqLength());
+            assertRecord(reader.readNextRecord(), "read3", "x", "");
+            assertNull(reader.readNextRecord());
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testFastq() throws IOException {
+        File f = write("@read1 desc\nacgtn\n+\nIIIII\n@read2\r\nttgg\r\n+read2\r\n@@@@\r\n");
+
+        for (long window : new long[]{1 << 20, 36, 28}) {
+            MappedSeqReader reader = new MappedSeqReader(f, window);
+            assertTrue(reader.isFastq());
+
+            assertRecord(reader.readNextRecord(), "read1", "desc", "acgtn");
+            assertRecord(reader.readNextRecord(), "read2", "", "ttgg");
+            assertNull(reader.readNextSequence());
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testRecordTooLong() throws IOException {
+        File f = write(">read1\nacgtacgtacgtacgtacgtacgt\n>read2\nacgt\n");
+        MappedSeqReader reader = new MappedSeqReader(f, 16);
+        try {
+            reader.readNextRecord();
+            fail("Expected an exception for a record longer than the window");
+        } catch (IOException e) {
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testUnsupported() throws IOException {
+        assertFalse(MappedSeqReader.isSupported(write("#not a sequence file\n")));
+    }
+}
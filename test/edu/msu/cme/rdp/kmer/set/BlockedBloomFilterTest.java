@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.kmer.set;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author fishjord
+ */
+public class BlockedBloomFilterTest {
+
+    @Test
+    public void testFilter() {
+        int numKeys = 20000;
+        BlockedBloomFilter filter = new BlockedBloomFilter(numKeys, .01);
+        Set<Long> keys = new HashSet();
+        Random rand = new Random(11);
+
+        while (keys.size() < numKeys) {
+            long k0 = rand.nextLong();
+            keys.add(k0);
+            filter.add(k0, 0);
+        }
+
+        for (Long k0 : keys) {
+            assertTrue(filter.mightContain(k0, 0));
+        }
+
+        BlockedBloomFilter.Stats stats = new BlockedBloomFilter.Stats();
+        int trials = 100000;
+        for (int index = 0; index < trials; index++) {
+            long k0 = rand.nextLong();
+            if (keys.contains(k0)) {
+                continue;
+            }
+            if (filter.mightContain(BlockedBloomFilter.hash(k0, 0), stats)) {
+                stats.falsePositive();
+            }
+        }
+        filter.addStats(stats);
+
+        assertEquals(trials, filter.getQueries());
+        assertEquals(trials, filter.getRejected() + filter.getFalsePositives());
+        // blocking costs some accuracy, but it should stay near the target
+        assertTrue("false positive rate " + filter.getFalsePositives() / (double) trials, filter.getFalsePositives() < trials * .02);
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.kmer.set;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author fishjord
+ */
+public class CountingKmerSetTest {
+
+    @Test
+    public void testIncrement() {
+        CountingKmerSet set = new CountingKmerSet(1, 4);
+        assertEquals(0, set.get(new long[]{5, 0}));
+        assertEquals(1, set.increment(new long[]{5, 0}));
+        assertEquals(2, set.increment(5, 77));  // second word ignored for single word keys
+        assertEquals(1, set.increment(new long[]{6}));
+        assertEquals(2, set.get(new long[]{5, 0}));
+        assertEquals(2, set.size());
+
+        set.add(6, 0, Integer.MAX_VALUE);
+        assertEquals(Integer.MAX_VALUE, set.get(6, 0));
+    }
+
+    @Test
+    public void testConcurrentIncrement() throws Exception {
+        for (int keyLength = 1; keyLength <= 2; keyLength++) {
+            final CountingKmerSet set = new CountingKmerSet(keyLength, 8);
+            final int kl = keyLength;
+            final int numThreads = 4;
+            Thread[] threads = new Thread[numThreads];
+
+            for (int t = 0; t < numThreads; t++) {
+                final int seed = t;
+                threads[t] = new Thread() {
+
+                    @Override
+                    public void run() {
+                        // every thread counts the same kmers so they collide
+                        Random rand = new Random(seed % 2);
+                        for (int index = 0; index < 50000; index++) {
+                            set.increment(rand.nextInt(5000), (kl == 2) ? rand.nextInt(3) : 0);
+                        }
+                    }
+                };
+                threads[t].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            final Map<String, Integer> expected = new HashMap();
+            for (int seed = 0; seed < 2; seed++) {
+                Random rand = new Random(seed);
+                for (int index = 0; index < 50000; index++) {
+                    String key = rand.nextInt(5000) + "," + ((kl == 2) ? rand.nextInt(3) : 0);
+                    Integer cnt = expected.get(key);
+                    expected.put(key, (cnt == null) ? 2 : cnt + 2);
+                }
+            }
+
+            assertEquals(expected.size(), set.size());
+            final int[] visited = new int[1];
+            set.forEach(new CountingKmerSet.CountVisitor() {
+
+                public void visit(long k0, long k1, int count) {
+                    assertEquals(expected.get(k0 + "," + k1), Integer.valueOf(count));
+                    visited[0]++;
+                }
+            });
+            assertEquals(expected.size(), visited[0]);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.kmer.set;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author fishjord
+ */
+public class KmerBucketFilesTest {
+
+    @Test
+    public void testBuckets() throws Exception {
+        for (int keyLength = 1; keyLength <= 2; keyLength++) {
+            KmerBucketFiles buckets = new KmerBucketFiles(null, keyLength, 5);
+            assertEquals(8, buckets.getNumBuckets());
+
+            try {
+                Map<String, Integer> expected = new HashMap();
+                Random rand = new Random(3);
+
+                // two writers interleaved, each flushes several full blocks
+                KmerBucketFiles.BucketWriter w1 = buckets.newWriter();
+                KmerBucketFiles.BucketWriter w2 = buckets.newWriter();
+                for (int index = 0; index < 20000; index++) {
+                    long k0 = rand.nextInt(4000);
+                    long k1 = (keyLength == 2) ? rand.nextLong() % 3 : 0;
+                    ((index % 2 == 0) ? w1 : w2).add(k0, k1);
+
+                    String key = k0 + "," + k1;
+                    Integer cnt = expected.get(key);
+                    expected.put(key, (cnt == null) ? 1 : cnt + 1);
+                }
+                w1.flush();
+                w2.flush();
+
+                long total = 0;
+                final Map<String, Integer> seen = new HashMap();
+                for (int bucket = 0; bucket < buckets.getNumBuckets(); bucket++) {
+                    total += buckets.getBucketSize(bucket);
+                    final int b = bucket;
+                    final KmerBucketFiles kb = buckets;
+                    buckets.readBucket(bucket, new KmerBucketFiles.KmerVisitor() {
+
+                        public void visit(long k0, long k1) {
+                            assertEquals(b, kb.bucketOf(k0, k1));
+                            String key = k0 + "," + k1;
+                            Integer cnt = seen.get(key);
+                            seen.put(key, (cnt == null) ? 1 : cnt + 1);
+                        }
+                    });
+                }
+
+                assertEquals(20000, total);
+                assertEquals(expected, seen);
+            } finally {
+                buckets.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.kmer.set;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author fishjord
+ */
+public class KmerIdSetTest {
+
+    @Test
+    public void testAdd() {
+        for (int keyLength = 1; keyLength <= 2; keyLength++) {
+            KmerIdSet set = new KmerIdSet(keyLength, 8, 0, 0);
+            assertEquals(8, set.getNumPartitions());
+
+            Map<String, Integer> expected = new HashMap();
+            Random rand = new Random(11);
+            for (int index = 0; index < 10000; index++) {
+                // small range so kmers repeat
+                long k0 = rand.nextInt(6000);
+                long k1 = (keyLength == 2) ? rand.nextInt(2) : 0;
+                String key = k0 + "," + k1;
+
+                Integer id = expected.get(key);
+                if (id == null) {
+                    id = expected.size();
+                    expected.put(key, id);
+                }
+                assertEquals(id.intValue(), set.add(k0, k1));
+            }
+
+            assertEquals(expected.size(), set.size());
+            for (String key : expected.keySet()) {
+                String[] lexemes = key.split(",");
+                assertEquals(expected.get(key).intValue(), set.getId(Long.parseLong(lexemes[0]), Long.parseLong(lexemes[1])));
+            }
+            assertEquals(-1, set.getId(7000, 0));
+        }
+    }
+
+    @Test
+    public void testGetIds() {
+        int k = 20;
+        String seq = "acgtagctagctagcggatcgatcgatgctagctagtcgatcgtagcggcgcgatatatcgcgagc";
+        KmerIdSet set = new KmerIdSet(1, 8, 0, 0);
+        KmerIdSet minimizerSet = new KmerIdSet(1, 64, k, 7);
+        NuclKmerGenerator kmers = new NuclKmerGenerator(seq, k, false, true);
+        int pos = 0;
+        while (kmers.advance()) {
+            if (pos % 2 == 0) {
+                assertEquals(pos / 2, set.add(kmers.word0(), kmers.word1()));
+                assertEquals(pos / 2, minimizerSet.add(kmers.word0(), kmers.word1()));
+            }
+            pos++;
+        }
+
+        KmerBatch<Object> batch = new KmerBatch<Object>();
+        kmers = new NuclKmerGenerator(seq, k, false, true);
+        while (kmers.advance()) {
+            batch.add(kmers.word0(), kmers.word1());
+        }
+        set.getIds(batch);
+        for (int index = 0; index < batch.size(); index++) {
+            assertEquals((index % 2 == 0) ? index / 2 : -1, batch.getId(index));
+        }
+
+        SuperKmerGenerator superKmers = new SuperKmerGenerator(new NuclKmerGenerator(seq, k, false, true), k, 7);
+        SuperKmerGenerator.SuperKmer superKmer = new SuperKmerGenerator.SuperKmer();
+        while (superKmers.nextSuperKmer(superKmer)) {
+            batch.clear();
+            for (int index = 0; index < superKmer.size(); index++) {
+                batch.add(superKmer.getWord0(index), superKmer.getWord1(index));
+            }
+
+            minimizerSet.getIds(batch, superKmer.getMinimizer());
+            for (int index = 0; index < superKmer.size(); index++) {
+                int kmerPos = superKmer.getPosition(index) - 1;
+                assertEquals((kmerPos % 2 == 0) ? kmerPos / 2 : -1, batch.getId(index));
+            }
+        }
+    }
+}
@@ -20,6 +20,7 @@ import java.util.Arrays;
 import java.util.Set;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Random;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -80,4 +81,69 @@ public class KmerSetTest {
         }
         
     }
+
+    @Test
+    public void testResize() {
+        KmerSet<Integer> set = new KmerSet<Integer>(2, 16, .5f);
+        Random rand = new Random(1);
+        long[][] keys = new long[10000][];
+
+        for (int index = 0; index < keys.length; index++) {
+            keys[index] = new long[]{rand.nextLong(), rand.nextLong()};
+            set.add(keys[index], index);
+        }
+
+        assertEquals(keys.length, set.size());
+        assertTrue(set.getLoad() <= .5);
+
+        for (int index = 0; index < keys.length; index++) {
+            assertEquals(index, (int) set.get(keys[index]));
+        }
+
+        assertNull(set.get(new long[]{rand.nextLong(), rand.nextLong()}));
+        assertEquals(keys.length, set.getKeys().size());
+    }
+
+    @Test
+    public void testSingleWordKeys() {
+        KmerSet<String> set = new KmerSet<String>(1);
+
+        for (long key = 0; key < 5000; key++) {
+            set.add(new long[]{key, 0}, "v" + key);
+        }
+        set.add(new long[]{42, 0}, "replaced");
+
+        assertEquals(5000, set.size());
+        assertEquals("replaced", set.get(42, 0));
+        assertEquals("v4999", set.get(new long[]{4999, 0}));
+        assertTrue(set.containsKey(new long[]{0, 0}));
+        assertFalse(set.containsKey(new long[]{5000, 0}));
+    }
+
+    @Test
+    public void testGetAll() {
+        KmerSet<Integer> set = new KmerSet<Integer>(2, 16, .5f);
+        Random rand = new Random(1);
+        KmerBatch<Integer> batch = new KmerBatch<Integer>(8);
+
+        for (int index = 0; index < 1000; index++) {
+            set.add(rand.nextLong(), rand.nextLong(), index);
+        }
+
+        rand = new Random(1);
+        for (int index = 0; index < 1000; index++) {
+            long k0 = rand.nextLong();
+            long k1 = rand.nextLong();
+            batch.add(k0, k1);
+            batch.add(k0, k1 + 1);
+
+            if (batch.isFull() || index == 999) {
+                set.getAll(batch);
+                for (int kmer = 0; kmer < batch.size(); kmer++) {
+                    assertEquals(set.get(batch.getWord0(kmer), batch.getWord1(kmer)), batch.get(kmer));
+                }
+                batch.clear();
+            }
+        }
+    }
 }
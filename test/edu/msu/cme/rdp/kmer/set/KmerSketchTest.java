@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.kmer.set;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author fishjord
+ */
+public class KmerSketchTest {
+
+    /**
+     * Sketch of kmers from to to, each added twice
+     */
+    private static KmerSketch sketch(int size, long from, long to) {
+        KmerSketch ret = new KmerSketch(size);
+        for (int rep = 0; rep < 2; rep++) {
+            for (long kmer = from; kmer < to; kmer++) {
+                ret.add(kmer, 0);
+            }
+        }
+        return ret;
+    }
+
+    @Test
+    public void testExactWhenNotFull() {
+        KmerSketch a = sketch(1000, 0, 300);
+        KmerSketch b = sketch(1000, 200, 600);
+
+        assertFalse(a.isFull());
+        assertEquals(300, a.getHashes().length);
+        assertEquals(600, a.getNumKmers());
+        assertEquals(100.0 / 600, KmerSketch.jaccard(a, b), 1e-9);
+        assertEquals(100.0 / 300, KmerSketch.containment(a, b), 1e-9);
+        assertEquals(100.0 / 400, KmerSketch.containment(b, a), 1e-9);
+        assertEquals(1.0, KmerSketch.jaccard(a, a), 1e-9);
+    }
+
+    @Test
+    public void testEstimates() {
+        KmerSketch a = sketch(2000, 0, 100000);
+        KmerSketch b = sketch(2000, 50000, 250000);
+
+        assertTrue(a.isFull());
+        long[] hashes = a.getHashes();
+        assertEquals(2000, hashes.length);
+        for (int index = 1; index < hashes.length; index++) {
+            assertTrue(hashes[index - 1] < hashes[index]);
+        }
+
+        // the kept hashes are the smallest of all the kmers
+        int below = 0;
+        for (long kmer = 0; kmer < 100000; kmer++) {
+            if (KmerSketch.hash(kmer, 0) <= hashes[hashes.length - 1]) {
+                below++;
+            }
+        }
+        assertEquals(2000, below);
+
+        assertEquals(50000.0 / 250000, KmerSketch.jaccard(a, b), 0.03);
+        assertEquals(0.5, KmerSketch.containment(a, b), 0.05);
+        assertEquals(0.25, KmerSketch.containment(b, a), 0.05);
+        assertEquals(0.0, KmerSketch.jaccard(a, sketch(2000, 300000, 400000)), 1e-9);
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.kmer.set;
+
+import edu.msu.cme.rdp.kmer.Kmer;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author fishjord
+ */
+public class MappedKmerIndexTest {
+
+    @Test
+    public void testIndex() throws Exception {
+        String seq = "agtcgctacatgaactgactacttaggttaacgtcatgcctaagcttacatacg";
+        MappedKmerIndex.Builder builder = new MappedKmerIndex.Builder(20, false);
+        builder.addRefLabel("gene1");
+        builder.addRefLabel("gene2");
+
+        NuclKmerGenerator kmers = new NuclKmerGenerator(seq, 20);
+        while (kmers.hasNext()) {
+            Kmer kmer = kmers.next();
+            builder.add(kmer.getLongKmers(), 0, kmers.getPosition(), "seq1");
+            builder.add(kmer.getLongKmers(), 1, 7, "seq2");
+            // same ref file and model position as the first posting, should be collapsed
+            builder.add(kmer.getLongKmers(), 0, kmers.getPosition(), "seq3");
+        }
+
+        File f = File.createTempFile("kmer_index", ".idx");
+        f.deleteOnExit();
+        builder.write(f);
+
+        MappedKmerIndex index = MappedKmerIndex.open(f);
+        assertEquals(20, index.getK());
+        assertEquals(1, index.getKeyLength());
+        assertFalse(index.isProtein());
+        assertEquals(Arrays.asList("gene1", "gene2"), index.getRefLabels());
+        assertEquals(seq.length() - 20 + 1, index.size());
+        assertEquals(2 * index.size(), index.getNumPostings());
+
+        kmers = new NuclKmerGenerator(seq, 20);
+        while (kmers.hasNext()) {
+            Kmer kmer = kmers.next();
+            long ordinal = index.find(kmer.getPart(0), kmer.getPart(1));
+            assertTrue(ordinal >= 0);
+
+            long start = index.getPostingStart(ordinal);
+            assertEquals(start + 2, index.getPostingEnd(ordinal));
+            assertEquals(0, index.getRefIndex(start));
+            assertEquals(kmers.getPosition(), index.getModelPos(start));
+            assertEquals("seq1", index.getSeqid(start));
+            assertEquals(1, index.getRefIndex(start + 1));
+            assertEquals(7, index.getModelPos(start + 1));
+            assertEquals("seq2", index.getSeqid(start + 1));
+        }
+
+        assertEquals(-1, index.find(0, 0));
+        assertEquals(-1, index.find(-1, 0));
+    }
+
+    @Test
+    public void testTwoWordKeys() throws Exception {
+        Random rand = new Random(7);
+        MappedKmerIndex.Builder builder = new MappedKmerIndex.Builder(50, false);
+        long[][] keys = new long[5000][];
+
+        for (int index = 0; index < keys.length; index++) {
+            keys[index] = new long[]{rand.nextLong(), rand.nextLong() & 0xfffffffffL};
+            builder.add(keys[index], 0, index, "seq" + (index % 10));
+        }
+
+        File f = File.createTempFile("kmer_index", ".idx");
+        f.deleteOnExit();
+        builder.write(f);
+
+        MappedKmerIndex index = MappedKmerIndex.open(f);
+        assertEquals(2, index.getKeyLength());
+        assertEquals(keys.length, index.size());
+
+        for (int i = 0; i < keys.length; i++) {
+            long ordinal = index.find(keys[i][0], keys[i][1]);
+            assertTrue(ordinal >= 0);
+            assertEquals(i, index.getModelPos(index.getPostingStart(ordinal)));
+            assertEquals("seq" + (i % 10), index.getSeqid(index.getPostingStart(ordinal)));
+            assertEquals(-1, index.find(keys[i][0], keys[i][1] + 1));
+        }
+    }
+}
@@ -17,6 +17,8 @@
 package edu.msu.cme.rdp.kmer.set;
 
 import edu.msu.cme.rdp.kmer.Kmer;
+import edu.msu.cme.rdp.kmer.NuclKmer;
+import java.nio.ByteBuffer;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -171,6 +173,87 @@ public class NuclKmerGeneratorTest {
     }
     
     
+    @Test
+    public void testCursor() {
+        String seq = "agtcgctacatgaactgactacttaggttaacgNctacttaggttaacgtcatgcctaagcttacatacg";
+        for (int k : new int[]{30, 40}) {
+            NuclKmerGenerator expected = new NuclKmerGenerator(seq, k);
+            NuclKmerGenerator cursor = new NuclKmerGenerator(seq, k);
+
+            while (expected.hasNext()) {
+                Kmer temp = expected.next();
+                assertTrue(cursor.advance());
+                assertEquals(temp.getPart(0), cursor.word0());
+                assertEquals(temp.getPart(1), cursor.word1());
+                assertEquals(temp.toString(), cursor.current().toString());
+                assertEquals(expected.getPosition(), cursor.getPosition());
+            }
+            assertFalse(cursor.advance());
+        }
+    }
+
+    @Test
+    public void testCanonical() {
+        String seq = "agtcgctacatgaactgactacttaggttaacgNctacttaggttaacgtcatgcgaattcctaagcttacatacgcatgcgcgc";
+        for (int k : new int[]{6, 25, 40}) {
+            NuclKmerGenerator forward = new NuclKmerGenerator(seq, k);
+            NuclKmerGenerator canonical = new NuclKmerGenerator(seq, k, false, true);
+            NuclKmerGenerator cursor = new NuclKmerGenerator(seq, k, false, true);
+            int palindromes = 0;
+
+            while (forward.hasNext()) {
+                NuclKmer kmer = (NuclKmer) forward.next();
+                NuclKmer rc = kmer.reverseComplement();
+                boolean reverse = kmer.compareTo(rc) > 0;
+                NuclKmer expected = reverse ? rc : kmer;
+
+                Kmer temp = canonical.next();
+                assertEquals(expected.toString(), temp.toString());
+                assertEquals(expected, temp);
+                assertEquals(reverse, canonical.isReverse());
+                assertEquals(kmer.equals(rc), canonical.isPalindrome());
+                assertEquals(forward.getPosition(), canonical.getPosition());
+
+                assertTrue(cursor.advance());
+                assertEquals(expected.getPart(0), cursor.word0());
+                assertEquals(expected.getPart(1), cursor.word1());
+                assertEquals(reverse, cursor.isReverse());
+                assertEquals(forward.getPosition(), cursor.getPosition());
+
+                if (canonical.isPalindrome()) {
+                    palindromes++;
+                }
+            }
+            assertFalse(canonical.hasNext());
+            assertFalse(cursor.advance());
+            if (k == 6) {
+                assertEquals(6, palindromes);
+            }
+        }
+    }
+
+    @Test
+    public void testByteBuffer() {
+        String seq = "agtcgctacatgaactgactacttaggttaacgNctacttaggttaacgtcatgcgaattcctaagcttacatacgcatgcgcgc";
+        // the same sequence wrapped over lines with some padding either side
+        String wrapped = "xx" + seq.substring(0, 20) + "\n" + seq.substring(20, 50) + "\r\n" + seq.substring(50) + "yy";
+        ByteBuffer buf = ByteBuffer.wrap(wrapped.getBytes());
+
+        for (int k : new int[]{6, 25, 40}) {
+            NuclKmerGenerator expected = new NuclKmerGenerator(seq, k, false, true);
+            NuclKmerGenerator bytes = new NuclKmerGenerator(buf, 2, wrapped.length() - 2, k, true);
+
+            while (expected.advance()) {
+                assertTrue(bytes.advance());
+                assertEquals(expected.word0(), bytes.word0());
+                assertEquals(expected.word1(), bytes.word1());
+                assertEquals(expected.isReverse(), bytes.isReverse());
+                assertEquals(expected.getPosition(), bytes.getPosition());
+            }
+            assertFalse(bytes.advance());
+        }
+    }
+
     @Test
     public void testInvalidKmer() {
         String str = "acgty";
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.kmer.set;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author fishjord
+ */
+public class PartitionedKmerSetTest {
+
+    @Test
+    public void testAddAll() throws Exception {
+        for (int keyLength = 1; keyLength <= 2; keyLength++) {
+            PartitionedKmerSet<List<Integer>> set = new PartitionedKmerSet<List<Integer>>(keyLength, 6);
+            assertEquals(8, set.getNumPartitions());
+
+            Map<String, List<Integer>> expected = new HashMap();
+            List<PartitionedKmerSet.Buckets<Integer>> buckets = new ArrayList();
+            Random rand = new Random(7);
+            int val = 0;
+
+            for (int bucket = 0; bucket < 5; bucket++) {
+                PartitionedKmerSet.Buckets<Integer> kmers = set.newBuckets();
+                for (int index = 0; index < 2000; index++) {
+                    // small range so kmers repeat across buckets
+                    long k0 = rand.nextInt(3000);
+                    long k1 = (keyLength == 2) ? rand.nextInt(2) : 0;
+                    kmers.add(new long[]{k0, k1}, val);
+
+                    String key = k0 + "," + k1;
+                    if (!expected.containsKey(key)) {
+                        expected.put(key, new ArrayList<Integer>());
+                    }
+                    expected.get(key).add(val++);
+                }
+                assertEquals(2000, kmers.size());
+                buckets.add(kmers);
+            }
+
+            set.addAll(buckets, new PartitionedKmerSet.Merger<Integer, List<Integer>>() {
+
+                public List<Integer> merge(List<Integer> existing, Integer val) {
+                    if (existing == null) {
+                        existing = new ArrayList<Integer>();
+                    }
+                    existing.add(val);
+                    return existing;
+                }
+            }, 3);
+
+            assertEquals(expected.size(), set.size());
+            for (String key : expected.keySet()) {
+                String[] lexemes = key.split(",");
+                assertEquals(expected.get(key), set.get(Long.parseLong(lexemes[0]), Long.parseLong(lexemes[1])));
+            }
+            assertNull(set.get(5000, 0));
+        }
+    }
+
+    @Test
+    public void testMinimizerPartitions() {
+        int k = 20;
+        int m = 7;
+        PartitionedKmerSet<Integer> set = new PartitionedKmerSet<Integer>(1, 64, k, m);
+        assertEquals(m, set.getMinimizerLength());
+
+        String seq = "acgtagctagctagcggatcgatcgatgctagctagtcgatcgtagcggcgcgatatatcgcgagc";
+        NuclKmerGenerator kmers = new NuclKmerGenerator(seq, k, false, true);
+        int val = 0;
+        while (kmers.advance()) {
+            set.add(kmers.word0(), kmers.word1(), val++);
+        }
+
+        // every kmer is in the partition of its minimizer
+        kmers = new NuclKmerGenerator(seq, k, false, true);
+        val = 0;
+        while (kmers.advance()) {
+            long minimizer = SuperKmerGenerator.minimizer(kmers.word0(), kmers.word1(), k, m);
+            assertEquals(Integer.valueOf(val), set.get(kmers.word0(), kmers.word1(), minimizer));
+            assertEquals(Integer.valueOf(val), set.getPartition(set.partitionOfMinimizer(minimizer)).get(kmers.word0(), 0));
+            val++;
+        }
+    }
+
+    @Test
+    public void testGetAll() {
+        int k = 20;
+        String seq = "acgtagctagctagcggatcgatcgatgctagctagtcgatcgtagcggcgcgatatatcgcgagc";
+        PartitionedKmerSet<Integer> set = new PartitionedKmerSet<Integer>(1, 8);
+        PartitionedKmerSet<Integer> minimizerSet = new PartitionedKmerSet<Integer>(1, 64, k, 7);
+        NuclKmerGenerator kmers = new NuclKmerGenerator(seq, k, false, true);
+        int val = 0;
+        while (kmers.advance()) {
+            if (val % 2 == 0) {
+                set.add(kmers.word0(), kmers.word1(), val);
+                minimizerSet.add(kmers.word0(), kmers.word1(), val);
+            }
+            val++;
+        }
+
+        KmerBatch<Integer> batch = new KmerBatch<Integer>();
+        kmers = new NuclKmerGenerator(seq, k, false, true);
+        while (kmers.advance()) {
+            batch.add(kmers.word0(), kmers.word1());
+        }
+        set.getAll(batch);
+        for (int index = 0; index < batch.size(); index++) {
+            assertEquals((index % 2 == 0) ? Integer.valueOf(index) : null, batch.get(index));
+        }
+
+        SuperKmerGenerator superKmers = new SuperKmerGenerator(new NuclKmerGenerator(seq, k, false, true), k, 7);
+        SuperKmerGenerator.SuperKmer superKmer = new SuperKmerGenerator.SuperKmer();
+        while (superKmers.nextSuperKmer(superKmer)) {
+            batch.clear();
+            for (int index = 0; index < superKmer.size(); index++) {
+                batch.add(superKmer.getWord0(index), superKmer.getWord1(index));
+            }
+
+            minimizerSet.getAll(batch, superKmer.getMinimizer());
+            for (int index = 0; index < superKmer.size(); index++) {
+                int pos = superKmer.getPosition(index) - 1;
+                assertEquals((pos % 2 == 0) ? Integer.valueOf(pos) : null, batch.get(index));
+            }
+        }
+    }
+}
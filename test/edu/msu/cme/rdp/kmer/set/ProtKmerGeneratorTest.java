@@ -17,6 +17,7 @@
 package edu.msu.cme.rdp.kmer.set;
 
 import edu.msu.cme.rdp.kmer.Kmer;
+import edu.msu.cme.rdp.kmer.ProtKmer;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -300,6 +301,23 @@ public class ProtKmerGeneratorTest {
         }
     }
 
+    @Test
+    public void testCursor() {
+        String seq = "tmamrqcalygkggigkstttqnlvaa";
+        ProtKmerGenerator cursor = new ProtKmerGenerator(seq, 20);
+
+        int index = 0;
+        while (cursor.advance()) {
+            Kmer expected = new ProtKmer(seq.substring(index, index + 20).toCharArray());
+            assertEquals(expected.getPart(0), cursor.word0());
+            assertEquals(expected.getPart(1), cursor.word1());
+            assertEquals(expected.toString(), cursor.current().toString());
+            assertEquals(index + 1, cursor.getPosition());
+            index++;
+        }
+        assertEquals(seq.length() - 20 + 1, index);
+    }
+
     @Test
     public void testInvalidKmer() {
         String str = "acgto";
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.kmer.set;
+
+import edu.msu.cme.rdp.readseq.utils.IUBUtilities;
+import edu.msu.cme.rdp.readseq.utils.ProteinUtils;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author fishjord
+ */
+public class SixFrameKmerGeneratorTest {
+
+    /**
+     * Kmers from translating each frame and running ProtKmerGenerator over
+     * it, as frame:nucl position:word0:word1:protein kmer
+     */
+    private static Set<String> expectedKmers(String seq, int k) {
+        Set<String> ret = new HashSet();
+        for (int strand = 0; strand < 2; strand++) {
+            String strandSeq = (strand == 0) ? seq : IUBUtilities.reverseComplement(seq);
+            for (int frame = 0; frame < 3; frame++) {
+                String prot = ProteinUtils.getInstance().translateToProtein(strandSeq.substring(frame), true, 11);
+                if (prot.length() < k) {
+                    continue;
+                }
+
+                ProtKmerGenerator kmers = new ProtKmerGenerator(prot, k);
+                while (kmers.advance()) {
+                    int frameLabel = (strand == 0) ? frame + 1 : -(frame + 1);
+                    int nuclPos = (kmers.getPosition() - 1) * 3 + frame;
+                    ret.add(frameLabel + ":" + nuclPos + ":" + kmers.word0() + ":" + kmers.word1() + ":" + kmers.current());
+                }
+            }
+        }
+        return ret;
+    }
+
+    private static Set<String> sixFrameKmers(String seq, int k) {
+        Set<String> ret = new HashSet();
+        SixFrameKmerGenerator kmers = new SixFrameKmerGenerator(seq, k, 11);
+        while (kmers.advance()) {
+            assertEquals(kmers.getFrame() < 0, kmers.isReverse());
+            assertTrue(ret.add(kmers.getFrame() + ":" + kmers.getNuclPosition() + ":" + kmers.word0() + ":" + kmers.word1() + ":" + new String(kmers.getProtKmer())));
+        }
+        return ret;
+    }
+
+    @Test
+    public void testMatchesTranslation() {
+        Random rand = new Random(1);
+        char[] bases = new char[]{'a', 'c', 'g', 't', 'A', 'C', 'G', 'T'};
+
+        for (int k : new int[]{1, 5, 12, 13, 20, 24}) {
+            for (int trial = 0; trial < 20; trial++) {
+                char[] seq = new char[k * 3 + 2 + rand.nextInt(100)];
+                for (int index = 0; index < seq.length; index++) {
+                    seq[index] = bases[rand.nextInt(bases.length)];
+                }
+                if (trial % 4 == 0) {
+                    seq[rand.nextInt(seq.length)] = 'n';
+                }
+
+                String seqString = new String(seq);
+                assertEquals(seqString + " k=" + k, expectedKmers(seqString, k), sixFrameKmers(seqString, k));
+            }
+        }
+    }
+
+    @Test
+    public void testShortSeq() {
+        assertFalse(new SixFrameKmerGenerator("acgtacgta", 4, 11).advance());
+        assertEquals(6, sixFrameKmers("acgtacgtacgtac", 4).size());
+    }
+}
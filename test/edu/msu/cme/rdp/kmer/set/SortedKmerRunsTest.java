@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.kmer.set;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author fishjord
+ */
+public class SortedKmerRunsTest {
+
+    @Test
+    public void testRuns() throws Exception {
+        for (int keyLength = 1; keyLength <= 2; keyLength++) {
+            // small buffers and merges of three runs at a time so the runs
+            // get merged on disk more than once
+            SortedKmerRuns runs = new SortedKmerRuns(null, keyLength, 37, 3, 3);
+
+            try {
+                Map<String, Long> expected = new HashMap();
+                Random rand = new Random(7);
+                for (int index = 0; index < 5000; index++) {
+                    long k0 = (rand.nextInt(300) - 150) * 0x100000001L;
+                    long k1 = (keyLength == 2) ? rand.nextInt(3) - 1 : 0;
+                    runs.add(k0, k1);
+
+                    String key = k0 + "," + k1;
+                    Long cnt = expected.get(key);
+                    expected.put(key, (cnt == null) ? 1 : cnt + 1);
+                }
+                runs.finish();
+                assertEquals(5000, runs.getNumKmers());
+                assertTrue(runs.getNumRuns() <= 3);
+
+                SortedKmerRuns.Cursor cursor = runs.open();
+                int distinct = 0;
+                boolean first = true;
+                long prev0 = 0, prev1 = 0;
+                while (cursor.next()) {
+                    if (!first) {
+                        assertTrue(SortedKmerRuns.compare(prev0, prev1, cursor.word0(), cursor.word1()) < 0);
+                    }
+                    first = false;
+                    prev0 = cursor.word0();
+                    prev1 = cursor.word1();
+
+                    assertEquals(expected.get(prev0 + "," + prev1), Long.valueOf(cursor.count()));
+                    distinct++;
+                }
+                cursor.close();
+                assertEquals(expected.size(), distinct);
+            } finally {
+                runs.delete();
+            }
+        }
+    }
+
+    @Test
+    public void testUnsignedOrder() {
+        assertTrue(SortedKmerRuns.compare(1, 0, -1, 0) < 0);
+        assertTrue(SortedKmerRuns.compare(5, -1, 5, 1) > 0);
+        assertEquals(0, SortedKmerRuns.compare(5, 1, 5, 1));
+    }
+}
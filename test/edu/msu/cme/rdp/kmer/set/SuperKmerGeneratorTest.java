@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.kmer.set;
+
+import edu.msu.cme.rdp.kmer.Kmer;
+import edu.msu.cme.rdp.kmer.NuclKmer;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author fishjord
+ */
+public class SuperKmerGeneratorTest {
+
+    private static String randomSeq(Random rand, int len) {
+        char[] ret = new char[len];
+        for (int index = 0; index < len; index++) {
+            ret[index] = (rand.nextInt(60) == 0) ? 'n' : "acgt".charAt(rand.nextInt(4));
+        }
+        return new String(ret);
+    }
+
+    /**
+     * Overwrites part of seq with a run of one base and part with a
+     * dinucleotide repeat, both longer than k, where many m-mers in a window
+     * have the same hash
+     */
+    private static String withRepeats(Random rand, String seq, int k) {
+        char[] ret = seq.toCharArray();
+        int runLength = k + 10;
+        int start = rand.nextInt(ret.length / 2 - runLength);
+        char base = "acgt".charAt(rand.nextInt(4));
+        for (int index = start; index < start + runLength; index++) {
+            ret[index] = base;
+        }
+
+        start = ret.length / 2 + rand.nextInt(ret.length / 2 - runLength);
+        for (int index = start; index < start + runLength; index++) {
+            ret[index] = ((index - start) % 2 == 0) ? 'a' : 'c';
+        }
+        return new String(ret);
+    }
+
+    @Test
+    public void testBaseAt() {
+        for (int k : new int[]{5, 32, 33, 50, 64}) {
+            Kmer kmer = NuclKmer.randomKmer(k);
+            String str = kmer.toString();
+            for (int i = 0; i < k; i++) {
+                assertEquals("acgt".charAt(SuperKmerGenerator.baseAt(kmer.getPart(0), kmer.getPart(1), k, i)), str.charAt(i));
+            }
+        }
+    }
+
+    @Test
+    public void testMinimizerIsCanonical() {
+        Kmer kmer = new NuclKmer("acgttgcaaagctagggctatcgatcgtacgatcg".toCharArray());
+        Kmer rc = ((NuclKmer) kmer).reverseComplement();
+        int k = 35;
+        assertEquals(SuperKmerGenerator.minimizer(kmer.getPart(0), kmer.getPart(1), k, 9),
+                SuperKmerGenerator.minimizer(rc.getPart(0), rc.getPart(1), k, 9));
+    }
+
+    @Test
+    public void testSuperKmers() {
+        Random rand = new Random(5);
+        for (int k : new int[]{15, 31, 45}) {
+            int m = 9;
+            for (int trial = 0; trial < 20; trial++) {
+                String seq = randomSeq(rand, 300);
+                if (trial % 2 == 1) {
+                    seq = withRepeats(rand, seq, k);
+                }
+
+                NuclKmerGenerator expected = new NuclKmerGenerator(seq, k, false, true);
+                SuperKmerGenerator superKmers = new SuperKmerGenerator(new NuclKmerGenerator(seq, k, false, true), k, m);
+                SuperKmerGenerator.SuperKmer superKmer = new SuperKmerGenerator.SuperKmer();
+                long lastMinimizer = 0;
+                boolean first = true;
+
+                while (superKmers.nextSuperKmer(superKmer)) {
+                    assertTrue(superKmer.size() > 0);
+                    assertTrue(first || superKmer.getMinimizer() != lastMinimizer);
+                    first = false;
+                    lastMinimizer = superKmer.getMinimizer();
+
+                    for (int index = 0; index < superKmer.size(); index++) {
+                        assertTrue(expected.advance());
+                        assertEquals(expected.word0(), superKmer.getWord0(index));
+                        assertEquals(expected.word1(), superKmer.getWord1(index));
+                        assertEquals(expected.getPosition(), superKmer.getPosition(index));
+                        assertEquals(expected.isReverse(), superKmer.isReverse(index));
+                        assertEquals(SuperKmerGenerator.minimizer(expected.word0(), expected.word1(), k, m), superKmer.getMinimizer());
+                    }
+                }
+                assertFalse(expected.advance());
+            }
+        }
+    }
+}
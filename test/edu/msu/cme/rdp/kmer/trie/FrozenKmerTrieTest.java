@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.kmer.trie;
+
+import edu.msu.cme.rdp.kmer.set.BlockedBloomFilter;
+import edu.msu.cme.rdp.kmer.trie.KmerTrie.RefPos;
+import edu.msu.cme.rdp.kmer.trie.KmerTrie.TrieLeaf;
+import edu.msu.cme.rdp.readseq.readers.Sequence;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author fishjord
+ */
+public class FrozenKmerTrieTest {
+
+    private static Set<String> modelStarts(TrieLeaf leaf, int refSet) {
+        Set<String> ret = new HashSet();
+        for (RefPos pos : leaf.getModelStarts(refSet)) {
+            ret.add(pos.seqid + ":" + pos.modelPos);
+        }
+        return ret;
+    }
+
+    private static void assertSameLeaf(TrieLeaf expected, TrieLeaf leaf) {
+        if (expected == null) {
+            assertNull(leaf);
+            return;
+        }
+
+        assertNotNull(leaf);
+        assertEquals(expected.getCount(), leaf.getCount());
+        assertEquals(expected.getFrame(), leaf.getFrame());
+        assertEquals(expected.getRefSets(), leaf.getRefSets());
+        for (Integer refSet : expected.getRefSets()) {
+            assertEquals(modelStarts(expected, refSet), modelStarts(leaf, refSet));
+        }
+    }
+
+    private static void assertSameTrie(KmerTrie trie, String[] queries) {
+        FrozenKmerTrie frozen = trie.freeze();
+        int k = trie.getWordSize();
+
+        assertEquals(trie.uniqueWords(), frozen.uniqueWords());
+        assertEquals(trie.countNodes(), frozen.countNodes());
+        assertEquals(trie.getTreeSeqType(), frozen.getTreeSeqType());
+
+        for (String query : queries) {
+            char[] chars = query.toCharArray();
+            for (int offset = 0; offset + k <= chars.length; offset++) {
+                assertSameLeaf(trie.contains(chars, offset), frozen.contains(chars, offset));
+            }
+        }
+
+        // the prefilter must never turn away a kmer that is in the trie
+        FrozenKmerTrie prefiltered = trie.freeze();
+        BlockedBloomFilter filter = prefiltered.buildPrefilter(.05);
+        BlockedBloomFilter.Stats stats = new BlockedBloomFilter.Stats();
+        for (String query : queries) {
+            char[] chars = query.toCharArray();
+            for (int offset = 0; offset + k <= chars.length; offset++) {
+                assertSameLeaf(trie.contains(chars, offset), prefiltered.contains(chars, offset, stats));
+            }
+        }
+        filter.addStats(stats);
+        assertTrue(filter.getQueries() > 0);
+    }
+
+    @Test
+    public void testNucl() {
+        String ref1 = "agtcgctacatgaactgactacttaggttaacgtcatgcctaagcttacatacg";
+        String ref2 = "ttaggttaacgtcatgcgaattcctaagcttacatacgcatgcgcgcagtcgct";
+        KmerTrie trie = new KmerTrie(8, false);
+        trie.addSequence(new Sequence("ref1", "", ref1), 0);
+        trie.addSequence(new Sequence("ref2", "", ref2), 1);
+        trie.addSequence(new Sequence("ref3", "", ref1), 1);
+
+        assertSameTrie(trie, new String[]{ref1, ref2, "acgtacgtacgtgggcccatatgcgcgatcgatcggatttaaa"});
+    }
+
+    @Test
+    public void testProt() {
+        String ref1 = "MKLVTAGHERWQPLLSDKKVEEALRQAG";
+        String ref2 = "MKLVTAGHERFFPLLSDKAVEEALRWAG";
+        KmerTrie trie = new KmerTrie(5, true);
+        trie.addSequence(new Sequence("ref1", "", ref1), 0);
+        trie.addSequence(new Sequence("ref2", "", ref2), 2);
+
+        assertSameTrie(trie, new String[]{ref1, ref2, "WWKLVTAGHERFQPLLSDKKVEE"});
+    }
+
+    @Test
+    public void testQueryCount() {
+        KmerTrie trie = new KmerTrie(4, false);
+        trie.addSequence(new Sequence("ref1", "", "acgtacgg"));
+        FrozenKmerTrie frozen = trie.freeze();
+
+        frozen.contains("cgta".toCharArray()).incQueryCount();
+        frozen.contains("cgta".toCharArray()).incQueryCount();
+        assertEquals(2, frozen.contains("cgta".toCharArray()).getQueryCount());
+        assertEquals(0, frozen.contains("acgt".toCharArray()).getQueryCount());
+        assertNull(frozen.contains("aaaa".toCharArray()));
+    }
+}
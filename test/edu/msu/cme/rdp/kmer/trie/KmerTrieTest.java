@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2012 Jordan Fish <fishjord at msu.edu>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.msu.cme.rdp.kmer.trie;
+
+import edu.msu.cme.rdp.kmer.trie.KmerTrie.RefPos;
+import edu.msu.cme.rdp.kmer.trie.KmerTrie.TrieLeaf;
+import edu.msu.cme.rdp.readseq.SequenceType;
+import edu.msu.cme.rdp.readseq.readers.Sequence;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author fishjord
+ */
+public class KmerTrieTest {
+
+    private static Set<String> modelStarts(TrieLeaf leaf, int refSet) {
+        Set<String> ret = new HashSet();
+        for (RefPos pos : leaf.getModelStarts(refSet)) {
+            ret.add(pos.seqid + ":" + pos.modelPos);
+        }
+        return ret;
+    }
+
+    @Test
+    public void testAddSequences() throws Exception {
+        Random rand = new Random(3);
+        List<Sequence> seqs = new ArrayList();
+        for (int seq = 0; seq < 20; seq++) {
+            StringBuilder bases = new StringBuilder();
+            for (int index = 0; index < 200; index++) {
+                bases.append("acgt".charAt(rand.nextInt(4)));
+            }
+            seqs.add(new Sequence("seq" + seq, "", bases.toString()));
+        }
+        List<Sequence> aligned = new ArrayList();
+        aligned.add(new Sequence("model1", "", "ACGT-ACGTAcgt..GGCATTAGC-AAT"));
+        aligned.add(new Sequence("model2", "", "ACGTTACGTA---..GGCATTAGCAAAT"));
+
+        KmerTrie serial = new KmerTrie(6, false);
+        KmerTrie parallel = new KmerTrie(6, false);
+        for (Sequence seq : seqs) {
+            serial.addSequence(seq, 1);
+        }
+        for (Sequence seq : aligned) {
+            serial.addModelSequence(seq, 2);
+        }
+        parallel.addSequences(seqs, 1, false, 4);
+        parallel.addSequences(aligned, 2, true, 3);
+
+        assertEquals(serial.getSeqCount(), parallel.getSeqCount());
+        assertEquals(serial.uniqueWords(), parallel.uniqueWords());
+        assertEquals(serial.countNodes(), parallel.countNodes());
+
+        List<Sequence> queries = new ArrayList(seqs);
+        queries.add(new Sequence("model", "", "acgtacgtaggcattagcaaat"));
+        for (Sequence seq : queries) {
+            char[] bases = seq.getSeqString().toCharArray();
+            for (int offset = 0; offset + 6 <= bases.length; offset++) {
+                TrieLeaf expected = serial.contains(bases, offset);
+                TrieLeaf leaf = parallel.contains(bases, offset);
+
+                assertEquals(expected == null, leaf == null);
+                if (expected != null) {
+                    assertEquals(expected.getCount(), leaf.getCount());
+                    assertEquals(expected.getFrame(), leaf.getFrame());
+                    assertEquals(expected.getRefSets(), leaf.getRefSets());
+                    for (Integer refSet : expected.getRefSets()) {
+                        assertEquals(modelStarts(expected, refSet), modelStarts(leaf, refSet));
+                    }
+                }
+            }
+        }
+    }
+
+    private static void assertSameLeaves(KmerTrie expectedTrie, KmerTrie trie, List<Sequence> queries) {
+        for (Sequence seq : queries) {
+            char[] bases = seq.getSeqString().toCharArray();
+            for (int offset = 0; offset + expectedTrie.getWordSize() <= bases.length; offset++) {
+                TrieLeaf expected = expectedTrie.contains(bases, offset);
+                TrieLeaf leaf = trie.contains(bases, offset);
+
+                assertEquals(expected == null, leaf == null);
+                if (expected != null) {
+                    assertEquals(expected.getCount(), leaf.getCount());
+                    assertEquals(expected.getFrame(), leaf.getFrame());
+                    assertEquals(expected.getRefSets(), leaf.getRefSets());
+                    for (Integer refSet : expected.getRefSets()) {
+                        assertEquals(modelStarts(expected, refSet), modelStarts(leaf, refSet));
+                    }
+                }
+            }
+        }
+    }
+
+    private static KmerTrie saveAndLoad(KmerTrie trie) throws Exception {
+        File f = File.createTempFile("kmer_trie", ".bin");
+        try {
+            trie.save(f);
+            assertTrue(KmerTrie.isTrieFile(f));
+            return KmerTrie.load(f);
+        } finally {
+            f.delete();
+        }
+    }
+
+    @Test
+    public void testSaveLoad() throws Exception {
+        Random rand = new Random(5);
+        List<Sequence> seqs = new ArrayList();
+        for (int seq = 0; seq < 20; seq++) {
+            StringBuilder bases = new StringBuilder();
+            for (int index = 0; index < 200; index++) {
+                bases.append("acgt".charAt(rand.nextInt(4)));
+            }
+            seqs.add(new Sequence("seq" + seq + "\u00e9", "", bases.toString()));
+        }
+        List<Sequence> aligned = Arrays.asList(new Sequence("model1", "", "ACGT-ACGTAcgt..GGCATTAGC-AAT"));
+
+        KmerTrie trie = new KmerTrie(7, false);
+        trie.addSequences(seqs.subList(0, 10), 0, false, 2);
+        trie.addRefSetLabel("first");
+        trie.addSequences(seqs.subList(5, 20), 1, false, 2);
+        trie.addRefSetLabel("second");
+        trie.addSequences(aligned, 2, true, 1);
+        trie.addRefSetLabel("model");
+
+        KmerTrie loaded = saveAndLoad(trie);
+        assertEquals(7, loaded.getWordSize());
+        assertEquals(SequenceType.Nucleotide, loaded.getTreeSeqType());
+        assertEquals(trie.getSeqCount(), loaded.getSeqCount());
+        assertEquals(trie.uniqueWords(), loaded.uniqueWords());
+        assertEquals(trie.countNodes(), loaded.countNodes());
+        assertEquals(Arrays.asList("first", "second", "model"), loaded.getRefSetLabels());
+
+        List<Sequence> queries = new ArrayList(seqs);
+        queries.add(new Sequence("model", "", "acgtacgtaggcattagcaaat"));
+        assertSameLeaves(trie, loaded, queries);
+
+        KmerTrie protTrie = new KmerTrie(4, true);
+        List<Sequence> protSeqs = Arrays.asList(new Sequence("prot1", "", "MKVLAAGIVGLLLAQPA"), new Sequence("prot2", "", "MKVLWYHHDEQRSTAAG"));
+        protTrie.addSequences(protSeqs, 0, false, 2);
+        KmerTrie protLoaded = saveAndLoad(protTrie);
+        assertEquals(SequenceType.Protein, protLoaded.getTreeSeqType());
+        assertEquals(protTrie.uniqueWords(), protLoaded.uniqueWords());
+        assertTrue(protLoaded.getRefSetLabels().isEmpty());
+        assertSameLeaves(protTrie, protLoaded, protSeqs);
+
+        File notTrie = File.createTempFile("not_trie", ".fasta");
+        try {
+            PrintStream out = new PrintStream(notTrie);
+            out.println(">seq1");
+            out.println("acgtacgtacgt");
+            out.close();
+            assertFalse(KmerTrie.isTrieFile(notTrie));
+        } finally {
+            notTrie.delete();
+        }
+    }
+}